@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.handler.MessageHandler;
+import org.opensaml.messaging.handler.MessageHandlerException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single handler of {@link Saml2ResponseProcessor#withDefaultHandlers()}. All handlers in front of the
+ * measured one are run during the setup of each invocation, as later handlers depend on their results (e.g. the
+ * decrypted assertions).
+ * <p>
+ * The setup allocates way more than most handlers, so <code>-prof gc</code> is useless here. The allocations of the
+ * handler itself are reported by the {@link Allocations} counters instead.
+ * <p>
+ * The same response is processed again and again, so the replay cache accepts every ID. The
+ * {@link ReplayCacheBenchmark} measures the cache itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessageHandlerBenchmark {
+
+    private static final ThreadMXBean THREAD_BEAN = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Param(
+        {
+            "MessageLifetimeSecurityHandler",
+            "ThrowOnMissingIdMessageHandler",
+            "CheckRelayStateMessageHandler",
+            "CheckIssuerMessageHandler",
+            "CheckEndpointMessageHandler",
+            "VerifySignatureMessageHandler",
+            "DecryptAssertionsMessageHandler",
+            "CheckReplayMessageHandler",
+            "VerifyStatusMessageHandler",
+            "CheckAssertionStructureMessageHandler",
+            "CheckSubjectMessageHandler",
+            "CheckAudienceRestrictionMessageHandler",
+            "VerifyAuthnInstantMessageHandler",
+            "CheckSubjectIdentifierMessageHandler",
+            "VerifyAuthenticationStrengthMessageHandler",
+        }
+    )
+    public String handler;
+
+    private Saml2BenchmarkFixture fixture;
+    private Saml2ResponseProcessor processor;
+    private List<MessageHandler> predecessors;
+    private MessageHandler target;
+    private MessageContext messageContext;
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception {
+        fixture = Saml2BenchmarkFixture.create();
+        processor = Saml2ResponseProcessor.withDefaultHandlers((id, expiresAt) -> true);
+        processor.initialize();
+
+        List<MessageHandler> handlers = processor.getHandlers();
+
+        for (int i = 0; i < handlers.size(); i++) {
+            if (handlers.get(i).getClass().getSimpleName().equals(handler)) {
+                predecessors = handlers.subList(0, i);
+                target = handlers.get(i);
+
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No default handler named %s", handler));
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws Exception {
+        messageContext = processor.buildMessageContext(fixture.newToken(), fixture.unmarshalResponse());
+
+        for (MessageHandler predecessor : predecessors) {
+            predecessor.invoke(messageContext);
+        }
+    }
+
+    @Benchmark
+    public MessageContext invoke(Allocations allocations) throws MessageHandlerException {
+        long allocatedBefore = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+
+        target.invoke(messageContext);
+
+        allocations.allocatedBytes += THREAD_BEAN.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        allocations.invocations++;
+
+        return messageContext;
+    }
+
+    /**
+     * Divide the allocated bytes by the invocations to get the allocations per login.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocations {
+
+        public long allocatedBytes;
+        public long invocations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            allocatedBytes = 0;
+            invocations = 0;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+
+/**
+ * Measures a complete login: parsing, all default message handlers and the creation of the Partner.Net principal. Run
+ * it with <code>-prof gc</code> to get the allocations per login (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class PartnerNetSamlAuthenticationBenchmark {
+
+    private Saml2BenchmarkFixture fixture;
+    private PartnerNetSamlAuthenticationProvider provider;
+    private PartnerNetSamlAuthenticationProvider replayRejectingProvider;
+
+    /**
+     * The response is only valid for a few minutes, so we create a new one for each iteration.
+     *
+     * @throws Exception if the fixture can not be created
+     */
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        fixture = Saml2BenchmarkFixture.create();
+
+        // The same response is sent again and again, the ReplayCacheBenchmark measures the replay cache
+        Saml2ResponseProcessor processor = Saml2ResponseProcessor.withDefaultHandlers((id, expiresAt) -> true);
+        processor.initialize();
+
+        provider = new PartnerNetSamlAuthenticationProvider(
+            processor,
+            new PartnerNetSaml2ResponseParser(PartnerNetSaml2AuthoritiesMapper.defaultInstance()),
+            XMLObjectProviderRegistrySupport.getParserPool(),
+            new Saml2ResponsePreScreener()
+        );
+
+        InMemorySaml2ReplayCache replayCache = new InMemorySaml2ReplayCache();
+        replayCache.markUsed(fixture.unmarshalResponse().getID(), Instant.now().plusSeconds(3600));
+
+        replayRejectingProvider = new PartnerNetSamlAuthenticationProvider(
+            processor,
+            new PartnerNetSaml2ResponseParser(PartnerNetSaml2AuthoritiesMapper.defaultInstance()),
+            XMLObjectProviderRegistrySupport.getParserPool(),
+            new Saml2ResponsePreScreener(replayCache)
+        );
+    }
+
+    @Benchmark
+    public Authentication authenticate() {
+        return provider.authenticate(fixture.newToken());
+    }
+
+    /**
+     * Like {@link #authenticate()}, but the response is decoded from Base64 while parsing, as with tokens of the
+     * {@link PartnerNetSaml2AuthenticationTokenConverter}. Includes the decoding, {@link #authenticate()} does not.
+     *
+     * @return the authentication
+     */
+    @Benchmark
+    public Authentication authenticateEncoded() {
+        return provider.authenticate(fixture.newEncodedToken());
+    }
+
+    /**
+     * Rejects the response as replayed, before it is parsed. This is what attack traffic costs.
+     *
+     * @return the exception
+     */
+    @Benchmark
+    public Saml2AuthenticationException rejectReplayed() {
+        try {
+            replayRejectingProvider.authenticate(fixture.newEncodedToken());
+        } catch (Saml2AuthenticationException e) {
+            return e;
+        }
+
+        throw new IllegalStateException("The replayed response was accepted");
+    }
+
+    /**
+     * The XML parsing part of {@link #authenticate()}, to put the handler numbers into perspective.
+     *
+     * @return the parsed response
+     * @throws Exception if parsing fails
+     */
+    @Benchmark
+    public Response parse() throws Exception {
+        return fixture.unmarshalResponse();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link InMemorySaml2ReplayCache} with concurrent logins. Each thread stores new IDs, way more than the
+ * cache can hold, so the cache stays full and drops IDs early all the time, the worst case. The time per ID must not
+ * depend on the max entries, and with <code>-prof gc</code> the allocations per ID (<code>gc.alloc.rate.norm</code>)
+ * must be the same for all sizes and just cover the ID itself. The iteration fails, if the cache grows beyond its
+ * max entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class ReplayCacheBenchmark {
+
+    private static final Duration EXPIRATION = Saml2Utils.MESSAGE_LIFETIME.plus(Saml2Utils.CLOCK_SKEW);
+
+    @Param({ "10000", "100000", "1000000" })
+    public int maxEntries;
+
+    private InMemorySaml2ReplayCache cache;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        cache = new InMemorySaml2ReplayCache(maxEntries, InMemorySaml2ReplayCache.DEFAULT_MAX_RETENTION);
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkSize() {
+        if (cache.size() > maxEntries) {
+            throw new IllegalStateException(String.format("Cache grew to %s IDs", cache.size()));
+        }
+    }
+
+    @Benchmark
+    public boolean markNewId(Ids ids) {
+        return cache.markUsed(ids.next(), ids.expiresAt);
+    }
+
+    /**
+     * A replayed response is rejected after a single lookup.
+     *
+     * @param ids the IDs of the thread
+     * @return always false
+     */
+    @Benchmark
+    public boolean markReplayedId(Ids ids) {
+        return cache.markUsed(ids.replayed, ids.expiresAt);
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private String prefix;
+        private String replayed;
+        private Instant expiresAt;
+        private long counter;
+
+        @Setup(Level.Iteration)
+        public void setup(ReplayCacheBenchmark benchmark) {
+            prefix = String.format("_%s-", THREADS.incrementAndGet());
+            replayed = prefix + "replayed";
+            expiresAt = Instant.now().plus(EXPIRATION);
+            benchmark.cache.markUsed(replayed, expiresAt);
+        }
+
+        String next() {
+            return prefix + counter++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.opensaml.saml.saml2.core.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Measures the conversion of an already validated response into the Partner.Net authentication. Compares the single
+ * pass {@link PartnerNetSaml2ResponseParser} with the {@link LegacyPartnerNetSaml2ResponseParser}, that looked up each
+ * attribute by name. Run it with <code>-prof gc</code> to compare the allocations (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    private static final Optional<String> RELAY_STATE = Optional.of("/benchmark");
+
+    @Param({ "legacy", "single-pass" })
+    public String parserType;
+
+    private Saml2ResponseParser parser;
+    private Response response;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Saml2ResponseProcessor processor = Saml2ResponseProcessor.withDefaultHandlers();
+        processor.initialize();
+
+        PartnerNetSaml2AuthoritiesMapper authoritiesMapper = PartnerNetSaml2AuthoritiesMapper.defaultInstance();
+
+        response = Saml2BenchmarkFixture.create().processResponse(processor);
+        parser = switch (parserType) {
+            case "legacy" -> new LegacyPartnerNetSaml2ResponseParser(authoritiesMapper);
+            case "single-pass" -> new PartnerNetSaml2ResponseParser(authoritiesMapper);
+            default -> throw new IllegalArgumentException(String.format("Unknown parser %s", parserType));
+        };
+    }
+
+    @Benchmark
+    public Authentication parseResponse() {
+        return parser.parseResponse(response, RELAY_STATE);
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static at.porscheinformatik.idp.saml2.Saml2Utils.*;
+
+import at.porscheinformatik.idp.saml2.HttpRequestContextAwareSaml2AuthenticationDetailsSource.HttpRequestContext;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.handler.MessageHandler;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.authentication.Saml2PostAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+
+/**
+ * A signed and encrypted Partner.Net SAML response, together with everything the
+ * {@link PartnerNetSamlAuthenticationProvider} needs to process it. The response is built the same way as in the
+ * Saml2ResponseProcessorTest, but carries a realistic set of Partner.Net attributes.
+ */
+public final class Saml2BenchmarkFixture {
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    private static final String IDP_ENTITY_ID = "https://identity.auto-partner.net/identity/saml2";
+    private static final String IDP_ENDPOINT_URL = IDP_ENTITY_ID + "/authorize";
+    private static final String SP_ENTITY_ID = "https://service.com/service/saml2/pnet";
+    private static final String RESPONSE_DESTINATION = SP_ENTITY_ID + "/sso/post/pnet";
+    private static final String ATTRIBUTE_PREFIX = "https://identity.auto-partner.net/identity/saml2/attributes/";
+    private static final String AUTHN_REQUEST_ID = "ARQbenchmark";
+    private static final String RELAY_STATE = "/benchmark";
+
+    /**
+     * Number of companies the user is employed at. Roles, contracts and addresses scale with it.
+     */
+    private static final int EMPLOYMENTS = 5;
+
+    public static Saml2BenchmarkFixture create() throws Exception {
+        Saml2CredentialsManager credentialsManager = Saml2TestUtils.defaultCredentialsManager();
+
+        Response response = Saml2ObjectUtils.response(IDP_ENTITY_ID, RESPONSE_DESTINATION, AUTHN_REQUEST_ID);
+        response.setStatus(Saml2ObjectUtils.status(StatusCode.SUCCESS, null));
+
+        Subject subject = Saml2ObjectUtils.subject(RESPONSE_DESTINATION, 5 * 60, AUTHN_REQUEST_ID);
+        Conditions conditions = Saml2ObjectUtils.conditions(SP_ENTITY_ID);
+        AuthnStatement authnStatement = Saml2ObjectUtils.authnStatement(
+            Instant.now(),
+            AuthnContextClass.USERPASS.getSamlReference()
+        );
+        AttributeStatement attributeStatement = Saml2ObjectUtils.attributeStatement();
+        fillAttributes(attributeStatement);
+
+        Assertion assertion = Saml2ObjectUtils.assertion(
+            IDP_ENTITY_ID,
+            subject,
+            conditions,
+            authnStatement,
+            attributeStatement
+        );
+        Saml2X509Credential decryptionCredential = credentialsManager
+            .getCredentials(Saml2X509CredentialType.DECRYPTION)
+            .get(0);
+        response
+            .getEncryptedAssertions()
+            .add(Saml2ObjectUtils.encryptAssertion(assertion, SP_ENTITY_ID, decryptionCredential));
+
+        Saml2ObjectUtils.sign(response, credentialsManager.getCredentials(Saml2X509CredentialType.SIGNING).get(0));
+
+        String serializedResponse = XmlUtils.marshall(response);
+        RelyingPartyRegistration registration = buildRelyingPartyRegistration(credentialsManager);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/service/saml2/pnet/sso/post/pnet");
+        request.setScheme("https");
+        request.setServerName("service.com");
+        request.setServerPort(443);
+        request.setSecure(true);
+        request.addParameter(
+            "SAMLResponse",
+            Base64.getEncoder().encodeToString(serializedResponse.getBytes(StandardCharsets.UTF_8))
+        );
+        request.addParameter(RELAY_STATE_PARAM, RELAY_STATE);
+        storeAuthnRequestId(request, AUTHN_REQUEST_ID);
+
+        AbstractSaml2AuthenticationRequest authenticationRequest =
+            Saml2PostAuthenticationRequest.withRelyingPartyRegistration(registration)
+                .samlRequest("benchmark request")
+                .relayState(RELAY_STATE)
+                .build();
+
+        return new Saml2BenchmarkFixture(registration, authenticationRequest, request, serializedResponse);
+    }
+
+    private final RelyingPartyRegistration registration;
+    private final AbstractSaml2AuthenticationRequest authenticationRequest;
+    private final MockHttpServletRequest request;
+    private final String serializedResponse;
+
+    private Saml2BenchmarkFixture(
+        RelyingPartyRegistration registration,
+        AbstractSaml2AuthenticationRequest authenticationRequest,
+        MockHttpServletRequest request,
+        String serializedResponse
+    ) {
+        super();
+        this.registration = registration;
+        this.authenticationRequest = authenticationRequest;
+        this.request = request;
+        this.serializedResponse = serializedResponse;
+    }
+
+    /**
+     * The provider removes the details from the token once it is done, so every authentication needs a fresh one.
+     *
+     * @return a new token for the response of this fixture
+     */
+    public Saml2AuthenticationToken newToken() {
+        Saml2AuthenticationToken token = new Saml2AuthenticationToken(
+            registration,
+            serializedResponse,
+            authenticationRequest
+        );
+        token.setDetails(new HttpRequestContext(request));
+
+        return token;
+    }
+
+    /**
+     * Like {@link #newToken()}, but keeps the response Base64 encoded, as the
+     * {@link PartnerNetSaml2AuthenticationTokenConverter} does.
+     *
+     * @return a new token for the encoded response of this fixture
+     */
+    public Saml2AuthenticationToken newEncodedToken() {
+        Saml2AuthenticationToken token = new PartnerNetSaml2AuthenticationToken(
+            registration,
+            request.getParameter("SAMLResponse"),
+            authenticationRequest
+        );
+        token.setDetails(new HttpRequestContext(request));
+
+        return token;
+    }
+
+    /**
+     * Some handlers modify the response (e.g. the decrypted assertions are added to it), so every handler run needs a
+     * freshly unmarshalled one.
+     *
+     * @return a new response object
+     * @throws Exception if the response can not be unmarshalled
+     */
+    public Response unmarshalResponse() throws Exception {
+        return Saml2ObjectUtils.unmarshal(serializedResponse);
+    }
+
+    /**
+     * Runs all handlers of the processor on a freshly unmarshalled response, like the provider does before the
+     * response is parsed.
+     *
+     * @param processor the initialized processor
+     * @return the validated response, with the decrypted assertions
+     * @throws Exception if the response is not valid
+     */
+    public Response processResponse(Saml2ResponseProcessor processor) throws Exception {
+        Response response = unmarshalResponse();
+        MessageContext messageContext = processor.buildMessageContext(newToken(), response);
+
+        for (MessageHandler handler : processor.getHandlers()) {
+            handler.invoke(messageContext);
+        }
+
+        return response;
+    }
+
+    public String getSerializedResponse() {
+        return serializedResponse;
+    }
+
+    private static RelyingPartyRegistration buildRelyingPartyRegistration(Saml2CredentialsManager credentialsManager) {
+        return RelyingPartyRegistration.withRegistrationId("pnet")
+            .entityId(SP_ENTITY_ID)
+            .assertionConsumerServiceBinding(Saml2MessageBinding.POST)
+            .assertionConsumerServiceLocation(RESPONSE_DESTINATION)
+            .decryptionX509Credentials(credentials ->
+                credentials.addAll(credentialsManager.getCredentials(Saml2X509CredentialType.DECRYPTION))
+            )
+            .assertingPartyDetails(builder ->
+                builder
+                    .entityId(IDP_ENTITY_ID)
+                    .singleSignOnServiceBinding(Saml2MessageBinding.REDIRECT)
+                    .singleSignOnServiceLocation(IDP_ENDPOINT_URL)
+                    .wantAuthnRequestsSigned(false)
+                    .verificationX509Credentials(credentials ->
+                        credentialsManager
+                            .getCredentials(Saml2X509CredentialType.SIGNING)
+                            .stream()
+                            .map(Saml2X509Credential::getCertificate)
+                            .map(Saml2X509Credential::verification)
+                            .forEach(credentials::add)
+                    )
+            )
+            .build();
+    }
+
+    private static void fillAttributes(AttributeStatement attributeStatement) {
+        List<Attribute> attributes = attributeStatement.getAttributes();
+
+        attributes.add(attribute(SUBJECT_ID_NAME, XmlUtils.xmlString("4711@identity.auto-partner.net")));
+        attributes.add(
+            attribute(ATTRIBUTE_PREFIX + "guid", XmlUtils.xmlString("e5b4c2f0-7d1b-4c55-9a3e-2b9f0c1d7e6a"))
+        );
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "personnel_number", XmlUtils.xmlString("P-123456")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "person_id", XmlUtils.xmlInt(4711)));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "user_type", XmlUtils.xmlString("PERSON")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "academic_title", XmlUtils.xmlString("Dr.")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "firstname", XmlUtils.xmlString("Jane")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "lastname", XmlUtils.xmlString("Doe")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "gender", XmlUtils.xmlInt(2)));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "language", XmlUtils.xmlString("de-AT")));
+        attributes.add(
+            attribute(
+                ATTRIBUTE_PREFIX + "additional_languages",
+                XmlUtils.xmlString("en-GB"),
+                XmlUtils.xmlString("it-IT")
+            )
+        );
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "email", XmlUtils.xmlString("jane.doe@example.com")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "phone_number", XmlUtils.xmlString("+43 662 1234567")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "tenant", XmlUtils.xmlString("AT")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "cost_center", XmlUtils.xmlString("4711-01")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "preferred_company", XmlUtils.xmlInt(1000)));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "preferred_brand", XmlUtils.xmlString("V")));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "responsible_user", XmlUtils.xmlBoolean(false)));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "support_data", XmlUtils.xmlBoolean(false)));
+
+        XMLObject[] employments = new XMLObject[EMPLOYMENTS];
+        XMLObject[] addresses = new XMLObject[EMPLOYMENTS];
+        XMLObject[] companyTypes = new XMLObject[EMPLOYMENTS];
+        XMLObject[] functionalNumbers = new XMLObject[EMPLOYMENTS];
+        XMLObject[] contactCompanies = new XMLObject[EMPLOYMENTS];
+        XMLObject[] roles = new XMLObject[EMPLOYMENTS * 6];
+        XMLObject[] contracts = new XMLObject[EMPLOYMENTS * 4];
+
+        for (int i = 0; i < EMPLOYMENTS; i++) {
+            int companyId = 1000 + i;
+
+            employments[i] = XmlUtils.xmlString(companyId + ";" + (20000 + i) + ";Autohaus Nummer " + i);
+            addresses[i] = XmlUtils.xmlString(companyId + ";;Louise-Piëch-Straße " + i + ";;5020;;Salzburg;;AT");
+            companyTypes[i] = XmlUtils.xmlString(companyId + ";DEALER");
+            functionalNumbers[i] = XmlUtils.xmlString(companyId + ";FUNCTION_" + i + ";" + (300 + i));
+            contactCompanies[i] = XmlUtils.xmlInt(companyId);
+
+            for (int j = 0; j < 6; j++) {
+                roles[i * 6 + j] = XmlUtils.xmlString(companyId + ";" + brand(j) + ";ROLE_" + j);
+            }
+
+            for (int j = 0; j < 4; j++) {
+                contracts[i * 4 + j] = XmlUtils.xmlString(companyId + ";" + brand(j) + ";CONTRACT_" + j);
+            }
+        }
+
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "employment", employments));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "employment_address", addresses));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "employment_companytypes", companyTypes));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "functional_numbers", functionalNumbers));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "contact_company", contactCompanies));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "roles", roles));
+        attributes.add(attribute(ATTRIBUTE_PREFIX + "employment_contracts", contracts));
+    }
+
+    private static String brand(int index) {
+        return switch (index % 3) {
+            case 0 -> "V";
+            case 1 -> "A";
+            default -> "S";
+        };
+    }
+
+    private static Attribute attribute(String name, XMLObject... values) {
+        Attribute attribute = Saml2ObjectUtils.attribute(name, Attribute.URI_REFERENCE);
+
+        for (XMLObject value : values) {
+            attribute.getAttributeValues().add(value);
+        }
+
+        return attribute;
+    }
+}
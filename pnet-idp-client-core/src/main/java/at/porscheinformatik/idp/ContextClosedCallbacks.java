@@ -0,0 +1,40 @@
+package at.porscheinformatik.idp;
+
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+
+/**
+ * Stops objects, that are no beans, with the application context. The configurers create repositories with background
+ * threads, that are not managed by the context.
+ */
+public final class ContextClosedCallbacks {
+
+    private ContextClosedCallbacks() {
+        super();
+    }
+
+    /**
+     * Runs the callback, when the context is closed. Does nothing, if the context is not configurable, e.g. if it is
+     * null.
+     *
+     * @param applicationContext the context, may be null
+     * @param callback the callback
+     */
+    public static void onContextClosed(ApplicationContext applicationContext, Runnable callback) {
+        if (applicationContext instanceof ConfigurableApplicationContext context) {
+            context.addApplicationListener(
+                new ApplicationListener<ContextClosedEvent>() {
+                    @Override
+                    public void onApplicationEvent(ContextClosedEvent event) {
+                        // Closing a child context must not stop the objects of the parent
+                        if (event.getApplicationContext() == context) {
+                            callback.run();
+                        }
+                    }
+                }
+            );
+        }
+    }
+}
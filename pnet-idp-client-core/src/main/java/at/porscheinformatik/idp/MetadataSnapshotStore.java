@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Keeps the last valid metadata of an identity provider in a local directory. Applications can use it to start, even
+ * if the identity provider is not reachable, and without waiting for the first metadata fetch. Files are replaced
+ * atomically, so a crashing application never leaves a half written snapshot behind.
+ */
+public class MetadataSnapshotStore {
+
+    /**
+     * @param prefix a readable prefix for the file name
+     * @param key the key of the snapshot, usually the metadata URL
+     * @param suffix the file extension
+     * @return a file name that is safe to use on all file systems
+     */
+    public static String fileName(String prefix, String key, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            return prefix + "-" + HexFormat.of().formatHex(digest, 0, 16) + suffix;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private final Path directory;
+
+    public MetadataSnapshotStore(Path directory) {
+        super();
+        this.directory = Objects.requireNonNull(directory, "Directory must not be null");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param name the file name of the snapshot
+     * @return the snapshot, or an empty optional if there is none
+     * @throws IOException if the snapshot could not be read
+     */
+    public Optional<Snapshot> read(String name) throws IOException {
+        Path file = directory.resolve(name);
+
+        try {
+            Instant lastModified = Files.getLastModifiedTime(file).toInstant();
+
+            return Optional.of(new Snapshot(file, Files.readAllBytes(file), lastModified));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given content. The content is written to a temporary file first, that is moved to
+     * the final location afterwards.
+     *
+     * @param name the file name of the snapshot
+     * @param content the new content
+     * @throws IOException if the snapshot could not be written
+     */
+    public void write(String name, byte[] content) throws IOException {
+        Files.createDirectories(directory);
+
+        Path file = directory.resolve(name);
+        Path temp = Files.createTempFile(directory, name, ".tmp");
+
+        try {
+            Files.write(temp, content);
+
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Marks the snapshot as written now. Used, if the metadata was loaded again and did not change, so the snapshot is
+     * not considered older than it is.
+     *
+     * @param name the file name of the snapshot
+     * @return true if the snapshot was marked, false if there is none
+     * @throws IOException if the snapshot could not be marked
+     */
+    public boolean touch(String name) throws IOException {
+        try {
+            Files.setLastModifiedTime(directory.resolve(name), FileTime.from(Instant.now()));
+
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The content of a snapshot and the time it was written.
+     */
+    public static final class Snapshot {
+
+        private final Path file;
+        private final byte[] content;
+        private final Instant lastModified;
+
+        Snapshot(Path file, byte[] content, Instant lastModified) {
+            super();
+            this.file = file;
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public Instant getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @param maxAge the maximum age of the snapshot
+         * @return true if the snapshot was written more than maxAge ago
+         */
+        public boolean isOlderThan(Duration maxAge) {
+            return lastModified.plus(maxAge).isBefore(Instant.now());
+        }
+    }
+}
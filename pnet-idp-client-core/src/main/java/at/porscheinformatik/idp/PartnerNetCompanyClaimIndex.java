@@ -0,0 +1,469 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The roles, contracts, functional numbers and company types of a user, indexed by company. Answers questions like
+ * "has the user the role X at company Y" in constant time, instead of filtering the claim lists on each check.
+ * <p>
+ * The claims are stored in columns of ints, that point into a table of the distinct strings. Each matchcode and brand
+ * is stored only once, which makes the serialized form a lot smaller than the lists of DTOs. The hash index is not
+ * serialized, it is rebuilt after deserialization.
+ * <p>
+ * The principals keep the index transient and serialize the lists of DTOs, because their getters return them. There
+ * the index saves the filtering, not session size.
+ */
+public final class PartnerNetCompanyClaimIndex implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public static final PartnerNetCompanyClaimIndex EMPTY = of(null, null, null, null);
+
+    private static final int STRING_BITS = 14;
+    private static final int MAX_STRINGS = (1 << STRING_BITS) - 1;
+
+    private static final int KIND_COMPANY = 1;
+    private static final int KIND_ROLE = 2;
+    private static final int KIND_CONTRACT = 3;
+    private static final int KIND_FUNCTIONAL_NUMBER = 4;
+    private static final int KIND_COMPANY_TYPE = 5;
+
+    /**
+     * Creates the index of the claims. Claims without company id or matchcode and functional numbers without number
+     * are ignored.
+     *
+     * @param roles the roles, may be null
+     * @param contracts the contracts, may be null
+     * @param functionalNumbers the functional numbers, may be null
+     * @param companyTypes the company types, may be null
+     * @return the index
+     */
+    public static PartnerNetCompanyClaimIndex of(
+        Collection<PartnerNetRoleDTO> roles,
+        Collection<PartnerNetContractDTO> contracts,
+        Collection<PartnerNetFunctionalNumberDTO> functionalNumbers,
+        Collection<PartnerNetCompanyTypeDTO> companyTypes
+    ) {
+        StringTable strings = new StringTable();
+
+        Column roleColumn = Column.of(
+            roles,
+            strings,
+            PartnerNetRoleDTO::getBrandId,
+            PartnerNetRoleDTO::getRoleMatchcode,
+            null
+        );
+        Column contractColumn = Column.of(
+            contracts,
+            strings,
+            PartnerNetContractDTO::getBrandId,
+            PartnerNetContractDTO::getContractMatchcode,
+            null
+        );
+        Column functionalNumberColumn = Column.of(
+            functionalNumbers,
+            strings,
+            functionalNumber -> null,
+            PartnerNetFunctionalNumberDTO::getMatchcode,
+            PartnerNetFunctionalNumberDTO::getNumber
+        );
+        Column companyTypeColumn = Column.of(
+            companyTypes,
+            strings,
+            companyType -> null,
+            PartnerNetCompanyTypeDTO::getCompanyTypeMatchcode,
+            null
+        );
+
+        return new PartnerNetCompanyClaimIndex(
+            strings.toArray(),
+            roleColumn,
+            contractColumn,
+            functionalNumberColumn,
+            companyTypeColumn
+        );
+    }
+
+    private final String[] strings;
+    private final Column roles;
+    private final Column contracts;
+    private final Column functionalNumbers;
+    private final Column companyTypes;
+
+    private transient Map<String, Integer> stringIds;
+    private transient LongIntTable index;
+    private transient int[] companyIds;
+    private transient List<Set<String>> brandsByCompany;
+
+    private PartnerNetCompanyClaimIndex(
+        String[] strings,
+        Column roles,
+        Column contracts,
+        Column functionalNumbers,
+        Column companyTypes
+    ) {
+        super();
+        this.strings = strings;
+        this.roles = roles;
+        this.contracts = contracts;
+        this.functionalNumbers = functionalNumbers;
+        this.companyTypes = companyTypes;
+
+        buildIndex();
+    }
+
+    /**
+     * @return the ids of all companies with at least one claim, in the order of their first appearance
+     */
+    public int[] getCompanyIds() {
+        return companyIds.clone();
+    }
+
+    public boolean hasCompany(int companyId) {
+        return index.get(key(companyId, KIND_COMPANY, 0, 0)) >= 0;
+    }
+
+    public boolean hasRole(int companyId, String matchcode) {
+        return contains(KIND_ROLE, companyId, null, matchcode);
+    }
+
+    public boolean hasRole(int companyId, String brandId, String matchcode) {
+        return contains(KIND_ROLE, companyId, brandId, matchcode);
+    }
+
+    public boolean hasContract(int companyId, String matchcode) {
+        return contains(KIND_CONTRACT, companyId, null, matchcode);
+    }
+
+    public boolean hasContract(int companyId, String brandId, String matchcode) {
+        return contains(KIND_CONTRACT, companyId, brandId, matchcode);
+    }
+
+    public boolean hasCompanyType(int companyId, String matchcode) {
+        return contains(KIND_COMPANY_TYPE, companyId, null, matchcode);
+    }
+
+    /**
+     * @param companyId the id of the company
+     * @param matchcode the matchcode of the function
+     * @return the functional number of the user for the function at the company, if any
+     */
+    public OptionalInt getFunctionalNumber(int companyId, String matchcode) {
+        int matchcodeId = stringId(matchcode);
+
+        if (matchcodeId < 0) {
+            return OptionalInt.empty();
+        }
+
+        int position = index.get(key(companyId, KIND_FUNCTIONAL_NUMBER, 0, matchcodeId + 1));
+
+        return position < 0 ? OptionalInt.empty() : OptionalInt.of(functionalNumbers.values[position]);
+    }
+
+    /**
+     * @param companyId the id of the company
+     * @return the brands of all roles and contracts of the user at the company
+     */
+    public Set<String> brandsAt(int companyId) {
+        int position = index.get(key(companyId, KIND_COMPANY, 0, 0));
+
+        return position < 0 ? Collections.emptySet() : brandsByCompany.get(position);
+    }
+
+    public boolean isEmpty() {
+        return companyIds.length == 0;
+    }
+
+    private boolean contains(int kind, int companyId, String brandId, String matchcode) {
+        int matchcodeId = stringId(matchcode);
+
+        if (matchcodeId < 0) {
+            return false;
+        }
+
+        int brand = 0;
+
+        if (brandId != null) {
+            int id = stringId(brandId);
+
+            if (id < 0) {
+                return false;
+            }
+
+            brand = id + 1;
+        }
+
+        return index.get(key(companyId, kind, brand, matchcodeId + 1)) >= 0;
+    }
+
+    private int stringId(String value) {
+        Integer id = stringIds.get(value);
+
+        return id == null ? -1 : id;
+    }
+
+    private void buildIndex() {
+        Map<String, Integer> ids = new HashMap<>(strings.length * 2);
+
+        for (int i = 0; i < strings.length; i++) {
+            ids.put(strings[i], i);
+        }
+
+        // Each claim has up to two keys (with and without brand), each company one
+        int claims = roles.size() + contracts.size() + functionalNumbers.size() + companyTypes.size();
+        LongIntTable table = new LongIntTable(claims * 3);
+        Map<Integer, Set<String>> brands = new LinkedHashMap<>();
+
+        indexColumn(table, brands, KIND_ROLE, roles);
+        indexColumn(table, brands, KIND_CONTRACT, contracts);
+        indexColumn(table, brands, KIND_FUNCTIONAL_NUMBER, functionalNumbers);
+        indexColumn(table, brands, KIND_COMPANY_TYPE, companyTypes);
+
+        int[] companies = new int[brands.size()];
+        List<Set<String>> brandSets = new ArrayList<>(brands.size());
+        int position = 0;
+
+        for (Map.Entry<Integer, Set<String>> entry : brands.entrySet()) {
+            companies[position] = entry.getKey();
+            brandSets.add(Collections.unmodifiableSet(entry.getValue()));
+            table.putIfAbsent(key(entry.getKey(), KIND_COMPANY, 0, 0), position);
+            position++;
+        }
+
+        stringIds = ids;
+        index = table;
+        companyIds = companies;
+        brandsByCompany = brandSets;
+    }
+
+    private void indexColumn(LongIntTable table, Map<Integer, Set<String>> brands, int kind, Column column) {
+        for (int i = 0; i < column.size(); i++) {
+            int companyId = column.companyIds[i];
+            int brand = column.brands[i];
+            int matchcode = column.matchcodes[i];
+            Set<String> companyBrands = brands.computeIfAbsent(companyId, id -> new LinkedHashSet<>());
+
+            table.putIfAbsent(key(companyId, kind, 0, matchcode), i);
+
+            if (brand > 0) {
+                table.putIfAbsent(key(companyId, kind, brand, matchcode), i);
+                companyBrands.add(strings[brand - 1]);
+            }
+        }
+    }
+
+    @Serial
+    private Object readResolve() {
+        return new PartnerNetCompanyClaimIndex(strings, roles, contracts, functionalNumbers, companyTypes);
+    }
+
+    /**
+     * The lower 32 bits hold the kind of the claim and the ids of the brand and the matchcode, the upper ones the
+     * company. The kind is never 0, so a key is never 0 either.
+     */
+    private static long key(int companyId, int kind, int brand, int matchcode) {
+        long claim = ((long) kind << (STRING_BITS * 2)) | ((long) brand << STRING_BITS) | matchcode;
+
+        return ((long) companyId << 32) | claim;
+    }
+
+    @Override
+    public String toString() {
+        return (
+            "PartnerNetCompanyClaimIndex [companyIds=" +
+            Arrays.toString(companyIds) +
+            ", roles=" +
+            roles.size() +
+            ", contracts=" +
+            contracts.size() +
+            ", functionalNumbers=" +
+            functionalNumbers.size() +
+            ", companyTypes=" +
+            companyTypes.size() +
+            "]"
+        );
+    }
+
+    /**
+     * One kind of claim. The brand and the matchcode are ids in the string table, plus one, so 0 means none. The
+     * values are only used by functional numbers.
+     */
+    private static final class Column implements Serializable {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        static <T extends AbstractCompanyDependentClaim> Column of(
+            Collection<T> claims,
+            StringTable strings,
+            Function<T, String> brandFunction,
+            Function<T, String> matchcodeFunction,
+            Function<T, Integer> valueFunction
+        ) {
+            if (claims == null || claims.isEmpty()) {
+                return new Column(new int[0], new int[0], new int[0], new int[0]);
+            }
+
+            int[] companyIds = new int[claims.size()];
+            int[] brands = new int[claims.size()];
+            int[] matchcodes = new int[claims.size()];
+            int[] values = new int[valueFunction == null ? 0 : claims.size()];
+            int size = 0;
+
+            for (T claim : claims) {
+                if (claim == null || claim.getCompanyId() == null || matchcodeFunction.apply(claim) == null) {
+                    continue;
+                }
+
+                Integer value = valueFunction == null ? null : valueFunction.apply(claim);
+
+                if (valueFunction != null && value == null) {
+                    continue;
+                }
+
+                String brand = brandFunction.apply(claim);
+
+                companyIds[size] = claim.getCompanyId();
+                brands[size] = brand == null ? 0 : strings.id(brand) + 1;
+                matchcodes[size] = strings.id(matchcodeFunction.apply(claim)) + 1;
+
+                if (valueFunction != null) {
+                    values[size] = value;
+                }
+
+                size++;
+            }
+
+            return new Column(
+                Arrays.copyOf(companyIds, size),
+                Arrays.copyOf(brands, size),
+                Arrays.copyOf(matchcodes, size),
+                Arrays.copyOf(values, Math.min(values.length, size))
+            );
+        }
+
+        private final int[] companyIds;
+        private final int[] brands;
+        private final int[] matchcodes;
+        private final int[] values;
+
+        private Column(int[] companyIds, int[] brands, int[] matchcodes, int[] values) {
+            super();
+            this.companyIds = companyIds;
+            this.brands = brands;
+            this.matchcodes = matchcodes;
+            this.values = values;
+        }
+
+        int size() {
+            return companyIds.length;
+        }
+    }
+
+    /**
+     * Assigns ids to the distinct strings, in the order of their first appearance.
+     */
+    private static final class StringTable {
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int id(String value) {
+            Integer id = ids.get(value);
+
+            if (id != null) {
+                return id;
+            }
+
+            if (values.size() >= MAX_STRINGS) {
+                throw new IllegalArgumentException(
+                    String.format("More than %d distinct matchcodes and brands are not supported", MAX_STRINGS)
+                );
+            }
+
+            ids.put(value, values.size());
+            values.add(value);
+
+            return values.size() - 1;
+        }
+
+        String[] toArray() {
+            return values.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Open addressing hash table from long keys to non negative ints. 0 marks an empty slot.
+     */
+    private static final class LongIntTable {
+
+        private final long[] keys;
+        private final int[] values;
+        private final int mask;
+
+        /**
+         * @param maxKeys the maximum number of keys, the table is at most half full
+         */
+        LongIntTable(int maxKeys) {
+            super();
+
+            int capacity = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) << 1;
+
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        void putIfAbsent(long key, int value) {
+            int slot = slot(key);
+
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        int get(long key) {
+            int slot = slot(key);
+
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return -1;
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package at.porscheinformatik.idp;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.MetadataSnapshotStore.Snapshot;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetadataSnapshotStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void testWriteAndRead() throws IOException {
+        MetadataSnapshotStore store = new MetadataSnapshotStore(directory.resolve("snapshots"));
+
+        store.write("metadata.xml", bytes("first"));
+        store.write("metadata.xml", bytes("second"));
+
+        Snapshot snapshot = store.read("metadata.xml").orElseThrow();
+
+        assertThat(snapshot.getFile(), equalTo(directory.resolve("snapshots").resolve("metadata.xml")));
+        assertThat(new String(snapshot.getContent(), StandardCharsets.UTF_8), equalTo("second"));
+        assertThat(snapshot.isOlderThan(Duration.ofMinutes(1)), equalTo(false));
+
+        try (var files = Files.list(directory.resolve("snapshots"))) {
+            // No temporary files are left behind
+            assertThat(files.count(), equalTo(1L));
+        }
+    }
+
+    @Test
+    void testMissingSnapshot() throws IOException {
+        MetadataSnapshotStore store = new MetadataSnapshotStore(directory);
+
+        assertThat(store.read("missing.xml"), equalTo(Optional.empty()));
+        assertThat(store.touch("missing.xml"), equalTo(false));
+    }
+
+    @Test
+    void testUnreadableSnapshot() throws IOException {
+        MetadataSnapshotStore store = new MetadataSnapshotStore(directory);
+
+        // A directory can not be read as a file
+        Files.createDirectory(directory.resolve("metadata.xml"));
+
+        assertThrows(IOException.class, () -> store.read("metadata.xml"));
+    }
+
+    @Test
+    void testIsOlderThan() throws IOException {
+        MetadataSnapshotStore store = new MetadataSnapshotStore(directory);
+        Path file = directory.resolve("metadata.xml");
+
+        store.write("metadata.xml", bytes("metadata"));
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofDays(8))));
+
+        Snapshot snapshot = store.read("metadata.xml").orElseThrow();
+
+        assertThat(snapshot.isOlderThan(Duration.ofDays(7)), equalTo(true));
+        assertThat(snapshot.isOlderThan(Duration.ofDays(9)), equalTo(false));
+
+        assertThat(store.touch("metadata.xml"), equalTo(true));
+        assertThat(store.read("metadata.xml").orElseThrow().isOlderThan(Duration.ofDays(7)), equalTo(false));
+    }
+
+    @Test
+    void testFileName() {
+        String name = MetadataSnapshotStore.fileName("saml2-pnet", "https://identity.example.com/metadata", ".xml");
+
+        assertThat(name, matchesPattern("saml2-pnet-[0-9a-f]{32}\\.xml"));
+        assertThat(
+            MetadataSnapshotStore.fileName("saml2-pnet", "https://identity.example.com/metadata", ".xml"),
+            equalTo(name)
+        );
+        assertThat(
+            MetadataSnapshotStore.fileName("saml2-pnet", "https://other.example.com/metadata", ".xml"),
+            not(equalTo(name))
+        );
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
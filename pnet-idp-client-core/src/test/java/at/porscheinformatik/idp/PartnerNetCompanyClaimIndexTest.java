@@ -0,0 +1,141 @@
+package at.porscheinformatik.idp;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalInt;
+import org.junit.jupiter.api.Test;
+
+class PartnerNetCompanyClaimIndexTest {
+
+    @Test
+    void testLookups() {
+        PartnerNetCompanyClaimIndex index = createIndex();
+
+        assertThat(index.isEmpty(), equalTo(false));
+        assertThat(index.getCompanyIds(), equalTo(new int[] { 1000, 1001, 1002 }));
+        assertThat(index.hasCompany(1000), equalTo(true));
+        assertThat(index.hasCompany(1002), equalTo(true));
+        assertThat(index.hasCompany(4711), equalTo(false));
+
+        assertThat(index.hasRole(1000, "SERVICE"), equalTo(true));
+        assertThat(index.hasRole(1000, "A", "SERVICE"), equalTo(true));
+        assertThat(index.hasRole(1000, "V", "SERVICE"), equalTo(true));
+        assertThat(index.hasRole(1000, "S", "SERVICE"), equalTo(false));
+        assertThat(index.hasRole(1000, "SALES"), equalTo(false));
+        assertThat(index.hasRole(1001, "SALES"), equalTo(true));
+        assertThat(index.hasRole(1001, "A", "SALES"), equalTo(false));
+        assertThat(index.hasRole(1001, "SERVICE"), equalTo(false));
+
+        assertThat(index.hasContract(1000, "CONTRACT"), equalTo(true));
+        assertThat(index.hasContract(1000, "S", "CONTRACT"), equalTo(true));
+        assertThat(index.hasContract(1000, "V", "CONTRACT"), equalTo(false));
+        assertThat(index.hasContract(1001, "CONTRACT"), equalTo(false));
+
+        assertThat(index.getFunctionalNumber(1001, "FUNCTION"), equalTo(OptionalInt.of(42)));
+        assertThat(index.getFunctionalNumber(1000, "FUNCTION"), equalTo(OptionalInt.empty()));
+        assertThat(index.getFunctionalNumber(1001, "OTHER"), equalTo(OptionalInt.empty()));
+
+        assertThat(index.hasCompanyType(1002, "DEALER"), equalTo(true));
+        assertThat(index.hasCompanyType(1000, "DEALER"), equalTo(false));
+
+        assertThat(index.brandsAt(1000), contains("V", "A", "S"));
+        assertThat(index.brandsAt(1001), empty());
+        assertThat(index.brandsAt(4711), empty());
+    }
+
+    @Test
+    void testNullAndMissingInputs() {
+        PartnerNetCompanyClaimIndex index = PartnerNetCompanyClaimIndex.of(
+            Arrays.asList(
+                null,
+                new PartnerNetRoleDTO(null, "V", "SERVICE"),
+                new PartnerNetRoleDTO(1000, "V", null),
+                new PartnerNetRoleDTO(1000, null, "SALES")
+            ),
+            null,
+            List.of(
+                new PartnerNetFunctionalNumberDTO(1001, "FUNCTION", null),
+                new PartnerNetFunctionalNumberDTO(1001, null, 42)
+            ),
+            List.of()
+        );
+
+        assertThat(index.getCompanyIds(), equalTo(new int[] { 1000 }));
+        assertThat(index.hasRole(1000, "SALES"), equalTo(true));
+        assertThat(index.hasRole(1000, "SERVICE"), equalTo(false));
+        assertThat(index.hasRole(1000, null), equalTo(false));
+        assertThat(index.hasRole(1000, null, "SALES"), equalTo(true));
+        assertThat(index.hasRole(1000, "V", "SALES"), equalTo(false));
+        assertThat(index.hasContract(1000, "SALES"), equalTo(false));
+        assertThat(index.hasCompany(1001), equalTo(false));
+        assertThat(index.getFunctionalNumber(1001, "FUNCTION"), equalTo(OptionalInt.empty()));
+        assertThat(index.getFunctionalNumber(1001, null), equalTo(OptionalInt.empty()));
+        assertThat(index.brandsAt(1000), empty());
+    }
+
+    @Test
+    void testEmpty() {
+        PartnerNetCompanyClaimIndex index = PartnerNetCompanyClaimIndex.EMPTY;
+
+        assertThat(index.isEmpty(), equalTo(true));
+        assertThat(index.getCompanyIds().length, equalTo(0));
+        assertThat(index.hasCompany(1000), equalTo(false));
+        assertThat(index.hasRole(1000, "SERVICE"), equalTo(false));
+        assertThat(index.hasRole(1000, "V", "SERVICE"), equalTo(false));
+        assertThat(index.hasContract(1000, "CONTRACT"), equalTo(false));
+        assertThat(index.hasCompanyType(1000, "DEALER"), equalTo(false));
+        assertThat(index.getFunctionalNumber(1000, "FUNCTION"), equalTo(OptionalInt.empty()));
+        assertThat(index.brandsAt(1000), empty());
+        assertThat(PartnerNetCompanyClaimIndex.of(List.of(), List.of(), List.of(), List.of()).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    void testSerialization() throws IOException, ClassNotFoundException {
+        PartnerNetCompanyClaimIndex index = createIndex();
+        PartnerNetCompanyClaimIndex deserialized = serializeAndDeserialize(index);
+
+        assertThat(deserialized, not(sameInstance(index)));
+        assertThat(deserialized.getCompanyIds(), equalTo(index.getCompanyIds()));
+        assertThat(deserialized.hasRole(1000, "A", "SERVICE"), equalTo(true));
+        assertThat(deserialized.hasRole(1000, "S", "SERVICE"), equalTo(false));
+        assertThat(deserialized.hasContract(1000, "S", "CONTRACT"), equalTo(true));
+        assertThat(deserialized.getFunctionalNumber(1001, "FUNCTION"), equalTo(OptionalInt.of(42)));
+        assertThat(deserialized.hasCompanyType(1002, "DEALER"), equalTo(true));
+        assertThat(deserialized.brandsAt(1000), contains("V", "A", "S"));
+        assertThat(serializeAndDeserialize(PartnerNetCompanyClaimIndex.EMPTY).isEmpty(), equalTo(true));
+    }
+
+    private static PartnerNetCompanyClaimIndex createIndex() {
+        return PartnerNetCompanyClaimIndex.of(
+            List.of(
+                new PartnerNetRoleDTO(1000, "V", "SERVICE"),
+                new PartnerNetRoleDTO(1000, "A", "SERVICE"),
+                new PartnerNetRoleDTO(1001, null, "SALES")
+            ),
+            List.of(new PartnerNetContractDTO(1000, "S", "CONTRACT")),
+            List.of(new PartnerNetFunctionalNumberDTO(1001, "FUNCTION", 42)),
+            List.of(new PartnerNetCompanyTypeDTO(1002, "DEALER"))
+        );
+    }
+
+    private static PartnerNetCompanyClaimIndex serializeAndDeserialize(PartnerNetCompanyClaimIndex index)
+        throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(index);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (PartnerNetCompanyClaimIndex) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.openidconnect;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.oidc.authentication.OidcIdTokenDecoderFactory;
+import org.springframework.security.oauth2.client.oidc.userinfo.OidcUserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.oidc.user.OidcUser;
+
+/**
+ * A {@link PartnerNetOpenIdConnectAuthenticationProvider} that records the total time of each login, the time spent
+ * calling the token endpoint and the time spent validating the ID token. Use it together with the
+ * {@link InstrumentedPartnerNetOpenIdConnectUserService} to record the userinfo call, too.
+ *
+ * @see PartnerNetOpenIdConnectMetrics
+ */
+public class InstrumentedPartnerNetOpenIdConnectAuthenticationProvider
+    extends PartnerNetOpenIdConnectAuthenticationProvider {
+
+    private final PartnerNetOpenIdConnectMetrics metrics;
+
+    public InstrumentedPartnerNetOpenIdConnectAuthenticationProvider(
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient,
+        OAuth2UserService<OidcUserRequest, OidcUser> userService,
+        PartnerNetOpenIdConnectMetrics metrics
+    ) {
+        super(metrics.accessTokenResponseClient(accessTokenResponseClient), userService);
+        this.metrics = metrics;
+
+        setJwtDecoderFactory(metrics.idTokenDecoderFactory(new OidcIdTokenDecoderFactory()));
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        return metrics.recordAuthentication(() -> super.authenticate(authentication));
+    }
+}
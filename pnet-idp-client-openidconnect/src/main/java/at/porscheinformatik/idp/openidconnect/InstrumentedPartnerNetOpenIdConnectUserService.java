@@ -0,0 +1,22 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.openidconnect;
+
+import at.porscheinformatik.idp.openidconnect.convert.PartnerNetClaimTypeConverterFactory;
+
+/**
+ * A {@link PartnerNetOpenIdConnectUserService} that records the time spent calling the userinfo endpoint, the size of
+ * the userinfo responses and the time spent converting the claims.
+ *
+ * @see PartnerNetOpenIdConnectMetrics
+ */
+public class InstrumentedPartnerNetOpenIdConnectUserService extends PartnerNetOpenIdConnectUserService {
+
+    public InstrumentedPartnerNetOpenIdConnectUserService(PartnerNetOpenIdConnectMetrics metrics) {
+        super();
+
+        setOauth2UserService(metrics.userInfoService());
+        setClaimTypeConverterFactory(metrics.claimTypeConverterFactory(new PartnerNetClaimTypeConverterFactory()));
+    }
+}
@@ -5,37 +5,149 @@ package at.porscheinformatik.idp.openidconnect;
 
 import static java.util.Objects.*;
 
+import at.porscheinformatik.idp.MetadataSnapshotStore;
+import at.porscheinformatik.idp.MetadataSnapshotStore.Snapshot;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
 import org.springframework.security.oauth2.client.registration.ClientRegistrations;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.util.UriComponentsBuilder;
 
 /**
+ * Loads the registration from the discovery document of the provider on first use, and refreshes it periodically in
+ * the background, so changed endpoints are picked up without a restart.
+ * <p>
+ * Only one thread fetches the document at a time. Concurrent requests wait for it and use its result. No lock is held
+ * while fetching. After a failed fetch, requests fail fast until the backoff elapsed. The backoff doubles with each
+ * failure, up to 5 minutes, and is randomized, so not all instances hit the provider at the same time.
+ * <p>
+ * The document is fetched from the issuer with <code>/.well-known/openid-configuration</code> appended, and from the
+ * RFC 8414 location with <code>/.well-known/openid-configuration</code> inserted before the path of the issuer. The
+ * <code>oauth-authorization-server</code> document of plain OAuth 2.0 servers is not supported, this is an OpenID
+ * Connect client.
+ *
  * @author Daniel Furtlehner
  */
 public class LazyLoadingClientRegistrationRepository implements ClientRegistrationRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(LazyLoadingClientRegistrationRepository.class);
+    private static final String OIDC_METADATA_PATH = "/.well-known/openid-configuration";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+    public static final Duration DEFAULT_SNAPSHOT_MAX_AGE = Duration.ofDays(7);
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofHours(1);
 
     private final String issuerUrl;
     private final String registrationId;
     private final String clientId;
     private final String clientSecret;
+    private final MetadataSnapshotStore snapshotStore;
+    private final Duration snapshotMaxAge;
+    private final String snapshotName;
+    private final Supplier<String> configurationFetcher;
 
-    private ClientRegistration registration;
+    private volatile ClientRegistration registration;
+    private volatile boolean snapshotInUse;
+    private volatile ScheduledExecutorService refresher;
+    private CompletableFuture<ClientRegistration> pendingLoad;
+    private Duration refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private Instant nextAttempt = Instant.MIN;
+    private int failures;
+    private boolean destroyed;
 
     public LazyLoadingClientRegistrationRepository(
         String issuerUrl,
         String registrationId,
         String clientId,
         String clientSecret
+    ) {
+        this(issuerUrl, registrationId, clientId, clientSecret, null, DEFAULT_SNAPSHOT_MAX_AGE);
+    }
+
+    /**
+     * @param issuerUrl the issuer of the provider
+     * @param registrationId the id of the registration
+     * @param clientId the client id
+     * @param clientSecret the client secret
+     * @param snapshotStore if not null, the last valid discovery document of the provider is kept in this store, and
+     *            used on startup until the document was fetched from the provider
+     * @param snapshotMaxAge snapshots older than this are ignored
+     */
+    public LazyLoadingClientRegistrationRepository(
+        String issuerUrl,
+        String registrationId,
+        String clientId,
+        String clientSecret,
+        MetadataSnapshotStore snapshotStore,
+        Duration snapshotMaxAge
+    ) {
+        this(issuerUrl, registrationId, clientId, clientSecret, snapshotStore, snapshotMaxAge, null);
+    }
+
+    LazyLoadingClientRegistrationRepository(
+        String issuerUrl,
+        String registrationId,
+        String clientId,
+        String clientSecret,
+        MetadataSnapshotStore snapshotStore,
+        Duration snapshotMaxAge,
+        Supplier<String> configurationFetcher
     ) {
         this.issuerUrl = issuerUrl;
         this.registrationId = registrationId;
         this.clientId = requireNonNull(clientId, "Client Id must not be null");
         this.clientSecret = clientSecret;
+        this.snapshotStore = snapshotStore;
+        this.snapshotMaxAge = requireNonNull(snapshotMaxAge, "Snapshot max age must not be null");
+        this.configurationFetcher = configurationFetcher != null ? configurationFetcher : buildFetcher(issuerUrl);
+        snapshotName = MetadataSnapshotStore.fileName("oidc-" + registrationId, issuerUrl, ".json");
+
+        if (snapshotStore != null) {
+            loadSnapshot();
+        }
+    }
+
+    /**
+     * @param refreshInterval the interval to fetch the discovery document again, once it was loaded. Defaults to 1
+     *            hour.
+     */
+    public synchronized void setRefreshInterval(Duration refreshInterval) {
+        this.refreshInterval = requireNonNull(refreshInterval, "Refresh interval must not be null");
+    }
+
+    /**
+     * Stops refreshing the registration in the background.
+     */
+    public synchronized void destroy() {
+        destroyed = true;
+
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
     }
 
     @Override
@@ -44,22 +156,262 @@ public class LazyLoadingClientRegistrationRepository implements ClientRegistrati
             return null;
         }
 
-        if (registration == null) {
-            tryToloadRegistration();
+        ClientRegistration current = registration;
+
+        if (current == null) {
+            current = loadRegistration();
+        }
+
+        if (current != null && refresher == null) {
+            startRefresh();
         }
 
-        return registration;
+        return current;
     }
 
-    private void tryToloadRegistration() {
+    /**
+     * Only one thread loads the registration. The others wait for it, and use the registration it loaded.
+     */
+    private ClientRegistration loadRegistration() {
+        CompletableFuture<ClientRegistration> load = new CompletableFuture<>();
+        CompletableFuture<ClientRegistration> running = startLoad(load);
+
+        if (running == null) {
+            return registration;
+        }
+
+        if (running != load) {
+            return running.join();
+        }
+
+        try {
+            tryToLoadRegistration();
+        } finally {
+            finishLoad(load);
+        }
+
+        return load.join();
+    }
+
+    /**
+     * @return the given load, if the current thread must load the registration, the load of another thread, or null, if
+     *         the registration must not be loaded
+     */
+    private synchronized CompletableFuture<ClientRegistration> startLoad(CompletableFuture<ClientRegistration> load) {
+        if (pendingLoad != null) {
+            return pendingLoad;
+        }
+
+        if (registration != null || Instant.now().isBefore(nextAttempt)) {
+            // Loaded already, or the last attempt failed recently. Do not hit the provider again, until the backoff
+            // elapsed.
+            return null;
+        }
+
+        pendingLoad = load;
+
+        return load;
+    }
+
+    private synchronized void finishLoad(CompletableFuture<ClientRegistration> load) {
+        pendingLoad = null;
+
+        load.complete(registration);
+    }
+
+    /**
+     * Fetches the document without holding the lock. Only the result is published under the lock.
+     *
+     * @return the time to wait before the next refresh
+     */
+    private Duration tryToLoadRegistration() {
+        String configuration;
+        ClientRegistration loaded;
+
         try {
-            registration = ClientRegistrations.fromOidcIssuerLocation(issuerUrl)
-                .clientId(clientId)
-                .clientSecret(clientSecret)
-                .registrationId(registrationId)
-                .build();
+            configuration = configurationFetcher.get();
+            loaded = buildRegistration(configuration);
         } catch (Exception e) {
-            LOG.error("Could not fetch client registration for Open ID Connect. Trying again on next call.", e);
+            Duration backoff = failed();
+
+            LOG.error("Could not fetch client registration for Open ID Connect. Trying again in {}.", backoff, e);
+
+            return backoff;
         }
+
+        Duration interval = loaded(loaded);
+
+        if (snapshotStore != null) {
+            writeSnapshot(configuration);
+        }
+
+        return interval;
+    }
+
+    private synchronized Duration loaded(ClientRegistration loaded) {
+        registration = loaded;
+        snapshotInUse = false;
+        failures = 0;
+        nextAttempt = Instant.MIN;
+
+        return refreshInterval;
+    }
+
+    private synchronized Duration failed() {
+        failures++;
+
+        Duration backoff = backoff(failures);
+        nextAttempt = Instant.now().plus(backoff);
+
+        return backoff;
+    }
+
+    /**
+     * Refreshes the registration periodically. A registration from the snapshot is refreshed right away, without
+     * blocking the request.
+     */
+    private synchronized void startRefresh() {
+        if (refresher != null || destroyed) {
+            return;
+        }
+
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "oidc-discovery-" + registrationId);
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        scheduleRefresh(snapshotInUse ? Duration.ZERO : refreshInterval);
+    }
+
+    private void refresh() {
+        scheduleRefresh(tryToLoadRegistration());
+    }
+
+    private synchronized void scheduleRefresh(Duration delay) {
+        if (destroyed) {
+            return;
+        }
+
+        refresher.schedule(this::refresh, Math.max(delay.toMillis(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param failures the number of failed attempts in a row, at least 1
+     * @return the time to wait before the next attempt, between the half and the full exponential backoff
+     */
+    static Duration backoff(int failures) {
+        long exponential = INITIAL_BACKOFF.toMillis() << Math.min(failures - 1, 20);
+        long max = Math.min(exponential, MAX_BACKOFF.toMillis());
+
+        return Duration.ofMillis(max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1));
+    }
+
+    private void loadSnapshot() {
+        try {
+            Optional<Snapshot> snapshot = snapshotStore.read(snapshotName);
+
+            if (snapshot.isEmpty()) {
+                return;
+            }
+
+            if (snapshot.get().isOlderThan(snapshotMaxAge)) {
+                LOG.info("Discovery document snapshot {} is older than {}", snapshot.get().getFile(), snapshotMaxAge);
+                return;
+            }
+
+            registration = buildRegistration(new String(snapshot.get().getContent(), StandardCharsets.UTF_8));
+            snapshotInUse = true;
+
+            LOG.info(
+                "Using discovery document snapshot {} until the document of {} is loaded",
+                snapshotName,
+                issuerUrl
+            );
+        } catch (IOException | ParseException | RuntimeException e) {
+            LOG.warn("Ignoring discovery document snapshot {} in {}", snapshotName, snapshotStore.getDirectory(), e);
+        }
+    }
+
+    private void writeSnapshot(String configuration) {
+        try {
+            snapshotStore.write(snapshotName, configuration.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOG.warn(
+                "Error writing discovery document snapshot {} to {}",
+                snapshotName,
+                snapshotStore.getDirectory(),
+                e
+            );
+        }
+    }
+
+    private static Supplier<String> buildFetcher(String issuerUrl) {
+        List<String> uris = metadataUris(issuerUrl);
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+
+        requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+        requestFactory.setReadTimeout(READ_TIMEOUT);
+
+        RestClient client = RestClient.builder().requestFactory(requestFactory).build();
+
+        return () -> {
+            HttpClientErrorException lastError = null;
+
+            for (String uri : uris) {
+                try {
+                    return client.get().uri(uri).retrieve().body(String.class);
+                } catch (HttpClientErrorException e) {
+                    // Like ClientRegistrations, try the next location, if the provider does not know this one
+                    lastError = e;
+                }
+            }
+
+            throw new IllegalArgumentException(
+                String.format("Unable to resolve the Configuration with the provided Issuer of \"%s\"", issuerUrl),
+                lastError
+            );
+        };
+    }
+
+    /**
+     * @return the locations of the discovery document, in the order they are tried
+     */
+    static List<String> metadataUris(String issuerUrl) {
+        UriComponentsBuilder issuer = UriComponentsBuilder.fromUriString(issuerUrl);
+        String path = requireNonNullElse(issuer.build().getPath(), "");
+
+        return Stream.of(
+            issuer.cloneBuilder().path(OIDC_METADATA_PATH).toUriString(),
+            issuer.cloneBuilder().replacePath(OIDC_METADATA_PATH + path).toUriString()
+        )
+            .distinct()
+            .toList();
+    }
+
+    /**
+     * Does the same checks as {@link ClientRegistrations#fromOidcIssuerLocation(String)}, but for a document, that
+     * may come from the snapshot.
+     */
+    private ClientRegistration buildRegistration(String configuration) throws ParseException {
+        Map<String, Object> metadata = JSONObjectUtils.parse(configuration);
+        Object metadataIssuer = metadata.get("issuer");
+
+        if (!Objects.equals(issuerUrl, metadataIssuer)) {
+            throw new IllegalStateException(
+                String.format(
+                    "The Issuer \"%s\" provided in the configuration did not match the requested issuer \"%s\"",
+                    metadataIssuer,
+                    issuerUrl
+                )
+            );
+        }
+
+        return ClientRegistrations.fromOidcConfiguration(metadata)
+            .clientId(clientId)
+            .clientSecret(clientSecret)
+            .registrationId(registrationId)
+            .build();
     }
 }
@@ -3,7 +3,16 @@
  */
 package at.porscheinformatik.idp.openidconnect;
 
+import static at.porscheinformatik.idp.ContextClosedCallbacks.*;
+import static java.lang.String.*;
+import static java.util.Objects.*;
+
+import at.porscheinformatik.idp.MetadataSnapshotStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
+import org.springframework.context.ApplicationContext;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
@@ -27,13 +36,17 @@ public class PartnerNetOpenIdConnectConfigurer
     private final String issuerUrl;
 
     private boolean failOnStartup;
+    private Path metadataCacheDirectory;
+    private Duration metadataCacheMaxAge = LazyLoadingClientRegistrationRepository.DEFAULT_SNAPSHOT_MAX_AGE;
+    private Duration metadataRefreshInterval = LazyLoadingClientRegistrationRepository.DEFAULT_REFRESH_INTERVAL;
     private String clientId;
     private String clientSecret;
     private Customizer<OAuth2LoginConfigurer<HttpSecurity>> customizer = oauth2Login -> {
         // Noop customizer. Users can override this to add custom configurations
     };
 
-    private OidcUserService userService = new PartnerNetOpenIdConnectUserService();
+    private OidcUserService userService;
+    private MeterRegistry meterRegistry;
 
     public PartnerNetOpenIdConnectConfigurer(PartnerNetOpenIdConnectProvider provider) {
         this(provider.getIssuer());
@@ -56,6 +69,43 @@ public class PartnerNetOpenIdConnectConfigurer
         return this;
     }
 
+    /**
+     * Keeps a snapshot of the last valid discovery document of the provider in the given directory. On startup the
+     * snapshot is used, and the document is fetched in the background. This way the application starts fast, even if
+     * the provider is not available. Works with {@link #failOnStartup()}, too.
+     *
+     * @param metadataCacheDirectory the directory to keep the snapshot in. Will be created if it does not exist.
+     * @return the builder for a fluent api
+     */
+    public PartnerNetOpenIdConnectConfigurer metadataCacheDirectory(Path metadataCacheDirectory) {
+        this.metadataCacheDirectory = metadataCacheDirectory;
+
+        return this;
+    }
+
+    /**
+     * @param metadataCacheMaxAge snapshots older than this will be ignored on startup. Defaults to 7 days.
+     * @return the builder for a fluent api
+     * @see #metadataCacheDirectory(Path)
+     */
+    public PartnerNetOpenIdConnectConfigurer metadataCacheMaxAge(Duration metadataCacheMaxAge) {
+        this.metadataCacheMaxAge = Objects.requireNonNull(metadataCacheMaxAge, "Max age must not be null");
+
+        return this;
+    }
+
+    /**
+     * @param metadataRefreshInterval the interval to fetch the discovery document of the provider again, so changed
+     *            endpoints are picked up without a restart. Defaults to 1 hour. Not used with {@link #failOnStartup()}
+     *            without {@link #metadataCacheDirectory(Path)}.
+     * @return the builder for a fluent api
+     */
+    public PartnerNetOpenIdConnectConfigurer metadataRefreshInterval(Duration metadataRefreshInterval) {
+        this.metadataRefreshInterval = Objects.requireNonNull(metadataRefreshInterval, "Interval must not be null");
+
+        return this;
+    }
+
     public PartnerNetOpenIdConnectConfigurer clientId(String clientId) {
         this.clientId = clientId;
 
@@ -74,6 +124,22 @@ public class PartnerNetOpenIdConnectConfigurer
         return this;
     }
 
+    /**
+     * Records the duration of each login and of the calls to the token endpoint, of the ID token validation, of the
+     * userinfo call and the claim conversion, and the size of the userinfo responses. Requires micrometer-core on the
+     * classpath. If a custom {@link #userService(OidcUserService)} is set, the userinfo call and the claim conversion
+     * are not recorded.
+     *
+     * @param meterRegistry the registry to record the metrics in
+     * @return the builder for a fluent api
+     * @see PartnerNetOpenIdConnectMetrics
+     */
+    public PartnerNetOpenIdConnectConfigurer meterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        return this;
+    }
+
     /**
      * Add a customizer that allows you to further customize the Spring Securities {@link OAuth2LoginConfigurer}. This
      * is equivalent to calling {@link HttpSecurity#oauth2Login(Customizer)} with the advantage of having the default
@@ -91,13 +157,32 @@ public class PartnerNetOpenIdConnectConfigurer
 
     @Override
     public void init(HttpSecurity builder) throws Exception {
-        final ClientRegistrationRepository clientRegistrationRepository = getClientRegistrationRepository();
+        final ClientRegistrationRepository clientRegistrationRepository = getClientRegistrationRepository(builder);
         final OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient =
             new RestClientAuthorizationCodeTokenResponseClient();
+        final OidcUserService currentUserService;
 
-        builder.authenticationProvider(
-            new PartnerNetOpenIdConnectAuthenticationProvider(accessTokenResponseClient, userService)
-        );
+        if (meterRegistry != null) {
+            PartnerNetOpenIdConnectMetrics metrics = new PartnerNetOpenIdConnectMetrics(meterRegistry);
+
+            currentUserService = requireNonNullElseGet(userService, () ->
+                new InstrumentedPartnerNetOpenIdConnectUserService(metrics)
+            );
+
+            builder.authenticationProvider(
+                new InstrumentedPartnerNetOpenIdConnectAuthenticationProvider(
+                    accessTokenResponseClient,
+                    currentUserService,
+                    metrics
+                )
+            );
+        } else {
+            currentUserService = requireNonNullElseGet(userService, PartnerNetOpenIdConnectUserService::new);
+
+            builder.authenticationProvider(
+                new PartnerNetOpenIdConnectAuthenticationProvider(accessTokenResponseClient, currentUserService)
+            );
+        }
 
         builder.oauth2Login(oauth2Login -> {
             oauth2Login.clientRegistrationRepository(clientRegistrationRepository);
@@ -114,7 +199,7 @@ public class PartnerNetOpenIdConnectConfigurer
             oauth2Login.tokenEndpoint(tokenEnpoint -> tokenEnpoint.accessTokenResponseClient(accessTokenResponseClient)
             );
 
-            oauth2Login.userInfoEndpoint(userInfoEndpoint -> userInfoEndpoint.oidcUserService(userService));
+            oauth2Login.userInfoEndpoint(userInfoEndpoint -> userInfoEndpoint.oidcUserService(currentUserService));
 
             // Let users add custom configurations if they want to
             customizer.customize(oauth2Login);
@@ -126,7 +211,30 @@ public class PartnerNetOpenIdConnectConfigurer
         // Nothing to do here
     }
 
-    private ClientRegistrationRepository getClientRegistrationRepository() {
+    private ClientRegistrationRepository getClientRegistrationRepository(HttpSecurity builder) {
+        if (metadataCacheDirectory != null) {
+            LazyLoadingClientRegistrationRepository repository = new LazyLoadingClientRegistrationRepository(
+                issuerUrl,
+                "pnet",
+                clientId,
+                clientSecret,
+                new MetadataSnapshotStore(metadataCacheDirectory),
+                metadataCacheMaxAge
+            );
+
+            repository.setRefreshInterval(metadataRefreshInterval);
+            onContextClosed(builder.getSharedObject(ApplicationContext.class), repository::destroy);
+
+            if (failOnStartup) {
+                requireNonNull(
+                    repository.findByRegistrationId("pnet"),
+                    format("No ClientRegistration for issuer %s found", issuerUrl)
+                );
+            }
+
+            return repository;
+        }
+
         if (failOnStartup) {
             ClientRegistration clientRegistration = ClientRegistrations.fromOidcIssuerLocation(issuerUrl)
                 .registrationId("pnet")
@@ -138,6 +246,16 @@ public class PartnerNetOpenIdConnectConfigurer
             return new InMemoryClientRegistrationRepository(clientRegistration);
         }
 
-        return new LazyLoadingClientRegistrationRepository(issuerUrl, "pnet", clientId, clientSecret);
+        LazyLoadingClientRegistrationRepository repository = new LazyLoadingClientRegistrationRepository(
+            issuerUrl,
+            "pnet",
+            clientId,
+            clientSecret
+        );
+
+        repository.setRefreshInterval(metadataRefreshInterval);
+        onContextClosed(builder.getSharedObject(ApplicationContext.class), repository::destroy);
+
+        return repository;
     }
 }
@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.openidconnect;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.BufferingClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.userinfo.DefaultOAuth2UserService;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtDecoderFactory;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * The meters of the OpenID Connect login. Wraps the components, that call the back channel of the provider, to show
+ * which phase of the login takes the time.
+ * <p>
+ * Records the following meters:
+ * <ul>
+ * <li><code>pnet.oidc.authentication</code>: timer, tagged with the outcome (success or failure) and the OAuth2 error
+ * code of failed logins</li>
+ * <li><code>pnet.oidc.authentication.phase</code>: timer, tagged with the phase and the outcome</li>
+ * <li><code>pnet.oidc.authentication.phase.failures</code>: counter, tagged with the phase and the OAuth2 error
+ * code</li>
+ * <li><code>pnet.oidc.userinfo.size</code>: distribution summary of the size of the userinfo responses in bytes</li>
+ * </ul>
+ * The phases are:
+ * <ul>
+ * <li><code>token</code>: the call of the token endpoint</li>
+ * <li><code>id_token</code>: the validation of the ID token, including the fetch of the JWK set, if the keys are not
+ * cached yet</li>
+ * <li><code>userinfo</code>: the call of the userinfo endpoint</li>
+ * <li><code>claims</code>: the conversion of the userinfo claims</li>
+ * </ul>
+ */
+public class PartnerNetOpenIdConnectMetrics {
+
+    public static final String AUTHENTICATION_TIMER = "pnet.oidc.authentication";
+    public static final String PHASE_TIMER = "pnet.oidc.authentication.phase";
+    public static final String PHASE_FAILURES = "pnet.oidc.authentication.phase.failures";
+    public static final String USER_INFO_SIZE = "pnet.oidc.userinfo.size";
+
+    public static final String PHASE_TOKEN = "token";
+    public static final String PHASE_ID_TOKEN = "id_token";
+    public static final String PHASE_USER_INFO = "userinfo";
+    public static final String PHASE_CLAIMS = "claims";
+
+    private static final String INVALID_ID_TOKEN = "invalid_id_token";
+
+    private final MeterRegistry meterRegistry;
+    private final Timer authenticationTimer;
+    private final Map<String, Timer> phaseTimers;
+    private final DistributionSummary userInfoSize;
+
+    public PartnerNetOpenIdConnectMetrics(MeterRegistry meterRegistry) {
+        super();
+        this.meterRegistry = meterRegistry;
+
+        authenticationTimer = authenticationTimer("success", "none");
+        phaseTimers = Map.of(
+            PHASE_TOKEN,
+            phaseTimer(PHASE_TOKEN, "success"),
+            PHASE_ID_TOKEN,
+            phaseTimer(PHASE_ID_TOKEN, "success"),
+            PHASE_USER_INFO,
+            phaseTimer(PHASE_USER_INFO, "success"),
+            PHASE_CLAIMS,
+            phaseTimer(PHASE_CLAIMS, "success")
+        );
+        userInfoSize = DistributionSummary.builder(USER_INFO_SIZE)
+            .description("Size of the userinfo responses of the OpenID Connect provider")
+            .baseUnit("bytes")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param delegate the client calling the token endpoint
+     * @return a client, that records the <code>token</code> phase
+     */
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient(
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> delegate
+    ) {
+        return request -> record(PHASE_TOKEN, () -> delegate.getTokenResponse(request));
+    }
+
+    /**
+     * @param delegate the factory of the ID token decoders
+     * @return a factory, whose decoders record the <code>id_token</code> phase
+     */
+    public JwtDecoderFactory<ClientRegistration> idTokenDecoderFactory(JwtDecoderFactory<ClientRegistration> delegate) {
+        return clientRegistration -> {
+            JwtDecoder decoder = delegate.createDecoder(clientRegistration);
+
+            return token -> record(PHASE_ID_TOKEN, () -> decoder.decode(token));
+        };
+    }
+
+    /**
+     * @return a user service, that loads the userinfo and records the <code>userinfo</code> phase and the size of the
+     *         response
+     */
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> userInfoService() {
+        DefaultOAuth2UserService userService = new DefaultOAuth2UserService();
+
+        userService.setRestOperations(userInfoRestOperations());
+
+        return userRequest -> record(PHASE_USER_INFO, () -> userService.loadUser(userRequest));
+    }
+
+    /**
+     * @return the rest operations for the userinfo endpoint, that record the size of the responses. Configured like
+     *         the default ones of the {@link DefaultOAuth2UserService}, but buffer the response to measure it.
+     */
+    public RestOperations userInfoRestOperations() {
+        RestTemplate restTemplate = new RestTemplate(
+            new BufferingClientHttpRequestFactory(new SimpleClientHttpRequestFactory())
+        );
+
+        restTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
+        restTemplate.getInterceptors().add(this::recordUserInfoSize);
+
+        return restTemplate;
+    }
+
+    /**
+     * @param delegate the factory of the claim converters
+     * @return a factory, whose converters record the <code>claims</code> phase
+     */
+    public Function<ClientRegistration, Converter<Map<String, Object>, Map<String, Object>>> claimTypeConverterFactory(
+        Function<ClientRegistration, Converter<Map<String, Object>, Map<String, Object>>> delegate
+    ) {
+        return clientRegistration -> {
+            Converter<Map<String, Object>, Map<String, Object>> converter = delegate.apply(clientRegistration);
+
+            if (converter == null) {
+                // The default converter of the user service is used in this case
+                return null;
+            }
+
+            return claims -> record(PHASE_CLAIMS, () -> converter.convert(claims));
+        };
+    }
+
+    /**
+     * Records the total time of a login. Nothing is recorded, if the login returns null, because the provider does
+     * not support the authentication (e.g. an OAuth2 login without the openid scope).
+     *
+     * @param <T> the type of the result
+     * @param authentication the login
+     * @return the result of the login
+     */
+    public <T> T recordAuthentication(Supplier<T> authentication) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            T result = authentication.get();
+
+            if (result != null) {
+                sample.stop(authenticationTimer);
+            }
+
+            return result;
+        } catch (RuntimeException e) {
+            sample.stop(authenticationTimer("failure", errorCode(e)));
+
+            throw e;
+        }
+    }
+
+    private <T> T record(String phase, Supplier<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            T result = call.get();
+
+            sample.stop(phaseTimers.get(phase));
+
+            return result;
+        } catch (RuntimeException e) {
+            sample.stop(phaseTimer(phase, "failure"));
+            phaseFailures(phase, errorCode(e)).increment();
+
+            throw e;
+        }
+    }
+
+    private ClientHttpResponse recordUserInfoSize(
+        HttpRequest request,
+        byte[] body,
+        ClientHttpRequestExecution execution
+    ) throws IOException {
+        ClientHttpResponse response = execution.execute(request, body);
+
+        if (response.getStatusCode().is2xxSuccessful()) {
+            long contentLength = response.getHeaders().getContentLength();
+
+            // The response is buffered, so it can be read again by the message converters
+            userInfoSize.record(contentLength >= 0 ? contentLength : response.getBody().readAllBytes().length);
+        }
+
+        return response;
+    }
+
+    private Timer authenticationTimer(String outcome, String errorCode) {
+        return Timer.builder(AUTHENTICATION_TIMER)
+            .description("Total time of OpenID Connect logins, from the authorization code to the authentication")
+            .tag("outcome", outcome)
+            .tag("error", errorCode)
+            .register(meterRegistry);
+    }
+
+    private Timer phaseTimer(String phase, String outcome) {
+        return Timer.builder(PHASE_TIMER)
+            .description("Time spent in a single phase of OpenID Connect logins")
+            .tag("phase", phase)
+            .tag("outcome", outcome)
+            .register(meterRegistry);
+    }
+
+    private Counter phaseFailures(String phase, String errorCode) {
+        return Counter.builder(PHASE_FAILURES)
+            .description("OpenID Connect logins failed in a single phase")
+            .tag("phase", phase)
+            .tag("error", errorCode)
+            .register(meterRegistry);
+    }
+
+    private static String errorCode(RuntimeException e) {
+        if (e instanceof OAuth2AuthenticationException authenticationException) {
+            return authenticationException.getError().getErrorCode();
+        }
+
+        if (e instanceof OAuth2AuthorizationException authorizationException) {
+            return authorizationException.getError().getErrorCode();
+        }
+
+        if (e instanceof JwtException) {
+            // The same error code Spring Security reports for invalid ID tokens
+            return INVALID_ID_TOKEN;
+        }
+
+        return "unknown";
+    }
+}
@@ -5,6 +5,7 @@ package at.porscheinformatik.idp.openidconnect;
 
 import at.porscheinformatik.idp.Gender;
 import at.porscheinformatik.idp.PartnerNetCompanyAddressDTO;
+import at.porscheinformatik.idp.PartnerNetCompanyClaimIndex;
 import at.porscheinformatik.idp.PartnerNetCompanyDTO;
 import at.porscheinformatik.idp.PartnerNetCompanyTypeDTO;
 import at.porscheinformatik.idp.PartnerNetContractDTO;
@@ -21,6 +22,12 @@ import org.springframework.security.oauth2.core.oidc.OidcUserInfo;
 import org.springframework.security.oauth2.core.oidc.user.DefaultOidcUser;
 
 /**
+ * The Partner.Net user of an OpenID Connect authentication.
+ * <p>
+ * The {@link PartnerNetCompanyClaimIndex indexes} of the claims are transient. The user info with the full lists of
+ * roles, contracts, functional numbers and company types is still serialized, so the indexes do not make the session
+ * smaller. They are rebuilt from the claims on first use after deserialization.
+ *
  * @author Daniel Furtlehner
  */
 public class PartnerNetOpenIdConnectUser extends DefaultOidcUser {
@@ -62,6 +69,9 @@ public class PartnerNetOpenIdConnectUser extends DefaultOidcUser {
     public static final String USER_INFO_SUPPORT_CONTACT_COMPANIES = "pnet_support_contact_companies";
     public static final String USER_INFO_SUPPORT_COMPANY_TYPES = "pnet_support_company_types";
 
+    private transient volatile PartnerNetCompanyClaimIndex companyClaims;
+    private transient volatile PartnerNetCompanyClaimIndex supportCompanyClaims;
+
     public PartnerNetOpenIdConnectUser(
         Collection<? extends GrantedAuthority> authorities,
         OidcIdToken idToken,
@@ -238,6 +248,48 @@ public class PartnerNetOpenIdConnectUser extends DefaultOidcUser {
         return userInfoClaims(USER_INFO_SUPPORT_COMPANY_TYPES);
     }
 
+    /**
+     * The index is created on first use and not serialized with the user.
+     *
+     * @return the roles, contracts, functional numbers and company types indexed by company
+     */
+    public PartnerNetCompanyClaimIndex getCompanyClaims() {
+        PartnerNetCompanyClaimIndex index = companyClaims;
+
+        if (index == null) {
+            index = PartnerNetCompanyClaimIndex.of(
+                getRoles(),
+                getContracts(),
+                getFunctionalNumbers(),
+                getCompanyTypes()
+            );
+            companyClaims = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * The index is created on first use and not serialized with the user.
+     *
+     * @return the support roles, contracts and company types indexed by company
+     */
+    public PartnerNetCompanyClaimIndex getSupportCompanyClaims() {
+        PartnerNetCompanyClaimIndex index = supportCompanyClaims;
+
+        if (index == null) {
+            index = PartnerNetCompanyClaimIndex.of(
+                getSupportRoles(),
+                getSupportContract(),
+                null,
+                getSupportCompanyTypes()
+            );
+            supportCompanyClaims = index;
+        }
+
+        return index;
+    }
+
     private <T> T idTokenClaim(String claimName) {
         return getIdToken().getClaim(claimName);
     }
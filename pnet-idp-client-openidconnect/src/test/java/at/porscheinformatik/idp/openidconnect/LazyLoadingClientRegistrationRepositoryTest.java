@@ -0,0 +1,227 @@
+package at.porscheinformatik.idp.openidconnect;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.MetadataSnapshotStore;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+class LazyLoadingClientRegistrationRepositoryTest {
+
+    private static final String ISSUER = "https://unavailable.example.com/identity";
+
+    private static final String CONFIGURATION =
+        """
+        {
+            "issuer": "https://unavailable.example.com/identity",
+            "authorization_endpoint": "https://unavailable.example.com/identity/authorize",
+            "token_endpoint": "https://unavailable.example.com/identity/token",
+            "userinfo_endpoint": "https://unavailable.example.com/identity/userinfo",
+            "jwks_uri": "https://unavailable.example.com/identity/jwks",
+            "response_types_supported": ["code"],
+            "subject_types_supported": ["public"],
+            "id_token_signing_alg_values_supported": ["RS256"],
+            "scopes_supported": ["openid"],
+            "token_endpoint_auth_methods_supported": ["client_secret_basic"],
+            "grant_types_supported": ["authorization_code"]
+        }
+        """;
+
+    @Test
+    void testStartWithSnapshot(@TempDir Path directory) throws Exception {
+        MetadataSnapshotStore snapshotStore = new MetadataSnapshotStore(directory);
+
+        snapshotStore.write(
+            MetadataSnapshotStore.fileName("oidc-pnet", ISSUER, ".json"),
+            CONFIGURATION.getBytes(StandardCharsets.UTF_8)
+        );
+
+        LazyLoadingClientRegistrationRepository repository = buildRepository(ISSUER, snapshotStore, unavailable());
+
+        ClientRegistration registration = repository.findByRegistrationId("pnet");
+
+        assertNotNull(registration);
+        assertEquals("clientId", registration.getClientId());
+        assertEquals(ISSUER + "/token", registration.getProviderDetails().getTokenUri());
+        assertEquals(ISSUER + "/jwks", registration.getProviderDetails().getJwkSetUri());
+    }
+
+    @Test
+    void testIgnoreSnapshotOfOtherIssuer(@TempDir Path directory) throws Exception {
+        MetadataSnapshotStore snapshotStore = new MetadataSnapshotStore(directory);
+        String otherIssuer = "https://other.example.com/identity";
+
+        snapshotStore.write(
+            MetadataSnapshotStore.fileName("oidc-pnet", otherIssuer, ".json"),
+            CONFIGURATION.getBytes(StandardCharsets.UTF_8)
+        );
+
+        LazyLoadingClientRegistrationRepository repository = buildRepository(otherIssuer, snapshotStore, unavailable());
+
+        assertNull(repository.findByRegistrationId("pnet"));
+    }
+
+    @Test
+    void testOnlyOneThreadLoadsTheRegistration() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        LazyLoadingClientRegistrationRepository repository = buildRepository(() -> {
+            fetches.incrementAndGet();
+
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return CONFIGURATION;
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<ClientRegistration>> results = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> repository.findByRegistrationId("pnet")));
+            }
+
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<ClientRegistration> result : results) {
+                assertNotNull(result.get(10, TimeUnit.SECONDS));
+            }
+
+            assertEquals(1, fetches.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailFastDuringBackoff() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        LazyLoadingClientRegistrationRepository repository = buildRepository(() -> {
+            fetches.incrementAndGet();
+
+            throw new IllegalStateException("Provider not available");
+        });
+
+        assertNull(repository.findByRegistrationId("pnet"));
+        assertNull(repository.findByRegistrationId("pnet"));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    void testRefreshInBackground() throws Exception {
+        CountDownLatch refreshed = new CountDownLatch(3);
+        LazyLoadingClientRegistrationRepository repository = buildRepository(() -> {
+            refreshed.countDown();
+
+            return CONFIGURATION;
+        });
+
+        repository.setRefreshInterval(Duration.ofMillis(50));
+
+        assertNotNull(repository.findByRegistrationId("pnet"));
+        assertTrue(refreshed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testDestroyStopsRefresh() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch refreshing = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        LazyLoadingClientRegistrationRepository repository = buildRepository(() -> {
+            if (fetches.incrementAndGet() > 1) {
+                refreshing.countDown();
+
+                try {
+                    new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return CONFIGURATION;
+        });
+
+        repository.setRefreshInterval(Duration.ofMillis(50));
+
+        assertNotNull(repository.findByRegistrationId("pnet"));
+        assertTrue(refreshing.await(10, TimeUnit.SECONDS));
+
+        repository.destroy();
+
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testMetadataUris() {
+        assertEquals(
+            List.of(
+                "https://idp.example.com/identity/.well-known/openid-configuration",
+                "https://idp.example.com/.well-known/openid-configuration/identity"
+            ),
+            LazyLoadingClientRegistrationRepository.metadataUris("https://idp.example.com/identity")
+        );
+        assertEquals(
+            List.of("https://idp.example.com/.well-known/openid-configuration"),
+            LazyLoadingClientRegistrationRepository.metadataUris("https://idp.example.com")
+        );
+    }
+
+    @Test
+    void testBackoffWithJitter() {
+        for (int failures = 1; failures < 40; failures++) {
+            long expected = Math.min(1000L << Math.min(failures - 1, 20), Duration.ofMinutes(5).toMillis());
+            long backoff = LazyLoadingClientRegistrationRepository.backoff(failures).toMillis();
+
+            assertTrue(backoff >= expected / 2, () -> "Backoff too short: " + backoff);
+            assertTrue(backoff <= expected, () -> "Backoff too long: " + backoff);
+        }
+    }
+
+    private static LazyLoadingClientRegistrationRepository buildRepository(Supplier<String> configurationFetcher) {
+        return buildRepository(ISSUER, null, configurationFetcher);
+    }
+
+    private static LazyLoadingClientRegistrationRepository buildRepository(
+        String issuer,
+        MetadataSnapshotStore snapshotStore,
+        Supplier<String> configurationFetcher
+    ) {
+        return new LazyLoadingClientRegistrationRepository(
+            issuer,
+            "pnet",
+            "clientId",
+            "clientSecret",
+            snapshotStore,
+            Duration.ofDays(1),
+            configurationFetcher
+        );
+    }
+
+    /**
+     * The provider is never contacted in these tests.
+     */
+    private static Supplier<String> unavailable() {
+        return () -> {
+            throw new IllegalStateException("Provider not available");
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package at.porscheinformatik.idp.openidconnect;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.openidconnect.convert.PartnerNetClaimTypeConverterFactory;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.web.client.RestTemplate;
+
+class PartnerNetOpenIdConnectMetricsTest {
+
+    @Test
+    void testTokenFailures() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PartnerNetOpenIdConnectMetrics metrics = new PartnerNetOpenIdConnectMetrics(meterRegistry);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client =
+            metrics.accessTokenResponseClient(request -> {
+                throw new OAuth2AuthorizationException(new OAuth2Error("invalid_grant"));
+            });
+
+        assertThrows(OAuth2AuthorizationException.class, () -> client.getTokenResponse(null));
+
+        assertEquals(
+            1.0,
+            meterRegistry
+                .get(PartnerNetOpenIdConnectMetrics.PHASE_FAILURES)
+                .tag("phase", PartnerNetOpenIdConnectMetrics.PHASE_TOKEN)
+                .tag("error", "invalid_grant")
+                .counter()
+                .count()
+        );
+        assertEquals(1L, phaseCount(meterRegistry, PartnerNetOpenIdConnectMetrics.PHASE_TOKEN, "failure"));
+        assertEquals(0L, phaseCount(meterRegistry, PartnerNetOpenIdConnectMetrics.PHASE_TOKEN, "success"));
+    }
+
+    @Test
+    void testUnsupportedAuthenticationIsNotRecorded() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PartnerNetOpenIdConnectMetrics metrics = new PartnerNetOpenIdConnectMetrics(meterRegistry);
+
+        assertNull(metrics.recordAuthentication(() -> null));
+        assertEquals("done", metrics.recordAuthentication(() -> "done"));
+
+        assertEquals(
+            1L,
+            meterRegistry
+                .get(PartnerNetOpenIdConnectMetrics.AUTHENTICATION_TIMER)
+                .tag("outcome", "success")
+                .timer()
+                .count()
+        );
+    }
+
+    @Test
+    void testClaimConversion() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PartnerNetOpenIdConnectMetrics metrics = new PartnerNetOpenIdConnectMetrics(meterRegistry);
+        Function<ClientRegistration, Converter<Map<String, Object>, Map<String, Object>>> factory =
+            metrics.claimTypeConverterFactory(new PartnerNetClaimTypeConverterFactory());
+
+        assertNull(factory.apply(clientRegistration("other")));
+
+        Map<String, Object> claims = factory.apply(clientRegistration("pnet")).convert(Map.of("sub", "4711"));
+
+        assertEquals("4711", claims.get("sub"));
+        assertEquals(1L, phaseCount(meterRegistry, PartnerNetOpenIdConnectMetrics.PHASE_CLAIMS, "success"));
+    }
+
+    @Test
+    void testUserInfoSize() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PartnerNetOpenIdConnectMetrics metrics = new PartnerNetOpenIdConnectMetrics(meterRegistry);
+        RestTemplate restTemplate = (RestTemplate) metrics.userInfoRestOperations();
+        ClientHttpRequestInterceptor interceptor = restTemplate.getInterceptors().get(0);
+        byte[] userInfo = "{\"sub\":\"4711\"}".getBytes(StandardCharsets.UTF_8);
+
+        interceptor.intercept(
+            new MockClientHttpRequest(HttpMethod.GET, URI.create("https://example.com/userinfo")),
+            new byte[0],
+            (request, body) -> new MockClientHttpResponse(userInfo, HttpStatus.OK)
+        );
+        interceptor.intercept(
+            new MockClientHttpRequest(HttpMethod.GET, URI.create("https://example.com/userinfo")),
+            new byte[0],
+            (request, body) -> new MockClientHttpResponse(new byte[0], HttpStatus.UNAUTHORIZED)
+        );
+
+        DistributionSummary size = meterRegistry.get(PartnerNetOpenIdConnectMetrics.USER_INFO_SIZE).summary();
+
+        assertEquals(1L, size.count());
+        assertEquals(userInfo.length, size.totalAmount());
+    }
+
+    private static long phaseCount(SimpleMeterRegistry meterRegistry, String phase, String outcome) {
+        return meterRegistry
+            .get(PartnerNetOpenIdConnectMetrics.PHASE_TIMER)
+            .tag("phase", phase)
+            .tag("outcome", outcome)
+            .timer()
+            .count();
+    }
+
+    private static ClientRegistration clientRegistration(String registrationId) {
+        return ClientRegistration.withRegistrationId(registrationId)
+            .clientId("clientId")
+            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+            .redirectUri("https://example.com/login/oauth2/code/pnet")
+            .authorizationUri("https://example.com/authorize")
+            .tokenUri("https://example.com/token")
+            .build();
+    }
+}
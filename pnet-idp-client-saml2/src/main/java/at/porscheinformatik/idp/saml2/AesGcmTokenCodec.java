@@ -0,0 +1,85 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts and authenticates small tokens with AES-GCM. The token is the URL safe Base64 encoding of a version byte,
+ * the random IV and the cipher text with the authentication tag. Tokens for another purpose do not decrypt, because
+ * the purpose is part of the authenticated data.
+ */
+final class AesGcmTokenCodec {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte VERSION = 1;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final byte[] associatedData;
+
+    /**
+     * @param key the AES key, with 128, 192 or 256 bits
+     * @param purpose the purpose of the tokens
+     */
+    AesGcmTokenCodec(SecretKey key, String purpose) {
+        super();
+
+        if (key == null || !"AES".equalsIgnoreCase(key.getAlgorithm())) {
+            throw new IllegalArgumentException("An AES key is required");
+        }
+
+        this.key = key;
+        associatedData = purpose.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String encode(byte[] plainText) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(associatedData);
+
+        byte[] cipherText = cipher.doFinal(plainText);
+        ByteBuffer token = ByteBuffer.allocate(1 + IV_LENGTH + cipherText.length);
+
+        token.put(VERSION).put(iv).put(cipherText);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+    }
+
+    /**
+     * @param token the token
+     * @return the plain text
+     * @throws GeneralSecurityException if the token was not encrypted with the key and for the purpose, or if it was
+     *             modified
+     */
+    byte[] decode(String token) throws GeneralSecurityException {
+        byte[] bytes;
+
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Token is not Base64 encoded", e);
+        }
+
+        if (bytes.length < 1 + IV_LENGTH + TAG_LENGTH_BITS / 8 || bytes[0] != VERSION) {
+            throw new GeneralSecurityException("Unsupported token");
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, bytes, 1, IV_LENGTH));
+        cipher.updateAAD(associatedData);
+
+        return cipher.doFinal(bytes, 1 + IV_LENGTH, bytes.length - 1 - IV_LENGTH);
+    }
+}
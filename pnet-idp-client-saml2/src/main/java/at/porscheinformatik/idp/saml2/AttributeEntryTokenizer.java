@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import org.springframework.security.saml2.Saml2Exception;
+
+/**
+ * Reads the fields of a separator encoded attribute entry (e.g. <code>1000;V;ROLE</code>) one after the other, without
+ * splitting the entry into an array. Integer fields are parsed in place.
+ * <p>
+ * The fields are the same as the ones of {@link String#split(String)}: trailing empty fields do not exist and an entry
+ * without any separator consists of exactly one field.
+ */
+final class AttributeEntryTokenizer {
+
+    /**
+     * Nine digits never overflow an int. Longer numbers are rare and parsed by {@link Integer#parseInt(String)}.
+     */
+    private static final int MAX_FAST_DIGITS = 9;
+
+    private final String entry;
+    private final String separator;
+    private int position;
+    private int fieldIndex;
+
+    AttributeEntryTokenizer(String entry, String separator) {
+        super();
+        this.entry = entry;
+        this.separator = separator;
+    }
+
+    /**
+     * @return the next field
+     * @throws Saml2Exception if there is no further field
+     */
+    String nextString() {
+        int start = position;
+        int end = endOfField();
+
+        return entry.substring(start, end);
+    }
+
+    /**
+     * @return the next field, or null if it is empty
+     * @throws Saml2Exception if there is no further field
+     */
+    String nextStringOrNull() {
+        int start = position;
+        int end = endOfField();
+
+        return start == end ? null : entry.substring(start, end);
+    }
+
+    /**
+     * @return the next field as integer
+     * @throws NumberFormatException if the field is not a valid integer
+     * @throws Saml2Exception if there is no further field
+     */
+    int nextInt() {
+        int start = position;
+        int end = endOfField();
+        int index = start;
+        boolean negative = false;
+
+        if (index < end && (entry.charAt(index) == '-' || entry.charAt(index) == '+')) {
+            negative = entry.charAt(index) == '-';
+            index++;
+        }
+
+        int digits = end - index;
+
+        if (digits == 0 || digits > MAX_FAST_DIGITS) {
+            return Integer.parseInt(entry.substring(start, end));
+        }
+
+        int value = 0;
+
+        for (; index < end; index++) {
+            char c = entry.charAt(index);
+
+            if (c < '0' || c > '9') {
+                return Integer.parseInt(entry.substring(start, end));
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Moves the cursor behind the current field.
+     *
+     * @return the end index of the current field
+     */
+    private int endOfField() {
+        if (!hasField()) {
+            throw new Saml2Exception(
+                String.format("Attribute entry '%s' has no field at index %d", entry, fieldIndex)
+            );
+        }
+
+        int end = entry.indexOf(separator, position);
+
+        if (end < 0) {
+            end = entry.length();
+            position = end + 1;
+        } else {
+            position = end + separator.length();
+        }
+
+        fieldIndex++;
+
+        return end;
+    }
+
+    private boolean hasField() {
+        if (position > entry.length()) {
+            return false;
+        }
+
+        // Same as String.split: the input is the only field, if it contains no separator
+        if (entry.isEmpty()) {
+            return true;
+        }
+
+        // Trailing empty fields are removed by String.split
+        for (int index = position; index < entry.length(); index += separator.length()) {
+            if (!entry.startsWith(separator, index)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
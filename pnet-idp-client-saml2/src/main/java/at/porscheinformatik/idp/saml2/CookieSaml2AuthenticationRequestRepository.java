@@ -0,0 +1,316 @@
+package at.porscheinformatik.idp.saml2;
+
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.crypto.SecretKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2PostAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+import org.springframework.security.saml2.provider.service.web.Saml2AuthenticationRequestRepository;
+
+/**
+ * Keeps the authentication request and the Partner.Net state of the request (see
+ * {@link PartnerNetSaml2AuthenticationRequestUtils}) in one encrypted and authenticated cookie, instead of the
+ * session. Starting a login does not create or write a session this way, which is expensive with replicated sessions.
+ * <p>
+ * All instances of the application must use the same AES key. The cookie uses <code>SameSite=None</code>, because the
+ * identity provider posts the response from another site, so it is always <code>Secure</code> and needs HTTPS. Tokens
+ * older than the max age are ignored.
+ * <p>
+ * The location of the request is not kept, it is the single sign on location of the registration. Browsers drop
+ * cookies larger than {@value #MAX_COOKIE_SIZE} bytes, so larger requests are rejected when they are saved. A signed
+ * request with the redirect binding takes about 1.5 KB.
+ */
+public class CookieSaml2AuthenticationRequestRepository
+    implements Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> {
+
+    public static final String DEFAULT_COOKIE_NAME = "PNET_SAML2_AUTHN_REQUEST";
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(30);
+
+    /**
+     * The maximum size of the name and the value of a cookie, that all browsers accept.
+     */
+    public static final int MAX_COOKIE_SIZE = 4096;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CookieSaml2AuthenticationRequestRepository.class);
+    private static final String TOKEN_PURPOSE = "pnet-saml2-authn-request";
+    private static final byte BOOLEAN_VALUE = 'B';
+    private static final byte INTEGER_VALUE = 'I';
+    private static final byte STRING_VALUE = 'S';
+
+    private final RelyingPartyRegistrationRepository registrations;
+    private final AesGcmTokenCodec codec;
+
+    private String cookieName = DEFAULT_COOKIE_NAME;
+    private Duration maxAge = DEFAULT_MAX_AGE;
+
+    /**
+     * @param registrations the repository to look up the registrations of restored requests
+     * @param key the AES key to encrypt the cookie with
+     */
+    public CookieSaml2AuthenticationRequestRepository(
+        RelyingPartyRegistrationRepository registrations,
+        SecretKey key
+    ) {
+        super();
+        this.registrations = Objects.requireNonNull(registrations, "Registrations must not be null");
+        codec = new AesGcmTokenCodec(key, TOKEN_PURPOSE);
+    }
+
+    /**
+     * @param cookieName the name of the cookie. Defaults to {@value #DEFAULT_COOKIE_NAME}.
+     */
+    public void setCookieName(String cookieName) {
+        this.cookieName = Objects.requireNonNull(cookieName, "Cookie name must not be null");
+    }
+
+    /**
+     * @param maxAge the time the user has to log in at the identity provider. Defaults to 30 minutes.
+     */
+    public void setMaxAge(Duration maxAge) {
+        this.maxAge = Objects.requireNonNull(maxAge, "Max age must not be null");
+    }
+
+    @Override
+    public AbstractSaml2AuthenticationRequest loadAuthenticationRequest(HttpServletRequest request) {
+        String token = findCookie(request);
+
+        if (token == null) {
+            return null;
+        }
+
+        try {
+            return read(request, codec.decode(token));
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            LOG.debug("Ignoring invalid authentication request cookie", e);
+
+            return null;
+        }
+    }
+
+    @Override
+    public void saveAuthenticationRequest(
+        AbstractSaml2AuthenticationRequest authenticationRequest,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) {
+        if (authenticationRequest == null) {
+            removeAuthenticationRequest(request, response);
+            return;
+        }
+
+        String token;
+
+        try {
+            token = codec.encode(write(authenticationRequest, request));
+        } catch (UTFDataFormatException e) {
+            throw new IllegalStateException(tooLargeMessage(), e);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Error encrypting the authentication request", e);
+        }
+
+        int size = cookieName.length() + token.length();
+
+        if (size > MAX_COOKIE_SIZE) {
+            throw new IllegalStateException(
+                String.format("%s The cookie would have %d bytes.", tooLargeMessage(), size)
+            );
+        }
+
+        response.addHeader(HttpHeaders.SET_COOKIE, buildCookie(request, token, maxAge).toString());
+    }
+
+    /**
+     * Only expires the cookie. The restored Partner.Net state stays available to the current request, because Spring
+     * Security removes the authentication request before the response is verified.
+     */
+    @Override
+    public AbstractSaml2AuthenticationRequest removeAuthenticationRequest(
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) {
+        AbstractSaml2AuthenticationRequest authenticationRequest = loadAuthenticationRequest(request);
+
+        if (findCookie(request) != null) {
+            response.addHeader(HttpHeaders.SET_COOKIE, buildCookie(request, "", Duration.ZERO).toString());
+        }
+
+        return authenticationRequest;
+    }
+
+    private static String tooLargeMessage() {
+        return String.format(
+            "The authentication request does not fit into a cookie of %d bytes. Keep it in the session instead.",
+            MAX_COOKIE_SIZE
+        );
+    }
+
+    private String findCookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+
+        if (cookies == null) {
+            return null;
+        }
+
+        for (Cookie cookie : cookies) {
+            if (cookieName.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                return cookie.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    private ResponseCookie buildCookie(HttpServletRequest request, String value, Duration cookieMaxAge) {
+        String path = request.getContextPath().isEmpty() ? "/" : request.getContextPath();
+
+        return ResponseCookie.from(cookieName, value)
+            .path(path)
+            .maxAge(cookieMaxAge)
+            .httpOnly(true)
+            .secure(true)
+            .sameSite("None")
+            .build();
+    }
+
+    private static byte[] write(AbstractSaml2AuthenticationRequest authenticationRequest, HttpServletRequest request)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(Instant.now().getEpochSecond());
+            out.writeUTF(authenticationRequest.getBinding().name());
+            out.writeUTF(authenticationRequest.getRelyingPartyRegistrationId());
+            writeNullable(out, authenticationRequest.getId());
+            writeNullable(out, authenticationRequest.getSamlRequest());
+            writeNullable(out, authenticationRequest.getRelayState());
+
+            if (authenticationRequest instanceof Saml2RedirectAuthenticationRequest redirectRequest) {
+                writeNullable(out, redirectRequest.getSigAlg());
+                writeNullable(out, redirectRequest.getSignature());
+            }
+
+            Map<String, Object> state = PartnerNetSaml2AuthenticationRequestUtils.getStatelessState(request);
+
+            writeState(out, state != null ? state : Map.of());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private AbstractSaml2AuthenticationRequest read(HttpServletRequest request, byte[] content) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+            Instant issuedAt = Instant.ofEpochSecond(in.readLong());
+
+            if (issuedAt.plus(maxAge).isBefore(Instant.now())) {
+                LOG.debug("Ignoring authentication request cookie issued at {}", issuedAt);
+
+                return null;
+            }
+
+            Saml2MessageBinding binding = Saml2MessageBinding.valueOf(in.readUTF());
+            RelyingPartyRegistration registration = registrations.findByRegistrationId(in.readUTF());
+
+            if (registration == null) {
+                return null;
+            }
+
+            String id = readNullable(in);
+            String samlRequest = readNullable(in);
+            String relayState = readNullable(in);
+            AbstractSaml2AuthenticationRequest authenticationRequest;
+
+            if (binding == Saml2MessageBinding.REDIRECT) {
+                authenticationRequest = Saml2RedirectAuthenticationRequest.withRelyingPartyRegistration(registration)
+                    .id(id)
+                    .samlRequest(samlRequest)
+                    .relayState(relayState)
+                    .sigAlg(readNullable(in))
+                    .signature(readNullable(in))
+                    .build();
+            } else {
+                authenticationRequest = Saml2PostAuthenticationRequest.withRelyingPartyRegistration(registration)
+                    .id(id)
+                    .samlRequest(samlRequest)
+                    .relayState(relayState)
+                    .build();
+            }
+
+            PartnerNetSaml2AuthenticationRequestUtils.restoreStatelessState(request, readState(in));
+
+            return authenticationRequest;
+        }
+    }
+
+    private static void writeState(DataOutputStream out, Map<String, Object> state) throws IOException {
+        out.writeInt(state.size());
+
+        for (Map.Entry<String, Object> entry : state.entrySet()) {
+            out.writeUTF(entry.getKey());
+
+            if (entry.getValue() instanceof Boolean value) {
+                out.writeByte(BOOLEAN_VALUE);
+                out.writeBoolean(value);
+            } else if (entry.getValue() instanceof Integer value) {
+                out.writeByte(INTEGER_VALUE);
+                out.writeInt(value);
+            } else if (entry.getValue() instanceof String value) {
+                out.writeByte(STRING_VALUE);
+                out.writeUTF(value);
+            } else {
+                throw new IOException(String.format("Unsupported value of %s in the state", entry.getKey()));
+            }
+        }
+    }
+
+    private static Map<String, Object> readState(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> state = new HashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            String name = in.readUTF();
+            byte type = in.readByte();
+
+            switch (type) {
+                case BOOLEAN_VALUE -> state.put(name, in.readBoolean());
+                case INTEGER_VALUE -> state.put(name, in.readInt());
+                case STRING_VALUE -> state.put(name, in.readUTF());
+                default -> throw new IOException(String.format("Unsupported value type %s", type));
+            }
+        }
+
+        return state;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
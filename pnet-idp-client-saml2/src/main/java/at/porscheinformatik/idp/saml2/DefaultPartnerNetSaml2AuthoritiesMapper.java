@@ -2,35 +2,109 @@ package at.porscheinformatik.idp.saml2;
 
 import at.porscheinformatik.idp.PartnerNetRoleDTO;
 import at.porscheinformatik.idp.saml2.Saml2ResponseParserBase.Saml2Data;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.util.CollectionUtils;
 
 /**
  * A {@link PartnerNetSaml2AuthoritiesMapper} that converts the roles of the principal to
- * {@link SimpleGrantedAuthority}s.
+ * {@link SimpleGrantedAuthority}s. Optionally, an additional authority in the form <code>matchcode@companyId</code>
+ * is created for each role, to check roles for a specific company.
+ * <p>
+ * The same few hundred matchcodes show up in the sessions of all users, so their authorities are shared instead of
+ * creating new ones for each login. The company scoped authorities are created for each login, their number grows
+ * with the companies, not with the roles.
  *
  * @author ham
  */
 public class DefaultPartnerNetSaml2AuthoritiesMapper implements PartnerNetSaml2AuthoritiesMapper {
 
+    /**
+     * Separates the matchcode and the company id of company scoped authorities.
+     */
+    public static final String COMPANY_SEPARATOR = "@";
+
+    /**
+     * Far more than the number of roles in the Partner.Net. Only the bare matchcodes are cached. The limit is only
+     * reached, if someone maps arbitrary values, in which case we just start over.
+     */
+    private static final int MAX_CACHED_AUTHORITIES = 8192;
+
+    private static final Map<String, GrantedAuthority> AUTHORITIES = new ConcurrentHashMap<>();
+
+    private final boolean companyScopedAuthorities;
+
+    public DefaultPartnerNetSaml2AuthoritiesMapper() {
+        this(false);
+    }
+
+    /**
+     * @param companyScopedAuthorities true to add an authority in the form <code>matchcode@companyId</code> for each
+     *            role, in addition to the authority of the matchcode
+     */
+    public DefaultPartnerNetSaml2AuthoritiesMapper(boolean companyScopedAuthorities) {
+        super();
+        this.companyScopedAuthorities = companyScopedAuthorities;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> apply(
         PartnerNetSaml2AuthenticationPrincipal principal,
         Saml2Data data
     ) {
-        if (CollectionUtils.isEmpty(principal.getRoles())) {
+        List<PartnerNetRoleDTO> roles = principal.getRoles();
+
+        if (CollectionUtils.isEmpty(roles)) {
             return Collections.emptyList();
         }
 
-        return principal
-            .getRoles()
-            .stream()
-            .map(PartnerNetRoleDTO::getRoleMatchcode)
-            .distinct()
-            .map(SimpleGrantedAuthority::new)
-            .toList();
+        Set<String> names = new HashSet<>();
+        int expectedSize = companyScopedAuthorities ? roles.size() * 2 : roles.size();
+        List<GrantedAuthority> authorities = new ArrayList<>(expectedSize);
+
+        for (PartnerNetRoleDTO role : roles) {
+            String matchcode = role.getRoleMatchcode();
+
+            if (names.add(matchcode)) {
+                authorities.add(authority(matchcode));
+            }
+
+            if (companyScopedAuthorities && role.getCompanyId() != null) {
+                String scopedName = matchcode + COMPANY_SEPARATOR + role.getCompanyId();
+
+                if (names.add(scopedName)) {
+                    authorities.add(new SimpleGrantedAuthority(scopedName));
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(authorities);
+    }
+
+    private static GrantedAuthority authority(String name) {
+        if (name == null) {
+            // fails like before, the map does not accept null keys
+            return new SimpleGrantedAuthority(name);
+        }
+
+        GrantedAuthority authority = AUTHORITIES.get(name);
+
+        if (authority != null) {
+            return authority;
+        }
+
+        if (AUTHORITIES.size() >= MAX_CACHED_AUTHORITIES) {
+            AUTHORITIES.clear();
+        }
+
+        return AUTHORITIES.computeIfAbsent(name, SimpleGrantedAuthority::new);
     }
 }
@@ -1,22 +1,43 @@
 package at.porscheinformatik.idp.saml2;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,25 +50,69 @@ import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509Cred
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
 
+/**
+ * Loads the credentials from the configured keystores and reloads them, when a keystore changes.
+ * <p>
+ * The credentials are published as an immutable, versioned snapshot. Login requests read the current snapshot without
+ * any locking, even while the keystores are reloaded. The listeners are called on a dedicated thread, one after the
+ * other, so a slow listener never stalls the reload or the login requests.
+ */
 public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
 
+    /**
+     * Certificates expiring within this time are reported, so they are replaced in time.
+     */
+    public static final Duration EXPIRY_WARNING_THRESHOLD = Duration.ofDays(60);
+
     private static final String MISSING_KEYINFO_MESSAGE =
         "At least one Saml2KeyInfoConfiguration with usage = DECRYPTION must be set. Partner.Net Authentication does not work without a decryption key.";
-    private static final Duration WARNING_TRESHOLD = Duration.ofDays(60);
-    private static final long NOTIFICATION_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final Duration NOTIFICATION_INTERVAL = Duration.ofDays(1);
     private static final Logger LOG = LoggerFactory.getLogger(Saml2CredentialsManager.class);
 
     private final Supplier<List<Saml2CredentialsConfig>> configSupplier;
-    private final List<UpdateListener> listeners = new ArrayList<>();
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicReference<CredentialsSnapshot> snapshot = new AtomicReference<>(CredentialsSnapshot.EMPTY);
+    private final Executor listenerExecutor;
+    private final boolean ownsListenerExecutor;
+    private final Map<BigInteger, Instant> lastNotificationSent = new ConcurrentHashMap<>();
 
-    private long lastupdate = -1;
-    private long lastNotificationSent = -1;
-    private List<Saml2X509Credential> credentials = Collections.emptyList();
-    private List<Saml2CredentialsConfig> actualConfig;
+    private volatile boolean pollingEnabled = true;
+    private volatile Map<String, KeystoreKeys> keystoreCache = Collections.emptyMap();
 
     public DefaultSaml2CredentialsManager(Supplier<List<Saml2CredentialsConfig>> configSupplier) {
+        this(
+            configSupplier,
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "saml2-credentials-listeners");
+                thread.setDaemon(true);
+
+                return thread;
+            }),
+            true
+        );
+    }
+
+    /**
+     * @param configSupplier supplies the configuration of the keystores
+     * @param listenerExecutor the executor to call the listeners on. Should execute the tasks one after the other, in
+     *            the order they were submitted. It is not shut down by this manager.
+     */
+    public DefaultSaml2CredentialsManager(
+        Supplier<List<Saml2CredentialsConfig>> configSupplier,
+        Executor listenerExecutor
+    ) {
+        this(configSupplier, listenerExecutor, false);
+    }
+
+    private DefaultSaml2CredentialsManager(
+        Supplier<List<Saml2CredentialsConfig>> configSupplier,
+        Executor listenerExecutor,
+        boolean ownsListenerExecutor
+    ) {
         super();
         this.configSupplier = configSupplier;
+        this.listenerExecutor = listenerExecutor;
+        this.ownsListenerExecutor = ownsListenerExecutor;
     }
 
     @PostConstruct
@@ -55,9 +120,32 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
         update();
     }
 
+    @PreDestroy
+    public void destroy() {
+        if (ownsListenerExecutor && listenerExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+
     @Override
     public List<Saml2X509Credential> getCredentials() {
-        return credentials;
+        return snapshot.get().credentials;
+    }
+
+    /**
+     * @return the version of the current credentials. Increases each time the credentials are reloaded.
+     */
+    public long getVersion() {
+        return snapshot.get().version;
+    }
+
+    /**
+     * @return the configuration of the current credentials, empty before the first update
+     */
+    public List<Saml2CredentialsConfig> getConfig() {
+        List<Saml2CredentialsConfig> config = snapshot.get().config;
+
+        return config != null ? config : Collections.emptyList();
     }
 
     @Override
@@ -65,11 +153,23 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
         listeners.add(action);
     }
 
+    /**
+     * @param pollingEnabled false to skip the scheduled {@link #refresh()}, e.g. because a
+     *            {@link Saml2CredentialsWatcher} takes care of the updates
+     */
+    public void setPollingEnabled(boolean pollingEnabled) {
+        this.pollingEnabled = pollingEnabled;
+    }
+
     /**
      * Checks for updates and reloads the certificate and keystore if needed.
      */
     @Scheduled(fixedDelay = 60 * 1000)
     public void refresh() {
+        if (!pollingEnabled) {
+            return;
+        }
+
         try {
             update();
         } catch (Exception ex) {
@@ -77,42 +177,91 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
         }
     }
 
-    public synchronized void update()
+    public void update()
         throws IOException, UnrecoverableEntryException, CertificateException, KeyStoreException, NoSuchAlgorithmException {
-        //Remember the new lastupdate before the check. Otherwise we might lose the check time later on
-        long newLastupdate = System.currentTimeMillis();
-        List<Saml2CredentialsConfig> newConfig = configSupplier.get();
+        update(false);
+    }
 
-        if (mustReload(newConfig)) {
-            setupEntries(newConfig);
-            callListeners();
-        }
+    /**
+     * Reloads all keystores, even if they seem unchanged. The modification time of a keystore is not reliable, if it is
+     * replaced by switching a symlink, as Kubernetes does with mounted secrets.
+     *
+     * @throws IOException if a keystore could not be read
+     * @throws GeneralSecurityException if a keystore could not be loaded
+     */
+    public void reload() throws IOException, GeneralSecurityException {
+        update(true);
+    }
 
-        if (CollectionUtils.isEmpty(credentials)) {
-            LOG.error("No valid keyInfo configured!");
-        }
+    private void update(boolean force)
+        throws IOException, UnrecoverableEntryException, CertificateException, KeyStoreException, NoSuchAlgorithmException {
+        while (true) {
+            CredentialsSnapshot current = snapshot.get();
+            //Remember the new lastupdate before the check. Otherwise we might lose the check time later on
+            long newLastupdate = System.currentTimeMillis();
+            List<Saml2CredentialsConfig> newConfig = configSupplier.get();
+            CredentialsSnapshot next;
+
+            if (force || mustReload(current, newConfig)) {
+                next = new CredentialsSnapshot(current.version + 1, setupEntries(newConfig), newConfig, newLastupdate);
+            } else {
+                next = new CredentialsSnapshot(current.version, current.credentials, newConfig, newLastupdate);
+            }
 
-        lastupdate = newLastupdate;
-        actualConfig = newConfig;
-    }
+            if (snapshot.compareAndSet(current, next)) {
+                if (next.version != current.version) {
+                    callListeners(next.version);
+                }
+
+                if (CollectionUtils.isEmpty(next.credentials)) {
+                    LOG.error("No valid keyInfo configured!");
+                }
+
+                return;
+            }
+
+            if (!force) {
+                // Another update was faster. Keystores changed after its check are reloaded on the next refresh
+                LOG.debug("Saml credentials were updated concurrently, discarding this update");
 
-    private void callListeners() {
-        for (UpdateListener listener : listeners) {
-            try {
-                listener.onUpdate();
-            } catch (Exception e) {
-                LOG.error("Error calling update listener", e);
+                return;
             }
+
+            // The keystores may have changed without a new modification time, so the next refresh might miss it
         }
     }
 
-    private void setupEntries(List<Saml2CredentialsConfig> newConfig)
+    private void callListeners(long version) {
+        try {
+            listenerExecutor.execute(() -> {
+                // Each update submits its own task. Only the most recent one needs to call the listeners
+                if (snapshot.get().version != version) {
+                    return;
+                }
+
+                for (UpdateListener listener : listeners) {
+                    try {
+                        listener.onUpdate();
+                    } catch (Exception e) {
+                        LOG.error("Error calling update listener", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Update listeners not called, the manager was shut down", e);
+        }
+    }
+
+    private List<Saml2X509Credential> setupEntries(List<Saml2CredentialsConfig> newConfig)
         throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
         validateNewConfig(newConfig);
 
-        List<Saml2X509Credential> newEntries = new ArrayList<>();
+        Map<String, KeystoreKeys> cache = keystoreCache;
+        Map<String, KeystoreKeys> newCache = new HashMap<>();
+        Map<String, Callable<KeystoreKeys>> keystoresToLoad = new LinkedHashMap<>();
+        List<String> cacheKeys = new ArrayList<>();
 
-        //Create a key info for each config entry
+        //Check each config entry, and load the keystores, that changed
         for (Saml2CredentialsConfig config : newConfig) {
             Resource location = config.getKeystoreLocation();
             String type = config.getKeystoreType();
@@ -131,19 +280,162 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
             Assert.hasText(publicAlias, "publicAlias for location [%s] must not be null".formatted(location));
             Assert.notNull(usage, "usage for location [%s] must not be null".formatted(location));
 
-            KeyStore keystore = createKeystore(location, type, password);
-            X509Certificate publicKey = extractPublicKey(keystore, publicAlias);
-            PrivateKey privateKey = extractPrivateKey(keystore, password, privateAlias);
+            byte[] content = readContent(location);
+            String cacheKey = cacheKey(config, content);
+            KeystoreKeys cached = cache.get(cacheKey);
 
-            Assert.notNull(privateKey, "Private key for location [%s] is null".formatted(location));
-            Assert.notNull(publicKey, "Public key for location [%s] is null".formatted(location));
+            cacheKeys.add(cacheKey);
 
-            newEntries.add(new Saml2X509Credential(privateKey, publicKey, usage));
+            if (cached != null) {
+                LOG.debug("Keystore [{}] did not change, using the keys loaded before", location.getDescription());
+
+                newCache.put(cacheKey, cached);
+            } else {
+                keystoresToLoad.putIfAbsent(cacheKey, () -> loadKeys(config, content));
+            }
+        }
+
+        newCache.putAll(loadKeystores(keystoresToLoad));
+
+        List<Saml2X509Credential> newEntries = new ArrayList<>();
+
+        for (int i = 0; i < newConfig.size(); i++) {
+            KeystoreKeys keys = newCache.get(cacheKeys.get(i));
+
+            newEntries.add(new Saml2X509Credential(keys.privateKey, keys.certificate, newConfig.get(i).getUsage()));
         }
 
         removeOutdatedCertificates(newEntries);
 
-        credentials = newEntries;
+        // Only keep the keystores, that are still configured
+        keystoreCache = newCache;
+
+        return List.copyOf(newEntries);
+    }
+
+    /**
+     * Loads the keystores concurrently, if there are more than one. Decrypting a PKCS12 keystore takes a while, because
+     * of the key derivation.
+     */
+    private static Map<String, KeystoreKeys> loadKeystores(Map<String, Callable<KeystoreKeys>> keystoresToLoad)
+        throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
+        Map<String, KeystoreKeys> loaded = new HashMap<>();
+
+        if (keystoresToLoad.size() <= 1) {
+            for (Map.Entry<String, Callable<KeystoreKeys>> entry : keystoresToLoad.entrySet()) {
+                try {
+                    loaded.put(entry.getKey(), entry.getValue().call());
+                } catch (Exception e) {
+                    throw rethrow(e);
+                }
+            }
+
+            return loaded;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(keystoresToLoad.size(), Runtime.getRuntime().availableProcessors()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "saml2-keystore-loader");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        );
+
+        try {
+            Map<String, Future<KeystoreKeys>> futures = new HashMap<>();
+
+            keystoresToLoad.forEach((cacheKey, task) -> futures.put(cacheKey, executor.submit(task)));
+
+            for (Map.Entry<String, Future<KeystoreKeys>> entry : futures.entrySet()) {
+                loaded.put(entry.getKey(), entry.getValue().get());
+            }
+
+            return loaded;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while loading keystores");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e)
+        throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
+        if (e instanceof CertificateException certificateException) {
+            throw certificateException;
+        }
+
+        if (e instanceof IOException ioException) {
+            throw ioException;
+        }
+
+        if (e instanceof KeyStoreException keyStoreException) {
+            throw keyStoreException;
+        }
+
+        if (e instanceof NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw noSuchAlgorithmException;
+        }
+
+        if (e instanceof UnrecoverableEntryException unrecoverableEntryException) {
+            throw unrecoverableEntryException;
+        }
+
+        if (e instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+
+        if (e instanceof Error error) {
+            throw error;
+        }
+
+        return new IllegalStateException("Error loading keystore", e);
+    }
+
+    private static byte[] readContent(Resource location) throws IOException {
+        try (InputStream stream = location.getInputStream()) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static KeystoreKeys loadKeys(Saml2CredentialsConfig config, byte[] content)
+        throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
+        Resource location = config.getKeystoreLocation();
+        KeyStore keystore = createKeystore(location, content, config.getKeystoreType(), config.getKeystorePassword());
+        X509Certificate publicKey = extractPublicKey(keystore, config.getPublicAlias());
+        PrivateKey privateKey = extractPrivateKey(keystore, config.getKeystorePassword(), config.getPrivateAlias());
+
+        Assert.notNull(privateKey, "Private key for location [%s] is null".formatted(location));
+        Assert.notNull(publicKey, "Public key for location [%s] is null".formatted(location));
+
+        return new KeystoreKeys(privateKey, publicKey);
+    }
+
+    /**
+     * The hash of the content, the type, the password and the aliases. The password is part of the hash, so it is not
+     * kept in the cache.
+     */
+    private static String cacheKey(Saml2CredentialsConfig config, byte[] content) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        digest.update(content);
+
+        for (String value : List.of(
+            config.getKeystoreType(),
+            config.getKeystorePassword(),
+            config.getPrivateAlias(),
+            config.getPublicAlias()
+        )) {
+            digest.update((byte) 0);
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return Base64.getEncoder().encodeToString(digest.digest());
     }
 
     private void validateNewConfig(List<Saml2CredentialsConfig> newConfig) {
@@ -160,60 +452,58 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
      * @param entries the entries to check
      */
     private void removeOutdatedCertificates(List<Saml2X509Credential> entries) {
+        Instant now = Instant.now();
         Iterator<Saml2X509Credential> it = entries.iterator();
 
         while (it.hasNext()) {
-            Saml2X509Credential entry = it.next();
-
-            X509Certificate cert = entry.getCertificate();
+            X509Certificate cert = it.next().getCertificate();
+            Instant notAfter = cert.getNotAfter().toInstant();
 
             //Wenn nicht mehr gültig --> remove
-            Date now = new Date();
-            Date notAfter = cert.getNotAfter();
-
-            if (notAfter.before(now)) {
+            if (notAfter.isBefore(now)) {
                 it.remove();
-            } else {
-                // Check if the certificate will expire soon and log an error so that it gets replaced
-                Date monthAgo = new Date(notAfter.getTime() - (WARNING_TRESHOLD.getSeconds() * 1000));
-                long nowMillis = System.currentTimeMillis();
-
-                // When outdated we sent the message once every hour
-                if (
-                    monthAgo.before(now) &&
-                    (lastNotificationSent == -1 || lastNotificationSent + NOTIFICATION_INTERVAL_MILLIS < nowMillis)
-                ) {
+                continue;
+            }
+
+            // Check if the certificate will expire soon and log an error so that it gets replaced
+            if (notAfter.minus(EXPIRY_WARNING_THRESHOLD).isBefore(now)) {
+                Instant lastNotification = lastNotificationSent.get(cert.getSerialNumber());
+
+                // When outdated we sent the message once a day for each certificate
+                if (lastNotification == null || lastNotification.plus(NOTIFICATION_INTERVAL).isBefore(now)) {
                     LOG.error(
                         "A Certificate in the configuration will expire on {} Configure a new Keystore in addition to the current one. ",
-                        cert.getNotAfter()
+                        notAfter
                     );
 
-                    lastNotificationSent = nowMillis;
+                    lastNotificationSent.put(cert.getSerialNumber(), now);
                 }
             }
         }
+
+        lastNotificationSent
+            .keySet()
+            .retainAll(entries.stream().map(entry -> entry.getCertificate().getSerialNumber()).toList());
     }
 
-    private KeyStore createKeystore(Resource location, String type, String password)
+    private static KeyStore createKeystore(Resource location, byte[] content, String type, String password)
         throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
         LOG.info("Creating keystore [{}] of type [{}]", location.getDescription(), type);
 
-        try (InputStream stream = location.getInputStream()) {
-            KeyStore keystore = KeyStore.getInstance(type);
-            keystore.load(stream, password.toCharArray());
+        KeyStore keystore = KeyStore.getInstance(type);
+        keystore.load(new ByteArrayInputStream(content), password.toCharArray());
 
-            return keystore;
-        }
+        return keystore;
     }
 
-    private PrivateKey extractPrivateKey(KeyStore keystore, String password, String alias)
+    private static PrivateKey extractPrivateKey(KeyStore keystore, String password, String alias)
         throws NoSuchAlgorithmException, UnrecoverableEntryException, KeyStoreException {
         LOG.info("Extracting Certificate [{}]", alias);
 
         return (PrivateKey) keystore.getKey(alias, password.toCharArray());
     }
 
-    private X509Certificate extractPublicKey(KeyStore keystore, String alias) throws KeyStoreException {
+    private static X509Certificate extractPublicKey(KeyStore keystore, String alias) throws KeyStoreException {
         LOG.info("Extracting Certificate [{}]", alias);
 
         return (X509Certificate) keystore.getCertificate(alias);
@@ -225,19 +515,20 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
      * @return true when something changed. false otherwise
      * @throws IOException wenn etwas beim lastupdate lesen schiefgeht
      */
-    private boolean mustReload(List<Saml2CredentialsConfig> newConfig) throws IOException {
+    private boolean mustReload(CredentialsSnapshot current, List<Saml2CredentialsConfig> newConfig)
+        throws IOException {
         //First time we load the config. So update is needed
-        if (CollectionUtils.isEmpty(actualConfig)) {
+        if (CollectionUtils.isEmpty(current.config)) {
             return true;
         }
 
-        if (newConfig.size() != actualConfig.size()) {
+        if (newConfig.size() != current.config.size()) {
             return true;
         }
 
         for (Saml2CredentialsConfig config : newConfig) {
             // One of the keystores changed. Reload
-            if (config.getKeystoreLocation().lastModified() > lastupdate) {
+            if (config.getKeystoreLocation().lastModified() > current.lastupdate) {
                 return true;
             }
         }
@@ -245,6 +536,45 @@ public class DefaultSaml2CredentialsManager implements Saml2CredentialsManager {
         return false;
     }
 
+    /**
+     * The credentials together with the configuration and the time they were checked against. Never modified, each
+     * update publishes a new snapshot.
+     */
+    private static final class CredentialsSnapshot {
+
+        private static final CredentialsSnapshot EMPTY = new CredentialsSnapshot(0, Collections.emptyList(), null, -1);
+
+        private final long version;
+        private final List<Saml2X509Credential> credentials;
+        private final List<Saml2CredentialsConfig> config;
+        private final long lastupdate;
+
+        CredentialsSnapshot(
+            long version,
+            List<Saml2X509Credential> credentials,
+            List<Saml2CredentialsConfig> config,
+            long lastupdate
+        ) {
+            super();
+            this.version = version;
+            this.credentials = credentials;
+            this.config = config;
+            this.lastupdate = lastupdate;
+        }
+    }
+
+    private static final class KeystoreKeys {
+
+        private final PrivateKey privateKey;
+        private final X509Certificate certificate;
+
+        KeystoreKeys(PrivateKey privateKey, X509Certificate certificate) {
+            super();
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+        }
+    }
+
     public static final class Saml2CredentialsConfig {
 
         private static final ResourceLoader RESOURCE_LOADER = new DefaultResourceLoader();
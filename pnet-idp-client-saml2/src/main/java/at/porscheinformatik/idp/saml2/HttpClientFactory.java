@@ -15,18 +15,36 @@ public interface HttpClientFactory {
     static HttpClientFactory defaultClient() {
         return () -> {
             try {
-                HttpClientBuilder clientBuilder = new HttpClientBuilder();
-
-                clientBuilder.setConnectionTimeout(Duration.ofSeconds(5));
-                clientBuilder.setSocketTimeout(Duration.ofSeconds(10));
-
-                return clientBuilder.buildClient();
+                return defaultClientBuilder().buildClient();
             } catch (Exception e) {
                 throw new Saml2Exception("Error building HttpClient", e);
             }
         };
     }
 
+    /**
+     * @return a builder with 5 seconds connection timeout and 10 seconds socket timeout
+     */
+    static HttpClientBuilder defaultClientBuilder() {
+        HttpClientBuilder clientBuilder = new HttpClientBuilder();
+
+        clientBuilder.setConnectionTimeout(Duration.ofSeconds(5));
+        clientBuilder.setSocketTimeout(Duration.ofSeconds(10));
+
+        return clientBuilder;
+    }
+
+    /**
+     * Returns the same client each time, so the connections are pooled and kept alive between refreshes and shared by
+     * all registrations. The client uses the timeouts of the {@link #defaultClient()}. The
+     * {@link PartnerNetSaml2Configurer} closes the client, when the last application context using it is closed.
+     *
+     * @return the shared http client
+     */
+    static HttpClientFactory sharedClient() {
+        return SharedHttpClient.FACTORY;
+    }
+
     /**
      * @return the client instance to use
      * @throws Saml2Exception if something goes wrong building the client
@@ -0,0 +1,230 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Saml2ReplayCache} for a single instance. The IDs are spread over lock striped segments, so concurrent logins
+ * rarely wait for each other. Each segment sorts its IDs into buckets of ten seconds by their expiration, in a ring
+ * that covers the max retention. Expired buckets are dropped as a whole, so storing, checking and expiring an ID is
+ * constant time and the memory stays flat once the ring is warm.
+ * <p>
+ * The number of IDs is bounded. Each segment holds its share of the max entries. If a segment is full, the bucket
+ * expiring next is dropped early and counted in {@link #getEvictions()}. Expirations after the max retention are
+ * shortened to it.
+ */
+public class InMemorySaml2ReplayCache implements Saml2ReplayCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final Duration DEFAULT_MAX_RETENTION = Duration.ofMinutes(30);
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemorySaml2ReplayCache.class);
+    private static final long BUCKET_MILLIS = 10_000;
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS);
+
+    private final LongSupplier currentTimeMillis;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder evictions = new LongAdder();
+
+    public InMemorySaml2ReplayCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_RETENTION);
+    }
+
+    /**
+     * @param maxEntries the maximum number of IDs to keep
+     * @param maxRetention the maximum time to keep an ID
+     */
+    public InMemorySaml2ReplayCache(int maxEntries, Duration maxRetention) {
+        this(maxEntries, maxRetention, System::currentTimeMillis);
+    }
+
+    InMemorySaml2ReplayCache(int maxEntries, Duration maxRetention, LongSupplier currentTimeMillis) {
+        super();
+
+        if (maxEntries < SEGMENTS) {
+            throw new IllegalArgumentException(String.format("At least %s entries are required", SEGMENTS));
+        }
+
+        if (maxRetention.toMillis() < BUCKET_MILLIS) {
+            throw new IllegalArgumentException(String.format("Max retention must be at least %s ms", BUCKET_MILLIS));
+        }
+
+        this.currentTimeMillis = currentTimeMillis;
+
+        int ringSize = Math.toIntExact((maxRetention.toMillis() + BUCKET_MILLIS - 1) / BUCKET_MILLIS) + 2;
+        long currentSlot = currentTimeMillis.getAsLong() / BUCKET_MILLIS;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENTS, ringSize, currentSlot);
+        }
+    }
+
+    @Override
+    public boolean markUsed(String id, Instant expiresAt) {
+        Objects.requireNonNull(id, "ID must not be null");
+
+        Segment segment = segmentOf(id);
+        long now = currentTimeMillis.getAsLong();
+        long expirationSlot = Math.floorDiv(expiresAt.toEpochMilli() + BUCKET_MILLIS - 1, BUCKET_MILLIS);
+
+        synchronized (segment) {
+            return segment.markUsed(id, now / BUCKET_MILLIS, expirationSlot);
+        }
+    }
+
+    @Override
+    public boolean isUsed(String id) {
+        Segment segment = segmentOf(Objects.requireNonNull(id, "ID must not be null"));
+        long currentSlot = currentTimeMillis.getAsLong() / BUCKET_MILLIS;
+
+        synchronized (segment) {
+            segment.sweep(currentSlot);
+
+            return segment.ids.contains(id);
+        }
+    }
+
+    /**
+     * @return the number of IDs currently known
+     */
+    public int size() {
+        long currentSlot = currentTimeMillis.getAsLong() / BUCKET_MILLIS;
+        int size = 0;
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.sweep(currentSlot);
+                size += segment.ids.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the number of IDs dropped before they expired, because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segmentOf(String id) {
+        // The sets of the segments use the low bits of the hash, so the segment is selected by the high bits
+        return segments[(id.hashCode() * 0x9E3779B9) >>> SEGMENT_SHIFT];
+    }
+
+    private final class Segment {
+
+        private final int capacity;
+        private final Set<String> ids;
+        private final Bucket[] ring;
+
+        /**
+         * All buckets up to this slot are empty.
+         */
+        private long sweptSlot;
+
+        Segment(int capacity, int ringSize, long currentSlot) {
+            super();
+            this.capacity = capacity;
+            ids = new HashSet<>(capacity * 4 / 3 + 1);
+            ring = new Bucket[ringSize];
+            sweptSlot = currentSlot;
+        }
+
+        boolean markUsed(String id, long currentSlot, long expirationSlot) {
+            sweep(currentSlot);
+
+            if (!ids.add(id)) {
+                return false;
+            }
+
+            if (ids.size() > capacity) {
+                evictNext(currentSlot);
+            }
+
+            long slot = Math.min(Math.max(expirationSlot, currentSlot + 1), currentSlot + ring.length - 1);
+            int index = (int) Math.floorMod(slot, (long) ring.length);
+            Bucket bucket = ring[index];
+
+            if (bucket == null) {
+                bucket = new Bucket();
+                ring[index] = bucket;
+            }
+
+            // All slots after the current one map to different buckets, and expired ones are empty
+            bucket.slot = slot;
+            bucket.ids.add(id);
+
+            return true;
+        }
+
+        private void sweep(long currentSlot) {
+            if (currentSlot <= sweptSlot) {
+                return;
+            }
+
+            if (currentSlot - sweptSlot >= ring.length) {
+                for (Bucket bucket : ring) {
+                    if (bucket != null && bucket.slot <= currentSlot) {
+                        clear(bucket);
+                    }
+                }
+            } else {
+                for (long slot = sweptSlot + 1; slot <= currentSlot; slot++) {
+                    Bucket bucket = ring[(int) Math.floorMod(slot, (long) ring.length)];
+
+                    if (bucket != null && bucket.slot <= currentSlot) {
+                        clear(bucket);
+                    }
+                }
+            }
+
+            sweptSlot = currentSlot;
+        }
+
+        private void evictNext(long currentSlot) {
+            for (long slot = currentSlot + 1; slot < currentSlot + ring.length; slot++) {
+                Bucket bucket = ring[(int) Math.floorMod(slot, (long) ring.length)];
+
+                if (bucket != null && !bucket.ids.isEmpty()) {
+                    if (evictions.sum() == 0) {
+                        LOG.warn("Replay cache is full, IDs are forgotten before they expire. Increase max entries.");
+                    }
+
+                    LOG.debug("Replay cache is full, forgetting {} IDs before they expire", bucket.ids.size());
+
+                    evictions.add(bucket.ids.size());
+                    clear(bucket);
+
+                    return;
+                }
+            }
+        }
+
+        private void clear(Bucket bucket) {
+            for (String id : bucket.ids) {
+                ids.remove(id);
+            }
+
+            // Keeps the capacity of the list, so the memory stays the same under steady load
+            bucket.ids.clear();
+        }
+    }
+
+    private static final class Bucket {
+
+        private final List<String> ids = new ArrayList<>();
+        private long slot;
+    }
+}
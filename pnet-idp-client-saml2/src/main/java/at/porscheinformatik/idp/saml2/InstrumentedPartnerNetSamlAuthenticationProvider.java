@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.saml2.core.Response;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+
+/**
+ * A {@link PartnerNetSamlAuthenticationProvider} that records the total time of each login and the time spent parsing
+ * the XML of the response. Use it together with the {@link InstrumentedSaml2ResponseProcessor} to see where the time
+ * goes.
+ * <p>
+ * Records the following meters:
+ * <ul>
+ * <li><code>pnet.saml2.authentication</code>: timer, tagged with the outcome (success or failure) and the SAML error
+ * code of failed logins</li>
+ * <li><code>pnet.saml2.response.prescreen</code>: timer</li>
+ * <li><code>pnet.saml2.response.parse</code>: timer</li>
+ * </ul>
+ */
+public class InstrumentedPartnerNetSamlAuthenticationProvider extends PartnerNetSamlAuthenticationProvider {
+
+    public static final String AUTHENTICATION_TIMER = "pnet.saml2.authentication";
+    public static final String PRE_SCREEN_TIMER = "pnet.saml2.response.prescreen";
+    public static final String PARSE_TIMER = "pnet.saml2.response.parse";
+
+    private final MeterRegistry meterRegistry;
+    private final Timer successTimer;
+    private final Timer preScreenTimer;
+    private final Timer parseTimer;
+
+    public InstrumentedPartnerNetSamlAuthenticationProvider(
+        Saml2ResponseProcessor processor,
+        Saml2ResponseParser parser,
+        MeterRegistry meterRegistry
+    ) {
+        this(processor, parser, XMLObjectProviderRegistrySupport.getParserPool(), meterRegistry);
+    }
+
+    public InstrumentedPartnerNetSamlAuthenticationProvider(
+        Saml2ResponseProcessor processor,
+        Saml2ResponseParser parser,
+        ParserPool parserPool,
+        MeterRegistry meterRegistry
+    ) {
+        this(processor, parser, parserPool, null, meterRegistry);
+    }
+
+    public InstrumentedPartnerNetSamlAuthenticationProvider(
+        Saml2ResponseProcessor processor,
+        Saml2ResponseParser parser,
+        ParserPool parserPool,
+        Saml2ResponsePreScreener preScreener,
+        MeterRegistry meterRegistry
+    ) {
+        super(processor, parser, parserPool, preScreener);
+        this.meterRegistry = meterRegistry;
+
+        successTimer = authenticationTimer("success", "none");
+        preScreenTimer = Timer.builder(PRE_SCREEN_TIMER)
+            .description("Time spent screening SAML responses before parsing them")
+            .register(meterRegistry);
+        parseTimer = Timer.builder(PARSE_TIMER)
+            .description("Time spent parsing the XML of SAML responses")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            Authentication result = super.authenticate(authentication);
+
+            sample.stop(successTimer);
+
+            return result;
+        } catch (Saml2AuthenticationException e) {
+            sample.stop(authenticationTimer("failure", e.getSaml2Error().getErrorCode()));
+
+            throw e;
+        } catch (RuntimeException e) {
+            sample.stop(authenticationTimer("failure", "unknown"));
+
+            throw e;
+        }
+    }
+
+    @Override
+    protected void preScreen(Saml2AuthenticationToken token) throws Saml2AuthenticationException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            super.preScreen(token);
+        } finally {
+            sample.stop(preScreenTimer);
+        }
+    }
+
+    @Override
+    protected Response parse(Saml2AuthenticationToken token) throws XMLParserException, UnmarshallingException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        try {
+            return super.parse(token);
+        } finally {
+            sample.stop(parseTimer);
+        }
+    }
+
+    private Timer authenticationTimer(String outcome, String errorCode) {
+        return Timer.builder(AUTHENTICATION_TIMER)
+            .description("Total time of SAML logins, from the raw response to the authentication")
+            .tag("outcome", outcome)
+            .tag("error", errorCode)
+            .register(meterRegistry);
+    }
+}
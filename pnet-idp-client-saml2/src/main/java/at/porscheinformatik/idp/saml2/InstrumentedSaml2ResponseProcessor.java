@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.handler.MessageHandler;
+import org.opensaml.messaging.handler.MessageHandlerException;
+
+/**
+ * A {@link Saml2ResponseProcessor} that records the time spent in each handler and counts the responses rejected by
+ * each handler. Shows, whether slow logins are caused by the signature validation, the decryption or one of the
+ * other checks.
+ * <p>
+ * Records the following meters, tagged with the simple class name of the handler:
+ * <ul>
+ * <li><code>pnet.saml2.response.handler</code>: timer, additionally tagged with the outcome (success or failure)</li>
+ * <li><code>pnet.saml2.response.handler.failures</code>: counter, additionally tagged with the reason (e.g.
+ * signature, decryption, lifetime, relay_state)</li>
+ * </ul>
+ */
+public class InstrumentedSaml2ResponseProcessor extends Saml2ResponseProcessor {
+
+    public static final String HANDLER_TIMER = "pnet.saml2.response.handler";
+    public static final String HANDLER_FAILURES = "pnet.saml2.response.handler.failures";
+
+    private static final Map<String, String> FAILURE_REASONS = Map.ofEntries(
+        Map.entry("MessageLifetimeSecurityHandler", "lifetime"),
+        Map.entry("ThrowOnMissingIdMessageHandler", "missing_id"),
+        Map.entry("CheckRelayStateMessageHandler", "relay_state"),
+        Map.entry("CheckIssuerMessageHandler", "issuer"),
+        Map.entry("CheckEndpointMessageHandler", "endpoint"),
+        Map.entry("VerifySignatureMessageHandler", "signature"),
+        Map.entry("DecryptAssertionsMessageHandler", "decryption"),
+        Map.entry("CheckReplayMessageHandler", "replay"),
+        Map.entry("VerifyStatusMessageHandler", "status"),
+        Map.entry("CheckAssertionStructureMessageHandler", "assertion_structure"),
+        Map.entry("CheckSubjectMessageHandler", "subject"),
+        Map.entry("CheckAudienceRestrictionMessageHandler", "audience"),
+        Map.entry("VerifyAuthnInstantMessageHandler", "authn_instant"),
+        Map.entry("CheckSubjectIdentifierMessageHandler", "subject_identifier"),
+        Map.entry("VerifyAuthenticationStrengthMessageHandler", "authentication_strength")
+    );
+
+    /**
+     * Like {@link Saml2ResponseProcessor#withDefaultHandlers()}, rejects replayed responses with a new
+     * {@link InMemorySaml2ReplayCache} for each call.
+     *
+     * @param meterRegistry the registry to record the handlers in
+     * @return a processor with the default handlers
+     */
+    public static InstrumentedSaml2ResponseProcessor withDefaultHandlers(MeterRegistry meterRegistry) {
+        return new InstrumentedSaml2ResponseProcessor(defaultHandlers(), meterRegistry);
+    }
+
+    public static InstrumentedSaml2ResponseProcessor withDefaultHandlers(
+        MeterRegistry meterRegistry,
+        Saml2ReplayCache replayCache
+    ) {
+        return new InstrumentedSaml2ResponseProcessor(defaultHandlers(replayCache), meterRegistry);
+    }
+
+    /**
+     * The meters are registered once, the handlers never change after construction.
+     */
+    private final Map<MessageHandler, HandlerMeters> meters = new IdentityHashMap<>();
+
+    public InstrumentedSaml2ResponseProcessor(List<MessageHandler> handlers, MeterRegistry meterRegistry) {
+        super(handlers);
+
+        for (MessageHandler handler : getHandlers()) {
+            meters.put(handler, new HandlerMeters(handler, meterRegistry));
+        }
+    }
+
+    @Override
+    protected void invokeHandler(MessageHandler handler, MessageContext messageContext) throws MessageHandlerException {
+        HandlerMeters handlerMeters = meters.get(handler);
+        long start = System.nanoTime();
+
+        try {
+            super.invokeHandler(handler, messageContext);
+
+            handlerMeters.success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (MessageHandlerException | RuntimeException e) {
+            handlerMeters.failure.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            handlerMeters.failures.increment();
+
+            throw e;
+        }
+    }
+
+    private static String failureReason(MessageHandler handler) {
+        return FAILURE_REASONS.getOrDefault(handler.getClass().getSimpleName(), "other");
+    }
+
+    private static final class HandlerMeters {
+
+        private final Timer success;
+        private final Timer failure;
+        private final Counter failures;
+
+        HandlerMeters(MessageHandler handler, MeterRegistry meterRegistry) {
+            super();
+
+            String name = handler.getClass().getSimpleName();
+
+            success = Timer.builder(HANDLER_TIMER)
+                .description("Time spent validating a SAML response in a single handler")
+                .tag("handler", name)
+                .tag("outcome", "success")
+                .register(meterRegistry);
+            failure = Timer.builder(HANDLER_TIMER)
+                .description("Time spent validating a SAML response in a single handler")
+                .tag("handler", name)
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+            failures = Counter.builder(HANDLER_FAILURES)
+                .description("SAML responses rejected by a handler")
+                .tag("handler", name)
+                .tag("reason", failureReason(handler))
+                .register(meterRegistry);
+        }
+    }
+}
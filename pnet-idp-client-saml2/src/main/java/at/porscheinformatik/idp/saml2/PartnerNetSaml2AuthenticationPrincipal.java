@@ -2,6 +2,7 @@ package at.porscheinformatik.idp.saml2;
 
 import at.porscheinformatik.idp.Gender;
 import at.porscheinformatik.idp.PartnerNetCompanyAddressDTO;
+import at.porscheinformatik.idp.PartnerNetCompanyClaimIndex;
 import at.porscheinformatik.idp.PartnerNetCompanyDTO;
 import at.porscheinformatik.idp.PartnerNetCompanyTypeDTO;
 import at.porscheinformatik.idp.PartnerNetContractDTO;
@@ -15,6 +16,13 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 
+/**
+ * The Partner.Net user of a SAML 2 authentication.
+ * <p>
+ * The {@link PartnerNetCompanyClaimIndex indexes} of the claims are transient. The principal still serializes the full
+ * lists of roles, contracts, functional numbers and company types, so the indexes do not make the session smaller.
+ * They are rebuilt from the lists on first use after deserialization.
+ */
 public class PartnerNetSaml2AuthenticationPrincipal implements Serializable {
 
     @Serial
@@ -71,6 +79,9 @@ public class PartnerNetSaml2AuthenticationPrincipal implements Serializable {
     private final Collection<Integer> supportContactCompanyIds;
     private final Collection<PartnerNetCompanyTypeDTO> supportCompanyTypes;
 
+    private transient volatile PartnerNetCompanyClaimIndex companyClaims;
+    private transient volatile PartnerNetCompanyClaimIndex supportCompanyClaims;
+
     public PartnerNetSaml2AuthenticationPrincipal(
         String subjectIdentifier,
         String relayState,
@@ -321,6 +332,38 @@ public class PartnerNetSaml2AuthenticationPrincipal implements Serializable {
         return supportCompanyTypes;
     }
 
+    /**
+     * The index is created on first use and not serialized with the principal.
+     *
+     * @return the roles, contracts, functional numbers and company types indexed by company
+     */
+    public PartnerNetCompanyClaimIndex getCompanyClaims() {
+        PartnerNetCompanyClaimIndex index = companyClaims;
+
+        if (index == null) {
+            index = PartnerNetCompanyClaimIndex.of(roles, contracts, functionalNumbers, companyTypes);
+            companyClaims = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * The index is created on first use and not serialized with the principal.
+     *
+     * @return the support roles, contracts and company types indexed by company
+     */
+    public PartnerNetCompanyClaimIndex getSupportCompanyClaims() {
+        PartnerNetCompanyClaimIndex index = supportCompanyClaims;
+
+        if (index == null) {
+            index = PartnerNetCompanyClaimIndex.of(supportRoles, supportContracts, null, supportCompanyTypes);
+            supportCompanyClaims = index;
+        }
+
+        return index;
+    }
+
     public String getName() {
         String givenName = getFirstname();
         String familyName = getLastname();
@@ -1,8 +1,17 @@
 package at.porscheinformatik.idp.saml2;
 
 import jakarta.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
+/**
+ * Keeps the state of the authentication request, that is needed to verify the response. By default the state is kept
+ * in the session. After {@link #useStatelessStorage(HttpServletRequest)} was called for the request, the state is kept
+ * in a request attribute instead, and carried to the response by the
+ * {@link CookieSaml2AuthenticationRequestRepository}.
+ */
 public final class PartnerNetSaml2AuthenticationRequestUtils {
 
     private static final String FORCE_AUTHENTICATION_ATTR = "poi.saml2.force_authn";
@@ -10,64 +19,102 @@ public final class PartnerNetSaml2AuthenticationRequestUtils {
     private static final String MAX_AGE_MFA_ATTR = "poi.saml2.max_age_mfa";
     private static final String TENANT_ATTR = "poi.saml2.tenant";
     private static final String NIST_LEVEL_ATTR = "poi.saml2.nist_level";
+    private static final String STATELESS_STATE_ATTR = "poi.saml2.stateless_state";
 
     private PartnerNetSaml2AuthenticationRequestUtils() {
         super();
     }
 
-    public static void storeForceAuthentication(HttpServletRequest request, boolean force) {
-        if (force) {
-            request.getSession().setAttribute(FORCE_AUTHENTICATION_ATTR, Boolean.TRUE);
+    /**
+     * Keeps the state of the authentication request in a request attribute, instead of the session.
+     *
+     * @param request the request, that starts the authentication
+     */
+    public static void useStatelessStorage(HttpServletRequest request) {
+        request.setAttribute(STATELESS_STATE_ATTR, new HashMap<String, Object>());
+    }
+
+    /**
+     * @param request the current request
+     * @return the state stored in the request, or null if the state is kept in the session
+     */
+    static Map<String, Object> getStatelessState(HttpServletRequest request) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> state = (Map<String, Object>) request.getAttribute(STATELESS_STATE_ATTR);
+
+        return state != null ? Collections.unmodifiableMap(state) : null;
+    }
+
+    /**
+     * Restores the state, that was carried from the authentication request to the response.
+     *
+     * @param request the request with the response
+     * @param state the state of the authentication request
+     */
+    static void restoreStatelessState(HttpServletRequest request, Map<String, Object> state) {
+        request.setAttribute(STATELESS_STATE_ATTR, new HashMap<>(state));
+    }
+
+    static void storeAttribute(HttpServletRequest request, String name, Object value) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> state = (Map<String, Object>) request.getAttribute(STATELESS_STATE_ATTR);
+
+        if (state != null) {
+            if (value != null) {
+                state.put(name, value);
+            } else {
+                state.remove(name);
+            }
+        } else if (value != null) {
+            request.getSession().setAttribute(name, value);
         } else {
-            request.getSession().removeAttribute(FORCE_AUTHENTICATION_ATTR);
+            request.getSession().removeAttribute(name);
         }
     }
 
+    static Object retrieveAttribute(HttpServletRequest request, String name) {
+        Map<String, Object> state = getStatelessState(request);
+
+        if (state != null) {
+            return state.get(name);
+        }
+
+        return request.getSession().getAttribute(name);
+    }
+
+    public static void storeForceAuthentication(HttpServletRequest request, boolean force) {
+        storeAttribute(request, FORCE_AUTHENTICATION_ATTR, force ? Boolean.TRUE : null);
+    }
+
     public static boolean forceAuthenticationRequested(HttpServletRequest request) {
-        return Boolean.TRUE.equals(request.getSession().getAttribute(FORCE_AUTHENTICATION_ATTR));
+        return Boolean.TRUE.equals(retrieveAttribute(request, FORCE_AUTHENTICATION_ATTR));
     }
 
     public static void storeSessionAge(HttpServletRequest request, Optional<Integer> maxSessionAge) {
-        if (maxSessionAge.isPresent()) {
-            request.getSession().setAttribute(SESSION_AGE_ATTR, maxSessionAge.get());
-        } else {
-            request.getSession().removeAttribute(SESSION_AGE_ATTR);
-        }
+        storeAttribute(request, SESSION_AGE_ATTR, maxSessionAge.orElse(null));
     }
 
     public static void storeMaxAgeMfa(HttpServletRequest request, Optional<Integer> maxAgeMfa) {
-        if (maxAgeMfa.isPresent()) {
-            request.getSession().setAttribute(MAX_AGE_MFA_ATTR, maxAgeMfa.get());
-        } else {
-            request.getSession().removeAttribute(MAX_AGE_MFA_ATTR);
-        }
+        storeAttribute(request, MAX_AGE_MFA_ATTR, maxAgeMfa.orElse(null));
     }
 
     public static Integer sessionAgeRequested(HttpServletRequest request) {
-        return (Integer) request.getSession().getAttribute(SESSION_AGE_ATTR);
+        return (Integer) retrieveAttribute(request, SESSION_AGE_ATTR);
     }
 
     public static void storeTenant(HttpServletRequest request, Optional<String> tenant) {
-        if (tenant.isPresent()) {
-            request.getSession().setAttribute(TENANT_ATTR, tenant.get());
-        } else {
-            request.getSession().removeAttribute(TENANT_ATTR);
-        }
+        storeAttribute(request, TENANT_ATTR, tenant.orElse(null));
     }
 
     public static String tenantRequested(HttpServletRequest request) {
-        return (String) request.getSession().getAttribute(TENANT_ATTR);
+        return (String) retrieveAttribute(request, TENANT_ATTR);
     }
 
     public static void storeNistLevel(HttpServletRequest request, Optional<Integer> nistLevel) {
-        if (nistLevel.isPresent()) {
-            request.getSession().setAttribute(NIST_LEVEL_ATTR, nistLevel.get());
-        } else {
-            request.getSession().removeAttribute(NIST_LEVEL_ATTR);
-        }
+        storeAttribute(request, NIST_LEVEL_ATTR, nistLevel.orElse(null));
     }
 
     public static Integer getRequestedNistLevel(HttpServletRequest request) {
-        return (Integer) request.getSession().getAttribute(NIST_LEVEL_ATTR);
+        return (Integer) retrieveAttribute(request, NIST_LEVEL_ATTR);
     }
 }
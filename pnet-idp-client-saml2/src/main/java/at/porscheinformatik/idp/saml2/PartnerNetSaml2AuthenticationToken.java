@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import java.io.InputStream;
+import java.io.Serial;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+/**
+ * A {@link Saml2AuthenticationToken} that keeps the SAML response Base64 encoded, as it was posted. The
+ * {@link PartnerNetSamlAuthenticationProvider} decodes it while parsing, via {@link #openResponse()}, so the decoded
+ * bytes and the decoded XML never exist as a whole in memory.
+ *
+ * @see PartnerNetSaml2AuthenticationTokenConverter
+ */
+public class PartnerNetSaml2AuthenticationToken extends Saml2AuthenticationToken {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String encodedResponse;
+
+    /**
+     * @param relyingPartyRegistration the registration of the service provider
+     * @param encodedResponse the Base64 encoded SAML response
+     * @param authenticationRequest the authentication request, may be null
+     */
+    public PartnerNetSaml2AuthenticationToken(
+        RelyingPartyRegistration relyingPartyRegistration,
+        String encodedResponse,
+        AbstractSaml2AuthenticationRequest authenticationRequest
+    ) {
+        super(relyingPartyRegistration, encodedResponse, authenticationRequest);
+        this.encodedResponse = encodedResponse;
+    }
+
+    /**
+     * Decodes the whole response. Only needed for code, that is not aware of this token. Use {@link #openResponse()}
+     * instead.
+     *
+     * @return the decoded XML of the response
+     */
+    @Override
+    public String getSaml2Response() {
+        return new String(Base64.getMimeDecoder().decode(encodedResponse), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a stream of the decoded XML of the response. Decodes while reading, invalid Base64 results in an
+     *         {@link java.io.IOException} while reading.
+     */
+    public InputStream openResponse() {
+        return Base64.getMimeDecoder().wrap(new AsciiInputStream(encodedResponse));
+    }
+
+    /**
+     * Streams the chars of a Base64 string as bytes, without copying the string. Chars outside of ASCII are not valid
+     * Base64 anyway, they are mapped to a byte outside the alphabet, that the MIME decoder skips like line breaks.
+     */
+    private static final class AsciiInputStream extends InputStream {
+
+        private static final int INVALID = '!';
+
+        private final String value;
+        private int position;
+
+        AsciiInputStream(String value) {
+            super();
+            this.value = value;
+        }
+
+        @Override
+        public int read() {
+            if (position >= value.length()) {
+                return -1;
+            }
+
+            return toByte(value.charAt(position++));
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+
+            int count = Math.min(length, value.length() - position);
+
+            if (count <= 0) {
+                return -1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) toByte(value.charAt(position++));
+            }
+
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return value.length() - position;
+        }
+
+        private static int toByte(char c) {
+            return c < 128 ? c : INVALID;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.core.Saml2ParameterNames;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.web.HttpSessionSaml2AuthenticationRequestRepository;
+import org.springframework.security.saml2.provider.service.web.RelyingPartyRegistrationResolver;
+import org.springframework.security.saml2.provider.service.web.Saml2AuthenticationRequestRepository;
+import org.springframework.security.saml2.provider.service.web.Saml2AuthenticationTokenConverter;
+import org.springframework.security.web.authentication.AuthenticationConverter;
+
+/**
+ * Converts posted SAML responses to {@link PartnerNetSaml2AuthenticationToken}s, that keep the response Base64 encoded
+ * until it is parsed. Responses larger than the maximum size are rejected before they are decoded. All other requests
+ * (e.g. the redirect binding) are converted by the {@link Saml2AuthenticationTokenConverter} of Spring Security.
+ */
+public class PartnerNetSaml2AuthenticationTokenConverter implements AuthenticationConverter {
+
+    /**
+     * Far more than any Partner.Net response, even with lots of roles and an encrypted assertion.
+     */
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    private final RelyingPartyRegistrationResolver relyingPartyRegistrationResolver;
+    private final Saml2AuthenticationTokenConverter delegate;
+
+    private Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> authenticationRequestRepository =
+        new HttpSessionSaml2AuthenticationRequestRepository();
+    private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    public PartnerNetSaml2AuthenticationTokenConverter(
+        RelyingPartyRegistrationResolver relyingPartyRegistrationResolver
+    ) {
+        super();
+        this.relyingPartyRegistrationResolver = relyingPartyRegistrationResolver;
+
+        delegate = new Saml2AuthenticationTokenConverter(relyingPartyRegistrationResolver);
+    }
+
+    /**
+     * @param authenticationRequestRepository the repository to load the authentication requests from. Must be the
+     *            same the authentication requests are saved to.
+     */
+    public void setAuthenticationRequestRepository(
+        Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> authenticationRequestRepository
+    ) {
+        this.authenticationRequestRepository = authenticationRequestRepository;
+
+        delegate.setAuthenticationRequestRepository(authenticationRequestRepository);
+    }
+
+    /**
+     * @param maxResponseSize the maximum size of the decoded response in bytes
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        if (maxResponseSize < 1) {
+            throw new IllegalArgumentException("The maximum response size must be at least 1 byte");
+        }
+
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    @Override
+    public Saml2AuthenticationToken convert(HttpServletRequest request) {
+        if (!HttpMethod.POST.matches(request.getMethod())) {
+            return delegate.convert(request);
+        }
+
+        String encodedResponse = request.getParameter(Saml2ParameterNames.SAML_RESPONSE);
+
+        if (encodedResponse == null) {
+            return null;
+        }
+
+        AbstractSaml2AuthenticationRequest authenticationRequest =
+            authenticationRequestRepository.loadAuthenticationRequest(request);
+        String registrationId = authenticationRequest != null
+            ? authenticationRequest.getRelyingPartyRegistrationId()
+            : null;
+        RelyingPartyRegistration registration = relyingPartyRegistrationResolver.resolve(request, registrationId);
+
+        if (registration == null) {
+            return null;
+        }
+
+        if (decodedSize(encodedResponse) > maxResponseSize) {
+            throw new Saml2AuthenticationException(
+                new Saml2Error(
+                    Saml2ErrorCodes.INVALID_RESPONSE,
+                    String.format("SAML response exceeds the maximum size of %d bytes", maxResponseSize)
+                )
+            );
+        }
+
+        return new PartnerNetSaml2AuthenticationToken(registration, encodedResponse, authenticationRequest);
+    }
+
+    /**
+     * Each 4 chars of Base64 decode to 3 bytes, less the padding. Incomplete groups of chars are rounded up and line
+     * breaks are counted, too, so this is an upper bound, that is good enough for rejecting responses without decoding
+     * them.
+     */
+    private static long decodedSize(String encodedResponse) {
+        int length = encodedResponse.length();
+        int padding = 0;
+
+        while (padding < 2 && length - padding > 0 && encodedResponse.charAt(length - padding - 1) == '=') {
+            padding++;
+        }
+
+        return ((long) length + 3) / 4 * 3 - padding;
+    }
+}
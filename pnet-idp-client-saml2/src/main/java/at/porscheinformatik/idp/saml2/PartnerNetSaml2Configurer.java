@@ -3,33 +3,45 @@
  */
 package at.porscheinformatik.idp.saml2;
 
+import static at.porscheinformatik.idp.ContextClosedCallbacks.*;
 import static at.porscheinformatik.idp.saml2.Saml2Utils.*;
 import static java.lang.String.*;
 import static java.util.Objects.*;
 
+import at.porscheinformatik.idp.MetadataSnapshotStore;
 import at.porscheinformatik.idp.saml2.DefaultSaml2CredentialsManager.Saml2CredentialsConfig;
-import jakarta.servlet.Filter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import javax.crypto.SecretKey;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.springframework.context.ApplicationContext;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.config.Customizer;
+import org.springframework.security.config.annotation.ObjectPostProcessor;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
 import org.springframework.security.config.annotation.web.configurers.saml2.Saml2LoginConfigurer;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
 import org.springframework.security.saml2.provider.service.metadata.Saml2MetadataResolver;
-import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
 import org.springframework.security.saml2.provider.service.web.DefaultRelyingPartyRegistrationResolver;
 import org.springframework.security.saml2.provider.service.web.RelyingPartyRegistrationResolver;
+import org.springframework.security.saml2.provider.service.web.Saml2AuthenticationRequestRepository;
+import org.springframework.security.saml2.provider.service.web.Saml2WebSsoAuthenticationRequestFilter;
 import org.springframework.security.saml2.provider.service.web.authentication.OpenSaml4AuthenticationRequestResolver;
 import org.springframework.security.saml2.provider.service.web.authentication.OpenSaml4AuthenticationRequestResolver.AuthnRequestContext;
 import org.springframework.security.saml2.provider.service.web.authentication.Saml2AuthenticationRequestResolver;
 import org.springframework.security.saml2.provider.service.web.authentication.Saml2WebSsoAuthenticationFilter;
+import org.springframework.security.web.authentication.AuthenticationConverter;
 import org.springframework.security.web.authentication.AuthenticationFailureHandler;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
@@ -85,9 +97,12 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
     private final String metadataUrl;
 
     private boolean failOnStartup;
-    private HttpClientFactory clientFactory = HttpClientFactory.defaultClient();
+    private boolean initializeMetadataInBackground;
+    private Path metadataCacheDirectory;
+    private HttpClientFactory clientFactory = HttpClientFactory.sharedClient();
     private Saml2CredentialsManager credentialsManager;
     private Saml2ResponseProcessor responseProcessor;
+    private Saml2ReplayCache replayCache;
     private Saml2ResponseParser responseParser;
     private PartnerNetSaml2AuthoritiesMapper authoritiesMapper;
     private Consumer<AuthnRequestContext> authnRequestCustomizer;
@@ -96,6 +111,13 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
     private AuthenticationSuccessHandler successHandler;
 
     private RelyingPartyRegistrationResolver relyingPartyResolver;
+    private Saml2ServiceProviderMetadataFilter metadataFilter;
+    private MeterRegistry meterRegistry;
+    private int parserPoolSize;
+    private int maxResponseSize = PartnerNetSaml2AuthenticationTokenConverter.DEFAULT_MAX_RESPONSE_SIZE;
+    private boolean signMetadata;
+    private Saml2CredentialsHealthIndicator credentialsHealthIndicator;
+    private SecretKey authenticationRequestKey;
     private Customizer<Saml2LoginConfigurer<HttpSecurity>> customizer = saml2Login -> {
         // Noop customizer. Users can override this to add custom configurations
     };
@@ -118,6 +140,34 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
         return this;
     }
 
+    /**
+     * When called, the metadata of the provider will be loaded and refreshed on a background thread. Requests will
+     * never wait for the provider or for parsing the metadata. Until the metadata was loaded once, logins fail fast.
+     * Afterwards the last valid metadata is used, until a refresh succeeds. Can be combined with
+     * {@link #failOnStartup()}.
+     *
+     * @return the builder for a fluent api
+     */
+    public PartnerNetSaml2Configurer initializeMetadataInBackground() {
+        initializeMetadataInBackground = true;
+
+        return this;
+    }
+
+    /**
+     * Keeps a snapshot of the last valid metadata of the provider in the given directory. On startup the snapshot is
+     * used, as long as it is valid, and the metadata is loaded in the background. This way the application starts
+     * fast, even if the provider is not available.
+     *
+     * @param metadataCacheDirectory the directory to keep the snapshot in. Will be created if it does not exist.
+     * @return the builder for a fluent api
+     */
+    public PartnerNetSaml2Configurer metadataCacheDirectory(Path metadataCacheDirectory) {
+        this.metadataCacheDirectory = metadataCacheDirectory;
+
+        return this;
+    }
+
     /**
      * @param credentialConfigs static list of credentials to use for authentication
      * @return the builder for a fluent api
@@ -165,7 +215,7 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
      *
      * @param clientFactory the client factory to use
      * @return the builder for a fluent api
-     * @see HttpClientFactory#defaultClient()
+     * @see HttpClientFactory#sharedClient()
      */
     public PartnerNetSaml2Configurer clientFactory(HttpClientFactory clientFactory) {
         this.clientFactory = clientFactory;
@@ -174,7 +224,9 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
     }
 
     /**
-     * Override the default response processor
+     * Override the default response processor. The responses are not screened before they are parsed then (see
+     * {@link Saml2ResponsePreScreener}), because the screening might reject responses, that the custom processor
+     * accepts.
      *
      * @param responseProcessor the response processor to use
      * @return the builder for a fluent api
@@ -185,6 +237,22 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
         return this;
     }
 
+    /**
+     * Override the cache used by the default response processor to reject replayed responses. Defaults to an
+     * {@link InMemorySaml2ReplayCache}, which is enough for a single instance. Use a cache shared by all instances, if
+     * the responses may be posted to any of them. The {@link Saml2ResponsePreScreener} looks up replayed responses in
+     * it, before they are parsed. A custom {@link #responseProcessor(Saml2ResponseProcessor)} does not fill it. Pass
+     * {@link Saml2ReplayCache#disabled()} to accept replayed responses.
+     *
+     * @param replayCache the replay cache to use
+     * @return the builder for a fluent api
+     */
+    public PartnerNetSaml2Configurer replayCache(Saml2ReplayCache replayCache) {
+        this.replayCache = replayCache;
+
+        return this;
+    }
+
     /**
      * Override the default response parser.
      *
@@ -264,20 +332,176 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
         return this;
     }
 
+    /**
+     * Records the duration of each login, of parsing the response and of each handler of the default response
+     * processor, and counts the responses rejected by each handler. Requires micrometer-core on the classpath. If a
+     * custom {@link #responseProcessor(Saml2ResponseProcessor)} is set, only the login and the parsing are recorded.
+     * Records the days until the certificates expire, too.
+     *
+     * @param meterRegistry the registry to record the metrics in
+     * @return the builder for a fluent api
+     * @see InstrumentedSaml2ResponseProcessor
+     * @see InstrumentedPartnerNetSamlAuthenticationProvider
+     * @see Saml2CredentialsMetrics
+     */
+    public PartnerNetSaml2Configurer meterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        return this;
+    }
+
+    /**
+     * Parses the responses with a dedicated parser pool instead of the global one of OpenSAML. The pool is filled at
+     * startup, so the first logins do not create the parsers. Without this option, the global pool is used as it is.
+     *
+     * @param parserPoolSize the number of idle parsers kept in the pool. Should match the number of Tomcat worker
+     *            threads, or the expected peak of concurrent logins when using virtual threads.
+     * @return the builder for a fluent api
+     * @see Saml2ParserPoolFactory#create(int)
+     */
+    public PartnerNetSaml2Configurer parserPoolSize(int parserPoolSize) {
+        if (parserPoolSize < 1) {
+            throw new IllegalArgumentException("The parser pool size must be at least 1");
+        }
+
+        this.parserPoolSize = parserPoolSize;
+
+        return this;
+    }
+
+    /**
+     * Responses larger than this are rejected before they are decoded and parsed.
+     *
+     * @param maxResponseSize the maximum size of the decoded SAML response in bytes. Defaults to 1 MiB.
+     * @return the builder for a fluent api
+     * @see PartnerNetSaml2AuthenticationTokenConverter
+     */
+    public PartnerNetSaml2Configurer maxResponseSize(int maxResponseSize) {
+        if (maxResponseSize < 1) {
+            throw new IllegalArgumentException("The maximum response size must be at least 1 byte");
+        }
+
+        this.maxResponseSize = maxResponseSize;
+
+        return this;
+    }
+
+    /**
+     * Keeps the authentication request and its Partner.Net state in an encrypted cookie, instead of the session. This
+     * way starting a login neither creates nor writes a session, and the login works on any instance of the
+     * application. Requires HTTPS, because the cookie must be sent with the cross-site post of the identity provider.
+     *
+     * @param key the AES key to encrypt the cookie with. All instances of the application must use the same key.
+     * @return the builder for a fluent api
+     * @see CookieSaml2AuthenticationRequestRepository
+     */
+    public PartnerNetSaml2Configurer statelessAuthenticationRequests(SecretKey key) {
+        authenticationRequestKey = requireNonNull(key, "Key must not be null");
+
+        return this;
+    }
+
+    /**
+     * Signs the published service provider metadata with the signing credential of the {@link Saml2CredentialsManager}.
+     * The metadata is signed once and cached until the credentials or the registration change.
+     *
+     * @return the builder for a fluent api
+     * @see PartnerNetSaml2MetadataResolver
+     */
+    public PartnerNetSaml2Configurer signMetadata() {
+        signMetadata = true;
+
+        return this;
+    }
+
+    /**
+     * Includes the verification certificates of the identity provider in the health of the indicator. Requires
+     * spring-boot-actuator on the classpath.
+     *
+     * @param credentialsHealthIndicator the indicator, usually a bean of the application
+     * @return the builder for a fluent api
+     */
+    public PartnerNetSaml2Configurer credentialsHealthIndicator(
+        Saml2CredentialsHealthIndicator credentialsHealthIndicator
+    ) {
+        this.credentialsHealthIndicator = credentialsHealthIndicator;
+
+        return this;
+    }
+
     @Override
     public void init(HttpSecurity builder) throws Exception {
         Saml2CredentialsManager credManager = getCredentialsManager();
-        RelyingPartyRegistrationRepository relyingPartyRegistrationRepository = getRelyingPartyRegistrationRepository(
-            credManager
-        );
+        boolean sharedClient = clientFactory == HttpClientFactory.sharedClient();
+
+        // The repository uses the client right away, another context must not close it in the meantime
+        if (sharedClient) {
+            SharedHttpClient.retain();
+        }
+
+        ReloadingRelyingPartyRegistrationRepository relyingPartyRegistrationRepository;
+
+        try {
+            relyingPartyRegistrationRepository = getRelyingPartyRegistrationRepository(credManager);
+        } catch (Exception e) {
+            if (sharedClient) {
+                SharedHttpClient.release();
+            }
+
+            throw e;
+        }
+
+        onContextClosed(builder.getSharedObject(ApplicationContext.class), () -> {
+            relyingPartyRegistrationRepository.destroy();
+
+            if (sharedClient) {
+                SharedHttpClient.release();
+            }
+        });
+
         relyingPartyResolver = new DefaultRelyingPartyRegistrationResolver(relyingPartyRegistrationRepository);
+        metadataFilter = buildMetadataFilter();
+
+        // The filter caches the metadata, that contains the registration and the credentials
+        relyingPartyRegistrationRepository.onUpdate(metadataFilter);
+        credManager.onUpdate(metadataFilter);
 
-        builder.authenticationProvider(buildAuthenticationProvider());
+        if (meterRegistry != null) {
+            Saml2CredentialsMetrics credentialsMetrics = new Saml2CredentialsMetrics(
+                meterRegistry,
+                credManager,
+                relyingPartyRegistrationRepository
+            );
+
+            relyingPartyRegistrationRepository.onUpdate(credentialsMetrics);
+            credManager.onUpdate(credentialsMetrics);
+        }
+
+        if (credentialsHealthIndicator != null) {
+            credentialsHealthIndicator.monitor(relyingPartyRegistrationRepository);
+        }
+
+        builder.authenticationProvider(buildAuthenticationProvider(relyingPartyRegistrationRepository));
+
+        Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> authenticationRequestRepository =
+            authenticationRequestKey != null
+                ? new CookieSaml2AuthenticationRequestRepository(
+                    relyingPartyRegistrationRepository,
+                    authenticationRequestKey
+                )
+                : getRequestRepositoryBean(builder);
 
         builder.saml2Login(saml2Login -> {
             saml2Login.relyingPartyRegistrationRepository(relyingPartyRegistrationRepository);
             saml2Login.authenticationDetailsSource(new HttpRequestContextAwareSaml2AuthenticationDetailsSource());
             saml2Login.authenticationRequestResolver(buildRequestResolver(relyingPartyResolver));
+            saml2Login.authenticationConverter(
+                buildAuthenticationConverter(relyingPartyResolver, authenticationRequestRepository)
+            );
+
+            if (authenticationRequestKey != null) {
+                useAuthenticationRequestRepository(saml2Login, authenticationRequestRepository);
+            }
 
             saml2Login.loginProcessingUrl(DEFAULT_LOGIN_PROCESSING_URL);
             saml2Login.successHandler(getSuccessHandler());
@@ -305,21 +529,59 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
 
     @Override
     public void configure(HttpSecurity builder) throws Exception {
-        builder.addFilterBefore(buildMetadataFilter(), Saml2WebSsoAuthenticationFilter.class);
+        builder.addFilterBefore(metadataFilter, Saml2WebSsoAuthenticationFilter.class);
 
         builder.saml2Login(c -> c.authenticationManager(builder.getSharedObject(AuthenticationManager.class)));
     }
 
-    private Filter buildMetadataFilter() {
-        Saml2MetadataResolver metadataResolver = new PartnerNetSaml2MetadataResolver();
+    private Saml2ServiceProviderMetadataFilter buildMetadataFilter() {
+        Saml2MetadataResolver metadataResolver = new PartnerNetSaml2MetadataResolver(signMetadata);
         return new Saml2ServiceProviderMetadataFilter(DEFAULT_ENTITY_ID_PATH, relyingPartyResolver, metadataResolver);
     }
 
-    private AuthenticationProvider buildAuthenticationProvider() {
-        Saml2ResponseProcessor currentResponseProcessor = getResponseProcessor();
+    private AuthenticationProvider buildAuthenticationProvider(
+        ReloadingRelyingPartyRegistrationRepository relyingPartyRegistrationRepository
+    ) {
+        Saml2ReplayCache currentReplayCache = requireNonNullElseGet(replayCache, InMemorySaml2ReplayCache::new);
+        Saml2ResponseProcessor currentResponseProcessor = getResponseProcessor(currentReplayCache);
+        // The checks of the pre-screener must not be stricter than the ones of a custom processor
+        Saml2ResponsePreScreener preScreener = responseProcessor == null
+            ? new Saml2ResponsePreScreener(currentReplayCache)
+            : null;
         Saml2ResponseParser parser = getResponseParser();
+        ParserPool parserPool = getParserPool();
+
+        // Handlers may cache data derived from the registration and the credentials
+        relyingPartyRegistrationRepository.onUpdate(currentResponseProcessor);
+        getCredentialsManager().onUpdate(currentResponseProcessor);
+
+        if (meterRegistry != null) {
+            return postProcess(
+                new InstrumentedPartnerNetSamlAuthenticationProvider(
+                    currentResponseProcessor,
+                    parser,
+                    parserPool,
+                    preScreener,
+                    meterRegistry
+                )
+            );
+        }
+
+        return postProcess(
+            new PartnerNetSamlAuthenticationProvider(currentResponseProcessor, parser, parserPool, preScreener)
+        );
+    }
+
+    private ParserPool getParserPool() {
+        if (parserPoolSize > 0) {
+            BasicParserPool parserPool = Saml2ParserPoolFactory.create(parserPoolSize);
+
+            Saml2ParserPoolFactory.warmUp(parserPool, parserPoolSize);
+
+            return parserPool;
+        }
 
-        return postProcess(new PartnerNetSamlAuthenticationProvider(currentResponseProcessor, parser));
+        return XMLObjectProviderRegistrySupport.getParserPool();
     }
 
     private Saml2ResponseParser getResponseParser() {
@@ -334,15 +596,23 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
         return requireNonNullElseGet(authnRequestCustomizer, PartnerNetSaml2AuthnRequestCustomizer::new);
     }
 
-    private Saml2ResponseProcessor getResponseProcessor() {
-        return requireNonNullElseGet(responseProcessor, Saml2ResponseProcessor::withDefaultHandlers);
+    private Saml2ResponseProcessor getResponseProcessor(Saml2ReplayCache currentReplayCache) {
+        if (responseProcessor != null) {
+            return responseProcessor;
+        }
+
+        if (meterRegistry != null) {
+            return InstrumentedSaml2ResponseProcessor.withDefaultHandlers(meterRegistry, currentReplayCache);
+        }
+
+        return Saml2ResponseProcessor.withDefaultHandlers(currentReplayCache);
     }
 
     private Saml2CredentialsManager getCredentialsManager() {
         return requireNonNull(credentialsManager, "No credentials configured");
     }
 
-    private RelyingPartyRegistrationRepository getRelyingPartyRegistrationRepository(
+    private ReloadingRelyingPartyRegistrationRepository getRelyingPartyRegistrationRepository(
         Saml2CredentialsManager credManager
     ) {
         ReloadingRelyingPartyRegistrationRepository repository = new ReloadingRelyingPartyRegistrationRepository(
@@ -355,6 +625,10 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
             DEFAULT_ENTITY_ID_PATH
         );
 
+        if (metadataCacheDirectory != null) {
+            repository.useMetadataSnapshots(new MetadataSnapshotStore(metadataCacheDirectory));
+        }
+
         if (failOnStartup) {
             requireNonNull(
                 repository.findByRegistrationId(DEFAULT_REGISTRATION_ID),
@@ -362,9 +636,79 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
             );
         }
 
+        if (initializeMetadataInBackground) {
+            repository.initializeInBackground();
+        }
+
         return repository;
     }
 
+    private AuthenticationConverter buildAuthenticationConverter(
+        RelyingPartyRegistrationResolver relyingPartyRegistrationResolver,
+        Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> authenticationRequestRepository
+    ) {
+        PartnerNetSaml2AuthenticationTokenConverter converter = new PartnerNetSaml2AuthenticationTokenConverter(
+            relyingPartyRegistrationResolver
+        );
+
+        converter.setMaxResponseSize(maxResponseSize);
+
+        if (authenticationRequestRepository != null) {
+            converter.setAuthenticationRequestRepository(authenticationRequestRepository);
+        }
+
+        return converter;
+    }
+
+    /**
+     * Like the {@link Saml2LoginConfigurer}, uses the repository from the application context, if there is exactly
+     * one. The filters of Spring Security use it, so the converter must use it, too.
+     *
+     * @return the repository bean, or null to use the session
+     */
+    @SuppressWarnings("unchecked")
+    private static Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> getRequestRepositoryBean(
+        HttpSecurity builder
+    ) {
+        ApplicationContext context = builder.getSharedObject(ApplicationContext.class);
+
+        if (context == null) {
+            return null;
+        }
+
+        return context.getBeanProvider(Saml2AuthenticationRequestRepository.class).getIfUnique();
+    }
+
+    /**
+     * The filters of Spring Security use the repository from the application context, or the session. Both must use
+     * the same repository as the converter.
+     */
+    private static void useAuthenticationRequestRepository(
+        Saml2LoginConfigurer<HttpSecurity> saml2Login,
+        Saml2AuthenticationRequestRepository<AbstractSaml2AuthenticationRequest> authenticationRequestRepository
+    ) {
+        saml2Login.withObjectPostProcessor(
+            new ObjectPostProcessor<Saml2WebSsoAuthenticationRequestFilter>() {
+                @Override
+                public <O extends Saml2WebSsoAuthenticationRequestFilter> O postProcess(O filter) {
+                    filter.setAuthenticationRequestRepository(authenticationRequestRepository);
+
+                    return filter;
+                }
+            }
+        );
+        saml2Login.withObjectPostProcessor(
+            new ObjectPostProcessor<Saml2WebSsoAuthenticationFilter>() {
+                @Override
+                public <O extends Saml2WebSsoAuthenticationFilter> O postProcess(O filter) {
+                    filter.setAuthenticationRequestRepository(authenticationRequestRepository);
+
+                    return filter;
+                }
+            }
+        );
+    }
+
     private Saml2AuthenticationRequestResolver buildRequestResolver(
         RelyingPartyRegistrationResolver relyingPartyRegistrationResolver
     ) {
@@ -372,7 +716,16 @@ public class PartnerNetSaml2Configurer extends AbstractHttpConfigurer<PartnerNet
             relyingPartyRegistrationResolver
         );
 
-        resolver.setAuthnRequestCustomizer(getAuthnRequestCustomizer());
+        Consumer<AuthnRequestContext> requestCustomizer = getAuthnRequestCustomizer();
+
+        if (authenticationRequestKey != null) {
+            resolver.setAuthnRequestCustomizer(context -> {
+                PartnerNetSaml2AuthenticationRequestUtils.useStatelessStorage(context.getRequest());
+                requestCustomizer.accept(context);
+            });
+        } else {
+            resolver.setAuthnRequestCustomizer(requestCustomizer);
+        }
         resolver.setRelayStateResolver(request ->
             Saml2Utils.getRelayState(request) //
                 .map(relayState -> String.format(AUTO_GENERATED_RELAY_STATE_FORMAT, UUID.randomUUID(), relayState)) // pre-append a random string
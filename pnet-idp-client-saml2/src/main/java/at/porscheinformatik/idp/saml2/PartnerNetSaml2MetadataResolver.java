@@ -26,21 +26,50 @@ import org.opensaml.saml.saml2.metadata.Extensions;
 import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml.saml2.metadata.NameIDFormat;
 import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.security.SecurityException;
 import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.BasicX509Credential;
 import org.opensaml.xmlsec.EncryptionConfiguration;
 import org.opensaml.xmlsec.SecurityConfigurationSupport;
 import org.opensaml.xmlsec.SignatureSigningConfiguration;
+import org.opensaml.xmlsec.SignatureSigningParameters;
 import org.opensaml.xmlsec.algorithm.AlgorithmSupport;
+import org.opensaml.xmlsec.keyinfo.impl.X509KeyInfoGeneratorFactory;
 import org.opensaml.xmlsec.signature.KeyInfo;
 import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.SignatureSupport;
 import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
 import org.springframework.security.saml2.provider.service.metadata.Saml2MetadataResolver;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 
+/**
+ * Builds the metadata of the service provider. Optionally signs it with the first signing credential of the
+ * registration, so the identity provider can consume it without a manual exchange.
+ * <p>
+ * Building, and even more so signing, the metadata is expensive. The {@link Saml2ServiceProviderMetadataFilter}
+ * caches the result until the registration or the credentials change.
+ */
 public class PartnerNetSaml2MetadataResolver implements Saml2MetadataResolver {
 
     public static final String SUBJECT_ID_REQUIREMENT_NAME = "urn:oasis:names:tc:SAML:profiles:subject-id:req";
-    private static final Duration METADATA_MAX_VALIDITY = Duration.ofDays(7);
+    public static final Duration METADATA_MAX_VALIDITY = Duration.ofDays(7);
+
+    private final boolean signMetadata;
+
+    public PartnerNetSaml2MetadataResolver() {
+        this(false);
+    }
+
+    /**
+     * @param signMetadata true to sign the metadata with the first signing credential of the registration
+     */
+    public PartnerNetSaml2MetadataResolver(boolean signMetadata) {
+        super();
+        this.signMetadata = signMetadata;
+    }
 
     @Override
     public String resolve(@Nonnull RelyingPartyRegistration relyingPartyRegistration) {
@@ -49,12 +78,47 @@ public class PartnerNetSaml2MetadataResolver implements Saml2MetadataResolver {
         EntityDescriptor entityDescriptor = buildMetadata(relyingPartyRegistration);
 
         try {
+            if (signMetadata) {
+                sign(entityDescriptor, relyingPartyRegistration);
+            }
+
             return XmlUtils.marshall(entityDescriptor);
         } catch (MarshallingException e) {
             throw new Saml2Exception("Error building metadata", e);
         }
     }
 
+    private void sign(EntityDescriptor entityDescriptor, RelyingPartyRegistration relyingPartyRegistration) {
+        Saml2X509Credential credential = relyingPartyRegistration
+            .getSigningX509Credentials()
+            .stream()
+            .findFirst()
+            .orElseThrow(() -> new Saml2Exception("No signing credential available for signing the metadata"));
+        X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
+
+        keyInfoGeneratorFactory.setEmitEntityCertificate(true);
+
+        SignatureSigningParameters parameters = new SignatureSigningParameters();
+
+        parameters.setSigningCredential(
+            new BasicX509Credential(credential.getCertificate(), credential.getPrivateKey())
+        );
+        parameters.setSignatureAlgorithm(
+            "EC".equals(credential.getPrivateKey().getAlgorithm())
+                ? SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256
+                : SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256
+        );
+        parameters.setSignatureReferenceDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+        parameters.setSignatureCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        parameters.setKeyInfoGenerator(keyInfoGeneratorFactory.newInstance());
+
+        try {
+            SignatureSupport.signObject(entityDescriptor, parameters);
+        } catch (SecurityException | MarshallingException | SignatureException e) {
+            throw new Saml2Exception("Error signing metadata", e);
+        }
+    }
+
     private EntityDescriptor buildMetadata(RelyingPartyRegistration relyingPartyRegistration) {
         Instant validUntil = Instant.now().plus(METADATA_MAX_VALIDITY);
 
@@ -11,13 +11,15 @@ import at.porscheinformatik.idp.PartnerNetContractDTO;
 import at.porscheinformatik.idp.PartnerNetFunctionalNumberDTO;
 import at.porscheinformatik.idp.PartnerNetRoleDTO;
 import at.porscheinformatik.idp.PartnerNetUserType;
+import java.io.Serializable;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.stream.Stream;
-import org.apache.commons.lang3.StringUtils;
+import java.util.Map;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.saml2.Saml2Exception;
@@ -28,14 +30,20 @@ import org.springframework.util.Assert;
  */
 public class PartnerNetSaml2ResponseParser extends Saml2ResponseParserBase {
 
-    private final String attributePrefix;
+    private static final String ATTRIBUTE_PREFIX = "https://identity.auto-partner.net/identity/saml2/attributes/";
+
+    /**
+     * Full attribute name to the field of the principal. Built once, so a login does not need to concatenate any
+     * attribute names.
+     */
+    private static final Map<String, PrincipalAttribute> ATTRIBUTES = buildAttributeTable();
+
     private final PartnerNetSaml2AuthoritiesMapper authoritiesMapper;
 
     public PartnerNetSaml2ResponseParser(PartnerNetSaml2AuthoritiesMapper authoritiesMapper) {
         super();
         Assert.notNull(authoritiesMapper, "authoritiesMapper must not be null");
 
-        attributePrefix = "https://identity.auto-partner.net/identity/saml2/attributes/";
         this.authoritiesMapper = authoritiesMapper;
     }
 
@@ -47,296 +55,343 @@ public class PartnerNetSaml2ResponseParser extends Saml2ResponseParserBase {
         return new PartnerNetSaml2Authentication(principal, authorities);
     }
 
+    /**
+     * Walks the attributes once and decodes each known attribute directly into its field. Unknown attributes are
+     * ignored, they are still available to the authorities mapper.
+     */
     private PartnerNetSaml2AuthenticationPrincipal buildPrincipal(Saml2Data data) {
-        String subjectIdentifier = data.getSubjectIdentifier();
-        String relayState = data.getRelayState().orElse(null);
-        String nameId = data.getNameId();
-        AuthnContextClass contextClass = data.getAuthnContextClass();
-
-        String guid = singleString(data, attributeName("guid"));
-        String personnelNumber = singleString(data, attributeName("personnel_number"));
-        Integer legacyId = singleInteger(data, attributeName("person_id"));
-        PartnerNetUserType userType = singleUserType(data, attributeName("user_type"));
-        String academicTitle = singleString(data, attributeName("academic_title"));
-        String academicTitlePostNominal = singleString(data, attributeName("academic_title_post_nominal"));
-        String firstname = singleString(data, attributeName("firstname"));
-        String lastname = singleString(data, attributeName("lastname"));
-        Gender gender = singleGender(data, attributeName("gender"));
-        Locale language = singleLocale(data, attributeName("language"));
-        List<Locale> additionalLanguages = localeList(data, attributeName("additional_languages"));
-        String mailAddress = singleString(data, attributeName("email"));
-        String phoneNumber = singleString(data, attributeName("phone_number"));
-        String tenant = singleString(data, attributeName("tenant"));
-        String costCenter = singleString(data, attributeName("cost_center"));
-        List<PartnerNetFunctionalNumberDTO> functionalNumbers = functionalNumbersList(
-            data,
-            attributeName("functional_numbers")
-        );
-        List<PartnerNetCompanyDTO> employments = employmentList(data, attributeName("employment"));
-        List<PartnerNetCompanyAddressDTO> employmentsAddress = addressList(data, attributeName("employment_address"));
-        List<PartnerNetRoleDTO> roles = roleList(data, attributeName("roles"));
-        List<PartnerNetContractDTO> contracts = contractsList(data, attributeName("employment_contracts"));
-        boolean responsibleUser = singleBoolean(data, attributeName("responsible_user"));
-        String responsibleUserExternalId = singleString(data, attributeName("responsible_user_external_id"));
-        String responsibleUserFirstname = singleString(data, attributeName("responsible_user_firstname"));
-        String responsibleUserLastname = singleString(data, attributeName("responsible_user_lastname"));
-        String responsibleUserEmail = singleString(data, attributeName("responsible_user_email"));
-        String responsibleUserGuid = singleString(data, attributeName("responsible_user_guid"));
-        boolean supportData = singleBoolean(data, attributeName("support_data"));
-        List<PartnerNetCompanyDTO> supportEmployments = employmentList(data, attributeName("support_employment"));
-        List<PartnerNetCompanyAddressDTO> supportEmploymentsAddress = addressList(
-            data,
-            attributeName("support_employment_address")
-        );
-        List<PartnerNetRoleDTO> supportRoles = roleList(data, attributeName("support_roles"));
-        List<PartnerNetContractDTO> supportContracts = contractsList(
-            data,
-            attributeName("support_employment_contracts")
-        );
-        Instant lastUpdate = singleInstant(data, attributeName("lastupdate"));
-        Integer favoriteCompanyId = singleInteger(data, attributeName("preferred_company"));
-        String favoriteBrand = singleString(data, attributeName("preferred_brand"));
-        Collection<Integer> contactCompanyIds = intList(data, attributeName("contact_company"));
-        Collection<Integer> supportContactCompanyIds = intList(data, attributeName("support_contact_company"));
-        Collection<PartnerNetCompanyTypeDTO> companyTypes = companyTypeList(
-            data,
-            attributeName("employment_companytypes")
-        );
-        Collection<PartnerNetCompanyTypeDTO> supportCompanyTypes = companyTypeList(
-            data,
-            attributeName("support_employment_companytypes")
-        );
-
-        return new PartnerNetSaml2AuthenticationPrincipal(
-            subjectIdentifier,
-            relayState,
-            nameId,
-            contextClass,
-            lastUpdate,
-            guid,
-            personnelNumber,
-            legacyId,
-            userType,
-            academicTitle,
-            academicTitlePostNominal,
-            firstname,
-            lastname,
-            gender,
-            language,
-            additionalLanguages,
-            mailAddress,
-            phoneNumber,
-            tenant,
-            costCenter,
-            favoriteCompanyId,
-            favoriteBrand,
-            functionalNumbers,
-            employments,
-            employmentsAddress,
-            roles,
-            contracts,
-            contactCompanyIds,
-            companyTypes,
-            responsibleUser,
-            responsibleUserExternalId,
-            responsibleUserFirstname,
-            responsibleUserLastname,
-            responsibleUserEmail,
-            responsibleUserGuid,
-            supportData,
-            supportEmployments,
-            supportEmploymentsAddress,
-            supportRoles,
-            supportContracts,
-            supportContactCompanyIds,
-            supportCompanyTypes
-        );
-    }
-
-    private List<Locale> localeList(Saml2Data data, String attributeName) {
-        Stream<String> languageTags = stringStream(data, attributeName);
-
-        return languageTags //
-            .map(Locale::forLanguageTag)
-            .toList();
-    }
-
-    private List<PartnerNetFunctionalNumberDTO> functionalNumbersList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName)
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String matchcode = entry[1];
-                Integer number = Integer.parseInt(entry[2]);
+        PrincipalBuilder builder = new PrincipalBuilder();
 
-                return new PartnerNetFunctionalNumberDTO(companyId, matchcode, number);
-            })
-            .toList();
-    }
+        for (Map.Entry<String, Serializable> entry : data.getSamlAttributes().entrySet()) {
+            PrincipalAttribute attribute = ATTRIBUTES.get(entry.getKey());
 
-    private List<PartnerNetContractDTO> contractsList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName)
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String brandId = entry[1];
-                String matchcode = entry[2];
-
-                return new PartnerNetContractDTO(companyId, brandId, matchcode);
-            })
-            .toList();
-    }
-
-    private List<PartnerNetRoleDTO> roleList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName)
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String brandId = entry[1];
-                String matchcode = entry[2];
+            if (attribute != null && entry.getValue() != null) {
+                builder.set(attribute, entry.getValue());
+            }
+        }
 
-                return new PartnerNetRoleDTO(companyId, brandId, matchcode);
-            })
-            .toList();
+        return builder.build(data);
     }
 
-    private List<PartnerNetCompanyDTO> employmentList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName)
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String companyNumber = StringUtils.isEmpty(entry[1]) ? null : entry[1];
-                String name = entry[2];
+    private static Map<String, PrincipalAttribute> buildAttributeTable() {
+        PrincipalAttribute[] attributes = PrincipalAttribute.values();
+        Map<String, PrincipalAttribute> table = new HashMap<>(attributes.length * 2);
 
-                return new PartnerNetCompanyDTO(companyId, companyNumber, name);
-            })
-            .toList();
-    }
-
-    private List<PartnerNetCompanyAddressDTO> addressList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName, ";;")
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String street = StringUtils.isEmpty(entry[1]) ? null : entry[1];
-                String postalCode = StringUtils.isEmpty(entry[2]) ? null : entry[2];
-                String locality = StringUtils.isEmpty(entry[3]) ? null : entry[3];
-                String countryCode = StringUtils.isEmpty(entry[4]) ? null : entry[4];
-
-                return new PartnerNetCompanyAddressDTO(companyId, street, postalCode, locality, countryCode);
-            })
-            .toList();
-    }
-
-    private List<PartnerNetCompanyTypeDTO> companyTypeList(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName, ";")
-            .map(entry -> {
-                Integer companyId = Integer.parseInt(entry[0]);
-                String matchcode = entry[1];
+        for (PrincipalAttribute attribute : attributes) {
+            table.put(ATTRIBUTE_PREFIX + attribute.name, attribute);
+        }
 
-                return new PartnerNetCompanyTypeDTO(companyId, matchcode);
-            })
-            .toList();
+        return Collections.unmodifiableMap(table);
     }
 
-    private Collection<Integer> intList(Saml2Data data, String attributeName) {
-        return intStream(data, attributeName).toList();
+    private enum PrincipalAttribute {
+        GUID("guid"),
+        PERSONNEL_NUMBER("personnel_number"),
+        PERSON_ID("person_id"),
+        USER_TYPE("user_type"),
+        ACADEMIC_TITLE("academic_title"),
+        ACADEMIC_TITLE_POST_NOMINAL("academic_title_post_nominal"),
+        FIRSTNAME("firstname"),
+        LASTNAME("lastname"),
+        GENDER("gender"),
+        LANGUAGE("language"),
+        ADDITIONAL_LANGUAGES("additional_languages"),
+        EMAIL("email"),
+        PHONE_NUMBER("phone_number"),
+        TENANT("tenant"),
+        COST_CENTER("cost_center"),
+        FUNCTIONAL_NUMBERS("functional_numbers"),
+        EMPLOYMENT("employment"),
+        EMPLOYMENT_ADDRESS("employment_address"),
+        ROLES("roles"),
+        EMPLOYMENT_CONTRACTS("employment_contracts"),
+        RESPONSIBLE_USER("responsible_user"),
+        RESPONSIBLE_USER_EXTERNAL_ID("responsible_user_external_id"),
+        RESPONSIBLE_USER_FIRSTNAME("responsible_user_firstname"),
+        RESPONSIBLE_USER_LASTNAME("responsible_user_lastname"),
+        RESPONSIBLE_USER_EMAIL("responsible_user_email"),
+        RESPONSIBLE_USER_GUID("responsible_user_guid"),
+        SUPPORT_DATA("support_data"),
+        SUPPORT_EMPLOYMENT("support_employment"),
+        SUPPORT_EMPLOYMENT_ADDRESS("support_employment_address"),
+        SUPPORT_ROLES("support_roles"),
+        SUPPORT_EMPLOYMENT_CONTRACTS("support_employment_contracts"),
+        LASTUPDATE("lastupdate"),
+        PREFERRED_COMPANY("preferred_company"),
+        PREFERRED_BRAND("preferred_brand"),
+        CONTACT_COMPANY("contact_company"),
+        SUPPORT_CONTACT_COMPANY("support_contact_company"),
+        EMPLOYMENT_COMPANYTYPES("employment_companytypes"),
+        SUPPORT_EMPLOYMENT_COMPANYTYPES("support_employment_companytypes");
+
+        private final String name;
+
+        PrincipalAttribute(String name) {
+            this.name = name;
+        }
     }
 
-    private Locale singleLocale(Saml2Data data, String attributeName) {
-        String languageTag = singleString(data, attributeName);
+    /**
+     * Collects the fields of the principal. Fields of attributes, that are not part of the response, keep the same
+     * defaults as before: null for single values, empty lists for multi valued attributes.
+     */
+    private static final class PrincipalBuilder {
+
+        private String guid;
+        private String personnelNumber;
+        private Integer legacyId;
+        private PartnerNetUserType userType;
+        private String academicTitle;
+        private String academicTitlePostNominal;
+        private String firstname;
+        private String lastname;
+        private Gender gender = Gender.UNKNOWN;
+        private Locale language;
+        private List<Locale> additionalLanguages = List.of();
+        private String mailAddress;
+        private String phoneNumber;
+        private String tenant;
+        private String costCenter;
+        private List<PartnerNetFunctionalNumberDTO> functionalNumbers = List.of();
+        private List<PartnerNetCompanyDTO> employments = List.of();
+        private List<PartnerNetCompanyAddressDTO> employmentsAddress = List.of();
+        private List<PartnerNetRoleDTO> roles = List.of();
+        private List<PartnerNetContractDTO> contracts = List.of();
+        private boolean responsibleUser;
+        private String responsibleUserExternalId;
+        private String responsibleUserFirstname;
+        private String responsibleUserLastname;
+        private String responsibleUserEmail;
+        private String responsibleUserGuid;
+        private boolean supportData;
+        private List<PartnerNetCompanyDTO> supportEmployments = List.of();
+        private List<PartnerNetCompanyAddressDTO> supportEmploymentsAddress = List.of();
+        private List<PartnerNetRoleDTO> supportRoles = List.of();
+        private List<PartnerNetContractDTO> supportContracts = List.of();
+        private Instant lastUpdate;
+        private Integer favoriteCompanyId;
+        private String favoriteBrand;
+        private Collection<Integer> contactCompanyIds = List.of();
+        private Collection<Integer> supportContactCompanyIds = List.of();
+        private Collection<PartnerNetCompanyTypeDTO> companyTypes = List.of();
+        private Collection<PartnerNetCompanyTypeDTO> supportCompanyTypes = List.of();
+
+        void set(PrincipalAttribute attribute, Serializable value) {
+            switch (attribute) {
+                case GUID -> guid = (String) value;
+                case PERSONNEL_NUMBER -> personnelNumber = (String) value;
+                case PERSON_ID -> legacyId = (Integer) value;
+                case USER_TYPE -> userType = PartnerNetUserType.valueOfOrUnknown((String) value);
+                case ACADEMIC_TITLE -> academicTitle = (String) value;
+                case ACADEMIC_TITLE_POST_NOMINAL -> academicTitlePostNominal = (String) value;
+                case FIRSTNAME -> firstname = (String) value;
+                case LASTNAME -> lastname = (String) value;
+                case GENDER -> gender = Gender.fromCode((Integer) value);
+                case LANGUAGE -> language = Locale.forLanguageTag((String) value);
+                case ADDITIONAL_LANGUAGES -> additionalLanguages = localeList(value);
+                case EMAIL -> mailAddress = (String) value;
+                case PHONE_NUMBER -> phoneNumber = (String) value;
+                case TENANT -> tenant = (String) value;
+                case COST_CENTER -> costCenter = (String) value;
+                case FUNCTIONAL_NUMBERS -> functionalNumbers = functionalNumbersList(value);
+                case EMPLOYMENT -> employments = employmentList(value);
+                case EMPLOYMENT_ADDRESS -> employmentsAddress = addressList(value);
+                case ROLES -> roles = roleList(value);
+                case EMPLOYMENT_CONTRACTS -> contracts = contractsList(value);
+                case RESPONSIBLE_USER -> responsibleUser = Boolean.TRUE.equals(value);
+                case RESPONSIBLE_USER_EXTERNAL_ID -> responsibleUserExternalId = (String) value;
+                case RESPONSIBLE_USER_FIRSTNAME -> responsibleUserFirstname = (String) value;
+                case RESPONSIBLE_USER_LASTNAME -> responsibleUserLastname = (String) value;
+                case RESPONSIBLE_USER_EMAIL -> responsibleUserEmail = (String) value;
+                case RESPONSIBLE_USER_GUID -> responsibleUserGuid = (String) value;
+                case SUPPORT_DATA -> supportData = Boolean.TRUE.equals(value);
+                case SUPPORT_EMPLOYMENT -> supportEmployments = employmentList(value);
+                case SUPPORT_EMPLOYMENT_ADDRESS -> supportEmploymentsAddress = addressList(value);
+                case SUPPORT_ROLES -> supportRoles = roleList(value);
+                case SUPPORT_EMPLOYMENT_CONTRACTS -> supportContracts = contractsList(value);
+                case LASTUPDATE -> lastUpdate = (Instant) value;
+                case PREFERRED_COMPANY -> favoriteCompanyId = (Integer) value;
+                case PREFERRED_BRAND -> favoriteBrand = (String) value;
+                case CONTACT_COMPANY -> contactCompanyIds = intList(value);
+                case SUPPORT_CONTACT_COMPANY -> supportContactCompanyIds = intList(value);
+                case EMPLOYMENT_COMPANYTYPES -> companyTypes = companyTypeList(value);
+                case SUPPORT_EMPLOYMENT_COMPANYTYPES -> supportCompanyTypes = companyTypeList(value);
+                default -> throw new IllegalArgumentException("Unsupported attribute " + attribute);
+            }
+        }
 
-        if (languageTag == null) {
-            return null;
+        PartnerNetSaml2AuthenticationPrincipal build(Saml2Data data) {
+            return new PartnerNetSaml2AuthenticationPrincipal(
+                data.getSubjectIdentifier(),
+                data.getRelayState().orElse(null),
+                data.getNameId(),
+                data.getAuthnContextClass(),
+                lastUpdate,
+                guid,
+                personnelNumber,
+                legacyId,
+                userType,
+                academicTitle,
+                academicTitlePostNominal,
+                firstname,
+                lastname,
+                gender,
+                language,
+                additionalLanguages,
+                mailAddress,
+                phoneNumber,
+                tenant,
+                costCenter,
+                favoriteCompanyId,
+                favoriteBrand,
+                functionalNumbers,
+                employments,
+                employmentsAddress,
+                roles,
+                contracts,
+                contactCompanyIds,
+                companyTypes,
+                responsibleUser,
+                responsibleUserExternalId,
+                responsibleUserFirstname,
+                responsibleUserLastname,
+                responsibleUserEmail,
+                responsibleUserGuid,
+                supportData,
+                supportEmployments,
+                supportEmploymentsAddress,
+                supportRoles,
+                supportContracts,
+                supportContactCompanyIds,
+                supportCompanyTypes
+            );
         }
 
-        return Locale.forLanguageTag(languageTag);
-    }
+        private static List<Locale> localeList(Serializable value) {
+            List<String> languageTags = values(value);
+            List<Locale> locales = new ArrayList<>(languageTags.size());
 
-    private Gender singleGender(Saml2Data data, String attributeName) {
-        Integer value = singleInteger(data, attributeName);
+            for (String languageTag : languageTags) {
+                locales.add(Locale.forLanguageTag(languageTag));
+            }
 
-        if (value == null) {
-            return Gender.UNKNOWN;
+            return Collections.unmodifiableList(locales);
         }
 
-        return Gender.fromCode(value);
-    }
+        private static List<PartnerNetFunctionalNumberDTO> functionalNumbersList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetFunctionalNumberDTO> result = new ArrayList<>(entries.size());
 
-    private PartnerNetUserType singleUserType(Saml2Data data, String attributeName) {
-        String value = singleString(data, attributeName);
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";");
+                int companyId = tokenizer.nextInt();
+                String matchcode = tokenizer.nextString();
+                int number = tokenizer.nextInt();
 
-        if (value == null) {
-            return null;
-        }
+                result.add(new PartnerNetFunctionalNumberDTO(companyId, matchcode, number));
+            }
 
-        return PartnerNetUserType.valueOfOrUnknown(value);
-    }
+            return Collections.unmodifiableList(result);
+        }
 
-    private Stream<String[]> entryStream(Saml2Data data, String attributeName) {
-        return entryStream(data, attributeName, ";");
-    }
+        private static List<PartnerNetContractDTO> contractsList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetContractDTO> result = new ArrayList<>(entries.size());
 
-    private Stream<String[]> entryStream(Saml2Data data, String attributeName, String separator) {
-        return stringStream(data, attributeName).map(entry -> entry.split(separator)); //
-    }
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";");
+                int companyId = tokenizer.nextInt();
+                String brandId = tokenizer.nextString();
+                String matchcode = tokenizer.nextString();
 
-    private Stream<String> stringStream(Saml2Data data, String attributeName) {
-        Object value = data.getAttribute(attributeName);
+                result.add(new PartnerNetContractDTO(companyId, brandId, matchcode));
+            }
 
-        if (value == null) {
-            return Stream.empty();
+            return Collections.unmodifiableList(result);
         }
 
-        List<String> stringEntries = new ArrayList<>();
+        private static List<PartnerNetRoleDTO> roleList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetRoleDTO> result = new ArrayList<>(entries.size());
+
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";");
+                int companyId = tokenizer.nextInt();
+                String brandId = tokenizer.nextString();
+                String matchcode = tokenizer.nextString();
 
-        if (value instanceof String stringValue) {
-            stringEntries.add(stringValue);
-        } else {
-            @SuppressWarnings("unchecked")
-            List<String> valueList = (List<String>) value;
+                result.add(new PartnerNetRoleDTO(companyId, brandId, matchcode));
+            }
 
-            stringEntries.addAll(valueList);
+            return Collections.unmodifiableList(result);
         }
 
-        return stringEntries.stream(); //
-    }
+        private static List<PartnerNetCompanyDTO> employmentList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetCompanyDTO> result = new ArrayList<>(entries.size());
+
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";");
+                int companyId = tokenizer.nextInt();
+                String companyNumber = tokenizer.nextStringOrNull();
+                String name = tokenizer.nextString();
 
-    private Stream<Integer> intStream(Saml2Data data, String attributeName) {
-        Object value = data.getAttribute(attributeName);
+                result.add(new PartnerNetCompanyDTO(companyId, companyNumber, name));
+            }
 
-        if (value == null) {
-            return Stream.empty();
+            return Collections.unmodifiableList(result);
         }
 
-        List<Integer> entries = new ArrayList<>();
+        private static List<PartnerNetCompanyAddressDTO> addressList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetCompanyAddressDTO> result = new ArrayList<>(entries.size());
 
-        if (value instanceof Integer integerValue) {
-            entries.add(integerValue);
-        } else {
-            @SuppressWarnings("unchecked")
-            List<Integer> valueList = (List<Integer>) value;
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";;");
+                int companyId = tokenizer.nextInt();
+                String street = tokenizer.nextStringOrNull();
+                String postalCode = tokenizer.nextStringOrNull();
+                String locality = tokenizer.nextStringOrNull();
+                String countryCode = tokenizer.nextStringOrNull();
 
-            entries.addAll(valueList);
+                result.add(new PartnerNetCompanyAddressDTO(companyId, street, postalCode, locality, countryCode));
+            }
+
+            return Collections.unmodifiableList(result);
         }
 
-        return entries.stream(); //
-    }
+        private static List<PartnerNetCompanyTypeDTO> companyTypeList(Serializable value) {
+            List<String> entries = values(value);
+            List<PartnerNetCompanyTypeDTO> result = new ArrayList<>(entries.size());
 
-    private String singleString(Saml2Data data, String attributeName) {
-        return data.getAttribute(attributeName);
-    }
+            for (String entry : entries) {
+                AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, ";");
+                int companyId = tokenizer.nextInt();
+                String matchcode = tokenizer.nextString();
 
-    private Integer singleInteger(Saml2Data data, String attributeName) {
-        return data.getAttribute(attributeName);
-    }
+                result.add(new PartnerNetCompanyTypeDTO(companyId, matchcode));
+            }
 
-    private boolean singleBoolean(Saml2Data data, String attributeName) {
-        Boolean booleanValue = data.getAttribute(attributeName);
+            return Collections.unmodifiableList(result);
+        }
 
-        return Boolean.TRUE.equals(booleanValue);
-    }
+        private static Collection<Integer> intList(Serializable value) {
+            List<Integer> values = values(value);
 
-    private Instant singleInstant(Saml2Data data, String attributeName) {
-        return data.getAttribute(attributeName);
-    }
+            return Collections.unmodifiableList(new ArrayList<>(values));
+        }
 
-    private String attributeName(String name) {
-        return attributePrefix + name;
+        /**
+         * Single valued attributes are stored as value, multi valued attributes as list. The list is not copied, the
+         * callers only read it.
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> List<T> values(Serializable value) {
+            if (value instanceof List<?> list) {
+                return (List<T>) list;
+            }
+
+            return Collections.singletonList((T) value);
+        }
     }
 }
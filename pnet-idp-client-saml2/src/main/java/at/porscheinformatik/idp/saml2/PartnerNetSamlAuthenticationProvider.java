@@ -22,20 +22,58 @@ public class PartnerNetSamlAuthenticationProvider implements AuthenticationProvi
     private final Saml2ResponseProcessor processor;
     private final ParserPool parserPool;
     private final Saml2ResponseParser parser;
+    private final Saml2ResponsePreScreener preScreener;
 
     public PartnerNetSamlAuthenticationProvider(Saml2ResponseProcessor processor, Saml2ResponseParser parser) {
+        this(processor, parser, XMLObjectProviderRegistrySupport.getParserPool());
+    }
+
+    /**
+     * Creates a provider, that parses all responses, without screening them first.
+     *
+     * @param processor the processor validating the responses
+     * @param parser the parser creating the authentication
+     * @param parserPool the pool used to parse the XML of the responses
+     * @see Saml2ParserPoolFactory
+     */
+    public PartnerNetSamlAuthenticationProvider(
+        Saml2ResponseProcessor processor,
+        Saml2ResponseParser parser,
+        ParserPool parserPool
+    ) {
+        this(processor, parser, parserPool, null);
+    }
+
+    /**
+     * @param processor the processor validating the responses
+     * @param parser the parser creating the authentication
+     * @param parserPool the pool used to parse the XML of the responses
+     * @param preScreener rejects invalid responses before they are parsed, may be null to parse all responses. Its
+     *            checks must not be stricter than the ones of the processor.
+     */
+    public PartnerNetSamlAuthenticationProvider(
+        Saml2ResponseProcessor processor,
+        Saml2ResponseParser parser,
+        ParserPool parserPool,
+        Saml2ResponsePreScreener preScreener
+    ) {
         super();
         this.processor = processor;
         this.parser = parser;
-        parserPool = XMLObjectProviderRegistrySupport.getParserPool();
+        this.parserPool = parserPool;
+        this.preScreener = preScreener;
     }
 
     @Override
     public Authentication authenticate(Authentication authentication) throws AuthenticationException {
         try {
             Saml2AuthenticationToken token = (Saml2AuthenticationToken) authentication;
-            String serializedResponse = token.getSaml2Response();
-            Response response = parse(serializedResponse);
+
+            if (preScreener != null) {
+                preScreen(token);
+            }
+
+            Response response = parse(token);
             processor.process(token, response);
 
             HttpRequestContext details = HttpRequestContext.fromToken(token);
@@ -57,8 +95,33 @@ public class PartnerNetSamlAuthenticationProvider implements AuthenticationProvi
         }
     }
 
-    private Response parse(String serializedResponse) throws XMLParserException, UnmarshallingException {
-        return (Response) XMLObjectSupport.unmarshallFromReader(parserPool, new StringReader(serializedResponse));
+    /**
+     * Rejects responses, that can not be valid, without parsing them. Only called, if there is a pre-screener.
+     * Subclasses may override it to add instrumentation.
+     *
+     * @param token the token containing the response
+     * @throws Saml2AuthenticationException if the response is not valid
+     * @see Saml2ResponsePreScreener
+     */
+    protected void preScreen(Saml2AuthenticationToken token) throws Saml2AuthenticationException {
+        preScreener.screen(token);
+    }
+
+    /**
+     * Parses the XML of the response. Subclasses may override it to add instrumentation. The response of a
+     * {@link PartnerNetSaml2AuthenticationToken} is decoded while parsing.
+     *
+     * @param token the token containing the response
+     * @return the response
+     * @throws XMLParserException if the XML is not valid
+     * @throws UnmarshallingException if the XML is not a SAML response
+     */
+    protected Response parse(Saml2AuthenticationToken token) throws XMLParserException, UnmarshallingException {
+        if (token instanceof PartnerNetSaml2AuthenticationToken encodedToken) {
+            return (Response) XMLObjectSupport.unmarshallFromInputStream(parserPool, encodedToken.openResponse());
+        }
+
+        return (Response) XMLObjectSupport.unmarshallFromReader(parserPool, new StringReader(token.getSaml2Response()));
     }
 
     @Override
@@ -2,19 +2,37 @@ package at.porscheinformatik.idp.saml2;
 
 import static org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration.*;
 
+import at.porscheinformatik.idp.MetadataSnapshotStore;
+import at.porscheinformatik.idp.MetadataSnapshotStore.Snapshot;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
 import org.apache.http.client.HttpClient;
 import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.metadata.resolver.impl.HTTPMetadataResolver;
+import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.Endpoint;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
@@ -22,6 +40,8 @@ import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.security.credential.UsageType;
 import org.opensaml.xmlsec.keyinfo.KeyInfoSupport;
 import org.opensaml.xmlsec.signature.KeyInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.security.saml2.Saml2Exception;
 import org.springframework.security.saml2.core.Saml2X509Credential;
 import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
@@ -31,13 +51,27 @@ import org.springframework.security.saml2.provider.service.registration.Saml2Mes
 
 public class ReloadingRelyingPartyRegistrationRepository implements RelyingPartyRegistrationRepository {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ReloadingRelyingPartyRegistrationRepository.class);
+    private static final Duration INITIALIZATION_RETRY_DELAY = Duration.ofMinutes(1);
+
+    /**
+     * Used for snapshots of metadata without a cacheDuration.
+     */
+    private static final Duration DEFAULT_SNAPSHOT_MAX_AGE = Duration.ofDays(7);
+
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
     private final String registrationId;
+    private final String idpMetadataUrl;
     private final Saml2CredentialsManager credentialsManager;
     private final RelyingPartyRegistrationMetadataResolver resolver;
     private final HttpClientFactory clientFactory;
     private final String loginProcessingUrl;
     private final String entityIdPath;
 
+    private volatile boolean backgroundInitialization;
+    private boolean backgroundInitializationStarted;
+    private ScheduledExecutorService backgroundExecutor;
+
     public ReloadingRelyingPartyRegistrationRepository(
         String registrationId,
         String idpEntityId,
@@ -49,6 +83,7 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
     ) {
         super();
         this.registrationId = registrationId;
+        this.idpMetadataUrl = idpMetadataUrl;
         this.credentialsManager = credentialsManager;
         this.clientFactory = clientFactory;
         this.loginProcessingUrl = loginProcessingUrl;
@@ -62,10 +97,9 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
             return null;
         }
 
-        if (!resolver.isInitialized()) {
+        if (!backgroundInitialization && !resolver.isInitialized()) {
             try {
-                resolver.initialize();
-                resolver.prepareRegistration();
+                resolver.initializeRegistration();
             } catch (ComponentInitializationException | ResolverException e) {
                 throw new Saml2Exception("Error initializing Metadata. Trying again in a few minutes", e);
             }
@@ -74,6 +108,156 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
         return resolver.getRegistration();
     }
 
+    /**
+     * @return the current registration, or null if the metadata was not loaded yet. Never loads the metadata.
+     */
+    public RelyingPartyRegistration getLoadedRegistration() {
+        return resolver.registration;
+    }
+
+    /**
+     * Refreshes the metadata right away, instead of waiting for the next scheduled refresh.
+     *
+     * @throws ResolverException if the metadata could not be loaded
+     */
+    void refresh() throws ResolverException {
+        resolver.refresh();
+    }
+
+    /**
+     * Loads the metadata of the identity provider on a background thread, instead of the first request that needs it.
+     * Request threads never load or parse the metadata after this call. Until the metadata was loaded once, they fail
+     * immediately. Afterwards the metadata is refreshed in the background, and the last valid registration is used until
+     * a refresh succeeds.
+     */
+    public synchronized void initializeInBackground() {
+        backgroundInitialization = true;
+
+        if (backgroundInitializationStarted || resolver.isInitialized()) {
+            return;
+        }
+
+        backgroundInitializationStarted = true;
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml2-metadata-" + registrationId);
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        backgroundExecutor = executor;
+        executor.execute(() -> initializeResolver(executor));
+    }
+
+    /**
+     * Stops the background initialization, if the metadata was not loaded yet, and the scheduled refresh of the
+     * metadata. The repository can not be used afterwards.
+     */
+    public synchronized void destroy() {
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdownNow();
+            backgroundExecutor = null;
+        }
+
+        resolver.destroy();
+    }
+
+    /**
+     * Keeps a snapshot of the last valid metadata in the store. If the store already contains a usable snapshot, it is
+     * used right away and the metadata is loaded in the background, as if {@link #initializeInBackground()} was called.
+     * This way the application starts without waiting for the identity provider, even if it is not available. Must be
+     * called before the first registration is requested.
+     *
+     * @param snapshotStore the store to keep the snapshot in
+     */
+    public void useMetadataSnapshots(MetadataSnapshotStore snapshotStore) {
+        String name = MetadataSnapshotStore.fileName("saml2-" + registrationId, idpMetadataUrl, ".xml");
+
+        resolver.setSnapshotWriter(
+            new SnapshotWriter() {
+                @Override
+                public void write(byte[] metadata) {
+                    try {
+                        snapshotStore.write(name, metadata);
+                    } catch (IOException e) {
+                        LOG.warn("Error writing metadata snapshot {} to {}", name, snapshotStore.getDirectory(), e);
+                    }
+                }
+
+                @Override
+                public void touch() {
+                    try {
+                        snapshotStore.touch(name);
+                    } catch (IOException e) {
+                        LOG.warn("Error touching metadata snapshot {} in {}", name, snapshotStore.getDirectory(), e);
+                    }
+                }
+            }
+        );
+
+        try {
+            Optional<Snapshot> snapshot = snapshotStore.read(name);
+
+            if (snapshot.isPresent() && resolver.loadSnapshot(snapshot.get())) {
+                LOG.info("Using metadata snapshot {} until the metadata for {} is loaded", name, registrationId);
+
+                initializeInBackground();
+            }
+        } catch (IOException | XMLParserException | UnmarshallingException | RuntimeException e) {
+            LOG.warn("Ignoring metadata snapshot {} in {}", name, snapshotStore.getDirectory(), e);
+        }
+    }
+
+    private void initializeResolver(ScheduledExecutorService executor) {
+        try {
+            resolver.initializeRegistration();
+
+            LOG.info("Metadata for {} loaded", registrationId);
+
+            // From now on the resolver refreshes the metadata on its own timer
+            executor.shutdown();
+        } catch (ComponentInitializationException | ResolverException | RuntimeException e) {
+            if (executor.isShutdown()) {
+                // The repository was destroyed before the metadata was loaded
+                return;
+            }
+
+            LOG.warn(
+                "Error initializing metadata for {}. Trying again in {}",
+                registrationId,
+                INITIALIZATION_RETRY_DELAY,
+                e
+            );
+
+            executor.schedule(
+                () -> initializeResolver(executor),
+                INITIALIZATION_RETRY_DELAY.toMillis(),
+                TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Registers a listener that is called each time a new {@link RelyingPartyRegistration} was prepared, because the
+     * metadata of the identity provider or the credentials changed.
+     *
+     * @param listener the listener to call on updates
+     */
+    public void onUpdate(UpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    private void callListeners() {
+        for (UpdateListener listener : listeners) {
+            try {
+                listener.onUpdate();
+            } catch (Exception e) {
+                LOG.error("Error calling update listener", e);
+            }
+        }
+    }
+
     private RelyingPartyRegistrationMetadataResolver buildResolver(String entityId, String metadataUrl) {
         try {
             return new RelyingPartyRegistrationMetadataResolver(
@@ -83,13 +267,23 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
                 registrationId,
                 loginProcessingUrl,
                 entityIdPath,
-                credentialsManager
+                credentialsManager,
+                this::callListeners
             );
         } catch (ResolverException e) {
             throw new Saml2Exception("Error initializing metadata resolver", e);
         }
     }
 
+    /**
+     * Writes the snapshot, when the metadata changed, and marks it as up to date, when the metadata did not change.
+     */
+    private interface SnapshotWriter {
+        void write(byte[] metadata);
+
+        void touch();
+    }
+
     private static class RelyingPartyRegistrationMetadataResolver extends HTTPMetadataResolver {
 
         private final String idpEntityId;
@@ -97,8 +291,16 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
         private final Saml2CredentialsManager credentialsManager;
         private final String loginProcessingUrl;
         private final String entityIdPath;
+        private final Runnable updateCallback;
 
-        private RelyingPartyRegistration registration;
+        private volatile RelyingPartyRegistration registration;
+        private volatile EntityDescriptor snapshotDescriptor;
+        private volatile SnapshotWriter snapshotWriter;
+        private byte[] fetchedMetadata;
+        private byte[] fetchedDigest;
+        private byte[] metadataDigest;
+        private boolean preparationPending;
+        private boolean metadataUnchanged;
 
         public RelyingPartyRegistrationMetadataResolver(
             HttpClient client,
@@ -107,7 +309,8 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
             String registrationId,
             String loginProcessingUrl,
             String entityIdPath,
-            Saml2CredentialsManager credentialsManager
+            Saml2CredentialsManager credentialsManager,
+            Runnable updateCallback
         ) throws ResolverException {
             super(client, idpMetadataUrl);
             this.idpEntityId = idpEntityId;
@@ -115,13 +318,17 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
             this.loginProcessingUrl = loginProcessingUrl;
             this.entityIdPath = entityIdPath;
             this.credentialsManager = credentialsManager;
+            this.updateCallback = updateCallback;
 
             this.credentialsManager.onUpdate(() -> {
-                    if (!isInitialized()) {
-                        initialize();
+                    if (isInitialized()) {
+                        prepareRegistration();
+                    } else if (snapshotDescriptor != null) {
+                        // The metadata is loaded in the background. Until then, the snapshot needs the new credentials
+                        prepareSnapshotRegistration();
+                    } else {
+                        initializeRegistration();
                     }
-
-                    prepareRegistration();
                 });
 
             setRequireValidMetadata(true);
@@ -137,19 +344,245 @@ public class ReloadingRelyingPartyRegistrationRepository implements RelyingParty
             return registration;
         }
 
+        /**
+         * Initializes the resolver and prepares the first registration, if not done already. Only one thread does the
+         * work, the others wait for it.
+         *
+         * @throws ComponentInitializationException if the metadata could not be loaded
+         * @throws ResolverException if the registration could not be prepared
+         */
+        synchronized void initializeRegistration() throws ComponentInitializationException, ResolverException {
+            if (isInitialized()) {
+                return;
+            }
+
+            initialize();
+            prepareRegistration();
+        }
+
+        void setSnapshotWriter(SnapshotWriter snapshotWriter) {
+            this.snapshotWriter = snapshotWriter;
+        }
+
+        /**
+         * Uses the snapshot until the metadata was loaded from the identity provider. Snapshots that are not valid
+         * anymore, or older than the cache duration of the metadata, are ignored.
+         *
+         * @param snapshot the snapshot to use
+         * @return true if the snapshot is used
+         * @throws XMLParserException if the snapshot is not well-formed
+         * @throws UnmarshallingException if the snapshot is not valid metadata
+         */
+        synchronized boolean loadSnapshot(Snapshot snapshot) throws XMLParserException, UnmarshallingException {
+            if (registration != null) {
+                return false;
+            }
+
+            XMLObject metadata = XMLObjectSupport.unmarshallFromInputStream(
+                getParserPool(),
+                new ByteArrayInputStream(snapshot.getContent())
+            );
+            EntityDescriptor descriptor = findSnapshotDescriptor(metadata);
+
+            if (descriptor == null) {
+                LOG.info("Metadata snapshot {} does not contain {}", snapshot.getFile(), idpEntityId);
+                return false;
+            }
+
+            if (!isStillValid(descriptor)) {
+                LOG.info("Metadata snapshot {} is not valid anymore", snapshot.getFile());
+                return false;
+            }
+
+            Duration maxAge = Objects.requireNonNullElse(descriptor.getCacheDuration(), DEFAULT_SNAPSHOT_MAX_AGE);
+
+            if (snapshot.isOlderThan(maxAge)) {
+                LOG.info("Metadata snapshot {} is older than {}", snapshot.getFile(), maxAge);
+                return false;
+            }
+
+            snapshotDescriptor = descriptor;
+            prepareSnapshotRegistration();
+
+            return true;
+        }
+
+        private synchronized void prepareSnapshotRegistration() {
+            EntityDescriptor descriptor = snapshotDescriptor;
+
+            if (descriptor == null || isInitialized()) {
+                return;
+            }
+
+            registration = parseDescriptor(descriptor);
+
+            updateCallback.run();
+        }
+
+        private EntityDescriptor findSnapshotDescriptor(XMLObject metadata) {
+            if (metadata instanceof EntityDescriptor descriptor) {
+                return Objects.equals(descriptor.getEntityID(), idpEntityId) ? descriptor : null;
+            }
+
+            if (metadata instanceof EntitiesDescriptor descriptors) {
+                for (EntitiesDescriptor child : descriptors.getEntitiesDescriptors()) {
+                    EntityDescriptor descriptor = findSnapshotDescriptor(child);
+
+                    if (descriptor != null) {
+                        return descriptor;
+                    }
+                }
+
+                for (EntityDescriptor child : descriptors.getEntityDescriptors()) {
+                    if (Objects.equals(child.getEntityID(), idpEntityId)) {
+                        return child;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        private static boolean isStillValid(EntityDescriptor descriptor) {
+            for (XMLObject object = descriptor; object != null; object = object.getParent()) {
+                if (object instanceof TimeBoundSAMLObject timeBound && !timeBound.isValid()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Remembers the raw metadata, so we can write it to the snapshot once it was processed successfully. Returns
+         * null, if the metadata did not change since the last fetch. The super class sends conditional requests and
+         * returns null on a 304 response. Identity providers without ETag or Last-Modified headers send the whole
+         * document each time, so the digest is compared, too. Unchanged metadata is not parsed again, but the snapshot
+         * is marked as up to date.
+         */
+        @Override
+        protected byte[] fetchMetadata() throws ResolverException {
+            byte[] metadata = super.fetchMetadata();
+
+            metadataUnchanged = metadata == null;
+
+            if (metadata == null) {
+                return null;
+            }
+
+            byte[] digest = digest(metadata);
+
+            if (MessageDigest.isEqual(digest, metadataDigest)) {
+                LOG.debug("Metadata for {} did not change", registrationId);
+
+                metadataUnchanged = true;
+
+                return null;
+            }
+
+            fetchedMetadata = metadata;
+            fetchedDigest = digest;
+
+            return metadata;
+        }
+
         @Override
         public synchronized void refresh() throws ResolverException {
-            super.refresh();
+            try {
+                super.refresh();
+            } catch (ResolverException e) {
+                discardFetchedMetadata();
 
-            if (isInitialized()) {
+                throw e;
+            }
+
+            if (!isInitialized()) {
+                // The first refresh during initialization
+                return;
+            }
+
+            if (fetchedDigest == null && !preparationPending) {
+                // The metadata did not change since it was prepared, so the snapshot is still up to date
+                if (metadataUnchanged) {
+                    touchSnapshot();
+                }
+
+                return;
+            }
+
+            try {
                 prepareRegistration();
+            } catch (ResolverException | RuntimeException e) {
+                // The refresh task of OpenSAML does not log resolver exceptions
+                LOG.error(
+                    "Error preparing the registration for {}. Trying again with the next refresh",
+                    registrationId,
+                    e
+                );
+
+                // Do not kill the refresh timer. The previous registration stays in place.
+                throw new ResolverException("Error preparing the registration from the refreshed metadata", e);
+            }
+        }
+
+        private void touchSnapshot() {
+            SnapshotWriter writer = snapshotWriter;
+
+            if (writer != null) {
+                writer.touch();
             }
         }
 
-        void prepareRegistration() throws ResolverException {
+        private void discardFetchedMetadata() {
+            fetchedMetadata = null;
+            fetchedDigest = null;
+        }
+
+        private static byte[] digest(byte[] metadata) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(metadata);
+            } catch (NoSuchAlgorithmException e) {
+                throw new Saml2Exception("SHA-256 not supported", e);
+            }
+        }
+
+        /**
+         * Builds a new registration and publishes it. Request threads keep using the previous registration until this
+         * method finished successfully. Called on credential updates, too, even if the metadata did not change.
+         *
+         * @throws ResolverException if the metadata does not contain the identity provider
+         */
+        synchronized void prepareRegistration() throws ResolverException {
+            // Until it succeeds, the next refresh tries again, even if the identity provider answers with 304
+            preparationPending = true;
+
             EntityDescriptor descriptor = resolveSingle(new CriteriaSet(new EntityIdCriterion(idpEntityId)));
 
+            if (descriptor == null) {
+                throw new ResolverException(String.format("No EntityDescriptor for %s found", idpEntityId));
+            }
+
             registration = parseDescriptor(descriptor);
+            snapshotDescriptor = null;
+            preparationPending = false;
+
+            updateCallback.run();
+            writeSnapshot();
+        }
+
+        private void writeSnapshot() {
+            byte[] metadata = fetchedMetadata;
+            SnapshotWriter writer = snapshotWriter;
+
+            if (fetchedDigest != null) {
+                metadataDigest = fetchedDigest;
+            }
+
+            discardFetchedMetadata();
+
+            if (metadata != null && writer != null) {
+                writer.write(metadata);
+            }
         }
 
         private RelyingPartyRegistration parseDescriptor(EntityDescriptor descriptor) {
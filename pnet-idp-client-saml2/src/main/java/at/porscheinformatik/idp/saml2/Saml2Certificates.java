@@ -0,0 +1,101 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+/**
+ * Collects the certificates of the service provider and the verification certificates of the identity provider, for
+ * monitoring their expiry.
+ */
+final class Saml2Certificates {
+
+    static final String SERVICE_PROVIDER = "service_provider";
+    static final String IDENTITY_PROVIDER = "identity_provider";
+
+    private static final double SECONDS_PER_DAY = Duration.ofDays(1).toSeconds();
+
+    private Saml2Certificates() {
+        super();
+    }
+
+    /**
+     * @param credentialsManager the manager with the credentials of the service provider
+     * @param repository the repository with the metadata of the identity provider, may be null
+     * @return the certificates, without the ones of the identity provider if its metadata is not loaded yet
+     */
+    static List<Entry> collect(
+        Saml2CredentialsManager credentialsManager,
+        ReloadingRelyingPartyRegistrationRepository repository
+    ) {
+        List<Entry> entries = new ArrayList<>();
+
+        for (Saml2X509Credential credential : credentialsManager.getCredentials()) {
+            for (Saml2X509CredentialType type : credential.getCredentialTypes()) {
+                entries.add(new Entry(SERVICE_PROVIDER, type, credential.getCertificate()));
+            }
+        }
+
+        RelyingPartyRegistration registration = repository != null ? repository.getLoadedRegistration() : null;
+
+        if (registration != null) {
+            for (Saml2X509Credential credential : registration
+                .getAssertingPartyDetails()
+                .getVerificationX509Credentials()) {
+                entries.add(
+                    new Entry(IDENTITY_PROVIDER, Saml2X509CredentialType.VERIFICATION, credential.getCertificate())
+                );
+            }
+        }
+
+        return entries;
+    }
+
+    static final class Entry {
+
+        private final String party;
+        private final Saml2X509CredentialType type;
+        private final X509Certificate certificate;
+
+        Entry(String party, Saml2X509CredentialType type, X509Certificate certificate) {
+            super();
+            this.party = party;
+            this.type = type;
+            this.certificate = certificate;
+        }
+
+        String getParty() {
+            return party;
+        }
+
+        String getUsage() {
+            return type.name().toLowerCase(Locale.ROOT);
+        }
+
+        X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        String getSerialNumber() {
+            return certificate.getSerialNumber().toString(16);
+        }
+
+        Instant getNotAfter() {
+            return certificate.getNotAfter().toInstant();
+        }
+
+        /**
+         * @param now the current time
+         * @return the days until the certificate expires, negative if it is expired already
+         */
+        double daysToExpiry(Instant now) {
+            return Duration.between(now, getNotAfter()).toSeconds() / SECONDS_PER_DAY;
+        }
+    }
+}
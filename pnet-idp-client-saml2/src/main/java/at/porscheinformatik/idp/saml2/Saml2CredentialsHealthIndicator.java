@@ -0,0 +1,90 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+
+/**
+ * Reports the state of the SAML certificates:
+ * <ul>
+ * <li>{@link Status#DOWN} if there is no decryption credential, logins fail</li>
+ * <li>{@link #DEGRADED} if a certificate expires within the warning threshold, or is expired already</li>
+ * <li>{@link Status#UP} otherwise</li>
+ * </ul>
+ * The details contain the expiry of each certificate. Spring Boot ignores unknown states, when aggregating the health.
+ * Add <code>degraded</code> to <code>management.endpoint.health.status.order</code>, between
+ * <code>out-of-service</code> and <code>up</code>, to see it in the overall health, e.g. of the readiness group.
+ * Unknown states are mapped to HTTP 200, so the instance keeps receiving traffic.
+ * <p>
+ * Pass the indicator to {@link PartnerNetSaml2Configurer#credentialsHealthIndicator(Saml2CredentialsHealthIndicator)}
+ * to include the verification certificates of the identity provider.
+ */
+public class Saml2CredentialsHealthIndicator implements HealthIndicator {
+
+    public static final Status DEGRADED = new Status("DEGRADED", "Certificates expire soon");
+
+    private final Saml2CredentialsManager credentialsManager;
+
+    private Duration warningThreshold = DefaultSaml2CredentialsManager.EXPIRY_WARNING_THRESHOLD;
+    private volatile ReloadingRelyingPartyRegistrationRepository repository;
+
+    public Saml2CredentialsHealthIndicator(Saml2CredentialsManager credentialsManager) {
+        super();
+        this.credentialsManager = credentialsManager;
+    }
+
+    /**
+     * @param warningThreshold certificates expiring within this time degrade the health. Defaults to 60 days.
+     */
+    public void setWarningThreshold(Duration warningThreshold) {
+        this.warningThreshold = warningThreshold;
+    }
+
+    /**
+     * Includes the verification certificates of the identity provider.
+     *
+     * @param repository the repository with the metadata of the identity provider
+     */
+    public void monitor(ReloadingRelyingPartyRegistrationRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public Health health() {
+        Instant now = Instant.now();
+        Instant warningLimit = now.plus(warningThreshold);
+        List<Saml2Certificates.Entry> certificates = Saml2Certificates.collect(credentialsManager, repository);
+        Health.Builder builder;
+
+        if (credentialsManager.getCredentials(Saml2X509CredentialType.DECRYPTION).isEmpty()) {
+            builder = Health.down().withDetail("error", "No valid decryption credential");
+        } else if (certificates.stream().anyMatch(entry -> entry.getNotAfter().isBefore(warningLimit))) {
+            builder = Health.status(DEGRADED);
+        } else {
+            builder = Health.up();
+        }
+
+        return builder
+            .withDetail("certificates", certificates.stream().map(entry -> details(entry, now)).toList())
+            .build();
+    }
+
+    private static Map<String, Object> details(Saml2Certificates.Entry entry, Instant now) {
+        Map<String, Object> details = new LinkedHashMap<>();
+
+        details.put("party", entry.getParty());
+        details.put("usage", entry.getUsage());
+        details.put("subject", entry.getCertificate().getSubjectX500Principal().getName());
+        details.put("serialNumber", entry.getSerialNumber());
+        details.put("notAfter", entry.getNotAfter().toString());
+        details.put("daysToExpiry", (long) Math.floor(entry.daysToExpiry(now)));
+
+        return details;
+    }
+}
@@ -0,0 +1,80 @@
+package at.porscheinformatik.idp.saml2;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Records the days until each certificate expires, so expiring keys show up on dashboards and alerts long before the
+ * logins fail.
+ * <p>
+ * Records the following meters:
+ * <ul>
+ * <li><code>pnet.saml2.credentials.expiry</code>: gauge in days, negative for expired certificates. Tagged with the
+ * party (service_provider or identity_provider), the usage (signing, decryption or verification) and the serial number
+ * of the certificate</li>
+ * </ul>
+ * The certificates are collected again each time the credentials or the metadata of the identity provider change.
+ */
+public class Saml2CredentialsMetrics implements UpdateListener {
+
+    public static final String EXPIRY_GAUGE = "pnet.saml2.credentials.expiry";
+
+    private final Saml2CredentialsManager credentialsManager;
+    private final ReloadingRelyingPartyRegistrationRepository repository;
+    private final MultiGauge expiry;
+
+    /**
+     * Keeps the certificates referenced, the gauges may only hold weak references to them.
+     */
+    private volatile List<Saml2Certificates.Entry> certificates = List.of();
+
+    /**
+     * @param meterRegistry the registry to record the metrics in
+     * @param credentialsManager the manager with the credentials of the service provider
+     * @param repository the repository with the metadata of the identity provider, may be null
+     */
+    public Saml2CredentialsMetrics(
+        MeterRegistry meterRegistry,
+        Saml2CredentialsManager credentialsManager,
+        ReloadingRelyingPartyRegistrationRepository repository
+    ) {
+        super();
+        this.credentialsManager = credentialsManager;
+        this.repository = repository;
+
+        expiry = MultiGauge.builder(EXPIRY_GAUGE)
+            .description("The days until the certificate expires")
+            .baseUnit("days")
+            .register(meterRegistry);
+
+        onUpdate();
+    }
+
+    @Override
+    public void onUpdate() {
+        List<Saml2Certificates.Entry> newCertificates = Saml2Certificates.collect(credentialsManager, repository);
+
+        expiry.register(
+            newCertificates
+                .stream()
+                .<MultiGauge.Row<?>>map(entry ->
+                    MultiGauge.Row.of(tags(entry), entry, Saml2CredentialsMetrics::daysToExpiry)
+                )
+                .toList(),
+            true
+        );
+
+        certificates = newCertificates;
+    }
+
+    private static double daysToExpiry(Saml2Certificates.Entry entry) {
+        return entry.daysToExpiry(Instant.now());
+    }
+
+    private static Tags tags(Saml2Certificates.Entry entry) {
+        return Tags.of("party", entry.getParty(), "usage", entry.getUsage(), "serial", entry.getSerialNumber());
+    }
+}
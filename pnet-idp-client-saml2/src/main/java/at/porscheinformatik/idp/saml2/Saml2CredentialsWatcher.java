@@ -0,0 +1,299 @@
+package at.porscheinformatik.idp.saml2;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import at.porscheinformatik.idp.saml2.DefaultSaml2CredentialsManager.Saml2CredentialsConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+/**
+ * Reloads the credentials of a {@link DefaultSaml2CredentialsManager} as soon as a keystore changes, instead of
+ * polling the keystores every minute.
+ * <p>
+ * Watches the directories of all keystores, that are files. Symlinks are followed, so the keystore is watched in its
+ * own directory, too. Kubernetes replaces mounted secrets by switching the <code>..data</code> symlink in the mount
+ * directory. Changes to files starting with <code>..</code> trigger a reload, too. Bursts of changes are debounced to
+ * a single reload. If at least one keystore is not a file (e.g. a classpath resource inside a jar), the keystores are
+ * polled, as before.
+ */
+public class Saml2CredentialsWatcher {
+
+    public static final Duration DEFAULT_DEBOUNCE = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofMinutes(1);
+
+    private static final Logger LOG = LoggerFactory.getLogger(Saml2CredentialsWatcher.class);
+    private static final String KUBERNETES_FILE_PREFIX = "..";
+
+    private final DefaultSaml2CredentialsManager credentialsManager;
+    private final Duration debounce;
+    private final Duration pollInterval;
+    private final Supplier<ScheduledExecutorService> schedulerFactory;
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+
+    private volatile Map<Path, Set<Path>> watchedFiles = Collections.emptyMap();
+    private WatchService watchService;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pendingReload;
+
+    public Saml2CredentialsWatcher(DefaultSaml2CredentialsManager credentialsManager) {
+        this(credentialsManager, DEFAULT_DEBOUNCE, DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * @param credentialsManager the manager to reload
+     * @param debounce the time to wait for further changes, before reloading the keystores
+     * @param pollInterval the interval to poll keystores, that are not files
+     */
+    public Saml2CredentialsWatcher(
+        DefaultSaml2CredentialsManager credentialsManager,
+        Duration debounce,
+        Duration pollInterval
+    ) {
+        this(credentialsManager, debounce, pollInterval, Saml2CredentialsWatcher::createScheduler);
+    }
+
+    /**
+     * @param schedulerFactory creates the scheduler for the debounced reloads and the polling on each start. The
+     *            scheduler is shut down on stop.
+     */
+    Saml2CredentialsWatcher(
+        DefaultSaml2CredentialsManager credentialsManager,
+        Duration debounce,
+        Duration pollInterval,
+        Supplier<ScheduledExecutorService> schedulerFactory
+    ) {
+        super();
+        this.credentialsManager = credentialsManager;
+        this.debounce = debounce;
+        this.pollInterval = pollInterval;
+        this.schedulerFactory = schedulerFactory;
+    }
+
+    /**
+     * Starts watching the keystores and disables the polling of the manager. The manager must be initialized already.
+     *
+     * @throws IOException if the watch service could not be created
+     */
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        scheduler = schedulerFactory.get();
+
+        boolean polling = registerDirectories();
+
+        if (polling) {
+            LOG.info("Not all keystores are files. Polling them every {}", pollInterval);
+
+            scheduler.scheduleWithFixedDelay(
+                this::poll,
+                pollInterval.toMillis(),
+                pollInterval.toMillis(),
+                TimeUnit.MILLISECONDS
+            );
+        }
+
+        credentialsManager.setPollingEnabled(false);
+
+        WatchService service = watchService;
+        Thread thread = new Thread(() -> watch(service), "saml2-credentials-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the keystores and enables the polling of the manager again.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing watch service", e);
+        }
+
+        scheduler.shutdownNow();
+        watchKeys.clear();
+        watchService = null;
+        credentialsManager.setPollingEnabled(true);
+    }
+
+    private void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                // Stopped
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            boolean changed = false;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                changed |= event.kind() == OVERFLOW || isWatched(directory, (Path) event.context());
+            }
+
+            // An invalid key means the directory is gone. The directories are registered again on reload
+            key.reset();
+
+            if (changed) {
+                scheduleReload();
+            }
+        }
+    }
+
+    boolean isWatched(Path directory, Path file) {
+        if (file.toString().startsWith(KUBERNETES_FILE_PREFIX)) {
+            return true;
+        }
+
+        return watchedFiles.getOrDefault(directory, Collections.emptySet()).contains(file);
+    }
+
+    /**
+     * Called for each change of a keystore. Reloads the keystores, if there are no further changes within the debounce
+     * time.
+     */
+    synchronized void scheduleReload() {
+        if (watchService == null) {
+            return;
+        }
+
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+
+        try {
+            pendingReload = scheduler.schedule(this::reload, debounce.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Keystore changed, but the reload was not scheduled, the scheduler was shut down", e);
+        }
+    }
+
+    private void reload() {
+        LOG.info("Keystore changed, reloading saml credentials");
+
+        try {
+            credentialsManager.reload();
+        } catch (Exception e) {
+            LOG.error("Error reloading saml credentials", e);
+        }
+
+        // Symlinks may point to other directories now
+        registerDirectories();
+    }
+
+    private void poll() {
+        try {
+            credentialsManager.update();
+        } catch (Exception e) {
+            LOG.error("Error updating saml credentials", e);
+        }
+    }
+
+    /**
+     * @return true if some keystores are not files and must be polled
+     */
+    private synchronized boolean registerDirectories() {
+        if (watchService == null) {
+            return false;
+        }
+
+        Map<Path, Set<Path>> files = new HashMap<>();
+        boolean polling = false;
+
+        for (Saml2CredentialsConfig config : credentialsManager.getConfig()) {
+            Resource location = config.getKeystoreLocation();
+
+            if (!location.isFile()) {
+                polling = true;
+                continue;
+            }
+
+            try {
+                Path file = location.getFile().toPath().toAbsolutePath();
+
+                addFile(files, file);
+                addFile(files, file.toRealPath());
+            } catch (IOException e) {
+                LOG.warn("Keystore {} does not exist right now", location, e);
+            }
+        }
+
+        watchKeys.entrySet().removeIf(entry -> {
+            if (files.containsKey(entry.getKey()) && entry.getValue().isValid()) {
+                return false;
+            }
+
+            entry.getValue().cancel();
+
+            return true;
+        });
+
+        for (Path directory : files.keySet()) {
+            if (watchKeys.containsKey(directory)) {
+                continue;
+            }
+
+            try {
+                watchKeys.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+
+                LOG.debug("Watching {} for keystore changes", directory);
+            } catch (IOException e) {
+                LOG.warn("Error watching {} for keystore changes", directory, e);
+            }
+        }
+
+        watchedFiles = files;
+
+        return polling;
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml2-credentials-reload");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    private static void addFile(Map<Path, Set<Path>> files, Path file) {
+        files.computeIfAbsent(file.getParent(), directory -> new HashSet<>()).add(file.getFileName());
+    }
+}
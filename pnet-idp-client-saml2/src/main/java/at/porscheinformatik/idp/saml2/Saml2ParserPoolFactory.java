@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilder;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.Saml2Exception;
+
+/**
+ * Creates and warms up the {@link ParserPool}s used to parse the SAML responses.
+ * <p>
+ * The first logins after a deployment are slow, because the pool creates its parsers on demand and the classes of the
+ * unmarshallers are loaded on first use. {@link #warmUp(ParserPool, int)} does both at startup.
+ */
+public final class Saml2ParserPoolFactory {
+
+    /**
+     * The same size Spring Security uses for the global parser pool.
+     */
+    public static final int DEFAULT_POOL_SIZE = 50;
+
+    private static final Logger LOG = LoggerFactory.getLogger(Saml2ParserPoolFactory.class);
+
+    /**
+     * A response with the elements of a Partner.Net login, including the Partner.Net extensions registered in the
+     * {@link Saml2Initializer}. The content is never validated, it's only unmarshalled.
+     */
+    static final String WARM_UP_RESPONSE =
+        """
+        <saml2p:Response xmlns:saml2p="urn:oasis:names:tc:SAML:2.0:protocol"
+            xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion"
+            xmlns:xenc="http://www.w3.org/2001/04/xmlenc#"
+            xmlns:xs="http://www.w3.org/2001/XMLSchema"
+            xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+            xmlns:pnet="https://identity.auto-partner.net/identity/saml2"
+            ID="warm-up" InResponseTo="warm-up" Version="2.0" IssueInstant="2020-01-01T00:00:00Z"
+            Destination="https://localhost/saml2/sso/post/pnet">
+            <saml2:Issuer>https://identity.auto-partner.net/identity/saml2</saml2:Issuer>
+            <saml2p:Extensions>
+                <pnet:MaxSessionAge>3600</pnet:MaxSessionAge>
+                <pnet:MaxAgeMfa>3600</pnet:MaxAgeMfa>
+                <pnet:Tenant>AT</pnet:Tenant>
+            </saml2p:Extensions>
+            <saml2p:Status>
+                <saml2p:StatusCode Value="urn:oasis:names:tc:SAML:2.0:status:Success"/>
+            </saml2p:Status>
+            <saml2:EncryptedAssertion>
+                <xenc:EncryptedData Type="http://www.w3.org/2001/04/xmlenc#Element">
+                    <xenc:EncryptionMethod Algorithm="http://www.w3.org/2009/xmlenc11#aes256-gcm"/>
+                    <xenc:CipherData>
+                        <xenc:CipherValue>AAAA</xenc:CipherValue>
+                    </xenc:CipherData>
+                </xenc:EncryptedData>
+            </saml2:EncryptedAssertion>
+            <saml2:Assertion ID="warm-up-assertion" Version="2.0" IssueInstant="2020-01-01T00:00:00Z">
+                <saml2:Issuer>https://identity.auto-partner.net/identity/saml2</saml2:Issuer>
+                <saml2:Subject>
+                    <saml2:NameID Format="urn:oasis:names:tc:SAML:2.0:nameid-format:transient">warm-up</saml2:NameID>
+                    <saml2:SubjectConfirmation Method="urn:oasis:names:tc:SAML:2.0:cm:bearer">
+                        <saml2:SubjectConfirmationData InResponseTo="warm-up" NotOnOrAfter="2020-01-01T00:05:00Z"
+                            Recipient="https://localhost/saml2/sso/post/pnet"/>
+                    </saml2:SubjectConfirmation>
+                </saml2:Subject>
+                <saml2:Conditions NotBefore="2020-01-01T00:00:00Z" NotOnOrAfter="2020-01-01T00:05:00Z">
+                    <saml2:AudienceRestriction>
+                        <saml2:Audience>https://localhost/saml2/pnet</saml2:Audience>
+                    </saml2:AudienceRestriction>
+                </saml2:Conditions>
+                <saml2:AuthnStatement AuthnInstant="2020-01-01T00:00:00Z" SessionIndex="warm-up">
+                    <saml2:AuthnContext>
+                        <saml2:AuthnContextClassRef>
+                            urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport
+                        </saml2:AuthnContextClassRef>
+                    </saml2:AuthnContext>
+                </saml2:AuthnStatement>
+                <saml2:AttributeStatement>
+                    <saml2:Attribute Name="guid">
+                        <saml2:AttributeValue xsi:type="xs:string">warm-up</saml2:AttributeValue>
+                    </saml2:Attribute>
+                    <saml2:Attribute Name="person_id">
+                        <saml2:AttributeValue xsi:type="xs:integer">4711</saml2:AttributeValue>
+                    </saml2:Attribute>
+                    <saml2:Attribute Name="responsible_user">
+                        <saml2:AttributeValue xsi:type="xs:boolean">true</saml2:AttributeValue>
+                    </saml2:Attribute>
+                </saml2:AttributeStatement>
+            </saml2:Assertion>
+        </saml2p:Response>
+        """;
+
+    private Saml2ParserPoolFactory() {
+        super();
+    }
+
+    /**
+     * Creates a pool with the secure defaults of OpenSAML: no doctype declarations, no external entities and no
+     * XInclude.
+     *
+     * @param maxPoolSize the number of idle parsers kept in the pool. If more parsers are needed, new ones are created
+     *            and dropped afterwards. Should match the number of concurrent logins, e.g. the number of Tomcat
+     *            worker threads (<code>server.tomcat.threads.max</code>). With virtual threads, the number of threads
+     *            is unbounded, use the expected peak of concurrent logins instead.
+     * @return the initialized pool
+     * @throws Saml2Exception if the pool could not be initialized
+     */
+    public static BasicParserPool create(int maxPoolSize) throws Saml2Exception {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("The pool size must be at least 1");
+        }
+
+        BasicParserPool parserPool = new BasicParserPool();
+
+        parserPool.setMaxPoolSize(maxPoolSize);
+        parserPool.setNamespaceAware(true);
+        parserPool.setIgnoreComments(true);
+        parserPool.setExpandEntityReferences(false);
+        parserPool.setXincludeAware(false);
+
+        try {
+            parserPool.initialize();
+        } catch (ComponentInitializationException e) {
+            throw new Saml2Exception("Error initializing parser pool", e);
+        }
+
+        return parserPool;
+    }
+
+    /**
+     * Fills the pool with parsers and parses a synthetic response through the registered unmarshallers, so that the
+     * first logins do not pay for creating the parsers and loading the classes.
+     *
+     * @param parserPool the pool to warm up
+     * @param parsers the number of parsers to create, usually the size of the pool
+     * @throws Saml2Exception if the parsers could not be created or the response could not be parsed
+     */
+    public static void warmUp(ParserPool parserPool, int parsers) throws Saml2Exception {
+        long start = System.nanoTime();
+        List<DocumentBuilder> builders = new ArrayList<>(parsers);
+
+        try {
+            for (int i = 0; i < parsers; i++) {
+                builders.add(parserPool.getBuilder());
+            }
+
+            XMLObjectSupport.unmarshallFromReader(parserPool, new StringReader(WARM_UP_RESPONSE));
+        } catch (XMLParserException | UnmarshallingException e) {
+            throw new Saml2Exception("Error warming up parser pool", e);
+        } finally {
+            builders.forEach(parserPool::returnBuilder);
+        }
+
+        LOG.debug("Warmed up parser pool with {} parsers in {} ms", parsers, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,45 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.time.Instant;
+
+/**
+ * Remembers the IDs of processed responses and assertions, to reject them if they are sent again. The
+ * {@link InMemorySaml2ReplayCache} is enough for a single instance. If the application runs on multiple instances
+ * without sticky sessions, implement this interface with a store shared by all instances (e.g. an atomic "set if
+ * absent" with a time to live).
+ */
+@FunctionalInterface
+public interface Saml2ReplayCache {
+    /**
+     * Stores the ID, if it is not known yet. Implementations must do the check and the store atomically. They should
+     * keep the ID at least until it expires, a replay is not detected after the ID was forgotten.
+     * <p>
+     * Bounded implementations may forget IDs earlier. The {@link InMemorySaml2ReplayCache} shortens expirations to its
+     * max retention and drops the IDs expiring next, when it is full. The default handlers reject responses older than
+     * the {@link Saml2Utils#MESSAGE_LIFETIME} plus the {@link Saml2Utils#CLOCK_SKEW} anyway. The defaults of the cache
+     * keep the IDs longer than that, and hold far more IDs than a single instance receives in that time.
+     *
+     * @param id the ID of the response or assertion
+     * @param expiresAt the instant, after which the message is rejected anyway and the ID can be forgotten
+     * @return true if the ID was stored, false if it is already known and the message is a replay
+     */
+    boolean markUsed(String id, Instant expiresAt);
+
+    /**
+     * Looks up the ID without storing it, to reject replayed responses before they are verified (see
+     * {@link Saml2ResponsePreScreener}). Implementations, that can not look up IDs cheaply, keep the default.
+     *
+     * @param id the ID of the response
+     * @return true if the ID is known, false if it is not known or not looked up
+     */
+    default boolean isUsed(String id) {
+        return false;
+    }
+
+    /**
+     * @return a cache, that never knows an ID. Disables the rejection of replayed responses.
+     */
+    static Saml2ReplayCache disabled() {
+        return (id, expiresAt) -> true;
+    }
+}
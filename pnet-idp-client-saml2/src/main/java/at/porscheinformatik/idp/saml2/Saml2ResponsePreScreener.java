@@ -0,0 +1,233 @@
+package at.porscheinformatik.idp.saml2;
+
+import static at.porscheinformatik.idp.saml2.Saml2Utils.*;
+
+import at.porscheinformatik.idp.saml2.HttpRequestContextAwareSaml2AuthenticationDetailsSource.HttpRequestContext;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Objects;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import net.shibboleth.utilities.java.support.net.BasicURLComparator;
+import net.shibboleth.utilities.java.support.net.URIComparator;
+import net.shibboleth.utilities.java.support.net.URIException;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+
+/**
+ * Rejects responses, that can not be valid, before the DOM is built and before the signature is verified and the
+ * assertions are decrypted. It reads the response with StAX only up to the issuer, which is the first child of the
+ * response, so it takes microseconds, independent of the size of the response.
+ * <p>
+ * Checks the relay state, the issuer, the issue instant, the destination and whether the ID is already known to the
+ * replay cache. The message handlers of the {@link Saml2ResponseProcessor} check all of this again on the verified
+ * response, so this is about cost, not about security. The checks are never stricter than the ones of the handlers.
+ * The <code>InResponseTo</code> of the response is not checked, the handlers only check the one of the subject
+ * confirmation.
+ */
+public class Saml2ResponsePreScreener {
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private final Saml2ReplayCache replayCache;
+    private final URIComparator uriComparator = new BasicURLComparator();
+
+    /**
+     * Creates a pre-screener, that does not look for replayed responses.
+     */
+    public Saml2ResponsePreScreener() {
+        this(null);
+    }
+
+    /**
+     * @param replayCache the cache of the {@link Saml2ResponseProcessor}, may be null. Only looked up, never filled.
+     */
+    public Saml2ResponsePreScreener(Saml2ReplayCache replayCache) {
+        super();
+        this.replayCache = replayCache;
+    }
+
+    /**
+     * @param token the token with the response
+     * @throws Saml2AuthenticationException if the response can not be valid
+     */
+    public void screen(Saml2AuthenticationToken token) throws Saml2AuthenticationException {
+        HttpRequestContext details = HttpRequestContext.fromToken(token);
+        HttpServletRequest request = details.getRequest();
+
+        checkRelayState(token.getAuthenticationRequest(), request.getParameter(RELAY_STATE_PARAM));
+
+        ResponseHeader header = readHeader(token);
+
+        if (header.id == null) {
+            throw invalid("Message ID must not be null.");
+        }
+
+        checkIssuer(token, header);
+        checkIssueInstant(header.issueInstant);
+        checkDestination(header.destination, request);
+
+        if (replayCache != null && replayCache.isUsed(header.id)) {
+            throw invalid(String.format("Response %s has already been processed", header.id));
+        }
+    }
+
+    private static void checkRelayState(AbstractSaml2AuthenticationRequest authenticationRequest, String relayState) {
+        if (relayState == null) {
+            throw invalid("Relay state is missing in response.");
+        }
+
+        if (authenticationRequest == null || authenticationRequest.getRelayState() == null) {
+            throw invalid("Requested relay state is missing.");
+        }
+
+        if (!Objects.equals(relayState, authenticationRequest.getRelayState())) {
+            throw invalid("Requested relay state doesn't match relay state in response");
+        }
+    }
+
+    private static void checkIssuer(Saml2AuthenticationToken token, ResponseHeader header) {
+        if (header.issuer == null || header.issuer.isBlank()) {
+            throw invalid("Saml message has no issuer set");
+        }
+
+        if (header.issuerFormat != null && !NameIDType.ENTITY.equals(header.issuerFormat)) {
+            throw invalid("Saml Message has invalid issuer format set " + header.issuerFormat);
+        }
+
+        String entityId = token.getRelyingPartyRegistration().getAssertingPartyMetadata().getEntityId();
+
+        if (!Objects.equals(entityId, header.issuer)) {
+            throw invalid(String.format("Invalid issuer %s", header.issuer));
+        }
+    }
+
+    private static void checkIssueInstant(String value) {
+        if (value == null) {
+            throw invalid("Message has no issue instant");
+        }
+
+        Instant issueInstant;
+
+        try {
+            issueInstant = OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException e) {
+            throw malformed(String.format("Invalid issue instant %s", value), e);
+        }
+
+        Instant now = Instant.now();
+
+        if (issueInstant.isAfter(now.plus(CLOCK_SKEW))) {
+            throw invalid("Message was rejected since issue instant was in the future");
+        }
+
+        if (issueInstant.plus(MESSAGE_LIFETIME).plus(CLOCK_SKEW).isBefore(now)) {
+            throw invalid("Message was rejected due to issue instant expiration");
+        }
+    }
+
+    private void checkDestination(String destination, HttpServletRequest request) {
+        // Only required for signed responses, the CheckEndpointMessageHandler knows whether it is signed
+        if (destination == null || destination.isBlank()) {
+            return;
+        }
+
+        try {
+            if (!uriComparator.compare(destination.trim(), request.getRequestURL().toString())) {
+                throw invalid("SAML message failed received endpoint check");
+            }
+        } catch (URIException e) {
+            throw malformed("Error comparing endpoint URI's", e);
+        }
+    }
+
+    private static ResponseHeader readHeader(Saml2AuthenticationToken token) {
+        try {
+            if (token instanceof PartnerNetSaml2AuthenticationToken encodedToken) {
+                try (InputStream in = encodedToken.openResponse()) {
+                    return readHeader(INPUT_FACTORY.createXMLStreamReader(in));
+                }
+            }
+
+            try (Reader in = new StringReader(token.getSaml2Response())) {
+                return readHeader(INPUT_FACTORY.createXMLStreamReader(in));
+            }
+        } catch (XMLStreamException | IOException e) {
+            throw malformed("Response is not a valid XML document", e);
+        }
+    }
+
+    private static ResponseHeader readHeader(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            // Fails on anything but whitespace, comments and processing instructions, including doctype declarations
+            reader.nextTag();
+
+            if (
+                !SAMLConstants.SAML20P_NS.equals(reader.getNamespaceURI()) || !"Response".equals(reader.getLocalName())
+            ) {
+                throw invalid(String.format("Expected a SAML 2.0 response but got %s", reader.getName()));
+            }
+
+            ResponseHeader header = new ResponseHeader();
+            header.id = reader.getAttributeValue(null, "ID");
+            header.destination = reader.getAttributeValue(null, "Destination");
+            header.issueInstant = reader.getAttributeValue(null, "IssueInstant");
+
+            if (
+                reader.nextTag() == XMLStreamReader.START_ELEMENT &&
+                SAMLConstants.SAML20_NS.equals(reader.getNamespaceURI()) &&
+                "Issuer".equals(reader.getLocalName())
+            ) {
+                header.issuerFormat = reader.getAttributeValue(null, "Format");
+                // OpenSAML trims the text content of elements, too
+                header.issuer = reader.getElementText().trim();
+            }
+
+            return header;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        return factory;
+    }
+
+    private static Saml2AuthenticationException invalid(String message) {
+        return new Saml2AuthenticationException(new Saml2Error(Saml2ErrorCodes.INVALID_RESPONSE, message));
+    }
+
+    private static Saml2AuthenticationException malformed(String message, Exception cause) {
+        return new Saml2AuthenticationException(
+            new Saml2Error(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA, message),
+            cause
+        );
+    }
+
+    private static final class ResponseHeader {
+
+        private String id;
+        private String destination;
+        private String issueInstant;
+        private String issuer;
+        private String issuerFormat;
+    }
+}
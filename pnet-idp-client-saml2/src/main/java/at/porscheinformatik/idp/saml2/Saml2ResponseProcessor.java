@@ -11,6 +11,7 @@ import at.porscheinformatik.idp.saml2.response.CheckAudienceRestrictionMessageHa
 import at.porscheinformatik.idp.saml2.response.CheckEndpointMessageHandler;
 import at.porscheinformatik.idp.saml2.response.CheckIssuerMessageHandler;
 import at.porscheinformatik.idp.saml2.response.CheckRelayStateMessageHandler;
+import at.porscheinformatik.idp.saml2.response.CheckReplayMessageHandler;
 import at.porscheinformatik.idp.saml2.response.CheckSubjectIdentifierMessageHandler;
 import at.porscheinformatik.idp.saml2.response.CheckSubjectMessageHandler;
 import at.porscheinformatik.idp.saml2.response.DecryptAssertionsMessageHandler;
@@ -21,6 +22,7 @@ import at.porscheinformatik.idp.saml2.response.VerifySignatureMessageHandler;
 import at.porscheinformatik.idp.saml2.response.VerifyStatusMessageHandler;
 import jakarta.annotation.PostConstruct;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -38,28 +40,63 @@ import org.springframework.security.saml2.provider.service.authentication.Saml2A
 /**
  * @author Daniel Furtlehner
  */
-public class Saml2ResponseProcessor {
-
+public class Saml2ResponseProcessor implements UpdateListener {
+
+    /**
+     * Replayed responses are rejected with a new {@link InMemorySaml2ReplayCache} for each call, so processors created
+     * by this method do not know the responses of each other. Use {@link #withDefaultHandlers(Saml2ReplayCache)} to
+     * share a cache, or to disable the check with {@link Saml2ReplayCache#disabled()}.
+     *
+     * @return a processor with the default handlers
+     */
     public static Saml2ResponseProcessor withDefaultHandlers() {
+        return new Saml2ResponseProcessor(defaultHandlers());
+    }
+
+    /**
+     * @param replayCache the cache to detect replayed responses with, {@link Saml2ReplayCache#disabled()} to accept
+     *            them
+     * @return a processor with the default handlers
+     */
+    public static Saml2ResponseProcessor withDefaultHandlers(Saml2ReplayCache replayCache) {
+        return new Saml2ResponseProcessor(defaultHandlers(replayCache));
+    }
+
+    /**
+     * @return a new instance of each default handler, in the order they have to be invoked, with a new
+     *         {@link InMemorySaml2ReplayCache} for each call
+     */
+    public static List<MessageHandler> defaultHandlers() {
+        return defaultHandlers(new InMemorySaml2ReplayCache());
+    }
+
+    /**
+     * @param replayCache the cache to detect replayed responses with
+     * @return a new instance of each default handler, in the order they have to be invoked
+     */
+    public static List<MessageHandler> defaultHandlers(Saml2ReplayCache replayCache) {
         MessageLifetimeSecurityHandler lifetimeHandler = new MessageLifetimeSecurityHandler();
         lifetimeHandler.setClockSkew(CLOCK_SKEW);
+        lifetimeHandler.setMessageLifetime(MESSAGE_LIFETIME);
 
         List<MessageHandler> handlers = new ArrayList<>();
+        // Cheap checks first, so invalid responses are rejected before the signature is verified
         handlers.add(lifetimeHandler);
         handlers.add(new ThrowOnMissingIdMessageHandler());
+        handlers.add(new CheckRelayStateMessageHandler());
         handlers.add(new CheckIssuerMessageHandler());
+        handlers.add(new CheckEndpointMessageHandler());
         handlers.add(new VerifySignatureMessageHandler()); // Have to check signature before decryption
         handlers.add(new DecryptAssertionsMessageHandler()); // Decrypt all assertions and add them to the normal assertions
+        handlers.add(new CheckReplayMessageHandler(replayCache)); // Signed responses only, with decrypted assertions
         handlers.add(new VerifyStatusMessageHandler());
         handlers.add(new CheckAssertionStructureMessageHandler());
         handlers.add(new CheckSubjectMessageHandler());
         handlers.add(new CheckAudienceRestrictionMessageHandler());
-        handlers.add(new CheckEndpointMessageHandler());
         handlers.add(new VerifyAuthnInstantMessageHandler());
         handlers.add(new CheckSubjectIdentifierMessageHandler());
         handlers.add(new VerifyAuthenticationStrengthMessageHandler());
-        handlers.add(new CheckRelayStateMessageHandler());
-        return new Saml2ResponseProcessor(handlers);
+        return handlers;
     }
 
     private final List<MessageHandler> handlers = new ArrayList<>();
@@ -72,11 +109,22 @@ public class Saml2ResponseProcessor {
         MessageContext messageContext = buildMessageContext(token, response);
 
         for (MessageHandler handler : handlers) {
-            handler.invoke(messageContext);
+            invokeHandler(handler, messageContext);
         }
     }
 
-    private MessageContext buildMessageContext(Saml2AuthenticationToken token, Response response) {
+    /**
+     * Invokes a single handler. Subclasses may override it to add instrumentation.
+     *
+     * @param handler the handler to invoke
+     * @param messageContext the context of the response
+     * @throws MessageHandlerException if the response is not valid
+     */
+    protected void invokeHandler(MessageHandler handler, MessageContext messageContext) throws MessageHandlerException {
+        handler.invoke(messageContext);
+    }
+
+    MessageContext buildMessageContext(Saml2AuthenticationToken token, Response response) {
         HttpRequestContext details = HttpRequestContext.fromToken(token);
         boolean isPost = Objects.equals("POST", details.getRequest().getMethod());
 
@@ -94,6 +142,22 @@ public class Saml2ResponseProcessor {
         return messageContext;
     }
 
+    /**
+     * Notifies all handlers caching data derived from the relying party registration, that the registration changed.
+     */
+    @Override
+    public void onUpdate() throws Exception {
+        for (MessageHandler handler : handlers) {
+            if (handler instanceof UpdateListener listener) {
+                listener.onUpdate();
+            }
+        }
+    }
+
+    List<MessageHandler> getHandlers() {
+        return Collections.unmodifiableList(handlers);
+    }
+
     @PostConstruct
     public void initialize() throws ComponentInitializationException {
         for (MessageHandler handler : handlers) {
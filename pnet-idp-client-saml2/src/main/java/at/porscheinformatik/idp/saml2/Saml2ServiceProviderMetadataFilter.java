@@ -8,23 +8,56 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
 import org.springframework.security.saml2.provider.service.metadata.Saml2MetadataResolver;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 import org.springframework.security.saml2.provider.service.web.RelyingPartyRegistrationResolver;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 /**
+ * Serves the metadata of the service provider. The serialized metadata is cached per registration, base URL and
+ * certificates, and served with an ETag, so clients can revalidate it with <code>If-None-Match</code>. The cache is
+ * cleared, when the credentials or the registration are updated.
+ *
  * @author Daniel Furtlehner
  */
-public class Saml2ServiceProviderMetadataFilter extends OncePerRequestFilter {
+public class Saml2ServiceProviderMetadataFilter extends OncePerRequestFilter implements UpdateListener {
+
+    /**
+     * Cached metadata is rebuilt after a seventh of its validity. Clients may cache it for the same time, so the
+     * metadata they use is always valid for most of its {@link PartnerNetSaml2MetadataResolver#METADATA_MAX_VALIDITY}.
+     */
+    public static final Duration CACHE_DURATION = PartnerNetSaml2MetadataResolver.METADATA_MAX_VALIDITY.dividedBy(7);
+
+    /**
+     * Each host name, the application is called with, results in its own entry. If there are more, someone is playing
+     * with the host header, and we just start over.
+     */
+    private static final int MAX_CACHED_METADATA = 64;
+
+    private static final String CACHE_CONTROL = CacheControl.maxAge(CACHE_DURATION).cachePublic().getHeaderValue();
 
     private final RequestMatcher requestMatcher;
     private final RelyingPartyRegistrationResolver relyingPartyRegistrationResolver;
     private final Saml2MetadataResolver metadataResolver;
+    private final Map<String, CachedMetadata> cache = new ConcurrentHashMap<>();
 
     public Saml2ServiceProviderMetadataFilter(
         String metadataProcessingUrl,
@@ -55,16 +88,106 @@ public class Saml2ServiceProviderMetadataFilter extends OncePerRequestFilter {
                 return;
             }
 
-            String metadata = metadataResolver.resolve(relyingPartyRegistration);
+            CachedMetadata metadata = getMetadata(relyingPartyRegistration);
+
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+
+            if (new ServletWebRequest(request, response).checkNotModified(metadata.etag)) {
+                return;
+            }
 
             response.setContentType("application/samlmetadata+xml");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
             response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"saml-metadata.xml\"");
-            response.setContentLength(metadata.length());
+            response.setContentLength(metadata.content.length);
 
-            response.getWriter().append(metadata);
-            response.getWriter().flush();
+            response.getOutputStream().write(metadata.content);
+            response.getOutputStream().flush();
         } catch (Exception e) {
             throw new IOException("Error buiding metadata", e);
         }
     }
+
+    @Override
+    public void onUpdate() {
+        cache.clear();
+    }
+
+    private CachedMetadata getMetadata(RelyingPartyRegistration relyingPartyRegistration) {
+        String key = cacheKey(relyingPartyRegistration);
+        Instant now = Instant.now();
+        CachedMetadata metadata = cache.get(key);
+
+        if (metadata != null && now.isBefore(metadata.expiresAt)) {
+            return metadata;
+        }
+
+        if (cache.size() >= MAX_CACHED_METADATA) {
+            cache.clear();
+        }
+
+        byte[] content = metadataResolver.resolve(relyingPartyRegistration).getBytes(StandardCharsets.UTF_8);
+
+        metadata = new CachedMetadata(content, now.plus(CACHE_DURATION));
+        cache.put(key, metadata);
+
+        return metadata;
+    }
+
+    /**
+     * The resolver expands the entity id and the endpoints with the base URL of the request, so they are part of the
+     * key. The certificates are part of the key, too, in case the registration is updated without notifying us.
+     */
+    private static String cacheKey(RelyingPartyRegistration relyingPartyRegistration) {
+        StringBuilder key = new StringBuilder()
+            .append(relyingPartyRegistration.getRegistrationId())
+            .append('|')
+            .append(relyingPartyRegistration.getEntityId())
+            .append('|')
+            .append(relyingPartyRegistration.getAssertionConsumerServiceLocation())
+            .append('|')
+            .append(relyingPartyRegistration.getAssertionConsumerServiceBinding())
+            .append('|')
+            .append(relyingPartyRegistration.getAssertingPartyMetadata().getWantAuthnRequestsSigned());
+
+        for (Saml2X509Credential credential : relyingPartyRegistration.getSigningX509Credentials()) {
+            appendCertificate(key, credential.getCertificate());
+        }
+
+        for (Saml2X509Credential credential : relyingPartyRegistration.getDecryptionX509Credentials()) {
+            appendCertificate(key, credential.getCertificate());
+        }
+
+        return key.toString();
+    }
+
+    private static void appendCertificate(StringBuilder key, X509Certificate certificate) {
+        // The hash code is computed from the encoded certificate once, and then cached by the certificate
+        key.append('|').append(certificate.hashCode());
+    }
+
+    private static final class CachedMetadata {
+
+        private final byte[] content;
+        private final String etag;
+        private final Instant expiresAt;
+
+        CachedMetadata(byte[] content, Instant expiresAt) {
+            super();
+            this.content = content;
+            this.expiresAt = expiresAt;
+
+            etag = etag(content);
+        }
+
+        private static String etag(byte[] content) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+
+                return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + "\"";
+            } catch (NoSuchAlgorithmException e) {
+                throw new Saml2Exception("SHA-256 not supported", e);
+            }
+        }
+    }
 }
@@ -22,6 +22,7 @@ public class Saml2Utils {
     public static final String PAIRWISE_ID_NAME = "urn:oasis:names:tc:SAML:attribute:pairwise-id";
 
     public static final Duration CLOCK_SKEW = Duration.ofMinutes(5);
+    public static final Duration MESSAGE_LIFETIME = Duration.ofMinutes(3);
 
     private static final String AUTHN_REQUEST_ID_ATTR = "poi.saml2.authn_request_id";
     private static final String FORCE_AUTHENTICATION_PARAM = "forceAuthn";
@@ -45,11 +46,13 @@ public class Saml2Utils {
     }
 
     public static void storeAuthnRequestId(HttpServletRequest request, String id) {
-        request.getSession().setAttribute(AUTHN_REQUEST_ID_ATTR, id);
+        PartnerNetSaml2AuthenticationRequestUtils.storeAttribute(request, AUTHN_REQUEST_ID_ATTR, id);
     }
 
     public static Optional<String> retrieveAuthnRequestId(HttpServletRequest request) {
-        return Optional.ofNullable((String) request.getSession().getAttribute(AUTHN_REQUEST_ID_ATTR));
+        return Optional.ofNullable(
+            (String) PartnerNetSaml2AuthenticationRequestUtils.retrieveAttribute(request, AUTHN_REQUEST_ID_ATTR)
+        );
     }
 
     public static UriComponentsBuilder forceAuthentication(UriComponentsBuilder uriComponentsBuilder) {
@@ -0,0 +1,170 @@
+package at.porscheinformatik.idp.saml2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import net.shibboleth.utilities.java.support.httpclient.HttpClientBuilder;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.Saml2Exception;
+
+/**
+ * Holds the client of {@link HttpClientFactory#sharedClient()}. It is built on first use. The users of the client
+ * retain it, and it is closed, when the last one releases it. A client used afterwards is built again.
+ * <p>
+ * The users get a view of the client, that can not be closed. OpenSAML closes the client of a metadata resolver, when
+ * the resolver is destroyed, which must not close the client of the other users.
+ */
+final class SharedHttpClient {
+
+    static final HttpClientFactory FACTORY = SharedHttpClient::get;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedHttpClient.class);
+    private static final int MAX_CONNECTIONS_TOTAL = 20;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    private static HttpClient client;
+    private static HttpClient view;
+    private static int users;
+
+    private SharedHttpClient() {
+        super();
+    }
+
+    static synchronized HttpClient get() throws Saml2Exception {
+        if (client == null) {
+            client = build();
+            view = new NonClosingHttpClient(client);
+        }
+
+        return view;
+    }
+
+    /**
+     * Keeps the client open, until {@link #release()} is called.
+     */
+    static synchronized void retain() {
+        users++;
+    }
+
+    /**
+     * Closes the client and its pooled connections, if there are no other users left.
+     */
+    static synchronized void release() {
+        users = Math.max(users - 1, 0);
+
+        if (users > 0 || client == null) {
+            return;
+        }
+
+        if (client instanceof Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the shared HttpClient", e);
+            }
+        }
+
+        client = null;
+        view = null;
+    }
+
+    private static HttpClient build() throws Saml2Exception {
+        HttpClientBuilder clientBuilder = HttpClientFactory.defaultClientBuilder();
+
+        // The builder closes the connection after each response by default
+        clientBuilder.setConnectionCloseAfterResponse(false);
+        clientBuilder.setMaxConnectionsTotal(MAX_CONNECTIONS_TOTAL);
+        clientBuilder.setMaxConnectionsPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+
+        try {
+            return clientBuilder.buildClient();
+        } catch (Exception e) {
+            throw new Saml2Exception("Error building HttpClient", e);
+        }
+    }
+
+    /**
+     * Delegates to the shared client, but does not implement {@link Closeable}.
+     */
+    private static final class NonClosingHttpClient implements HttpClient {
+
+        private final HttpClient delegate;
+
+        NonClosingHttpClient(HttpClient delegate) {
+            super();
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public HttpParams getParams() {
+            return delegate.getParams();
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public ClientConnectionManager getConnectionManager() {
+            return delegate.getConnectionManager();
+        }
+
+        @Override
+        public HttpResponse execute(HttpUriRequest request) throws IOException {
+            return delegate.execute(request);
+        }
+
+        @Override
+        public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+            return delegate.execute(request, context);
+        }
+
+        @Override
+        public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+            return delegate.execute(target, request);
+        }
+
+        @Override
+        public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            return delegate.execute(target, request, context);
+        }
+
+        @Override
+        public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler)
+            throws IOException {
+            return delegate.execute(request, responseHandler);
+        }
+
+        @Override
+        public <T> T execute(
+            HttpUriRequest request,
+            ResponseHandler<? extends T> responseHandler,
+            HttpContext context
+        ) throws IOException {
+            return delegate.execute(request, responseHandler, context);
+        }
+
+        @Override
+        public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler)
+            throws IOException {
+            return delegate.execute(target, request, responseHandler);
+        }
+
+        @Override
+        public <T> T execute(
+            HttpHost target,
+            HttpRequest request,
+            ResponseHandler<? extends T> responseHandler,
+            HttpContext context
+        ) throws IOException {
+            return delegate.execute(target, request, responseHandler, context);
+        }
+    }
+}
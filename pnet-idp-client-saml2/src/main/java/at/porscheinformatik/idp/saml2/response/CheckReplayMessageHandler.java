@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2.response;
+
+import static at.porscheinformatik.idp.saml2.Saml2Utils.*;
+
+import at.porscheinformatik.idp.saml2.Saml2ReplayCache;
+import java.time.Instant;
+import java.util.Objects;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.handler.MessageHandlerException;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+
+/**
+ * Rejects responses and assertions, that have already been processed. Has to run after the signature is verified,
+ * so forged responses can not fill the cache, and after the assertions are decrypted, to see their IDs.
+ * <p>
+ * The IDs are kept as long as the response or an assertion would be accepted: until the message lifetime or the
+ * latest <code>NotOnOrAfter</code> of the assertions is over, plus the clock skew.
+ */
+public class CheckReplayMessageHandler extends AbstractSimpleMessageHandler {
+
+    private final Saml2ReplayCache replayCache;
+
+    public CheckReplayMessageHandler(Saml2ReplayCache replayCache) {
+        super();
+        this.replayCache = Objects.requireNonNull(replayCache, "Replay cache must not be null");
+    }
+
+    @Override
+    public void invoke(MessageContext messageContext) throws MessageHandlerException {
+        Response response = getResponse(messageContext);
+        Instant expiresAt = getExpiration(response);
+
+        if (!replayCache.markUsed(response.getID(), expiresAt)) {
+            throw new MessageHandlerException(
+                String.format("Response %s has already been processed", response.getID())
+            );
+        }
+
+        for (Assertion assertion : response.getAssertions()) {
+            // Missing IDs are reported by the structure check
+            if (assertion.getID() != null && !replayCache.markUsed(assertion.getID(), expiresAt)) {
+                throw new MessageHandlerException(
+                    String.format("Assertion %s has already been processed", assertion.getID())
+                );
+            }
+        }
+    }
+
+    private static Instant getExpiration(Response response) {
+        Instant issueInstant = response.getIssueInstant() != null ? response.getIssueInstant() : Instant.now();
+        Instant expiration = issueInstant.plus(MESSAGE_LIFETIME);
+
+        for (Assertion assertion : response.getAssertions()) {
+            if (assertion.getConditions() != null) {
+                expiration = latest(expiration, assertion.getConditions().getNotOnOrAfter());
+            }
+
+            if (assertion.getSubject() != null) {
+                for (SubjectConfirmation confirmation : assertion.getSubject().getSubjectConfirmations()) {
+                    if (confirmation.getSubjectConfirmationData() != null) {
+                        expiration = latest(expiration, confirmation.getSubjectConfirmationData().getNotOnOrAfter());
+                    }
+                }
+            }
+        }
+
+        return expiration.plus(CLOCK_SKEW);
+    }
+
+    private static Instant latest(Instant expiration, Instant notOnOrAfter) {
+        return notOnOrAfter != null && notOnOrAfter.isAfter(expiration) ? notOnOrAfter : expiration;
+    }
+}
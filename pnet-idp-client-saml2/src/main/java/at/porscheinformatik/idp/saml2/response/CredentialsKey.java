@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2.response;
+
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Identifies a collection of credentials by the identity of its elements. The relying party registration gets copied
+ * for each request to resolve the URL templates, but the credentials are carried over as they are. They only get
+ * replaced when the metadata or the credentials are reloaded.
+ */
+final class CredentialsKey {
+
+    private final Object[] credentials;
+    private final String discriminator;
+    private final int hashCode;
+
+    /**
+     * @param credentials the credentials
+     * @param discriminator an additional value the cached data depends on, may be null
+     */
+    CredentialsKey(Collection<?> credentials, String discriminator) {
+        super();
+        this.credentials = credentials.toArray();
+        this.discriminator = discriminator;
+
+        int result = Objects.hashCode(discriminator);
+
+        for (Object credential : this.credentials) {
+            result = 31 * result + System.identityHashCode(credential);
+        }
+
+        hashCode = result;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof CredentialsKey other)) {
+            return false;
+        }
+
+        if (hashCode != other.hashCode || credentials.length != other.credentials.length) {
+            return false;
+        }
+
+        for (int i = 0; i < credentials.length; i++) {
+            if (credentials[i] != other.credentials[i]) {
+                return false;
+            }
+        }
+
+        return Objects.equals(discriminator, other.discriminator);
+    }
+}
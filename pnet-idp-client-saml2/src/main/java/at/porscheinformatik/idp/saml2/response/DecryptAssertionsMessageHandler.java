@@ -3,9 +3,15 @@
  */
 package at.porscheinformatik.idp.saml2.response;
 
+import at.porscheinformatik.idp.saml2.UpdateListener;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.handler.MessageHandlerException;
@@ -33,7 +39,17 @@ import org.springframework.security.saml2.provider.service.registration.RelyingP
 /**
  * @author Daniel Furtlehner
  */
-public class DecryptAssertionsMessageHandler extends AbstractSuccessResponseMessageHandler {
+public class DecryptAssertionsMessageHandler extends AbstractSuccessResponseMessageHandler implements UpdateListener {
+
+    /**
+     * There is only one set of decryption credentials at a time. But if nobody notifies us about updates, we do not
+     * want to collect outdated contexts forever.
+     */
+    private static final int MAX_CACHED_CONTEXTS = 16;
+
+    static final int MAX_POOLED_DECRYPTERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private final Map<CredentialsKey, DecryptionContext> decryptionContexts = new ConcurrentHashMap<>();
 
     @Override
     protected void doInvoke(Response response, MessageContext messageContext) throws MessageHandlerException {
@@ -43,27 +59,63 @@ public class DecryptAssertionsMessageHandler extends AbstractSuccessResponseMess
             return;
         }
 
-        List<Assertion> assertionsToAdd = new ArrayList<>();
         RelyingPartyRegistration relyingPartyRegistration = getAuthenticationToken(
             messageContext
         ).getRelyingPartyRegistration();
         Collection<Saml2X509Credential> credentials = relyingPartyRegistration.getDecryptionX509Credentials();
         String entityId = relyingPartyRegistration.getEntityId();
 
-        Decrypter decrypter = buildDecrypter(entityId, credentials);
+        response.getAssertions().addAll(decrypt(entityId, credentials, encryptedAssertions));
+    }
+
+    List<Assertion> decrypt(
+        String entityId,
+        Collection<Saml2X509Credential> credentials,
+        List<EncryptedAssertion> encryptedAssertions
+    ) throws MessageHandlerException {
+        List<Assertion> assertions = new ArrayList<>();
+        DecryptionContext context = getDecryptionContext(entityId, credentials);
+        Decrypter decrypter = context.borrowDecrypter();
 
-        for (EncryptedAssertion encryptedAssertion : encryptedAssertions) {
-            try {
-                assertionsToAdd.add(decrypter.decrypt(encryptedAssertion));
-            } catch (DecryptionException e) {
-                throw new MessageHandlerException("Error decrypting EncryptedAssertions", e);
+        try {
+            for (EncryptedAssertion encryptedAssertion : encryptedAssertions) {
+                try {
+                    assertions.add(decrypter.decrypt(encryptedAssertion));
+                } catch (DecryptionException e) {
+                    throw new MessageHandlerException("Error decrypting EncryptedAssertions", e);
+                }
             }
+        } finally {
+            context.returnDecrypter(decrypter);
+        }
+
+        return assertions;
+    }
+
+    /**
+     * Drops the cached decryption contexts. Called when the credentials or the registration changed.
+     */
+    @Override
+    public void onUpdate() {
+        decryptionContexts.clear();
+    }
+
+    DecryptionContext getDecryptionContext(String entityId, Collection<Saml2X509Credential> credentials) {
+        CredentialsKey key = new CredentialsKey(credentials, entityId);
+        DecryptionContext context = decryptionContexts.get(key);
+
+        if (context != null) {
+            return context;
+        }
+
+        if (decryptionContexts.size() >= MAX_CACHED_CONTEXTS) {
+            decryptionContexts.clear();
         }
 
-        response.getAssertions().addAll(assertionsToAdd);
+        return decryptionContexts.computeIfAbsent(key, k -> buildDecryptionContext(entityId, credentials));
     }
 
-    private Decrypter buildDecrypter(String entityId, Collection<Saml2X509Credential> credentials) {
+    private DecryptionContext buildDecryptionContext(String entityId, Collection<Saml2X509Credential> credentials) {
         List<Credential> samlCredentials = credentials
             .stream()
             .map(key -> CredentialSupport.getSimpleCredential(key.getCertificate(), key.getPrivateKey()))
@@ -87,6 +139,46 @@ public class DecryptAssertionsMessageHandler extends AbstractSuccessResponseMess
             entityId
         );
 
-        return new Decrypter(null, keyResolver, encryptedKeyResolver);
+        return new DecryptionContext(keyResolver, encryptedKeyResolver);
+    }
+
+    /**
+     * The resolvers are immutable and can be shared. Each decrypter creates its own parser pool, so building one is
+     * expensive. We keep a few of them around, but never use one from multiple threads at the same time.
+     */
+    static final class DecryptionContext {
+
+        private final KeyInfoCredentialResolver keyResolver;
+        private final EncryptedKeyResolver encryptedKeyResolver;
+        private final Queue<Decrypter> idleDecrypters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        DecryptionContext(KeyInfoCredentialResolver keyResolver, EncryptedKeyResolver encryptedKeyResolver) {
+            super();
+            this.keyResolver = keyResolver;
+            this.encryptedKeyResolver = encryptedKeyResolver;
+        }
+
+        Decrypter borrowDecrypter() {
+            Decrypter decrypter = idleDecrypters.poll();
+
+            if (decrypter == null) {
+                return new Decrypter(null, keyResolver, encryptedKeyResolver);
+            }
+
+            idleCount.decrementAndGet();
+
+            return decrypter;
+        }
+
+        void returnDecrypter(Decrypter decrypter) {
+            if (idleCount.incrementAndGet() > MAX_POOLED_DECRYPTERS) {
+                idleCount.decrementAndGet();
+
+                return;
+            }
+
+            idleDecrypters.offer(decrypter);
+        }
     }
 }
@@ -3,9 +3,12 @@
  */
 package at.porscheinformatik.idp.saml2.response;
 
+import at.porscheinformatik.idp.saml2.UpdateListener;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
@@ -34,11 +37,21 @@ import org.springframework.security.saml2.core.Saml2X509Credential;
 /**
  * @author Daniel Furtlehner
  */
-public class VerifySignatureMessageHandler extends AbstractSimpleMessageHandler {
+public class VerifySignatureMessageHandler extends AbstractSimpleMessageHandler implements UpdateListener {
 
     private static final SAMLSignatureProfileValidator SIGNATURE_PROFILE_VALIDATOR =
         new SAMLSignatureProfileValidator();
 
+    /**
+     * There is only one set of verification credentials at a time. But if nobody notifies us about updates, we do not
+     * want to collect outdated trust engines forever.
+     */
+    static final int MAX_CACHED_TRUST_ENGINES = 16;
+
+    private final Map<CredentialsKey, SignatureTrustEngine> trustEngines = new ConcurrentHashMap<>();
+
+    private volatile SignatureValidationParameters validationParameters;
+
     @Override
     public void invoke(MessageContext messageContext) throws MessageHandlerException {
         Response response = getResponse(messageContext);
@@ -86,10 +99,10 @@ public class VerifySignatureMessageHandler extends AbstractSimpleMessageHandler
         throws SignatureException {
         SIGNATURE_PROFILE_VALIDATOR.validate(signable.getSignature());
 
-        SignatureTrustEngine trustEngine = buildTrustEngine(credentials);
+        SignatureTrustEngine trustEngine = getTrustEngine(credentials);
 
         CriteriaSet trustBasisCriteria = new CriteriaSet();
-        trustBasisCriteria.add(new SignatureValidationParametersCriterion(buildSignatureValidationParameters()));
+        trustBasisCriteria.add(new SignatureValidationParametersCriterion(getSignatureValidationParameters()));
 
         try {
             if (!trustEngine.validate(signable.getSignature(), trustBasisCriteria)) {
@@ -100,6 +113,43 @@ public class VerifySignatureMessageHandler extends AbstractSimpleMessageHandler
         }
     }
 
+    /**
+     * Drops the cached trust engines. Called when the metadata of the identity provider was reloaded.
+     */
+    @Override
+    public void onUpdate() {
+        trustEngines.clear();
+        validationParameters = null;
+    }
+
+    @Nonnull
+    SignatureTrustEngine getTrustEngine(Collection<Saml2X509Credential> credentials) {
+        CredentialsKey key = new CredentialsKey(credentials, null);
+        SignatureTrustEngine trustEngine = trustEngines.get(key);
+
+        if (trustEngine != null) {
+            return trustEngine;
+        }
+
+        if (trustEngines.size() >= MAX_CACHED_TRUST_ENGINES) {
+            trustEngines.clear();
+        }
+
+        return trustEngines.computeIfAbsent(key, k -> buildTrustEngine(credentials));
+    }
+
+    @Nonnull
+    private SignatureValidationParameters getSignatureValidationParameters() {
+        SignatureValidationParameters params = validationParameters;
+
+        if (params == null) {
+            params = buildSignatureValidationParameters();
+            validationParameters = params;
+        }
+
+        return params;
+    }
+
     @Nonnull
     private SignatureTrustEngine buildTrustEngine(Collection<Saml2X509Credential> credentials) {
         List<Credential> samlCredentials = credentials //
@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.Saml2Exception;
+
+class AttributeEntryTokenizerTest {
+
+    private static final int RUNS = 20_000;
+    private static final char[] ALPHABET = { '0', '1', '7', '9', '-', '+', ';', ';', ';', 'a', 'Z', ' ', 'ö' };
+    private static final String[] SEPARATORS = { ";", ";;" };
+
+    @Test
+    void testEntries() {
+        AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer("1000;;Autohaus", ";");
+
+        assertThat(tokenizer.nextInt(), equalTo(1000));
+        assertThat(tokenizer.nextStringOrNull(), nullValue());
+        assertThat(tokenizer.nextString(), equalTo("Autohaus"));
+        assertThrows(Saml2Exception.class, tokenizer::nextString);
+
+        tokenizer = new AttributeEntryTokenizer("-42;;Street;;;;Salzburg;;AT", ";;");
+
+        assertThat(tokenizer.nextInt(), equalTo(-42));
+        assertThat(tokenizer.nextString(), equalTo("Street"));
+        assertThat(tokenizer.nextStringOrNull(), nullValue());
+        assertThat(tokenizer.nextString(), equalTo("Salzburg"));
+        assertThat(tokenizer.nextString(), equalTo("AT"));
+        assertThrows(Saml2Exception.class, tokenizer::nextString);
+    }
+
+    @Test
+    void testTrailingEmptyFieldsDoNotExist() {
+        AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer("1000;V;;", ";");
+
+        assertThat(tokenizer.nextInt(), equalTo(1000));
+        assertThat(tokenizer.nextString(), equalTo("V"));
+        assertThrows(Saml2Exception.class, tokenizer::nextString);
+    }
+
+    @Test
+    void testLargeAndInvalidNumbers() {
+        assertThat(new AttributeEntryTokenizer(Integer.MAX_VALUE + ";x", ";").nextInt(), equalTo(Integer.MAX_VALUE));
+        assertThat(new AttributeEntryTokenizer(Integer.MIN_VALUE + ";x", ";").nextInt(), equalTo(Integer.MIN_VALUE));
+        assertThrows(NumberFormatException.class, () -> new AttributeEntryTokenizer("2147483648;x", ";").nextInt());
+        assertThrows(NumberFormatException.class, () -> new AttributeEntryTokenizer("12a;x", ";").nextInt());
+        assertThrows(NumberFormatException.class, () -> new AttributeEntryTokenizer(";x", ";").nextInt());
+        assertThrows(NumberFormatException.class, () -> new AttributeEntryTokenizer("-;x", ";").nextInt());
+        assertThrows(NumberFormatException.class, () -> new AttributeEntryTokenizer("", ";").nextInt());
+    }
+
+    /**
+     * Compares the tokenizer with {@link String#split(String)}, that was used before, for random entries.
+     */
+    @Test
+    void testSameFieldsAsSplit() {
+        Random random = new Random(4711);
+
+        for (int run = 0; run < RUNS; run++) {
+            String separator = SEPARATORS[random.nextInt(SEPARATORS.length)];
+            String entry = randomEntry(random, separator);
+            String[] expected = entry.split(separator);
+            AttributeEntryTokenizer tokenizer = new AttributeEntryTokenizer(entry, separator);
+
+            for (int index = 0; index <= expected.length; index++) {
+                String description = String.format("Field %d of '%s' split by '%s'", index, entry, separator);
+
+                if (index == expected.length) {
+                    assertThrows(Saml2Exception.class, tokenizer::nextString, description);
+                } else if (random.nextBoolean()) {
+                    assertNextInt(tokenizer, expected[index], description);
+                } else if (random.nextBoolean()) {
+                    assertThat(description, tokenizer.nextString(), equalTo(expected[index]));
+                } else {
+                    String expectedValue = expected[index].isEmpty() ? null : expected[index];
+
+                    assertThat(description, tokenizer.nextStringOrNull(), equalTo(expectedValue));
+                }
+            }
+        }
+    }
+
+    private static void assertNextInt(AttributeEntryTokenizer tokenizer, String field, String description) {
+        Integer expected;
+
+        try {
+            expected = Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            expected = null;
+        }
+
+        if (expected == null) {
+            assertThrows(NumberFormatException.class, tokenizer::nextInt, description);
+        } else {
+            assertThat(description, tokenizer.nextInt(), equalTo(expected));
+        }
+    }
+
+    private static String randomEntry(Random random, String separator) {
+        StringBuilder builder = new StringBuilder();
+        int fields = random.nextInt(6);
+
+        for (int field = 0; field < fields; field++) {
+            if (field > 0) {
+                builder.append(separator);
+            }
+
+            if (random.nextInt(3) == 0) {
+                builder.append(random.nextInt());
+            } else {
+                int length = random.nextInt(6);
+
+                for (int i = 0; i < length; i++) {
+                    builder.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+                }
+            }
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,300 @@
+package at.porscheinformatik.idp.saml2;
+
+import static at.porscheinformatik.idp.saml2.PartnerNetSaml2AuthenticationRequestUtils.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import jakarta.servlet.http.Cookie;
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.InMemoryRelyingPartyRegistrationRepository;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+class CookieSaml2AuthenticationRequestRepositoryTest {
+
+    private static final RelyingPartyRegistration REGISTRATION = RelyingPartyRegistration.withRegistrationId("pnet")
+        .entityId("https://sp.example.com/saml2/pnet")
+        .assertionConsumerServiceLocation("https://sp.example.com/saml2/sso/post/pnet")
+        .assertingPartyMetadata(party ->
+            party
+                .entityId("https://idp.example.com/identity/saml2")
+                .singleSignOnServiceLocation("https://idp.example.com/identity/saml2/authorize/redirect")
+        )
+        .build();
+
+    @Test
+    void testRestoresRequestAndStateWithoutSession() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        useStatelessStorage(loginRequest);
+        Saml2Utils.storeAuthnRequestId(loginRequest, "ARQ123");
+        storeForceAuthentication(loginRequest, true);
+        storeNistLevel(loginRequest, Optional.of(3));
+        storeSessionAge(loginRequest, Optional.of(600));
+        storeTenant(loginRequest, Optional.of("tenant"));
+
+        repository.saveAuthenticationRequest(buildRequest(), loginRequest, loginResponse);
+
+        Cookie cookie = loginResponse.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME);
+
+        assertThat(cookie, notNullValue());
+        assertThat(cookie.isHttpOnly(), is(true));
+        assertThat(cookie.getSecure(), is(true));
+        assertThat(loginRequest.getSession(false), nullValue());
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        responseRequest.setCookies(cookie);
+
+        AbstractSaml2AuthenticationRequest restored = repository.loadAuthenticationRequest(responseRequest);
+
+        assertThat(restored, instanceOf(Saml2RedirectAuthenticationRequest.class));
+        assertThat(restored.getId(), equalTo("ARQ123"));
+        assertThat(restored.getRelayState(), equalTo("relay"));
+        assertThat(restored.getSamlRequest(), equalTo("request"));
+        assertThat(restored.getRelyingPartyRegistrationId(), equalTo("pnet"));
+        assertThat(((Saml2RedirectAuthenticationRequest) restored).getSignature(), equalTo("signature"));
+
+        assertThat(Saml2Utils.retrieveAuthnRequestId(responseRequest), equalTo(Optional.of("ARQ123")));
+        assertThat(forceAuthenticationRequested(responseRequest), is(true));
+        assertThat(getRequestedNistLevel(responseRequest), equalTo(3));
+        assertThat(sessionAgeRequested(responseRequest), equalTo(600));
+        assertThat(tenantRequested(responseRequest), equalTo("tenant"));
+        assertThat(responseRequest.getSession(false), nullValue());
+    }
+
+    @Test
+    void testSignedRedirectRequestFitsIntoCookie() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+        Saml2RedirectAuthenticationRequest request = buildSignedRequest();
+
+        useStatelessStorage(loginRequest);
+        Saml2Utils.storeAuthnRequestId(loginRequest, request.getId());
+        storeForceAuthentication(loginRequest, true);
+        storeNistLevel(loginRequest, Optional.of(3));
+        storeSessionAge(loginRequest, Optional.of(600));
+        storeTenant(loginRequest, Optional.of("tenant"));
+
+        repository.saveAuthenticationRequest(request, loginRequest, loginResponse);
+
+        Cookie cookie = loginResponse.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME);
+
+        assertThat(
+            cookie.getName().length() + cookie.getValue().length(),
+            lessThan(CookieSaml2AuthenticationRequestRepository.MAX_COOKIE_SIZE)
+        );
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        responseRequest.setCookies(cookie);
+
+        Saml2RedirectAuthenticationRequest restored = (Saml2RedirectAuthenticationRequest) repository
+            .loadAuthenticationRequest(responseRequest);
+
+        assertThat(restored.getId(), equalTo(request.getId()));
+        assertThat(restored.getSamlRequest(), equalTo(request.getSamlRequest()));
+        assertThat(restored.getRelayState(), equalTo(request.getRelayState()));
+        assertThat(restored.getSigAlg(), equalTo(request.getSigAlg()));
+        assertThat(restored.getSignature(), equalTo(request.getSignature()));
+        assertThat(restored.getAuthenticationRequestUri(), equalTo(request.getAuthenticationRequestUri()));
+    }
+
+    @Test
+    void testRejectsRequestLargerThanCookie() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+
+        // The second one is too large for the serialization, too
+        for (int length : new int[] { CookieSaml2AuthenticationRequestRepository.MAX_COOKIE_SIZE, 70_000 }) {
+            AbstractSaml2AuthenticationRequest request = buildRequest("a".repeat(length));
+
+            IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+                repository.saveAuthenticationRequest(
+                    request,
+                    new MockHttpServletRequest(),
+                    new MockHttpServletResponse()
+                )
+            );
+
+            assertThat(e.getMessage(), startsWith("The authentication request does not fit into a cookie"));
+        }
+    }
+
+    @Test
+    void testRemoveExpiresCookie() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        repository.saveAuthenticationRequest(buildRequest(), loginRequest, loginResponse);
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        responseRequest.setCookies(
+            loginResponse.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME)
+        );
+
+        assertThat(repository.removeAuthenticationRequest(responseRequest, response), notNullValue());
+        assertThat(
+            response.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME).getMaxAge(),
+            equalTo(0)
+        );
+    }
+
+    @Test
+    void testIgnoresCookieOfOtherKey() throws Exception {
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        buildRepository(generateKey()).saveAuthenticationRequest(buildRequest(), loginRequest, loginResponse);
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        responseRequest.setCookies(
+            loginResponse.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME)
+        );
+
+        assertThat(buildRepository(generateKey()).loadAuthenticationRequest(responseRequest), nullValue());
+    }
+
+    @Test
+    void testIgnoresModifiedCookie() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        repository.saveAuthenticationRequest(buildRequest(), loginRequest, loginResponse);
+
+        String token = loginResponse
+            .getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME)
+            .getValue();
+        int middle = token.length() / 2;
+        char replacement = token.charAt(middle) == 'A' ? 'B' : 'A';
+        String modified = token.substring(0, middle) + replacement + token.substring(middle + 1);
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        responseRequest.setCookies(
+            new Cookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME, modified)
+        );
+
+        assertThat(repository.loadAuthenticationRequest(responseRequest), nullValue());
+    }
+
+    @Test
+    void testIgnoresExpiredCookie() throws Exception {
+        CookieSaml2AuthenticationRequestRepository repository = buildRepository(generateKey());
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest();
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        repository.saveAuthenticationRequest(buildRequest(), loginRequest, loginResponse);
+        repository.setMaxAge(Duration.ofSeconds(-1));
+
+        MockHttpServletRequest responseRequest = new MockHttpServletRequest();
+        responseRequest.setCookies(
+            loginResponse.getCookie(CookieSaml2AuthenticationRequestRepository.DEFAULT_COOKIE_NAME)
+        );
+
+        assertThat(repository.loadAuthenticationRequest(responseRequest), nullValue());
+    }
+
+    private static CookieSaml2AuthenticationRequestRepository buildRepository(SecretKey key) {
+        return new CookieSaml2AuthenticationRequestRepository(
+            new InMemoryRelyingPartyRegistrationRepository(REGISTRATION),
+            key
+        );
+    }
+
+    private static AbstractSaml2AuthenticationRequest buildRequest() {
+        return Saml2RedirectAuthenticationRequest.withRelyingPartyRegistration(REGISTRATION)
+            .id("ARQ123")
+            .samlRequest("request")
+            .relayState("relay")
+            .sigAlg("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256")
+            .signature("signature")
+            .build();
+    }
+
+    private static AbstractSaml2AuthenticationRequest buildRequest(String samlRequest) {
+        return Saml2RedirectAuthenticationRequest.withRelyingPartyRegistration(REGISTRATION)
+            .id("ARQ123")
+            .samlRequest(samlRequest)
+            .build();
+    }
+
+    /**
+     * Signs a deflated request like Spring Security does for the redirect binding, with a 2048 bit RSA key.
+     */
+    private static Saml2RedirectAuthenticationRequest buildSignedRequest() throws Exception {
+        String id = "ARQ" + UUID.randomUUID();
+        String relayState = UUID.randomUUID().toString();
+        String sigAlg = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+        String destination = REGISTRATION.getAssertingPartyMetadata().getSingleSignOnServiceLocation();
+        String authnRequest =
+            """
+            <saml2p:AuthnRequest xmlns:saml2p="urn:oasis:names:tc:SAML:2.0:protocol" \
+            AssertionConsumerServiceURL="https://sp.example.com/saml2/sso/post/pnet" Destination="%s" \
+            ForceAuthn="true" ID="%s" IssueInstant="%s" \
+            ProtocolBinding="urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST" Version="2.0">\
+            <saml2:Issuer xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion">https://sp.example.com/saml2/pnet\
+            </saml2:Issuer><saml2p:NameIDPolicy AllowCreate="true" \
+            Format="urn:oasis:names:tc:SAML:2.0:nameid-format:persistent"/>\
+            <saml2p:RequestedAuthnContext Comparison="minimum">\
+            <saml2:AuthnContextClassRef xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion">\
+            https://www.partner.net/saml2/nist/3</saml2:AuthnContextClassRef></saml2p:RequestedAuthnContext>\
+            </saml2p:AuthnRequest>\
+            """.formatted(destination, id, Instant.now());
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+
+        try (
+            DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFLATED, true))
+        ) {
+            out.write(authnRequest.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String samlRequest = Base64.getEncoder().encodeToString(deflated.toByteArray());
+        String query = String.format(
+            "SAMLRequest=%s&RelayState=%s&SigAlg=%s",
+            URLEncoder.encode(samlRequest, StandardCharsets.UTF_8),
+            URLEncoder.encode(relayState, StandardCharsets.UTF_8),
+            URLEncoder.encode(sigAlg, StandardCharsets.UTF_8)
+        );
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPairGenerator.generateKeyPair().getPrivate());
+        signature.update(query.getBytes(StandardCharsets.UTF_8));
+
+        return Saml2RedirectAuthenticationRequest.withRelyingPartyRegistration(REGISTRATION)
+            .id(id)
+            .samlRequest(samlRequest)
+            .relayState(relayState)
+            .sigAlg(sigAlg)
+            .signature(Base64.getEncoder().encodeToString(signature.sign()))
+            .build();
+    }
+
+    private static SecretKey generateKey() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+
+        return generator.generateKey();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import at.porscheinformatik.idp.saml2.Saml2ResponseParserBase.Saml2Data;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+class DefaultPartnerNetSaml2AuthoritiesMapperTest {
+
+    private static final String ROLES = "https://identity.auto-partner.net/identity/saml2/attributes/roles";
+
+    @Test
+    void testDistinctMatchcodes() {
+        Saml2Data data = data("1000;V;SALES", "1000;A;SALES", "1001;V;SERVICE");
+        Collection<? extends GrantedAuthority> authorities = new DefaultPartnerNetSaml2AuthoritiesMapper().apply(
+            principal(data),
+            data
+        );
+
+        assertThat(AuthorityUtils.authorityListToSet(authorities), containsInAnyOrder("SALES", "SERVICE"));
+        assertThat(authorities, hasSize(2));
+    }
+
+    @Test
+    void testCompanyScopedAuthorities() {
+        Saml2Data data = data("1000;V;SALES", "1000;A;SALES", "1001;V;SALES");
+        Collection<? extends GrantedAuthority> authorities = new DefaultPartnerNetSaml2AuthoritiesMapper(true).apply(
+            principal(data),
+            data
+        );
+
+        assertThat(
+            AuthorityUtils.authorityListToSet(authorities),
+            containsInAnyOrder("SALES", "SALES@1000", "SALES@1001")
+        );
+        assertThat(authorities, hasSize(3));
+    }
+
+    @Test
+    void testAuthoritiesAreShared() {
+        Saml2Data data = data("1000;V;SALES");
+        DefaultPartnerNetSaml2AuthoritiesMapper mapper = new DefaultPartnerNetSaml2AuthoritiesMapper();
+
+        GrantedAuthority first = mapper.apply(principal(data), data).iterator().next();
+        GrantedAuthority second = mapper.apply(principal(data), data).iterator().next();
+
+        assertThat(second, sameInstance(first));
+    }
+
+    @Test
+    void testNoRoles() {
+        Saml2Data data = data();
+
+        assertThat(new DefaultPartnerNetSaml2AuthoritiesMapper(true).apply(principal(data), data), empty());
+    }
+
+    private static PartnerNetSaml2AuthenticationPrincipal principal(Saml2Data data) {
+        PartnerNetSaml2ResponseParser parser = new PartnerNetSaml2ResponseParser((principal, d) -> List.of());
+
+        return (PartnerNetSaml2AuthenticationPrincipal) parser.convert(data).getPrincipal();
+    }
+
+    private static Saml2Data data(String... roles) {
+        Map<String, Serializable> attributes = new HashMap<>();
+
+        if (roles.length > 0) {
+            attributes.put(ROLES, new ArrayList<>(List.of(roles)));
+        }
+
+        return new Saml2Data("subject", "nameId", attributes, Optional.empty(), AuthnContextClass.USERPASS);
+    }
+}
@@ -0,0 +1,236 @@
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.saml2.DefaultSaml2CredentialsManager.Saml2CredentialsConfig;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+
+class DefaultSaml2CredentialsManagerTest {
+
+    private static final int READERS = 8;
+    private static final int WRITERS = 2;
+    private static final int UPDATES_PER_WRITER = 50;
+
+    @Test
+    void testConcurrentReadsDuringReloads() throws Exception {
+        List<Saml2CredentialsConfig> bothKeys = Saml2TestUtils.defaultCredentials();
+        List<Saml2CredentialsConfig> decryptionOnly = decryptionOnly(bothKeys);
+        AtomicReference<List<Saml2CredentialsConfig>> config = new AtomicReference<>(bothKeys);
+        ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(READERS + WRITERS);
+        DefaultSaml2CredentialsManager manager = new DefaultSaml2CredentialsManager(config::get, listenerExecutor);
+        AtomicLong notifiedVersion = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        try {
+            manager.initialize();
+            manager.onUpdate(() -> notifiedVersion.set(manager.getVersion()));
+
+            List<Future<?>> readers = new ArrayList<>();
+            List<Future<?>> writers = new ArrayList<>();
+
+            for (int i = 0; i < READERS; i++) {
+                readers.add(
+                    workers.submit(() -> {
+                        while (running.get()) {
+                            try {
+                                List<Saml2X509Credential> credentials = manager.getCredentials();
+
+                                assertThat(credentials.size(), anyOf(equalTo(1), equalTo(2)));
+                                assertTrue(credentials.stream().anyMatch(Saml2X509Credential::isDecryptionCredential));
+                            } catch (Throwable e) {
+                                failures.add(e);
+                            }
+                        }
+                    })
+                );
+            }
+
+            for (int i = 0; i < WRITERS; i++) {
+                writers.add(
+                    workers.submit(() -> {
+                        for (int update = 0; update < UPDATES_PER_WRITER; update++) {
+                            try {
+                                config.set(update % 2 == 0 ? decryptionOnly : bothKeys);
+                                manager.update();
+                            } catch (Throwable e) {
+                                failures.add(e);
+                            }
+                        }
+                    })
+                );
+            }
+
+            for (Future<?> writer : writers) {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+
+            running.set(false);
+
+            for (Future<?> reader : readers) {
+                reader.get(30, TimeUnit.SECONDS);
+            }
+
+            // All listener tasks submitted so far have been executed, once this one is done
+            listenerExecutor.submit(() -> {}).get(30, TimeUnit.SECONDS);
+
+            assertThat(failures, empty());
+            assertThat(manager.getVersion(), greaterThan(1L));
+            assertThat(notifiedVersion.get(), equalTo(manager.getVersion()));
+        } finally {
+            running.set(false);
+            workers.shutdownNow();
+            listenerExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testListenersAreCalledAsynchronously() throws Exception {
+        List<Saml2CredentialsConfig> bothKeys = Saml2TestUtils.defaultCredentials();
+        AtomicReference<List<Saml2CredentialsConfig>> config = new AtomicReference<>(bothKeys);
+        DefaultSaml2CredentialsManager manager = new DefaultSaml2CredentialsManager(config::get);
+        CountDownLatch called = new CountDownLatch(1);
+        AtomicReference<Thread> listenerThread = new AtomicReference<>();
+
+        try {
+            manager.initialize();
+            manager.onUpdate(() -> {
+                throw new IllegalStateException("Failing listener");
+            });
+            manager.onUpdate(() -> {
+                listenerThread.set(Thread.currentThread());
+                called.countDown();
+            });
+
+            config.set(decryptionOnly(bothKeys));
+            manager.update();
+
+            assertTrue(called.await(10, TimeUnit.SECONDS));
+            assertThat(listenerThread.get(), not(sameInstance(Thread.currentThread())));
+            assertThat(manager.getCredentials(), hasSize(1));
+            assertThrows(UnsupportedOperationException.class, () -> manager.getCredentials().clear());
+        } finally {
+            manager.destroy();
+        }
+    }
+
+    @Test
+    void testVersionOnlyChangesOnReload() throws Exception {
+        DefaultSaml2CredentialsManager manager = new DefaultSaml2CredentialsManager(
+            Saml2TestUtils::defaultCredentials,
+            Runnable::run
+        );
+
+        manager.initialize();
+
+        long version = manager.getVersion();
+        List<Saml2X509Credential> credentials = manager.getCredentials();
+
+        manager.update();
+
+        assertThat(version, equalTo(1L));
+        assertThat(manager.getVersion(), equalTo(version));
+        assertThat(manager.getCredentials(), sameInstance(credentials));
+        assertThat(manager.getCredentials(Saml2X509CredentialType.SIGNING), hasSize(1));
+    }
+
+    @Test
+    void testUnchangedKeystoresAreNotLoadedAgain(@TempDir Path directory) throws Exception {
+        Path signingKeystore = directory.resolve("signing.p12");
+        Path decryptionKeystore = directory.resolve("decryption.p12");
+
+        storeKeystore(signingKeystore);
+        storeKeystore(decryptionKeystore);
+
+        List<Saml2CredentialsConfig> config = List.of(
+            new Saml2CredentialsConfig(
+                new FileSystemResource(signingKeystore),
+                "PKCS12",
+                "somepass",
+                "myprivate",
+                "mypublic",
+                Saml2X509CredentialType.SIGNING
+            ),
+            new Saml2CredentialsConfig(
+                new FileSystemResource(decryptionKeystore),
+                "PKCS12",
+                "somepass",
+                "myprivate",
+                "mypublic",
+                Saml2X509CredentialType.DECRYPTION
+            )
+        );
+        DefaultSaml2CredentialsManager manager = new DefaultSaml2CredentialsManager(() -> config, Runnable::run);
+
+        manager.initialize();
+
+        PrivateKey signingKey = manager.getCredentials(Saml2X509CredentialType.SIGNING).get(0).getPrivateKey();
+        PrivateKey decryptionKey = manager.getCredentials(Saml2X509CredentialType.DECRYPTION).get(0).getPrivateKey();
+
+        // Same keys, but new content
+        storeKeystore(decryptionKeystore);
+        manager.reload();
+
+        assertThat(manager.getVersion(), equalTo(2L));
+        assertThat(
+            manager.getCredentials(Saml2X509CredentialType.SIGNING).get(0).getPrivateKey(),
+            sameInstance(signingKey)
+        );
+        assertThat(
+            manager.getCredentials(Saml2X509CredentialType.DECRYPTION).get(0).getPrivateKey(),
+            not(sameInstance(decryptionKey))
+        );
+        assertThat(
+            manager.getCredentials(Saml2X509CredentialType.DECRYPTION).get(0).getPrivateKey(),
+            equalTo(decryptionKey)
+        );
+    }
+
+    /**
+     * Stores the test keystore with a new salt. The keys are the same, but the content changes each time.
+     */
+    private static void storeKeystore(Path target) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+
+        try (
+            InputStream stream = DefaultSaml2CredentialsManagerTest.class.getResourceAsStream(
+                "/at/porscheinformatik/idp/saml2/keys.keystore"
+            )
+        ) {
+            keystore.load(stream, "somepass".toCharArray());
+        }
+
+        try (OutputStream stream = Files.newOutputStream(target)) {
+            keystore.store(stream, "somepass".toCharArray());
+        }
+    }
+
+    private static List<Saml2CredentialsConfig> decryptionOnly(List<Saml2CredentialsConfig> configs) {
+        return configs.stream().filter(config -> config.getUsage() == Saml2X509CredentialType.DECRYPTION).toList();
+    }
+}
@@ -0,0 +1,99 @@
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class InMemorySaml2ReplayCacheTest {
+
+    private final AtomicLong now = new AtomicLong(Instant.parse("2024-01-01T00:00:00Z").toEpochMilli());
+
+    @Test
+    void testRejectsKnownId() {
+        InMemorySaml2ReplayCache cache = buildCache(1000);
+
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(true));
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(false));
+        assertThat(cache.markUsed("_other", inSeconds(60)), is(true));
+    }
+
+    @Test
+    void testLooksUpIdsWithoutStoringThem() {
+        InMemorySaml2ReplayCache cache = buildCache(1000);
+
+        assertThat(cache.isUsed("_id"), is(false));
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(true));
+        assertThat(cache.isUsed("_id"), is(true));
+
+        now.addAndGet(Duration.ofSeconds(80).toMillis());
+
+        assertThat(cache.isUsed("_id"), is(false));
+    }
+
+    @Test
+    void testForgetsExpiredIds() {
+        InMemorySaml2ReplayCache cache = buildCache(1000);
+
+        cache.markUsed("_id", inSeconds(60));
+        now.addAndGet(Duration.ofSeconds(50).toMillis());
+
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(false));
+
+        now.addAndGet(Duration.ofSeconds(30).toMillis());
+
+        assertThat(cache.markUsed("_other", inSeconds(60)), is(true));
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(true));
+    }
+
+    @Test
+    void testForgetsIdsAfterLongIdleTime() {
+        InMemorySaml2ReplayCache cache = buildCache(10_000);
+
+        for (int i = 0; i < 500; i++) {
+            cache.markUsed("_id" + i, inSeconds(60));
+        }
+
+        assertThat(cache.size(), equalTo(500));
+
+        now.addAndGet(Duration.ofHours(5).toMillis());
+
+        assertThat(cache.markUsed("_id0", inSeconds(60)), is(true));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.getEvictions(), equalTo(0L));
+    }
+
+    @Test
+    void testKeepsIdsForMaxRetentionAtMost() {
+        InMemorySaml2ReplayCache cache = buildCache(1000);
+
+        cache.markUsed("_id", inSeconds(Duration.ofDays(1).toSeconds()));
+        now.addAndGet(Duration.ofMinutes(31).toMillis());
+
+        assertThat(cache.markUsed("_id", inSeconds(60)), is(true));
+    }
+
+    @Test
+    void testStaysBounded() {
+        InMemorySaml2ReplayCache cache = buildCache(640);
+
+        for (int i = 0; i < 100_000; i++) {
+            cache.markUsed("_id" + i, inSeconds(60 + i % 600));
+        }
+
+        assertThat(cache.size(), lessThanOrEqualTo(640));
+        assertThat(cache.getEvictions(), greaterThan(0L));
+        assertThat(cache.markUsed("_id99999", inSeconds(60)), is(false));
+    }
+
+    private InMemorySaml2ReplayCache buildCache(int maxEntries) {
+        return new InMemorySaml2ReplayCache(maxEntries, Duration.ofMinutes(30), now::get);
+    }
+
+    private Instant inSeconds(long seconds) {
+        return Instant.ofEpochMilli(now.get()).plusSeconds(seconds);
+    }
+}
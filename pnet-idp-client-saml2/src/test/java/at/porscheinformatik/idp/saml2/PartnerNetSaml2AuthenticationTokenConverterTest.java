@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.Response;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.web.RelyingPartyRegistrationResolver;
+
+class PartnerNetSaml2AuthenticationTokenConverterTest {
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    private static final RelyingPartyRegistration REGISTRATION = RelyingPartyRegistration.withRegistrationId("pnet")
+        .entityId("https://localhost/saml2/pnet")
+        .assertionConsumerServiceLocation("https://localhost/saml2/sso/post/pnet")
+        .assertingPartyDetails(builder ->
+            builder
+                .entityId("https://identity.auto-partner.net/identity/saml2")
+                .singleSignOnServiceLocation("https://identity.auto-partner.net/identity/saml2/sso")
+        )
+        .build();
+
+    private static final RelyingPartyRegistrationResolver RESOLVER = (request, registrationId) -> REGISTRATION;
+
+    @Test
+    void testConvertPostedResponse() throws Exception {
+        PartnerNetSaml2AuthenticationTokenConverter converter = new PartnerNetSaml2AuthenticationTokenConverter(
+            RESOLVER
+        );
+        byte[] xml = Saml2ParserPoolFactory.WARM_UP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+        Saml2AuthenticationToken token = converter.convert(post(Base64.getMimeEncoder().encodeToString(xml)));
+
+        assertThat(token, instanceOf(PartnerNetSaml2AuthenticationToken.class));
+        assertThat(token.getRelyingPartyRegistration(), sameInstance(REGISTRATION));
+        assertThat(token.getSaml2Response(), equalTo(Saml2ParserPoolFactory.WARM_UP_RESPONSE));
+        assertArrayEquals(xml, ((PartnerNetSaml2AuthenticationToken) token).openResponse().readAllBytes());
+
+        Response response = (Response) XMLObjectSupport.unmarshallFromInputStream(
+            XMLObjectProviderRegistrySupport.getParserPool(),
+            ((PartnerNetSaml2AuthenticationToken) token).openResponse()
+        );
+
+        assertThat(response.getID(), equalTo("warm-up"));
+    }
+
+    @Test
+    void testRejectsLargeResponse() {
+        PartnerNetSaml2AuthenticationTokenConverter converter = new PartnerNetSaml2AuthenticationTokenConverter(
+            RESOLVER
+        );
+        String encodedResponse = Base64.getEncoder().encodeToString(new byte[1024]);
+
+        converter.setMaxResponseSize(1024);
+
+        assertNotNull(converter.convert(post(encodedResponse)));
+
+        converter.setMaxResponseSize(1023);
+
+        Saml2AuthenticationException exception = assertThrows(Saml2AuthenticationException.class, () ->
+            converter.convert(post(encodedResponse))
+        );
+
+        assertThat(exception.getSaml2Error().getErrorCode(), equalTo("invalid_response"));
+
+        // Without padding, the last chars decode to less than 3 bytes
+        String unpaddedResponse = Base64.getEncoder().withoutPadding().encodeToString(new byte[1024]);
+
+        assertThrows(Saml2AuthenticationException.class, () -> converter.convert(post(unpaddedResponse)));
+    }
+
+    @Test
+    void testIgnoresRequestsWithoutResponse() {
+        PartnerNetSaml2AuthenticationTokenConverter converter = new PartnerNetSaml2AuthenticationTokenConverter(
+            RESOLVER
+        );
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml2/sso/post/pnet");
+
+        assertNull(converter.convert(request));
+    }
+
+    private static MockHttpServletRequest post(String encodedResponse) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml2/sso/post/pnet");
+
+        request.addParameter("SAMLResponse", encodedResponse);
+
+        return request;
+    }
+}
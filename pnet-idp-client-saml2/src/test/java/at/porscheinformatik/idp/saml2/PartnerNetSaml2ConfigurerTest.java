@@ -17,6 +17,7 @@ import org.springframework.security.authentication.ProviderManager;
 import org.springframework.security.config.annotation.ObjectPostProcessor;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.saml2.provider.service.web.HttpSessionSaml2AuthenticationRequestRepository;
 import org.springframework.security.saml2.provider.service.web.Saml2WebSsoAuthenticationRequestFilter;
 import org.springframework.security.saml2.provider.service.web.authentication.Saml2AuthenticationRequestResolver;
 import org.springframework.security.saml2.provider.service.web.authentication.Saml2WebSsoAuthenticationFilter;
@@ -96,6 +97,41 @@ class PartnerNetSaml2ConfigurerTest {
             .orElseThrow(() -> new AssertionError("No PartnerNet Authentication Provider configured"));
     }
 
+    @Test
+    void onlyDefaultResponseProcessorIsPreScreened() throws Exception {
+        assertThat(findPreScreener(null), instanceOf(Saml2ResponsePreScreener.class));
+        assertThat(findPreScreener(Saml2ResponseProcessor.withDefaultHandlers()), nullValue());
+    }
+
+    @Test
+    void authenticationRequestRepositoryBeanIsUsed() throws Exception {
+        StaticApplicationContext applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("requestRepository", CustomAuthenticationRequestRepository.class);
+        applicationContext.refresh();
+
+        HttpSecurity http = buildHttpSecurity(applicationContext);
+        PartnerNetSaml2Configurer.apply(http, IDP_ENTITY_ID).credentials(Saml2TestUtils::defaultCredentials);
+
+        DefaultSecurityFilterChain filterChain = http.build();
+
+        Object repository = applicationContext.getBean(CustomAuthenticationRequestRepository.class);
+        Saml2WebSsoAuthenticationFilter filter = assertFilter(filterChain, Saml2WebSsoAuthenticationFilter.class);
+        PartnerNetSaml2AuthenticationTokenConverter converter = assertFieldValue(
+            filter,
+            "authenticationConverter",
+            PartnerNetSaml2AuthenticationTokenConverter.class
+        );
+
+        assertThat(
+            assertFieldValue(filter, "authenticationRequestRepository", CustomAuthenticationRequestRepository.class),
+            sameInstance(repository)
+        );
+        assertThat(
+            assertFieldValue(converter, "authenticationRequestRepository", CustomAuthenticationRequestRepository.class),
+            sameInstance(repository)
+        );
+    }
+
     @Test
     void missingCredentialsThrowsException() throws Exception {
         HttpSecurity http = buildHttpSecurity();
@@ -105,6 +141,29 @@ class PartnerNetSaml2ConfigurerTest {
         assertThat(e.getMessage(), equalTo("No credentials configured"));
     }
 
+    private Object findPreScreener(Saml2ResponseProcessor responseProcessor) throws Exception {
+        HttpSecurity http = buildHttpSecurity();
+        PartnerNetSaml2Configurer.apply(http, IDP_ENTITY_ID)
+            .credentials(Saml2TestUtils::defaultCredentials)
+            .responseProcessor(responseProcessor);
+
+        DefaultSecurityFilterChain filterChain = http.build();
+
+        Saml2WebSsoAuthenticationFilter filter = assertFilter(filterChain, Saml2WebSsoAuthenticationFilter.class);
+        ProviderManager manager = assertFieldValue(filter, "authenticationManager", ProviderManager.class);
+        Object provider = manager
+            .getProviders()
+            .stream()
+            .filter(PartnerNetSamlAuthenticationProvider.class::isInstance)
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No PartnerNet Authentication Provider configured"));
+        Field field = ReflectionUtils.findField(PartnerNetSamlAuthenticationProvider.class, "preScreener");
+
+        ReflectionUtils.makeAccessible(field);
+
+        return ReflectionUtils.getField(field, provider);
+    }
+
     @SuppressWarnings("unchecked")
     private <T> T assertFieldValue(Object o, String fieldName, Class<T> expectedClass) {
         FieldValueCallback callback = new FieldValueCallback(o, fieldName);
@@ -128,10 +187,14 @@ class PartnerNetSaml2ConfigurerTest {
     }
 
     private HttpSecurity buildHttpSecurity() {
-        ObjectPostProcessor<Object> objectPostProcessor = new NoopPostProcessor();
         StaticApplicationContext applicationContext = new StaticApplicationContext();
         applicationContext.refresh();
 
+        return buildHttpSecurity(applicationContext);
+    }
+
+    private HttpSecurity buildHttpSecurity(ApplicationContext applicationContext) {
+        ObjectPostProcessor<Object> objectPostProcessor = new NoopPostProcessor();
         AuthenticationManagerBuilder authenticationBuilder = new AuthenticationManagerBuilder(objectPostProcessor);
         HashMap<Class<?>, Object> sharedObjects = new HashMap<>();
         sharedObjects.put(ApplicationContext.class, applicationContext);
@@ -147,6 +210,8 @@ class PartnerNetSaml2ConfigurerTest {
         return filter;
     }
 
+    static class CustomAuthenticationRequestRepository extends HttpSessionSaml2AuthenticationRequestRepository {}
+
     private static final class NoopPostProcessor implements ObjectPostProcessor<Object> {
 
         @Override
@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import at.porscheinformatik.idp.Gender;
+import at.porscheinformatik.idp.PartnerNetCompanyAddressDTO;
+import at.porscheinformatik.idp.PartnerNetCompanyClaimIndex;
+import at.porscheinformatik.idp.PartnerNetCompanyDTO;
+import at.porscheinformatik.idp.PartnerNetUserType;
+import at.porscheinformatik.idp.saml2.Saml2ResponseParserBase.Saml2Data;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class PartnerNetSaml2ResponseParserTest {
+
+    private static final String PREFIX = "https://identity.auto-partner.net/identity/saml2/attributes/";
+
+    @Test
+    void testParseAttributes() {
+        Map<String, Serializable> attributes = new HashMap<>();
+        attributes.put(PREFIX + "guid", "guid-4711");
+        attributes.put(PREFIX + "person_id", 4711);
+        attributes.put(PREFIX + "user_type", "PERSON");
+        attributes.put(PREFIX + "gender", 2);
+        attributes.put(PREFIX + "language", "de-AT");
+        attributes.put(PREFIX + "additional_languages", new ArrayList<>(List.of("en-GB", "it-IT")));
+        attributes.put(PREFIX + "employment", new ArrayList<>(List.of("1000;;Autohaus A", "1001;20001;Autohaus B")));
+        attributes.put(PREFIX + "employment_address", "1000;;Street 1;;;;Salzburg;;AT");
+        attributes.put(PREFIX + "roles", "1000;V;ROLE_A");
+        attributes.put(PREFIX + "contact_company", new ArrayList<>(List.of(1000, 1001)));
+        attributes.put(PREFIX + "responsible_user", true);
+        attributes.put(PREFIX + "unknown", "ignored");
+
+        PartnerNetSaml2AuthenticationPrincipal principal = parse(attributes);
+
+        assertThat(principal.getGuid(), equalTo("guid-4711"));
+        assertThat(principal.getLegacyId(), equalTo(4711));
+        assertThat(principal.getUserType(), equalTo(PartnerNetUserType.PERSON));
+        assertThat(principal.getGender(), equalTo(Gender.FEMALE));
+        assertThat(principal.getLanguage(), equalTo(Locale.forLanguageTag("de-AT")));
+        assertThat(
+            principal.getAdditionalLanguages(),
+            contains(Locale.forLanguageTag("en-GB"), Locale.forLanguageTag("it-IT"))
+        );
+        assertThat(principal.getEmployments(), hasSize(2));
+
+        PartnerNetCompanyDTO employment = principal.getEmployments().get(0);
+
+        assertThat(employment.getCompanyId(), equalTo(1000));
+        assertThat(employment.getCompanyNumber(), nullValue());
+        assertThat(employment.getName(), equalTo("Autohaus A"));
+        assertThat(principal.getEmployments().get(1).getCompanyNumber(), equalTo("20001"));
+
+        PartnerNetCompanyAddressDTO address = principal.getEmploymentsAddress().get(0);
+
+        assertThat(address.getStreet(), equalTo("Street 1"));
+        assertThat(address.getPostalCode(), nullValue());
+        assertThat(address.getCity(), equalTo("Salzburg"));
+        assertThat(address.getCountryCode(), equalTo("AT"));
+        assertThat(principal.getRoles().get(0).getRoleMatchcode(), equalTo("ROLE_A"));
+        assertThat(principal.getContactCompanyIds(), contains(1000, 1001));
+        assertThat(principal.isResponsibleUserAvailable(), equalTo(true));
+        assertThat(principal.getRelayState(), equalTo("/relay"));
+    }
+
+    @Test
+    void testCompanyClaims() {
+        Map<String, Serializable> attributes = new HashMap<>();
+        attributes.put(PREFIX + "roles", new ArrayList<>(List.of("1000;V;SALES", "1000;A;SERVICE", "1001;V;SALES")));
+        attributes.put(PREFIX + "employment_contracts", "1000;S;CONTRACT");
+        attributes.put(PREFIX + "functional_numbers", "1001;FUNCTION;42");
+
+        PartnerNetCompanyClaimIndex claims = parse(attributes).getCompanyClaims();
+
+        assertThat(claims.hasRole(1000, "SERVICE"), equalTo(true));
+        assertThat(claims.hasRole(1000, "A", "SERVICE"), equalTo(true));
+        assertThat(claims.hasRole(1000, "V", "SERVICE"), equalTo(false));
+        assertThat(claims.hasRole(1001, "SERVICE"), equalTo(false));
+        assertThat(claims.hasContract(1000, "S", "CONTRACT"), equalTo(true));
+        assertThat(claims.getFunctionalNumber(1001, "FUNCTION").getAsInt(), equalTo(42));
+        assertThat(claims.brandsAt(1000), containsInAnyOrder("V", "A", "S"));
+        assertThat(claims.brandsAt(4711), empty());
+    }
+
+    @Test
+    void testDefaultsForMissingAttributes() {
+        PartnerNetSaml2AuthenticationPrincipal principal = parse(new HashMap<>());
+
+        assertThat(principal.getGuid(), nullValue());
+        assertThat(principal.getUserType(), nullValue());
+        assertThat(principal.getGender(), equalTo(Gender.UNKNOWN));
+        assertThat(principal.getLanguage(), nullValue());
+        assertThat(principal.getAdditionalLanguages(), empty());
+        assertThat(principal.getEmployments(), empty());
+        assertThat(principal.getSupportRoles(), empty());
+        assertThat(principal.getContactCompanyIds(), empty());
+        assertThat(principal.isResponsibleUserAvailable(), equalTo(false));
+        assertThat(principal.isSupportDataAvailable(), equalTo(false));
+    }
+
+    private static PartnerNetSaml2AuthenticationPrincipal parse(Map<String, Serializable> attributes) {
+        PartnerNetSaml2ResponseParser parser = new PartnerNetSaml2ResponseParser(
+            PartnerNetSaml2AuthoritiesMapper.defaultInstance()
+        );
+        Saml2Data data = new Saml2Data(
+            "4711@identity.auto-partner.net",
+            "nameId",
+            attributes,
+            Optional.of("/relay"),
+            AuthnContextClass.USERPASS
+        );
+
+        return (PartnerNetSaml2AuthenticationPrincipal) parser.convert(data).getPrincipal();
+    }
+}
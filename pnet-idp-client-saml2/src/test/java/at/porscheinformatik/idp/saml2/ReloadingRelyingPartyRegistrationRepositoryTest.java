@@ -2,12 +2,26 @@ package at.porscheinformatik.idp.saml2;
 
 import static org.hamcrest.MatcherAssert.*;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
 
+import at.porscheinformatik.idp.MetadataSnapshotStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.security.cert.CertificateEncodingException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.security.saml2.Saml2Exception;
 import org.springframework.security.saml2.core.Saml2X509Credential;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration.AssertingPartyDetails;
@@ -22,6 +36,14 @@ class ReloadingRelyingPartyRegistrationRepositoryTest {
         Saml2Initializer.initialize();
     }
 
+    private final List<ReloadingRelyingPartyRegistrationRepository> repositories = new ArrayList<>();
+
+    @AfterEach
+    void destroyRepositories() {
+        // Stops the background threads, even if a test fails
+        repositories.forEach(ReloadingRelyingPartyRegistrationRepository::destroy);
+    }
+
     @Test
     void testFindByWrongRegistrationId() throws Exception {
         ReloadingRelyingPartyRegistrationRepository repository = buildRepository(
@@ -83,6 +105,215 @@ class ReloadingRelyingPartyRegistrationRepositoryTest {
         );
     }
 
+    @Test
+    void testUnchangedMetadataIsNotPreparedAgain() throws Exception {
+        TestClientFactory clientFactory = new TestClientFactory(
+            "saml2_metadata.xml",
+            "https://qa-identity.auto-partner.net/identity/saml2"
+        );
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(clientFactory);
+        AtomicInteger updates = new AtomicInteger();
+
+        repository.onUpdate(updates::incrementAndGet);
+
+        RelyingPartyRegistration registration = repository.findByRegistrationId("rpId");
+
+        repository.refresh();
+
+        assertThat(clientFactory.getDownloads(), equalTo(2));
+        assertThat(updates.get(), equalTo(1));
+        assertThat(repository.findByRegistrationId("rpId"), sameInstance(registration));
+    }
+
+    @Test
+    void testNotModifiedMetadataIsNotDownloadedAgain() throws Exception {
+        TestClientFactory clientFactory = new TestClientFactory(
+            "saml2_metadata.xml",
+            "https://qa-identity.auto-partner.net/identity/saml2"
+        ).withETag();
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(clientFactory);
+        AtomicInteger updates = new AtomicInteger();
+
+        repository.onUpdate(updates::incrementAndGet);
+
+        RelyingPartyRegistration registration = repository.findByRegistrationId("rpId");
+
+        repository.refresh();
+
+        assertThat(clientFactory.getDownloads(), equalTo(1));
+        assertThat(updates.get(), equalTo(1));
+        assertThat(repository.findByRegistrationId("rpId"), sameInstance(registration));
+    }
+
+    @Test
+    void testFailedPreparationIsRetriedOnNotModifiedMetadata() throws Exception {
+        TestClientFactory clientFactory = new TestClientFactory(
+            "saml2_metadata.xml",
+            "https://qa-identity.auto-partner.net/identity/saml2"
+        ).withETag();
+        Saml2CredentialsManager credentialsManager = Saml2TestUtils.defaultCredentialsManager();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        Saml2CredentialsManager failingCredentialsManager = new Saml2CredentialsManager() {
+            @Override
+            public List<Saml2X509Credential> getCredentials() {
+                if (failing.get()) {
+                    throw new IllegalStateException("Credentials not available");
+                }
+
+                return credentialsManager.getCredentials();
+            }
+
+            @Override
+            public void onUpdate(UpdateListener action) {
+                credentialsManager.onUpdate(action);
+            }
+        };
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(
+            "rpId",
+            failingCredentialsManager,
+            clientFactory
+        );
+
+        assertThrows(IllegalStateException.class, () -> repository.findByRegistrationId("rpId"));
+        assertThat(repository.getLoadedRegistration(), nullValue());
+
+        failing.set(false);
+        repository.refresh();
+
+        assertThat(clientFactory.getDownloads(), equalTo(1));
+        assertThat(repository.getLoadedRegistration(), notNullValue());
+    }
+
+    @Test
+    void testInitializeInBackground() throws Exception {
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            "saml2_metadata.xml"
+        );
+
+        repository.initializeInBackground();
+
+        RelyingPartyRegistration registration = null;
+
+        for (int i = 0; i < 100 && registration == null; i++) {
+            try {
+                registration = repository.findByRegistrationId("rpId");
+            } catch (Saml2Exception e) {
+                Thread.sleep(100);
+            }
+        }
+
+        assertThat(registration, notNullValue());
+        assertThat(
+            registration.getAssertingPartyMetadata().getEntityId(),
+            equalTo("https://qa-identity.auto-partner.net/identity/saml2")
+        );
+    }
+
+    @Test
+    void testInitializeInBackgroundFailsFast() throws Exception {
+        ReloadingRelyingPartyRegistrationRepository repository = buildUnavailableRepository("rpId");
+
+        repository.initializeInBackground();
+
+        assertThrows(Saml2Exception.class, () -> repository.findByRegistrationId("rpId"));
+    }
+
+    @Test
+    void testDestroyStopsBackgroundInitialization() throws Exception {
+        ReloadingRelyingPartyRegistrationRepository repository = buildUnavailableRepository("destroyed");
+
+        repository.initializeInBackground();
+        repository.destroy();
+
+        for (int i = 0; i < 100 && isThreadAlive("saml2-metadata-destroyed"); i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat(isThreadAlive("saml2-metadata-destroyed"), is(false));
+    }
+
+    @Test
+    void testStartWithMetadataSnapshot(@TempDir Path directory) throws Exception {
+        MetadataSnapshotStore snapshotStore = new MetadataSnapshotStore(directory);
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            "saml2_metadata.xml"
+        );
+
+        repository.useMetadataSnapshots(snapshotStore);
+
+        assertThat(repository.findByRegistrationId("rpId"), notNullValue());
+
+        try (var files = Files.list(directory)) {
+            assertThat(files.count(), equalTo(1L));
+        }
+
+        // The identity provider is not available, but the snapshot is
+        ReloadingRelyingPartyRegistrationRepository unavailableRepository = buildUnavailableRepository("rpId");
+
+        unavailableRepository.useMetadataSnapshots(snapshotStore);
+
+        RelyingPartyRegistration registration = unavailableRepository.findByRegistrationId("rpId");
+
+        assertThat(registration, notNullValue());
+        assertThat(
+            registration.getAssertingPartyMetadata().getSingleSignOnServiceLocation(),
+            equalTo("https://qa-identity.auto-partner.net/identity/saml2/authorize/redirect")
+        );
+    }
+
+    @Test
+    void testNotModifiedMetadataKeepsSnapshotUpToDate(@TempDir Path directory) throws Exception {
+        TestClientFactory clientFactory = new TestClientFactory(
+            "saml2_metadata.xml",
+            "https://qa-identity.auto-partner.net/identity/saml2"
+        ).withETag();
+
+        assertSnapshotKeptUpToDate(directory, clientFactory, 1);
+    }
+
+    @Test
+    void testUnchangedMetadataKeepsSnapshotUpToDate(@TempDir Path directory) throws Exception {
+        TestClientFactory clientFactory = new TestClientFactory(
+            "saml2_metadata.xml",
+            "https://qa-identity.auto-partner.net/identity/saml2"
+        );
+
+        assertSnapshotKeptUpToDate(directory, clientFactory, 2);
+    }
+
+    private void assertSnapshotKeptUpToDate(Path directory, TestClientFactory clientFactory, int expectedDownloads)
+        throws Exception {
+        MetadataSnapshotStore snapshotStore = new MetadataSnapshotStore(directory);
+        ReloadingRelyingPartyRegistrationRepository repository = buildRepository(clientFactory);
+
+        repository.useMetadataSnapshots(snapshotStore);
+        repository.findByRegistrationId("rpId");
+
+        Path snapshot;
+
+        try (var files = Files.list(directory)) {
+            snapshot = files.findFirst().orElseThrow();
+        }
+
+        // The metadata did not change for longer than the max age of the snapshot
+        Files.setLastModifiedTime(snapshot, FileTime.from(Instant.now().minus(Duration.ofDays(8))));
+
+        repository.refresh();
+
+        assertThat(clientFactory.getDownloads(), equalTo(expectedDownloads));
+
+        // Restart while the identity provider is not available
+        ReloadingRelyingPartyRegistrationRepository unavailableRepository = buildUnavailableRepository("rpId");
+
+        unavailableRepository.useMetadataSnapshots(snapshotStore);
+
+        assertThat(unavailableRepository.findByRegistrationId("rpId"), notNullValue());
+    }
+
     private String firstCertificateAsString(Collection<Saml2X509Credential> credentials)
         throws CertificateEncodingException {
         Saml2X509Credential credential = credentials.iterator().next();
@@ -96,7 +327,7 @@ class ReloadingRelyingPartyRegistrationRepositoryTest {
         String metadataFile
     ) throws Exception {
         Saml2CredentialsManager credentialsManager = Saml2TestUtils.defaultCredentialsManager();
-        return new ReloadingRelyingPartyRegistrationRepository(
+        ReloadingRelyingPartyRegistrationRepository repository = new ReloadingRelyingPartyRegistrationRepository(
             "rpId",
             entityId,
             metadataUrl,
@@ -105,5 +336,47 @@ class ReloadingRelyingPartyRegistrationRepositoryTest {
             "/saml2/sso/post/{registrationId}",
             "/saml2/{registrationId}"
         );
+
+        repositories.add(repository);
+
+        return repository;
+    }
+
+    private ReloadingRelyingPartyRegistrationRepository buildRepository(TestClientFactory clientFactory)
+        throws Exception {
+        return buildRepository("rpId", Saml2TestUtils.defaultCredentialsManager(), clientFactory);
+    }
+
+    private ReloadingRelyingPartyRegistrationRepository buildUnavailableRepository(String registrationId)
+        throws Exception {
+        return buildRepository(
+            registrationId,
+            Saml2TestUtils.defaultCredentialsManager(),
+            new TestClientFactory("saml2_metadata.xml", "https://unavailable.example.com/identity/saml2")
+        );
+    }
+
+    private ReloadingRelyingPartyRegistrationRepository buildRepository(
+        String registrationId,
+        Saml2CredentialsManager credentialsManager,
+        TestClientFactory clientFactory
+    ) {
+        ReloadingRelyingPartyRegistrationRepository repository = new ReloadingRelyingPartyRegistrationRepository(
+            registrationId,
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            "https://qa-identity.auto-partner.net/identity/saml2",
+            credentialsManager,
+            clientFactory,
+            "/saml2/sso/post/{registrationId}",
+            "/saml2/{registrationId}"
+        );
+
+        repositories.add(repository);
+
+        return repository;
+    }
+
+    private static boolean isThreadAlive(String name) {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> name.equals(thread.getName()));
     }
 }
@@ -0,0 +1,70 @@
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+
+class Saml2CredentialsHealthIndicatorTest {
+
+    @Test
+    void testUpWithValidCertificates() throws Exception {
+        Saml2CredentialsHealthIndicator indicator = new Saml2CredentialsHealthIndicator(
+            Saml2TestUtils.defaultCredentialsManager()
+        );
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus(), equalTo(Status.UP));
+        assertThat(certificates(health), hasSize(2));
+        assertThat(certificates(health).get(0), hasEntry("party", Saml2Certificates.SERVICE_PROVIDER));
+        assertThat(certificates(health).get(0), hasEntry("usage", "signing"));
+        assertThat(certificates(health).get(1), hasEntry("usage", "decryption"));
+    }
+
+    @Test
+    void testDegradedIfCertificatesExpireSoon() throws Exception {
+        Saml2CredentialsHealthIndicator indicator = new Saml2CredentialsHealthIndicator(
+            Saml2TestUtils.defaultCredentialsManager()
+        );
+
+        indicator.setWarningThreshold(Duration.ofDays(100000));
+
+        assertThat(indicator.health().getStatus(), equalTo(Saml2CredentialsHealthIndicator.DEGRADED));
+    }
+
+    @Test
+    void testDownWithoutDecryptionCredential() throws Exception {
+        Saml2CredentialsManager credentialsManager = Saml2TestUtils.defaultCredentialsManager();
+        Saml2CredentialsHealthIndicator indicator = new Saml2CredentialsHealthIndicator(
+            new Saml2CredentialsManager() {
+                @Override
+                public List<Saml2X509Credential> getCredentials() {
+                    return credentialsManager
+                        .getCredentials()
+                        .stream()
+                        .filter(credential -> !credential.isDecryptionCredential())
+                        .toList();
+                }
+
+                @Override
+                public void onUpdate(UpdateListener action) {
+                    credentialsManager.onUpdate(action);
+                }
+            }
+        );
+
+        assertThat(indicator.health().getStatus(), equalTo(Status.DOWN));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> certificates(Health health) {
+        return (List<Map<String, Object>>) health.getDetails().get("certificates");
+    }
+}
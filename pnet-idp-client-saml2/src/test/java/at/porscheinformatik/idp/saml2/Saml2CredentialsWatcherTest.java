@@ -0,0 +1,183 @@
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.saml2.DefaultSaml2CredentialsManager.Saml2CredentialsConfig;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+
+class Saml2CredentialsWatcherTest {
+
+    private static final String KEYSTORE = "/at/porscheinformatik/idp/saml2/keys.keystore";
+    private static final String PASSWORD = "somepass";
+    private static final Duration DEBOUNCE = Duration.ofSeconds(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReloadsChangedKeystore() throws Exception {
+        Path keystore = directory.toRealPath().resolve("keys.p12");
+
+        copyKeystore(keystore);
+
+        DefaultSaml2CredentialsManager manager = buildManager(keystore);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        Saml2CredentialsWatcher watcher = buildWatcher(manager, scheduler);
+
+        watcher.start();
+
+        try {
+            assertTrue(watcher.isWatched(keystore.getParent(), keystore.getFileName()));
+
+            copyKeystore(keystore);
+            watcher.scheduleReload();
+            awaitReloads(scheduler);
+
+            assertThat(manager.getVersion(), equalTo(2L));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test
+    void testReloadsSwappedSymlink() throws Exception {
+        // The layout of a secret mounted by Kubernetes
+        Path root = directory.toRealPath();
+        Path firstVersion = Files.createDirectory(root.resolve("..2024_01_01"));
+        Path keystore = root.resolve("keys.p12");
+
+        copyKeystore(firstVersion.resolve("keys.p12"));
+        Files.createSymbolicLink(root.resolve("..data"), Paths.get("..2024_01_01"));
+        Files.createSymbolicLink(keystore, Paths.get("..data/keys.p12"));
+
+        DefaultSaml2CredentialsManager manager = buildManager(keystore);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        Saml2CredentialsWatcher watcher = buildWatcher(manager, scheduler);
+
+        watcher.start();
+
+        try {
+            Path secondVersion = Files.createDirectory(root.resolve("..2024_01_02"));
+
+            copyKeystore(secondVersion.resolve("keys.p12"));
+            Files.createSymbolicLink(root.resolve("..data_tmp"), Paths.get("..2024_01_02"));
+            Files.move(
+                root.resolve("..data_tmp"),
+                root.resolve("..data"),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+            );
+
+            // Kubernetes changes the ..data symlink, not the keystore itself
+            assertTrue(watcher.isWatched(root, Paths.get("..data")));
+            assertTrue(watcher.isWatched(firstVersion, Paths.get("keys.p12")));
+            assertFalse(watcher.isWatched(secondVersion, Paths.get("keys.p12")));
+
+            watcher.scheduleReload();
+            awaitReloads(scheduler);
+
+            assertThat(manager.getVersion(), equalTo(2L));
+            assertFalse(watcher.isWatched(firstVersion, Paths.get("keys.p12")));
+            assertTrue(watcher.isWatched(secondVersion, Paths.get("keys.p12")));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test
+    void testDebouncesBursts() throws Exception {
+        Path keystore = directory.toRealPath().resolve("keys.p12");
+
+        copyKeystore(keystore);
+
+        DefaultSaml2CredentialsManager manager = buildManager(keystore);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        Saml2CredentialsWatcher watcher = buildWatcher(manager, scheduler);
+        AtomicInteger reloads = new AtomicInteger();
+
+        manager.onUpdate(reloads::incrementAndGet);
+        watcher.start();
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                watcher.scheduleReload();
+            }
+
+            awaitReloads(scheduler);
+
+            assertThat(reloads.get(), equalTo(1));
+            assertThat(manager.getVersion(), equalTo(2L));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private static Saml2CredentialsWatcher buildWatcher(
+        DefaultSaml2CredentialsManager manager,
+        ScheduledExecutorService scheduler
+    ) {
+        return new Saml2CredentialsWatcher(manager, DEBOUNCE, Duration.ofHours(1), () -> scheduler);
+    }
+
+    /**
+     * Runs the pending reloads and waits for them to finish. Changes reported by the file system afterwards are
+     * ignored, so the reloads only depend on the test.
+     */
+    private static void awaitReloads(ScheduledThreadPoolExecutor scheduler) throws InterruptedException {
+        scheduler.shutdown();
+
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static DefaultSaml2CredentialsManager buildManager(Path keystore) throws Exception {
+        Saml2CredentialsConfig config = new Saml2CredentialsConfig(
+            new FileSystemResource(keystore),
+            "PKCS12",
+            PASSWORD,
+            "myprivate",
+            "mypublic",
+            Saml2X509CredentialType.DECRYPTION
+        );
+        DefaultSaml2CredentialsManager manager = new DefaultSaml2CredentialsManager(
+            () -> List.of(config),
+            Runnable::run
+        );
+
+        manager.initialize();
+
+        return manager;
+    }
+
+    /**
+     * Stores the keystore again, with a new salt. The keys are the same, but the content changes.
+     */
+    private static void copyKeystore(Path target) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+
+        try (InputStream stream = Saml2CredentialsWatcherTest.class.getResourceAsStream(KEYSTORE)) {
+            keystore.load(stream, PASSWORD.toCharArray());
+        }
+
+        try (OutputStream stream = Files.newOutputStream(target)) {
+            keystore.store(stream, PASSWORD.toCharArray());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringReader;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.Response;
+
+class Saml2ParserPoolFactoryTest {
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    @Test
+    void testWarmUpParsesExtensions() throws Exception {
+        BasicParserPool parserPool = Saml2ParserPoolFactory.create(4);
+
+        Saml2ParserPoolFactory.warmUp(parserPool, 4);
+
+        Response response = (Response) XMLObjectSupport.unmarshallFromReader(
+            parserPool,
+            new StringReader(Saml2ParserPoolFactory.WARM_UP_RESPONSE)
+        );
+
+        assertThat(response.getExtensions().getUnknownXMLObjects(XmlUtils.MAX_SESSION_AGE_ELEMENT_NAME), hasSize(1));
+        assertThat(
+            response.getExtensions().getUnknownXMLObjects(XmlUtils.MAX_SESSION_AGE_ELEMENT_NAME).get(0),
+            instanceOf(MaxAge.class)
+        );
+        assertThat(
+            response.getExtensions().getUnknownXMLObjects(XmlUtils.TENANT_ELEMENT_NAME).get(0),
+            instanceOf(Tenant.class)
+        );
+        assertThat(response.getEncryptedAssertions(), hasSize(1));
+        assertThat(response.getAssertions(), hasSize(1));
+    }
+
+    @Test
+    void testRejectsDoctype() {
+        BasicParserPool parserPool = Saml2ParserPoolFactory.create(1);
+        String xml = "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]><foo>&xxe;</foo>";
+
+        assertThrows(XMLParserException.class, () -> parserPool.parse(new StringReader(xml)));
+    }
+
+    @Test
+    void testRejectsInvalidPoolSize() {
+        assertThrows(IllegalArgumentException.class, () -> Saml2ParserPoolFactory.create(0));
+    }
+}
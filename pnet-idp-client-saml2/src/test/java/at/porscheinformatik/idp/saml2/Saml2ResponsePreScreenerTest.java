@@ -0,0 +1,190 @@
+package at.porscheinformatik.idp.saml2;
+
+import static at.porscheinformatik.idp.saml2.Saml2Utils.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.saml2.HttpRequestContextAwareSaml2AuthenticationDetailsSource.HttpRequestContext;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Response;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.authentication.Saml2PostAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+class Saml2ResponsePreScreenerTest {
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    private static final String IDP_ENTITY_ID = "https://identity.com/identity/saml2";
+    private static final String RESPONSE_DESTINATION = "https://service.com/service/saml2/pnet/sso/post/pnet";
+    private static final String AUTHN_REQUEST_ID = "ARQ123";
+    private static final String RELAY_STATE = "relay";
+
+    private static final RelyingPartyRegistration REGISTRATION = RelyingPartyRegistration.withRegistrationId("pnet")
+        .entityId("https://service.com/service/saml2/pnet")
+        .assertionConsumerServiceLocation(RESPONSE_DESTINATION)
+        .assertingPartyMetadata(party ->
+            party.entityId(IDP_ENTITY_ID).singleSignOnServiceLocation(IDP_ENTITY_ID + "/authorize")
+        )
+        .build();
+
+    private final Saml2ReplayCache replayCache = new InMemorySaml2ReplayCache();
+    private final Saml2ResponsePreScreener preScreener = new Saml2ResponsePreScreener(replayCache);
+
+    @Test
+    void testAcceptsValidResponse() throws Exception {
+        String xml = XmlUtils.marshall(buildResponse());
+
+        preScreener.screen(buildToken(xml, RELAY_STATE));
+        preScreener.screen(buildEncodedToken(xml));
+    }
+
+    @Test
+    void testRejectsGarbage() {
+        Saml2AuthenticationException exception = assertThrows(Saml2AuthenticationException.class, () ->
+            preScreener.screen(buildToken("garbage", RELAY_STATE))
+        );
+
+        assertThat(exception.getSaml2Error().getErrorCode(), equalTo(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA));
+    }
+
+    @Test
+    void testRejectsDoctype() throws Exception {
+        String response = XmlUtils.marshall(buildResponse()).replaceFirst("^<\\?xml[^>]*\\?>", "");
+        String xml = "<!DOCTYPE Response [<!ENTITY x \"x\">]>" + response;
+
+        Saml2AuthenticationException exception = assertThrows(Saml2AuthenticationException.class, () ->
+            preScreener.screen(buildToken(xml, RELAY_STATE))
+        );
+
+        assertThat(exception.getSaml2Error().getErrorCode(), equalTo(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA));
+    }
+
+    @Test
+    void testRejectsOtherElements() {
+        testRejected(
+            "<saml2p:AuthnRequest xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>",
+            RELAY_STATE,
+            "Expected a SAML 2.0 response but got {urn:oasis:names:tc:SAML:2.0:protocol}AuthnRequest"
+        );
+    }
+
+    @Test
+    void testRejectsForeignIssuer() throws Exception {
+        Response response = buildResponse();
+        response.getIssuer().setValue("https://unknown.com/identity/saml2");
+
+        testRejected(XmlUtils.marshall(response), RELAY_STATE, "Invalid issuer https://unknown.com/identity/saml2");
+    }
+
+    @Test
+    void testRejectsExpiredResponse() throws Exception {
+        Response response = buildResponse();
+        response.setIssueInstant(Instant.now().minus(MESSAGE_LIFETIME).minus(CLOCK_SKEW).minus(Duration.ofMinutes(1)));
+
+        testRejected(XmlUtils.marshall(response), RELAY_STATE, "Message was rejected due to issue instant expiration");
+    }
+
+    @Test
+    void testAcceptsPaddedIssuer() throws Exception {
+        Response response = buildResponse();
+        response.getIssuer().setValue("\n    " + IDP_ENTITY_ID + "\n");
+
+        preScreener.screen(buildToken(XmlUtils.marshall(response), RELAY_STATE));
+    }
+
+    @Test
+    void testAcceptsOtherInResponseTo() throws Exception {
+        // Only the InResponseTo of the subject confirmation is checked by the handlers
+        Response response = buildResponse();
+        response.setInResponseTo("ARQother");
+
+        preScreener.screen(buildToken(XmlUtils.marshall(response), RELAY_STATE));
+    }
+
+    @Test
+    void testRejectsWrongDestination() throws Exception {
+        Response response = buildResponse();
+        response.setDestination("https://service.com/wrong/path");
+
+        testRejected(XmlUtils.marshall(response), RELAY_STATE, "SAML message failed received endpoint check");
+    }
+
+    @Test
+    void testRejectsWrongRelayStateWithoutParsing() {
+        testRejected("garbage", "other", "Requested relay state doesn't match relay state in response");
+    }
+
+    @Test
+    void testRejectsReplayedResponse() throws Exception {
+        Response response = buildResponse();
+        replayCache.markUsed(response.getID(), Instant.now().plus(Duration.ofMinutes(5)));
+
+        testRejected(
+            XmlUtils.marshall(response),
+            RELAY_STATE,
+            String.format("Response %s has already been processed", response.getID())
+        );
+    }
+
+    private void testRejected(String xml, String relayState, String message) {
+        Saml2AuthenticationException exception = assertThrows(Saml2AuthenticationException.class, () ->
+            preScreener.screen(buildToken(xml, relayState))
+        );
+
+        assertThat(exception.getSaml2Error().getErrorCode(), equalTo(Saml2ErrorCodes.INVALID_RESPONSE));
+        assertThat(exception.getSaml2Error().getDescription(), equalTo(message));
+    }
+
+    private static Response buildResponse() {
+        return Saml2ObjectUtils.response(IDP_ENTITY_ID, RESPONSE_DESTINATION, AUTHN_REQUEST_ID);
+    }
+
+    private static Saml2AuthenticationToken buildToken(String xml, String relayState) {
+        Saml2AuthenticationToken token = new Saml2AuthenticationToken(REGISTRATION, xml, buildAuthenticationRequest());
+        token.setDetails(new HttpRequestContext(buildRequest(relayState)));
+
+        return token;
+    }
+
+    private static Saml2AuthenticationToken buildEncodedToken(String xml) {
+        Saml2AuthenticationToken token = new PartnerNetSaml2AuthenticationToken(
+            REGISTRATION,
+            Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8)),
+            buildAuthenticationRequest()
+        );
+        token.setDetails(new HttpRequestContext(buildRequest(RELAY_STATE)));
+
+        return token;
+    }
+
+    private static AbstractSaml2AuthenticationRequest buildAuthenticationRequest() {
+        return Saml2PostAuthenticationRequest.withRelyingPartyRegistration(REGISTRATION)
+            .samlRequest("request")
+            .relayState(RELAY_STATE)
+            .build();
+    }
+
+    private static MockHttpServletRequest buildRequest(String relayState) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/service/saml2/pnet/sso/post/pnet");
+        request.setScheme("https");
+        request.setServerName("service.com");
+        request.setServerPort(443);
+        request.setSecure(true);
+        request.addParameter(RELAY_STATE_PARAM, relayState);
+        storeAuthnRequestId(request, AUTHN_REQUEST_ID);
+
+        return request;
+    }
+}
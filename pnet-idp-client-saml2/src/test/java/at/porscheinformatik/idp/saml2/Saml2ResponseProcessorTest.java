@@ -12,6 +12,9 @@ import static org.hamcrest.Matchers.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 import at.porscheinformatik.idp.saml2.HttpRequestContextAwareSaml2AuthenticationDetailsSource.HttpRequestContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStoreException;
@@ -23,6 +26,7 @@ import java.util.UUID;
 import org.apache.commons.codec.binary.Base64;
 import org.junit.jupiter.api.Test;
 import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.messaging.handler.MessageHandler;
 import org.opensaml.messaging.handler.MessageHandlerException;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.Attribute;
@@ -456,6 +460,87 @@ class Saml2ResponseProcessorTest {
         processor.process(tokenAndResponse.getToken(), tokenAndResponse.getResponse());
     }
 
+    @Test
+    void failsOnReplayedResponse() throws Exception {
+        TokenAndResponse tokenAndResponse = buildTokenAndResponse(true, false, false, false, 2, null, null);
+        Response replayedResponse = Saml2ObjectUtils.unmarshal(tokenAndResponse.getToken().getSaml2Response());
+
+        Saml2ResponseProcessor processor = Saml2ResponseProcessor.withDefaultHandlers();
+
+        processor.process(tokenAndResponse.getToken(), tokenAndResponse.getResponse());
+
+        MessageHandlerException actual = assertThrows(MessageHandlerException.class, () ->
+            processor.process(tokenAndResponse.getToken(), replayedResponse)
+        );
+
+        assertThat(
+            actual.getMessage(),
+            equalTo(String.format("Response %s has already been processed", replayedResponse.getID()))
+        );
+    }
+
+    @Test
+    void acceptsReplayedResponseWithDisabledCache() throws Exception {
+        TokenAndResponse tokenAndResponse = buildTokenAndResponse(true, false, false, false, 2, null, null);
+        Response replayedResponse = Saml2ObjectUtils.unmarshal(tokenAndResponse.getToken().getSaml2Response());
+
+        Saml2ResponseProcessor processor = Saml2ResponseProcessor.withDefaultHandlers(Saml2ReplayCache.disabled());
+
+        processor.process(tokenAndResponse.getToken(), tokenAndResponse.getResponse());
+        processor.process(tokenAndResponse.getToken(), replayedResponse);
+    }
+
+    @Test
+    void recordsHandlerTimings() throws Exception {
+        TokenAndResponse tokenAndResponse = buildTokenAndResponse(true, false, false, false, 2, null, null);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Saml2ResponseProcessor processor = InstrumentedSaml2ResponseProcessor.withDefaultHandlers(meterRegistry);
+
+        processor.process(tokenAndResponse.getToken(), tokenAndResponse.getResponse());
+
+        for (MessageHandler handler : processor.getHandlers()) {
+            Timer timer = meterRegistry
+                .get(InstrumentedSaml2ResponseProcessor.HANDLER_TIMER)
+                .tag("handler", handler.getClass().getSimpleName())
+                .tag("outcome", "success")
+                .timer();
+
+            assertThat(timer.count(), equalTo(1L));
+        }
+
+        for (Counter failures : meterRegistry.get(InstrumentedSaml2ResponseProcessor.HANDLER_FAILURES).counters()) {
+            assertThat(failures.count(), equalTo(0.0));
+        }
+    }
+
+    @Test
+    void countsRejectedResponses() throws Exception {
+        TokenAndResponse tokenAndResponse = buildTokenAndResponse(issuer("https://unkown.com/identity/saml2"));
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Saml2ResponseProcessor processor = InstrumentedSaml2ResponseProcessor.withDefaultHandlers(meterRegistry);
+
+        assertThrows(MessageHandlerException.class, () ->
+            processor.process(tokenAndResponse.getToken(), tokenAndResponse.getResponse())
+        );
+
+        Counter failures = meterRegistry
+            .get(InstrumentedSaml2ResponseProcessor.HANDLER_FAILURES)
+            .tag("handler", "CheckIssuerMessageHandler")
+            .tag("reason", "issuer")
+            .counter();
+
+        assertThat(failures.count(), equalTo(1.0));
+        assertThat(
+            meterRegistry
+                .get(InstrumentedSaml2ResponseProcessor.HANDLER_TIMER)
+                .tag("handler", "VerifySignatureMessageHandler")
+                .tag("outcome", "success")
+                .timer()
+                .count(),
+            equalTo(0L)
+        );
+    }
+
     @Test
     void failsOnMissingResponseRelayState() throws Exception {
         TokenAndResponse tokenAndResponse = buildTokenAndResponse(
@@ -27,12 +27,18 @@ import org.opensaml.saml.saml2.metadata.EncryptionMethod;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
 import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.BasicX509Credential;
 import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
 import org.opensaml.xmlsec.signature.X509Data;
 import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml2.core.Saml2X509Credential;
 import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
 import org.springframework.security.saml2.provider.service.metadata.Saml2MetadataResolver;
 import org.springframework.security.saml2.provider.service.registration.InMemoryRelyingPartyRegistrationRepository;
@@ -149,6 +155,70 @@ class Saml2ServiceProviderMetadataFilterTest {
         assertThat(digestMethods, containsInAnyOrder(SignatureConstants.ALGO_ID_DIGEST_SHA256));
     }
 
+    @Test
+    void metadataIsCached() throws Exception {
+        CountingMetadataResolver metadataResolver = new CountingMetadataResolver();
+        Saml2ServiceProviderMetadataFilter filter = buildFilter(metadataResolver);
+        MockHttpServletResponse firstResponse = new MockHttpServletResponse();
+        MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+
+        filter.doFilter(buildRequestFromUrl(SP_ENTITY_ID), firstResponse, new TestFilterChain());
+        filter.doFilter(buildRequestFromUrl(SP_ENTITY_ID), secondResponse, new TestFilterChain());
+
+        assertThat(metadataResolver.numberOfTimesCalled, equalTo(1));
+        assertThat(firstResponse.getHeader(HttpHeaders.ETAG), notNullValue());
+        assertThat(secondResponse.getHeader(HttpHeaders.ETAG), equalTo(firstResponse.getHeader(HttpHeaders.ETAG)));
+        assertThat(secondResponse.getContentAsString(), equalTo(firstResponse.getContentAsString()));
+        assertThat(firstResponse.getHeader(HttpHeaders.CACHE_CONTROL), equalTo("max-age=86400, public"));
+
+        filter.onUpdate();
+        filter.doFilter(buildRequestFromUrl(SP_ENTITY_ID), new MockHttpServletResponse(), new TestFilterChain());
+
+        assertThat(metadataResolver.numberOfTimesCalled, equalTo(2));
+    }
+
+    @Test
+    void notModified() throws Exception {
+        Saml2ServiceProviderMetadataFilter filter = buildFilter();
+        MockHttpServletResponse firstResponse = new MockHttpServletResponse();
+
+        filter.doFilter(buildRequestFromUrl(SP_ENTITY_ID), firstResponse, new TestFilterChain());
+
+        MockHttpServletRequest request = buildRequestFromUrl(SP_ENTITY_ID);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, firstResponse.getHeader(HttpHeaders.ETAG));
+        filter.doFilter(request, response, new TestFilterChain());
+
+        assertThat(response.getStatus(), equalTo(HttpStatus.NOT_MODIFIED.value()));
+        assertThat(response.getContentAsByteArray().length, equalTo(0));
+    }
+
+    @Test
+    void signedMetadata() throws Exception {
+        Saml2ServiceProviderMetadataFilter filter = buildFilter(new PartnerNetSaml2MetadataResolver(true));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(buildRequestFromUrl(SP_ENTITY_ID), response, new TestFilterChain());
+
+        EntityDescriptor entityDescriptor = Saml2ObjectUtils.unmarshal(response.getContentAsString());
+        Saml2X509Credential credential = Saml2TestUtils.defaultCredentialsManager()
+            .getCredentials(Saml2X509CredentialType.SIGNING)
+            .get(0);
+
+        assertThat(entityDescriptor.isSigned(), equalTo(true));
+        assertThat(
+            entityDescriptor.getSignature().getSignatureAlgorithm(),
+            equalTo(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256)
+        );
+
+        new SAMLSignatureProfileValidator().validate(entityDescriptor.getSignature());
+        SignatureValidator.validate(
+            entityDescriptor.getSignature(),
+            new BasicX509Credential(credential.getCertificate())
+        );
+    }
+
     private KeyDescriptor assertKeyOfType(List<KeyDescriptor> keyDescriptors, UsageType usage) {
         KeyDescriptor keyDescriptor = keyDescriptors //
             .stream()
@@ -191,10 +261,13 @@ class Saml2ServiceProviderMetadataFilterTest {
     }
 
     private Saml2ServiceProviderMetadataFilter buildFilter() throws Exception {
+        return buildFilter(new PartnerNetSaml2MetadataResolver());
+    }
+
+    private Saml2ServiceProviderMetadataFilter buildFilter(Saml2MetadataResolver metadataResolver) throws Exception {
         RelyingPartyRegistrationResolver registrationResolver = new DefaultRelyingPartyRegistrationResolver(
             buildRelyingPartyRepository()
         );
-        Saml2MetadataResolver metadataResolver = new PartnerNetSaml2MetadataResolver();
 
         return new Saml2ServiceProviderMetadataFilter(
             "/saml2/{registrationId}",
@@ -242,6 +315,18 @@ class Saml2ServiceProviderMetadataFilterTest {
         return request;
     }
 
+    private static class CountingMetadataResolver extends PartnerNetSaml2MetadataResolver {
+
+        private int numberOfTimesCalled = 0;
+
+        @Override
+        public String resolve(RelyingPartyRegistration relyingPartyRegistration) {
+            numberOfTimesCalled++;
+
+            return super.resolve(relyingPartyRegistration);
+        }
+    }
+
     private static class TestFilterChain implements FilterChain {
 
         private int numberOfTimesCalled = 0;
@@ -0,0 +1,35 @@
+package at.porscheinformatik.idp.saml2;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.Closeable;
+import org.apache.http.client.HttpClient;
+import org.junit.jupiter.api.Test;
+
+class SharedHttpClientTest {
+
+    @Test
+    void testSharedClientCanNotBeClosedByItsUsers() {
+        SharedHttpClient.retain();
+        SharedHttpClient.retain();
+
+        try {
+            HttpClient client = HttpClientFactory.sharedClient().newClient();
+
+            // A destroyed metadata resolver closes closeable clients
+            assertThat(client, not(instanceOf(Closeable.class)));
+            assertThat(HttpClientFactory.sharedClient().newClient(), sameInstance(client));
+
+            SharedHttpClient.release();
+
+            assertThat(HttpClientFactory.sharedClient().newClient(), sameInstance(client));
+
+            SharedHttpClient.release();
+
+            assertThat(HttpClientFactory.sharedClient().newClient(), not(sameInstance(client)));
+        } finally {
+            SharedHttpClient.release();
+        }
+    }
+}
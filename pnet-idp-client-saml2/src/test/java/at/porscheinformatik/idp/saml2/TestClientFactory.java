@@ -7,6 +7,9 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpStatus;
@@ -28,6 +31,9 @@ public class TestClientFactory implements HttpClientFactory {
 
     private final String metadata;
     private final String metadataUrl;
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private String etag;
 
     public TestClientFactory(String metadataFile, String metadataUrl) throws IOException {
         super();
@@ -46,6 +52,24 @@ public class TestClientFactory implements HttpClientFactory {
         }
     }
 
+    /**
+     * Sends an ETag with the metadata and answers conditional requests with 304 Not Modified.
+     *
+     * @return this factory
+     */
+    public TestClientFactory withETag() {
+        etag = "\"" + Integer.toHexString(metadata.hashCode()) + "\"";
+
+        return this;
+    }
+
+    /**
+     * @return the number of responses, that contained the metadata
+     */
+    public int getDownloads() {
+        return downloads.get();
+    }
+
     @Override
     public HttpClient newClient() throws Saml2Exception {
         return new StaticHttpClient();
@@ -70,7 +94,22 @@ public class TestClientFactory implements HttpClientFactory {
                 );
             }
 
-            return new TestHttpResponse(metadata);
+            Header ifNoneMatch = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+
+            if (etag != null && ifNoneMatch != null && etag.equals(ifNoneMatch.getValue())) {
+                return new TestHttpResponse(HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+            }
+
+            downloads.incrementAndGet();
+
+            TestHttpResponse response = new TestHttpResponse(HttpStatus.SC_OK, "OK");
+            response.setEntity(new StringEntity(metadata, ContentType.create("application/samlmetadata+xml", "UTF-8")));
+
+            if (etag != null) {
+                response.setHeader(HttpHeaders.ETAG, etag);
+            }
+
+            return response;
         }
 
         @Override
@@ -93,9 +132,8 @@ public class TestClientFactory implements HttpClientFactory {
 
     private static class TestHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
 
-        public TestHttpResponse(String content) {
-            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
-            setEntity(new StringEntity(content, ContentType.create("application/samlmetadata+xml", "UTF-8")));
+        public TestHttpResponse(int status, String reason) {
+            super(HttpVersion.HTTP_1_1, status, reason);
         }
 
         @Override
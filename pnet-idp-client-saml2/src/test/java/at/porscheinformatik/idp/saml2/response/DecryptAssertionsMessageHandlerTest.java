@@ -0,0 +1,122 @@
+package at.porscheinformatik.idp.saml2.response;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import at.porscheinformatik.idp.saml2.Saml2Initializer;
+import at.porscheinformatik.idp.saml2.Saml2ObjectUtils;
+import at.porscheinformatik.idp.saml2.Saml2TestUtils;
+import at.porscheinformatik.idp.saml2.response.DecryptAssertionsMessageHandler.DecryptionContext;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.opensaml.messaging.handler.MessageHandlerException;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+
+class DecryptAssertionsMessageHandlerTest {
+
+    private static final String IDP_ENTITY_ID = "https://identity.com/identity/saml2";
+    private static final String SP_ENTITY_ID = "https://service.com/service/saml2/pnet";
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    private final List<Saml2X509Credential> credentials;
+
+    DecryptAssertionsMessageHandlerTest() throws Exception {
+        super();
+        credentials = Saml2TestUtils.defaultCredentialsManager().getCredentials(Saml2X509CredentialType.DECRYPTION);
+    }
+
+    @Test
+    void testDecrypterIsReturnedAndReused() throws Exception {
+        DecryptAssertionsMessageHandler handler = new DecryptAssertionsMessageHandler();
+        DecryptionContext context = handler.getDecryptionContext(SP_ENTITY_ID, credentials);
+        Decrypter decrypter = context.borrowDecrypter();
+
+        context.returnDecrypter(decrypter);
+
+        List<Assertion> assertions = handler.decrypt(SP_ENTITY_ID, credentials, List.of(encryptedAssertion()));
+
+        assertThat(assertions, hasSize(1));
+        assertThat(assertions.get(0).getIssuer().getValue(), equalTo(IDP_ENTITY_ID));
+        assertThat(handler.getDecryptionContext(SP_ENTITY_ID, credentials), sameInstance(context));
+        assertThat(context.borrowDecrypter(), sameInstance(decrypter));
+    }
+
+    @Test
+    void testDecrypterIsReturnedOnDecryptionError() throws Exception {
+        DecryptAssertionsMessageHandler handler = new DecryptAssertionsMessageHandler();
+        // There is no key to decrypt the assertion with
+        List<Saml2X509Credential> noCredentials = List.of();
+        DecryptionContext context = handler.getDecryptionContext(SP_ENTITY_ID, noCredentials);
+        Decrypter decrypter = context.borrowDecrypter();
+
+        context.returnDecrypter(decrypter);
+
+        EncryptedAssertion encryptedAssertion = encryptedAssertion();
+
+        assertThrows(
+            MessageHandlerException.class,
+            () -> handler.decrypt(SP_ENTITY_ID, noCredentials, List.of(encryptedAssertion))
+        );
+        assertThat(context.borrowDecrypter(), sameInstance(decrypter));
+    }
+
+    @Test
+    void testDecrypterPoolIsLimited() {
+        DecryptAssertionsMessageHandler handler = new DecryptAssertionsMessageHandler();
+        DecryptionContext context = handler.getDecryptionContext(SP_ENTITY_ID, credentials);
+        List<Decrypter> decrypters = new ArrayList<>();
+
+        for (int i = 0; i <= DecryptAssertionsMessageHandler.MAX_POOLED_DECRYPTERS; i++) {
+            decrypters.add(context.borrowDecrypter());
+        }
+
+        decrypters.forEach(context::returnDecrypter);
+
+        for (int i = 0; i < DecryptAssertionsMessageHandler.MAX_POOLED_DECRYPTERS; i++) {
+            assertThat(decrypters, hasItem(sameInstance(context.borrowDecrypter())));
+        }
+
+        // The pool is empty now, the last returned decrypter was dropped
+        assertThat(decrypters, not(hasItem(sameInstance(context.borrowDecrypter()))));
+    }
+
+    @Test
+    void testPoolIsClearedOnUpdate() {
+        DecryptAssertionsMessageHandler handler = new DecryptAssertionsMessageHandler();
+        DecryptionContext context = handler.getDecryptionContext(SP_ENTITY_ID, credentials);
+        Decrypter decrypter = context.borrowDecrypter();
+
+        context.returnDecrypter(decrypter);
+        handler.onUpdate();
+
+        DecryptionContext updatedContext = handler.getDecryptionContext(SP_ENTITY_ID, credentials);
+
+        assertThat(updatedContext, not(sameInstance(context)));
+        assertThat(updatedContext.borrowDecrypter(), not(sameInstance(decrypter)));
+    }
+
+    private EncryptedAssertion encryptedAssertion() throws Exception {
+        Assertion assertion = Saml2ObjectUtils.assertion(
+            IDP_ENTITY_ID,
+            Saml2ObjectUtils.subject(SP_ENTITY_ID + "/sso/post/pnet", 5 * 60, "XYZ"),
+            Saml2ObjectUtils.conditions(SP_ENTITY_ID),
+            Saml2ObjectUtils.authnStatement(
+                Instant.now(),
+                "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport"
+            ),
+            Saml2ObjectUtils.attributeStatement()
+        );
+
+        return Saml2ObjectUtils.encryptAssertion(assertion, SP_ENTITY_ID, credentials.get(0));
+    }
+}
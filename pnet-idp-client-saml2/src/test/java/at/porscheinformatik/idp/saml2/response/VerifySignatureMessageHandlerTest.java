@@ -0,0 +1,83 @@
+package at.porscheinformatik.idp.saml2.response;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import at.porscheinformatik.idp.saml2.Saml2Initializer;
+import at.porscheinformatik.idp.saml2.Saml2TestUtils;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.opensaml.xmlsec.signature.support.SignatureTrustEngine;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential.Saml2X509CredentialType;
+
+class VerifySignatureMessageHandlerTest {
+
+    static {
+        Saml2Initializer.initialize();
+    }
+
+    private final Saml2X509Credential credential;
+
+    VerifySignatureMessageHandlerTest() throws Exception {
+        super();
+        credential = Saml2TestUtils.defaultCredentialsManager().getCredentials(Saml2X509CredentialType.SIGNING).get(0);
+    }
+
+    @Test
+    void testTrustEngineIsReusedForSameCredentials() {
+        VerifySignatureMessageHandler handler = new VerifySignatureMessageHandler();
+        List<Saml2X509Credential> credentials = verificationCredentials();
+
+        SignatureTrustEngine trustEngine = handler.getTrustEngine(credentials);
+
+        assertThat(handler.getTrustEngine(credentials), sameInstance(trustEngine));
+        // The registration gets copied for each request, but the credentials are carried over
+        assertThat(handler.getTrustEngine(new ArrayList<>(credentials)), sameInstance(trustEngine));
+    }
+
+    @Test
+    void testTrustEngineIsRebuiltOnUpdate() {
+        VerifySignatureMessageHandler handler = new VerifySignatureMessageHandler();
+        List<Saml2X509Credential> credentials = verificationCredentials();
+
+        SignatureTrustEngine trustEngine = handler.getTrustEngine(credentials);
+
+        handler.onUpdate();
+
+        assertThat(handler.getTrustEngine(credentials), not(sameInstance(trustEngine)));
+    }
+
+    @Test
+    void testTrustEngineIsRebuiltForChangedCredentials() {
+        VerifySignatureMessageHandler handler = new VerifySignatureMessageHandler();
+
+        SignatureTrustEngine trustEngine = handler.getTrustEngine(verificationCredentials());
+
+        // Reloaded credentials are new instances, even if the certificate did not change
+        assertThat(handler.getTrustEngine(verificationCredentials()), not(sameInstance(trustEngine)));
+    }
+
+    @Test
+    void testTrustEngineCacheIsLimited() {
+        VerifySignatureMessageHandler handler = new VerifySignatureMessageHandler();
+        List<Saml2X509Credential> credentials = verificationCredentials();
+
+        SignatureTrustEngine trustEngine = handler.getTrustEngine(credentials);
+
+        for (int i = 1; i < VerifySignatureMessageHandler.MAX_CACHED_TRUST_ENGINES; i++) {
+            handler.getTrustEngine(verificationCredentials());
+        }
+
+        assertThat(handler.getTrustEngine(credentials), sameInstance(trustEngine));
+
+        handler.getTrustEngine(verificationCredentials());
+
+        assertThat(handler.getTrustEngine(credentials), not(sameInstance(trustEngine)));
+    }
+
+    private List<Saml2X509Credential> verificationCredentials() {
+        return List.of(Saml2X509Credential.verification(credential.getCertificate()));
+    }
+}
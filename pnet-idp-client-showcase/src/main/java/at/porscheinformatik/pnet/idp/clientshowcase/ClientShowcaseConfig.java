@@ -1,5 +1,6 @@
 package at.porscheinformatik.pnet.idp.clientshowcase;
 
+import at.porscheinformatik.pnet.idp.clientshowcase.session.CompactSessionAttributeCodec;
 import at.porscheinformatik.pnet.idp.clientshowcase.session.SessionWrapperFilter;
 import org.apache.tomcat.util.http.Rfc6265CookieProcessor;
 import org.springframework.boot.web.embedded.tomcat.TomcatContextCustomizer;
@@ -31,10 +32,15 @@ public class ClientShowcaseConfig {
      * is added to the session.
      * </p>
      *
+     * <p>
+     * The security context is read multiple times per request. The compact codec writes the Partner.Net principals
+     * without java serialization. All other values are still serialized, so non serializable values are still found.
+     * </p>
+     *
      * @return the filter
      */
     @Bean
     public SessionWrapperFilter sessionWrapperFilter() {
-        return new SessionWrapperFilter();
+        return new SessionWrapperFilter(new CompactSessionAttributeCodec());
     }
 }
@@ -12,6 +12,7 @@ import at.porscheinformatik.idp.saml2.PartnerNetSaml2Configurer;
 import at.porscheinformatik.idp.saml2.PartnerNetSaml2Provider;
 import at.porscheinformatik.idp.saml2.Saml2CredentialsManager;
 import at.porscheinformatik.idp.saml2.Saml2CredentialsProperties;
+import at.porscheinformatik.idp.saml2.Saml2CredentialsWatcher;
 import java.util.List;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -62,10 +63,16 @@ public class ClientShowcaseSecurityConfig {
     }
 
     @Bean
-    public Saml2CredentialsManager saml2CredentialsManager(Saml2CredentialsProperties samlCredentialsConfig) {
+    public DefaultSaml2CredentialsManager saml2CredentialsManager(Saml2CredentialsProperties samlCredentialsConfig) {
         return new DefaultSaml2CredentialsManager(samlCredentialsConfig);
     }
 
+    @Bean
+    public Saml2CredentialsWatcher saml2CredentialsWatcher(DefaultSaml2CredentialsManager saml2CredentialsManager) {
+        // Reloads the keystores within seconds, e.g. when the mounted secret is updated
+        return new Saml2CredentialsWatcher(saml2CredentialsManager);
+    }
+
     @Bean
     public SecurityFilterChain securityFilterChain(
         HttpSecurity http,
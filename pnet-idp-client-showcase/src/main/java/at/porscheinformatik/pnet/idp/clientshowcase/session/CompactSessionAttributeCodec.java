@@ -0,0 +1,836 @@
+package at.porscheinformatik.pnet.idp.clientshowcase.session;
+
+import at.porscheinformatik.idp.Gender;
+import at.porscheinformatik.idp.PartnerNetCompanyAddressDTO;
+import at.porscheinformatik.idp.PartnerNetCompanyDTO;
+import at.porscheinformatik.idp.PartnerNetCompanyTypeDTO;
+import at.porscheinformatik.idp.PartnerNetContractDTO;
+import at.porscheinformatik.idp.PartnerNetFunctionalNumberDTO;
+import at.porscheinformatik.idp.PartnerNetRoleDTO;
+import at.porscheinformatik.idp.PartnerNetUserType;
+import at.porscheinformatik.idp.openidconnect.PartnerNetOpenIdConnectUser;
+import at.porscheinformatik.idp.saml2.AuthnContextClass;
+import at.porscheinformatik.idp.saml2.PartnerNetSaml2Authentication;
+import at.porscheinformatik.idp.saml2.PartnerNetSaml2AuthenticationPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.oidc.OidcIdToken;
+import org.springframework.security.oauth2.core.oidc.OidcUserInfo;
+import org.springframework.security.oauth2.core.oidc.user.OidcUserAuthority;
+
+/**
+ * A compact binary format for the objects, that end up in the session after a Partner.Net login: the security context
+ * with a SAML 2 or an OpenID Connect authentication, the principals, the DTOs of the core module and the usual JDK
+ * values. Strings are written only once per attribute, the id token and the user info are shared between the user and
+ * its authorities, like java serialization would do it.
+ *
+ * <p>
+ * Everything else is written with java serialization. So this codec still fails for values that are not serializable.
+ * Only JDK collections, that can be restored with the exact same type, are written in the compact format:
+ * {@link ArrayList}, {@link HashSet}, {@link LinkedHashSet}, {@link HashMap}, {@link LinkedHashMap}, the collections of
+ * {@link List#of()} and {@link Set#of()} and unmodifiable lists. Sorted, concurrent and synchronized collections are
+ * serialized, so they keep their type, ordering and mutability.
+ * </p>
+ */
+public class CompactSessionAttributeCodec implements SessionAttributeCodec {
+
+    private static final int VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_SERIALIZED = 1;
+    private static final int TAG_REFERENCE = 2;
+    private static final int TAG_STRING = 3;
+    private static final int TAG_INTEGER = 4;
+    private static final int TAG_LONG = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BOOLEAN = 7;
+    private static final int TAG_INSTANT = 8;
+    private static final int TAG_LOCALE = 9;
+    private static final int TAG_URL = 10;
+    private static final int TAG_LIST = 11;
+    private static final int TAG_SET = 12;
+    private static final int TAG_MAP = 13;
+    private static final int TAG_GENDER = 14;
+    private static final int TAG_USER_TYPE = 15;
+    private static final int TAG_AUTHN_CONTEXT_CLASS = 16;
+    private static final int TAG_COMPANY = 17;
+    private static final int TAG_COMPANY_ADDRESS = 18;
+    private static final int TAG_COMPANY_TYPE = 19;
+    private static final int TAG_CONTRACT = 20;
+    private static final int TAG_ROLE = 21;
+    private static final int TAG_FUNCTIONAL_NUMBER = 22;
+    private static final int TAG_SIMPLE_AUTHORITY = 23;
+    private static final int TAG_OIDC_USER_AUTHORITY = 24;
+    private static final int TAG_SECURITY_CONTEXT = 25;
+    private static final int TAG_SAML2_AUTHENTICATION = 26;
+    private static final int TAG_SAML2_PRINCIPAL = 27;
+    private static final int TAG_OAUTH2_AUTHENTICATION = 28;
+    private static final int TAG_OIDC_USER = 29;
+    private static final int TAG_OIDC_ID_TOKEN = 30;
+    private static final int TAG_OIDC_USER_INFO = 31;
+    private static final int TAG_HASH_SET = 32;
+    private static final int TAG_HASH_MAP = 33;
+    private static final int TAG_IMMUTABLE_LIST = 34;
+    private static final int TAG_IMMUTABLE_SET = 35;
+    private static final int TAG_UNMODIFIABLE_LIST = 36;
+
+    private static final Set<Class<?>> IMMUTABLE_LIST_TYPES = Set.copyOf(
+        List.of(List.of().getClass(), List.of(1).getClass())
+    );
+    private static final Set<Class<?>> IMMUTABLE_SET_TYPES = Set.copyOf(
+        List.of(Set.of().getClass(), Set.of(1).getClass())
+    );
+    private static final Class<?> UNMODIFIABLE_LIST_TYPE = Collections.unmodifiableList(new ArrayList<>()).getClass();
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+
+            new Writer(out).writeValue(value);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readUnsignedByte();
+
+            if (version != VERSION) {
+                throw new StreamCorruptedException(String.format("Unsupported session attribute version %s", version));
+            }
+
+            return new Reader(in).readValue();
+        }
+    }
+
+    private static final class Writer {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Object, Integer> objects = new IdentityHashMap<>();
+
+        Writer(DataOutputStream out) {
+            super();
+            this.out = out;
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof String string) {
+                out.writeByte(TAG_STRING);
+                writeString(string);
+            } else if (value instanceof Integer integer) {
+                out.writeByte(TAG_INTEGER);
+                writeVarLong(zigZag(integer));
+            } else if (value instanceof Long longValue) {
+                out.writeByte(TAG_LONG);
+                writeVarLong(zigZag(longValue));
+            } else if (value instanceof Double doubleValue) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble(doubleValue);
+            } else if (value instanceof Boolean bool) {
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(bool);
+            } else if (value instanceof Instant instant) {
+                out.writeByte(TAG_INSTANT);
+                writeInstant(instant);
+            } else if (value instanceof Locale locale) {
+                out.writeByte(TAG_LOCALE);
+                writeString(locale.toLanguageTag());
+            } else if (value instanceof URL url) {
+                out.writeByte(TAG_URL);
+                writeString(url.toExternalForm());
+            } else if (value instanceof Gender gender) {
+                out.writeByte(TAG_GENDER);
+                writeString(gender.name());
+            } else if (value instanceof PartnerNetUserType userType) {
+                out.writeByte(TAG_USER_TYPE);
+                writeString(userType.name());
+            } else if (value instanceof AuthnContextClass authnContextClass) {
+                out.writeByte(TAG_AUTHN_CONTEXT_CLASS);
+                writeString(authnContextClass.name());
+            } else if (!writeCollection(value) && !writeKnownObject(value)) {
+                writeSerialized(value);
+            }
+        }
+
+        /**
+         * Only exact classes are written in the compact format, the reader restores them with the same type. Sorted,
+         * concurrent or synchronized collections would lose their ordering or behavior.
+         */
+        private boolean writeCollection(Object value) throws IOException {
+            Class<?> type = value.getClass();
+
+            if (type == ArrayList.class) {
+                out.writeByte(TAG_LIST);
+                writeElements((Collection<?>) value);
+            } else if (type == UNMODIFIABLE_LIST_TYPE) {
+                out.writeByte(TAG_UNMODIFIABLE_LIST);
+                writeElements((Collection<?>) value);
+            } else if (IMMUTABLE_LIST_TYPES.contains(type) && !allowsNull((List<?>) value)) {
+                out.writeByte(TAG_IMMUTABLE_LIST);
+                writeElements((Collection<?>) value);
+            } else if (type == HashSet.class) {
+                out.writeByte(TAG_HASH_SET);
+                writeElements((Collection<?>) value);
+            } else if (type == LinkedHashSet.class) {
+                out.writeByte(TAG_SET);
+                writeElements((Collection<?>) value);
+            } else if (IMMUTABLE_SET_TYPES.contains(type)) {
+                out.writeByte(TAG_IMMUTABLE_SET);
+                writeElements((Collection<?>) value);
+            } else if (type == HashMap.class) {
+                out.writeByte(TAG_HASH_MAP);
+                writeMap((Map<?, ?>) value);
+            } else if (type == LinkedHashMap.class) {
+                out.writeByte(TAG_MAP);
+                writeMap((Map<?, ?>) value);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Only exact classes are written in the compact format. Subclasses might carry additional state.
+         */
+        private boolean writeKnownObject(Object value) throws IOException {
+            Class<?> type = value.getClass();
+
+            if (type == PartnerNetCompanyDTO.class) {
+                PartnerNetCompanyDTO company = (PartnerNetCompanyDTO) value;
+
+                out.writeByte(TAG_COMPANY);
+                writeNullableInt(company.getCompanyId());
+                writeString(company.getCompanyNumber());
+                writeString(company.getName());
+            } else if (type == PartnerNetCompanyAddressDTO.class) {
+                PartnerNetCompanyAddressDTO address = (PartnerNetCompanyAddressDTO) value;
+
+                out.writeByte(TAG_COMPANY_ADDRESS);
+                writeNullableInt(address.getCompanyId());
+                writeString(address.getStreet());
+                writeString(address.getPostalCode());
+                writeString(address.getCity());
+                writeString(address.getCountryCode());
+            } else if (type == PartnerNetCompanyTypeDTO.class) {
+                PartnerNetCompanyTypeDTO companyType = (PartnerNetCompanyTypeDTO) value;
+
+                out.writeByte(TAG_COMPANY_TYPE);
+                writeNullableInt(companyType.getCompanyId());
+                writeString(companyType.getCompanyTypeMatchcode());
+            } else if (type == PartnerNetContractDTO.class) {
+                PartnerNetContractDTO contract = (PartnerNetContractDTO) value;
+
+                out.writeByte(TAG_CONTRACT);
+                writeNullableInt(contract.getCompanyId());
+                writeString(contract.getBrandId());
+                writeString(contract.getContractMatchcode());
+            } else if (type == PartnerNetRoleDTO.class) {
+                PartnerNetRoleDTO role = (PartnerNetRoleDTO) value;
+
+                out.writeByte(TAG_ROLE);
+                writeNullableInt(role.getCompanyId());
+                writeString(role.getBrandId());
+                writeString(role.getRoleMatchcode());
+            } else if (type == PartnerNetFunctionalNumberDTO.class) {
+                PartnerNetFunctionalNumberDTO functionalNumber = (PartnerNetFunctionalNumberDTO) value;
+
+                out.writeByte(TAG_FUNCTIONAL_NUMBER);
+                writeNullableInt(functionalNumber.getCompanyId());
+                writeString(functionalNumber.getMatchcode());
+                writeNullableInt(functionalNumber.getNumber());
+            } else if (type == SimpleGrantedAuthority.class) {
+                out.writeByte(TAG_SIMPLE_AUTHORITY);
+                writeString(((SimpleGrantedAuthority) value).getAuthority());
+            } else if (type == OidcUserAuthority.class) {
+                OidcUserAuthority authority = (OidcUserAuthority) value;
+
+                // The authority may carry more state, depending on the Spring Security version. Only take the short
+                // path, if we are able to restore it.
+                if (!authority.equals(restoreOidcUserAuthority(authority))) {
+                    return false;
+                }
+
+                out.writeByte(TAG_OIDC_USER_AUTHORITY);
+                writeString(authority.getAuthority());
+                writeValue(authority.getIdToken());
+                writeValue(authority.getUserInfo());
+            } else if (type == SecurityContextImpl.class) {
+                out.writeByte(TAG_SECURITY_CONTEXT);
+                writeValue(((SecurityContextImpl) value).getAuthentication());
+            } else if (type == PartnerNetSaml2Authentication.class) {
+                PartnerNetSaml2Authentication authentication = (PartnerNetSaml2Authentication) value;
+
+                out.writeByte(TAG_SAML2_AUTHENTICATION);
+                writeValue(authentication.getPrincipal());
+                writeAuthenticationState(authentication);
+            } else if (type == PartnerNetSaml2AuthenticationPrincipal.class) {
+                out.writeByte(TAG_SAML2_PRINCIPAL);
+                writeSaml2Principal((PartnerNetSaml2AuthenticationPrincipal) value);
+            } else if (type == OAuth2AuthenticationToken.class) {
+                OAuth2AuthenticationToken authentication = (OAuth2AuthenticationToken) value;
+
+                // the reader restores a Partner.Net user, other principals are serialized with the token
+                if (authentication.getPrincipal().getClass() != PartnerNetOpenIdConnectUser.class) {
+                    return false;
+                }
+
+                out.writeByte(TAG_OAUTH2_AUTHENTICATION);
+                writeValue(authentication.getPrincipal());
+                writeString(authentication.getAuthorizedClientRegistrationId());
+                writeAuthenticationState(authentication);
+            } else if (type == PartnerNetOpenIdConnectUser.class) {
+                PartnerNetOpenIdConnectUser user = (PartnerNetOpenIdConnectUser) value;
+
+                out.writeByte(TAG_OIDC_USER);
+                writeElements(user.getAuthorities());
+                writeValue(user.getIdToken());
+                writeValue(user.getUserInfo());
+            } else if (type == OidcIdToken.class) {
+                if (writeReference(value)) {
+                    return true;
+                }
+
+                OidcIdToken idToken = (OidcIdToken) value;
+
+                out.writeByte(TAG_OIDC_ID_TOKEN);
+                writeString(idToken.getTokenValue());
+                writeValue(idToken.getIssuedAt());
+                writeValue(idToken.getExpiresAt());
+                writeMap(idToken.getClaims());
+            } else if (type == OidcUserInfo.class) {
+                if (writeReference(value)) {
+                    return true;
+                }
+
+                out.writeByte(TAG_OIDC_USER_INFO);
+                writeMap(((OidcUserInfo) value).getClaims());
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Authorities, details and the authenticated flag are the same for all authentication types.
+         */
+        private void writeAuthenticationState(Authentication authentication) throws IOException {
+            writeElements(authentication.getAuthorities());
+            writeValue(authentication.getDetails());
+            out.writeBoolean(authentication.isAuthenticated());
+        }
+
+        @SuppressWarnings("deprecation")
+        private void writeSaml2Principal(PartnerNetSaml2AuthenticationPrincipal principal) throws IOException {
+            writeString(principal.getSubjectIdentifier());
+            writeString(principal.getRelayState());
+            writeString(principal.getTransientSessionId());
+            writeValue(principal.getAuthnContextClass());
+            writeValue(principal.getLastUpdate());
+            writeString(principal.getGuid());
+            writeString(principal.getPersonnelNumber());
+            writeNullableInt(principal.getLegacyId());
+            writeValue(principal.getUserType());
+            writeString(principal.getAcademicTitle());
+            writeString(principal.getAcademicTitlePostNominal());
+            writeString(principal.getFirstname());
+            writeString(principal.getLastname());
+            writeValue(principal.getGender());
+            writeValue(principal.getLanguage());
+            writeValue(principal.getAdditionalLanguages());
+            writeString(principal.getMailAddress());
+            writeString(principal.getPhoneNumber());
+            writeString(principal.getTenant());
+            writeString(principal.getCostCenter());
+            writeNullableInt(principal.getFavoriteCompanyId());
+            writeString(principal.getFavoriteBrand());
+            writeValue(principal.getFunctionalNumbers());
+            writeValue(principal.getEmployments());
+            writeValue(principal.getEmploymentsAddress());
+            writeValue(principal.getRoles());
+            writeValue(principal.getContracts());
+            writeValue(principal.getContactCompanyIds());
+            writeValue(principal.getCompanyTypes());
+            out.writeBoolean(principal.isResponsibleUserAvailable());
+            writeString(principal.getResponsibleUserExternalId());
+            writeString(principal.getResponsibleUserFirstname());
+            writeString(principal.getResponsibleUserLastname());
+            writeString(principal.getResponsibleUserEmail());
+            writeString(principal.getResponsibleUserGuid());
+            out.writeBoolean(principal.isSupportDataAvailable());
+            writeValue(principal.getSupportEmployments());
+            writeValue(principal.getSupportEmploymentsAddress());
+            writeValue(principal.getSupportRoles());
+            writeValue(principal.getSupportContracts());
+            writeValue(principal.getSupportContactCompanyIds());
+            writeValue(principal.getSupportCompanyTypes());
+        }
+
+        private boolean writeReference(Object value) throws IOException {
+            Integer index = objects.get(value);
+
+            if (index != null) {
+                out.writeByte(TAG_REFERENCE);
+                writeVarLong(index);
+
+                return true;
+            }
+
+            objects.put(value, objects.size());
+
+            return false;
+        }
+
+        private void writeElements(Collection<?> elements) throws IOException {
+            writeVarLong(elements.size());
+
+            for (Object element : elements) {
+                writeValue(element);
+            }
+        }
+
+        private void writeMap(Map<?, ?> map) throws IOException {
+            writeVarLong(map.size());
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        /**
+         * {@link java.util.stream.Stream#toList()} returns the same type as {@link List#of()}, but it allows null
+         * elements. The list restored with {@link List#copyOf(Collection)} would not, so those lists are serialized.
+         */
+        private static boolean allowsNull(List<?> list) {
+            try {
+                list.indexOf(null);
+
+                return true;
+            } catch (NullPointerException e) {
+                return false;
+            }
+        }
+
+        private void writeSerialized(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+                stream.writeObject(value);
+            }
+
+            out.writeByte(TAG_SERIALIZED);
+            writeVarLong(bytes.size());
+            bytes.writeTo(out);
+        }
+
+        private void writeInstant(Instant instant) throws IOException {
+            out.writeLong(instant.getEpochSecond());
+            out.writeInt(instant.getNano());
+        }
+
+        /**
+         * 0 is null, 1 is followed by a new string, everything else references a string written before.
+         */
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+
+            Integer index = strings.get(value);
+
+            if (index != null) {
+                writeVarLong(index + 2L);
+                return;
+            }
+
+            strings.put(value, strings.size());
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+            writeVarLong(1);
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeNullableInt(Integer value) throws IOException {
+            writeVarLong(value == null ? 0 : zigZag(value) + 1);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            out.writeByte((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static final class Reader {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Object> objects = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            super();
+            this.in = in;
+        }
+
+        Object readValue() throws IOException, ClassNotFoundException {
+            int tag = in.readUnsignedByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_SERIALIZED:
+                    return readSerialized();
+                case TAG_REFERENCE:
+                    return objects.get(readLength());
+                case TAG_STRING:
+                    return readString();
+                case TAG_INTEGER:
+                    return (int) unZigZag(readVarLong());
+                case TAG_LONG:
+                    return unZigZag(readVarLong());
+                case TAG_DOUBLE:
+                    return in.readDouble();
+                case TAG_BOOLEAN:
+                    return in.readBoolean();
+                case TAG_INSTANT:
+                    return readInstant();
+                case TAG_LOCALE:
+                    return Locale.forLanguageTag(readString());
+                case TAG_URL:
+                    return new URL(readString());
+                case TAG_LIST:
+                    return readElements(new ArrayList<>());
+                case TAG_UNMODIFIABLE_LIST:
+                    return Collections.unmodifiableList(readElements(new ArrayList<>()));
+                case TAG_IMMUTABLE_LIST:
+                    return List.copyOf(readElements(new ArrayList<>()));
+                case TAG_HASH_SET:
+                    return readElements(new HashSet<>());
+                case TAG_SET:
+                    return readElements(new LinkedHashSet<>());
+                case TAG_IMMUTABLE_SET:
+                    return Set.copyOf(readElements(new ArrayList<>()));
+                case TAG_HASH_MAP:
+                    return readMap(new HashMap<>());
+                case TAG_MAP:
+                    return readMap(new LinkedHashMap<>());
+                case TAG_GENDER:
+                    return Gender.valueOf(readString());
+                case TAG_USER_TYPE:
+                    return PartnerNetUserType.valueOf(readString());
+                case TAG_AUTHN_CONTEXT_CLASS:
+                    return AuthnContextClass.valueOf(readString());
+                case TAG_COMPANY:
+                    return new PartnerNetCompanyDTO(readNullableInt(), readString(), readString());
+                case TAG_COMPANY_ADDRESS:
+                    return new PartnerNetCompanyAddressDTO(
+                        readNullableInt(),
+                        readString(),
+                        readString(),
+                        readString(),
+                        readString()
+                    );
+                case TAG_COMPANY_TYPE:
+                    return new PartnerNetCompanyTypeDTO(readNullableInt(), readString());
+                case TAG_CONTRACT:
+                    return new PartnerNetContractDTO(readNullableInt(), readString(), readString());
+                case TAG_ROLE:
+                    return new PartnerNetRoleDTO(readNullableInt(), readString(), readString());
+                case TAG_FUNCTIONAL_NUMBER:
+                    return new PartnerNetFunctionalNumberDTO(readNullableInt(), readString(), readNullableInt());
+                case TAG_SIMPLE_AUTHORITY:
+                    return new SimpleGrantedAuthority(readString());
+                case TAG_OIDC_USER_AUTHORITY:
+                    return new OidcUserAuthority(readString(), (OidcIdToken) readValue(), (OidcUserInfo) readValue());
+                case TAG_SECURITY_CONTEXT:
+                    return new SecurityContextImpl((Authentication) readValue());
+                case TAG_SAML2_AUTHENTICATION:
+                    return readSaml2Authentication();
+                case TAG_SAML2_PRINCIPAL:
+                    return readSaml2Principal();
+                case TAG_OAUTH2_AUTHENTICATION:
+                    return readOAuth2Authentication();
+                case TAG_OIDC_USER:
+                    return new PartnerNetOpenIdConnectUser(
+                        readAuthorities(),
+                        (OidcIdToken) readValue(),
+                        (OidcUserInfo) readValue()
+                    );
+                case TAG_OIDC_ID_TOKEN:
+                    return readShared(() ->
+                        new OidcIdToken(readString(), (Instant) readValue(), (Instant) readValue(), readMap())
+                    );
+                case TAG_OIDC_USER_INFO:
+                    return readShared(() -> new OidcUserInfo(readMap()));
+                default:
+                    throw new StreamCorruptedException(String.format("Unknown session attribute tag %s", tag));
+            }
+        }
+
+        private PartnerNetSaml2Authentication readSaml2Authentication() throws IOException, ClassNotFoundException {
+            PartnerNetSaml2AuthenticationPrincipal principal = (PartnerNetSaml2AuthenticationPrincipal) readValue();
+            PartnerNetSaml2Authentication authentication = new PartnerNetSaml2Authentication(
+                principal,
+                readAuthorities()
+            );
+
+            readDetailsAndAuthenticated(authentication);
+
+            return authentication;
+        }
+
+        private OAuth2AuthenticationToken readOAuth2Authentication() throws IOException, ClassNotFoundException {
+            PartnerNetOpenIdConnectUser user = (PartnerNetOpenIdConnectUser) readValue();
+            String registrationId = readString();
+            OAuth2AuthenticationToken authentication = new OAuth2AuthenticationToken(
+                user,
+                readAuthorities(),
+                registrationId
+            );
+
+            readDetailsAndAuthenticated(authentication);
+
+            return authentication;
+        }
+
+        private void readDetailsAndAuthenticated(AbstractAuthenticationToken authentication)
+            throws IOException, ClassNotFoundException {
+            authentication.setDetails(readValue());
+
+            if (!in.readBoolean()) {
+                authentication.setAuthenticated(false);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private PartnerNetSaml2AuthenticationPrincipal readSaml2Principal() throws IOException, ClassNotFoundException {
+            return new PartnerNetSaml2AuthenticationPrincipal(
+                readString(),
+                readString(),
+                readString(),
+                (AuthnContextClass) readValue(),
+                (Instant) readValue(),
+                readString(),
+                readString(),
+                readNullableInt(),
+                (PartnerNetUserType) readValue(),
+                readString(),
+                readString(),
+                readString(),
+                readString(),
+                (Gender) readValue(),
+                (Locale) readValue(),
+                (List<Locale>) readValue(),
+                readString(),
+                readString(),
+                readString(),
+                readString(),
+                readNullableInt(),
+                readString(),
+                (List<PartnerNetFunctionalNumberDTO>) readValue(),
+                (List<PartnerNetCompanyDTO>) readValue(),
+                (List<PartnerNetCompanyAddressDTO>) readValue(),
+                (List<PartnerNetRoleDTO>) readValue(),
+                (List<PartnerNetContractDTO>) readValue(),
+                (Collection<Integer>) readValue(),
+                (Collection<PartnerNetCompanyTypeDTO>) readValue(),
+                in.readBoolean(),
+                readString(),
+                readString(),
+                readString(),
+                readString(),
+                readString(),
+                in.readBoolean(),
+                (List<PartnerNetCompanyDTO>) readValue(),
+                (List<PartnerNetCompanyAddressDTO>) readValue(),
+                (List<PartnerNetRoleDTO>) readValue(),
+                (List<PartnerNetContractDTO>) readValue(),
+                (Collection<Integer>) readValue(),
+                (Collection<PartnerNetCompanyTypeDTO>) readValue()
+            );
+        }
+
+        /**
+         * The writer assigns the reference index before it writes the content. So we have to reserve the slot before
+         * reading the content, too.
+         */
+        private Object readShared(ValueReader reader) throws IOException, ClassNotFoundException {
+            int index = objects.size();
+
+            objects.add(null);
+
+            Object value = reader.read();
+
+            objects.set(index, value);
+
+            return value;
+        }
+
+        private List<GrantedAuthority> readAuthorities() throws IOException, ClassNotFoundException {
+            int size = readLength();
+            List<GrantedAuthority> authorities = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++) {
+                authorities.add((GrantedAuthority) readValue());
+            }
+
+            return authorities;
+        }
+
+        private <T extends Collection<Object>> T readElements(T target) throws IOException, ClassNotFoundException {
+            int size = readLength();
+
+            for (int i = 0; i < size; i++) {
+                target.add(readValue());
+            }
+
+            return target;
+        }
+
+        /**
+         * Claims always have string keys. Maps written with {@link #TAG_MAP} may have any key.
+         */
+        private <K> Map<K, Object> readMap() throws IOException, ClassNotFoundException {
+            return readMap(new LinkedHashMap<>());
+        }
+
+        @SuppressWarnings("unchecked")
+        private <K> Map<K, Object> readMap(Map<K, Object> target) throws IOException, ClassNotFoundException {
+            int size = readLength();
+
+            for (int i = 0; i < size; i++) {
+                target.put((K) readValue(), readValue());
+            }
+
+            return target;
+        }
+
+        private Object readSerialized() throws IOException, ClassNotFoundException {
+            byte[] bytes = new byte[readLength()];
+
+            in.readFully(bytes);
+
+            try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return stream.readObject();
+            }
+        }
+
+        private Instant readInstant() throws IOException {
+            return Instant.ofEpochSecond(in.readLong(), in.readInt());
+        }
+
+        private String readString() throws IOException {
+            long marker = readVarLong();
+
+            if (marker == 0) {
+                return null;
+            }
+
+            if (marker > 1) {
+                return strings.get((int) (marker - 2));
+            }
+
+            byte[] bytes = new byte[readLength()];
+
+            in.readFully(bytes);
+
+            String value = new String(bytes, StandardCharsets.UTF_8);
+
+            strings.add(value);
+
+            return value;
+        }
+
+        private Integer readNullableInt() throws IOException {
+            long value = readVarLong();
+
+            return value == 0 ? null : (int) unZigZag(value - 1);
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarLong();
+
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException(String.format("Invalid length %s", length));
+            }
+
+            return (int) length;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new StreamCorruptedException("Malformed variable length number");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ValueReader {
+        Object read() throws IOException, ClassNotFoundException;
+    }
+
+    private static OidcUserAuthority restoreOidcUserAuthority(OidcUserAuthority authority) {
+        return new OidcUserAuthority(authority.getAuthority(), authority.getIdToken(), authority.getUserInfo());
+    }
+}
@@ -0,0 +1,24 @@
+package at.porscheinformatik.pnet.idp.clientshowcase.session;
+
+import java.io.IOException;
+
+/**
+ * Converts session attributes to bytes and back. Used by the {@link SessionWrapperFilter} to mimic a session store
+ * that does not keep the objects themselves.
+ */
+public interface SessionAttributeCodec {
+    /**
+     * @param value the attribute value, never null
+     * @return the encoded value
+     * @throws IOException if the value can not be encoded, e.g. because it is not serializable
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * @param data the data created by {@link #encode(Object)}
+     * @return the decoded value
+     * @throws IOException if the data can not be decoded
+     * @throws ClassNotFoundException if the data references a class that is not available
+     */
+    Object decode(byte[] data) throws IOException, ClassNotFoundException;
+}
@@ -7,12 +7,10 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletRequestWrapper;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.web.filter.OncePerRequestFilter;
@@ -20,10 +18,21 @@ import org.springframework.web.filter.OncePerRequestFilter;
 @Order(Ordered.HIGHEST_PRECEDENCE + 5)
 public class SessionWrapperFilter extends OncePerRequestFilter {
 
+    private final SessionAttributeCodec codec;
+
+    public SessionWrapperFilter() {
+        this(new JavaSerializationSessionAttributeCodec());
+    }
+
+    public SessionWrapperFilter(SessionAttributeCodec codec) {
+        super();
+        this.codec = codec;
+    }
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
         throws ServletException, IOException {
-        filterChain.doFilter(new SerializingSessionHttpServletRequestWrapper(request), response);
+        filterChain.doFilter(new SerializingSessionHttpServletRequestWrapper(request, codec), response);
     }
 
     @Override
@@ -42,10 +51,13 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
 
     private static final class SerializingSessionHttpServletRequestWrapper extends HttpServletRequestWrapper {
 
+        private final SessionAttributeCodec codec;
+
         private SerializingSessionWrapper wrapper;
 
-        public SerializingSessionHttpServletRequestWrapper(HttpServletRequest request) {
+        public SerializingSessionHttpServletRequestWrapper(HttpServletRequest request, SessionAttributeCodec codec) {
             super(request);
+            this.codec = codec;
         }
 
         @Override
@@ -54,7 +66,7 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
                 HttpSession delegateSession = super.getSession(create);
 
                 if (delegateSession != null) {
-                    wrapper = new SerializingSessionWrapper(delegateSession);
+                    wrapper = new SerializingSessionWrapper(delegateSession, codec);
                 }
             }
 
@@ -70,12 +82,21 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
     private static final class SerializingSessionWrapper implements HttpSession {
 
         private final HttpSession delegate;
+        private final SessionAttributeCodec codec;
+
+        /**
+         * The wrapper lives as long as the request. Spring Security reads the security context multiple times per
+         * request, so we keep the decoded values together with the data they were decoded from. If another request
+         * replaced the data in the meantime, we decode again.
+         */
+        private final Map<String, DecodedAttribute> decoded = new HashMap<>();
 
         private boolean invalid;
 
-        public SerializingSessionWrapper(HttpSession delegate) {
+        public SerializingSessionWrapper(HttpSession delegate, SessionAttributeCodec codec) {
             super();
             this.delegate = delegate;
+            this.codec = codec;
         }
 
         @Override
@@ -83,11 +104,23 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
             Object serialized = delegate.getAttribute(name);
 
             if (serialized == null) {
+                decoded.remove(name);
+
                 return null;
             }
 
-            try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream((byte[]) serialized));) {
-                return stream.readObject();
+            DecodedAttribute attribute = decoded.get(name);
+
+            if (attribute != null && attribute.data == serialized) {
+                return attribute.value;
+            }
+
+            try {
+                Object value = codec.decode((byte[]) serialized);
+
+                decoded.put(name, new DecodedAttribute((byte[]) serialized, value));
+
+                return value;
             } catch (IOException | ClassNotFoundException e) {
                 throw new IllegalStateException("Error deserializing session object", e);
             }
@@ -95,17 +128,16 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
 
         @Override
         public void setAttribute(String name, Object value) {
+            decoded.remove(name);
+
             if (value == null) {
                 delegate.setAttribute(name, null);
-            }
 
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-
-            try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
-                stream.writeObject(value);
-                stream.flush();
+                return;
+            }
 
-                delegate.setAttribute(name, bytes.toByteArray());
+            try {
+                delegate.setAttribute(name, codec.encode(value));
             } catch (IOException e) {
                 throw new IllegalStateException(String.format("Error serializing session object %s", value), e);
             }
@@ -148,6 +180,8 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
 
         @Override
         public void removeAttribute(String name) {
+            decoded.remove(name);
+
             if (!invalid) {
                 delegate.removeAttribute(name);
             }
@@ -156,6 +190,7 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
         @Override
         public void invalidate() {
             delegate.invalidate();
+            decoded.clear();
 
             invalid = true;
         }
@@ -165,4 +200,16 @@ public class SessionWrapperFilter extends OncePerRequestFilter {
             return delegate.isNew();
         }
     }
+
+    private static final class DecodedAttribute {
+
+        private final byte[] data;
+        private final Object value;
+
+        DecodedAttribute(byte[] data, Object value) {
+            super();
+            this.data = data;
+            this.value = value;
+        }
+    }
 }
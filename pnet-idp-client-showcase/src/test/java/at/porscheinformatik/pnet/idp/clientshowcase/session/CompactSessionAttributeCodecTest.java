@@ -0,0 +1,148 @@
+package at.porscheinformatik.pnet.idp.clientshowcase.session;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+
+class CompactSessionAttributeCodecTest {
+
+    private final CompactSessionAttributeCodec codec = new CompactSessionAttributeCodec();
+
+    @Test
+    void testCompactCollections() throws Exception {
+        assertRoundTrip(new ArrayList<>(List.of("a", "b", "a")));
+        assertRoundTrip(new HashSet<>(Set.of("a", "b", "c")));
+        assertRoundTrip(new LinkedHashSet<>(List.of("c", "a", "b")));
+        assertRoundTrip(new HashMap<>(Map.of("a", 1, "b", 2)));
+        assertRoundTrip(new LinkedHashMap<>(Map.of("a", 1)));
+        assertRoundTrip(List.of());
+        assertRoundTrip(List.of(1));
+        assertRoundTrip(List.of(1, 2, 3));
+        assertRoundTrip(Set.of());
+        assertRoundTrip(Set.of("a"));
+        assertRoundTrip(Set.of("a", "b", "c"));
+        assertRoundTrip(Collections.unmodifiableList(new ArrayList<>(List.of("a", "b"))));
+    }
+
+    @Test
+    void testKeepsOrderAndMutability() throws Exception {
+        LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
+        map.put("z", 1);
+        map.put("a", 2);
+        map.put("m", 3);
+
+        LinkedHashMap<?, ?> decodedMap = assertRoundTrip(map);
+
+        assertThat(new ArrayList<>(decodedMap.keySet()), contains("z", "a", "m"));
+
+        List<String> decodedList = assertRoundTrip(new ArrayList<>(List.of("a")));
+
+        decodedList.add("b");
+
+        assertThat(decodedList, contains("a", "b"));
+
+        List<?> immutableList = assertRoundTrip(List.of("a"));
+        List<?> unmodifiableList = assertRoundTrip(Collections.unmodifiableList(new ArrayList<>(List.of("a"))));
+
+        assertThrows(UnsupportedOperationException.class, () -> immutableList.remove(0));
+        assertThrows(UnsupportedOperationException.class, () -> unmodifiableList.remove(0));
+    }
+
+    @Test
+    void testSerializesOtherCollections() throws Exception {
+        TreeSet<String> treeSet = new TreeSet<>(Comparator.reverseOrder());
+        treeSet.addAll(List.of("a", "c", "b"));
+
+        TreeSet<?> decodedTreeSet = assertRoundTrip(treeSet);
+
+        assertThat(new ArrayList<>(decodedTreeSet), contains("c", "b", "a"));
+
+        TreeMap<String, Integer> treeMap = new TreeMap<>(Map.of("b", 2, "a", 1));
+
+        assertThat(new ArrayList<>(assertRoundTrip(treeMap).keySet()), contains("a", "b"));
+
+        EnumMap<TimeUnit, String> enumMap = new EnumMap<>(TimeUnit.class);
+        enumMap.put(TimeUnit.SECONDS, "s");
+
+        assertRoundTrip(enumMap);
+        assertRoundTrip(new ConcurrentHashMap<>(Map.of("a", 1)));
+        assertRoundTrip(new LinkedList<>(List.of("a", "b")));
+        assertRoundTrip(Collections.synchronizedList(new ArrayList<>(List.of("a"))));
+        assertRoundTrip(Collections.unmodifiableSet(new HashSet<>(Set.of("a"))));
+        assertRoundTrip(Collections.unmodifiableMap(new HashMap<>(Map.of("a", 1))));
+        assertRoundTrip(Collections.unmodifiableList(new LinkedList<>(List.of("a"))));
+        assertRoundTrip(Collections.emptyList());
+        assertRoundTrip(Map.of("a", 1));
+    }
+
+    @Test
+    void testListWithNullElements() throws Exception {
+        List<?> decoded = assertRoundTrip(Stream.of("a", null, "b").toList());
+
+        assertThat(decoded.contains(null), is(true));
+        assertThat(assertRoundTrip(new ArrayList<>(Arrays.asList("a", null))).contains(null), is(true));
+    }
+
+    @Test
+    void testNestedCollections() throws Exception {
+        TreeSet<Integer> treeSet = new TreeSet<>(List.of(3, 1, 2));
+        Map<String, Collection<?>> map = new HashMap<>();
+        map.put("list", List.of("a", "b"));
+        map.put("tree", treeSet);
+
+        Map<?, ?> decoded = assertRoundTrip(map);
+
+        assertThat(decoded.get("list").getClass(), equalTo(List.of("a", "b").getClass()));
+        assertThat(decoded.get("tree"), instanceOf(TreeSet.class));
+    }
+
+    @Test
+    void testOAuth2AuthenticationWithOtherPrincipal() throws Exception {
+        List<SimpleGrantedAuthority> authorities = List.of(new SimpleGrantedAuthority("ROLE_USER"));
+        DefaultOAuth2User user = new DefaultOAuth2User(authorities, Map.of("sub", "user"), "sub");
+        OAuth2AuthenticationToken authentication = new OAuth2AuthenticationToken(user, authorities, "pnet");
+
+        OAuth2AuthenticationToken decoded = assertRoundTrip(authentication);
+
+        assertThat(decoded.getPrincipal(), instanceOf(DefaultOAuth2User.class));
+        assertThat(decoded.getAuthorizedClientRegistrationId(), equalTo("pnet"));
+
+        assertRoundTrip(new SecurityContextImpl(authentication));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T assertRoundTrip(T value) throws Exception {
+        Object decoded = codec.decode(codec.encode(value));
+
+        assertThat(decoded, notNullValue());
+        assertThat(decoded.getClass(), equalTo(value.getClass()));
+        assertThat(decoded, equalTo(value));
+
+        return (T) decoded;
+    }
+}